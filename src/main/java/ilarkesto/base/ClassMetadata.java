@@ -0,0 +1,286 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.base;
+
+import ilarkesto.core.base.Str;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reflection metadata of a class: fields, getters, setters and looked up methods. Everything is computed on first
+ * use and cached per class, also lookups which found nothing. Superclasses are walked by iterating the declared
+ * members instead of catching <code>NoSuchMethodException</code> and <code>NoSuchFieldException</code>.
+ * <p>
+ * Returned lists are unmodifiable and shared, returned methods of getters and setters are accessible.
+ */
+public final class ClassMetadata {
+
+	private static final Map<Class, ClassMetadata> metadataByClass = new ConcurrentHashMap<Class, ClassMetadata>();
+
+	private static final Object NONE = new Object();
+
+	private final Class<?> type;
+
+	private volatile List<Field> fields;
+	private final List<Field>[] fieldsByFilter = new List[8];
+	private volatile Map<String, Field> fieldsByName;
+	private volatile List<Method> getters;
+	private volatile List<Method> setters;
+
+	private final Map<String, Object> gettersByProperty = new ConcurrentHashMap<String, Object>();
+	private final Map<String, Object> settersByProperty = new ConcurrentHashMap<String, Object>();
+	private final Map<MethodKey, Object> methodsByKey = new ConcurrentHashMap<MethodKey, Object>();
+
+	private ClassMetadata(Class<?> type) {
+		super();
+		this.type = type;
+	}
+
+	public static ClassMetadata get(Class<?> type) {
+		ClassMetadata metadata = metadataByClass.get(type);
+		if (metadata == null) {
+			metadata = new ClassMetadata(type);
+			metadataByClass.put(type, metadata);
+		}
+		return metadata;
+	}
+
+	/**
+	 * Fields of the class and its superclasses, without the ones of <code>Object</code>.
+	 */
+	public List<Field> getFields(boolean includeStatic, boolean includePrivate, boolean includeTransient) {
+		int filter = (includeStatic ? 1 : 0) | (includePrivate ? 2 : 0) | (includeTransient ? 4 : 0);
+		List<Field> ret;
+		synchronized (fieldsByFilter) {
+			ret = fieldsByFilter[filter];
+		}
+		if (ret != null) return ret;
+
+		List<Field> filtered = new ArrayList<Field>();
+		for (Field field : getFields()) {
+			int modifiers = field.getModifiers();
+			if (!includeStatic && Modifier.isStatic(modifiers)) continue;
+			if (!includePrivate && Modifier.isPrivate(modifiers)) continue;
+			if (!includeTransient && Modifier.isTransient(modifiers)) continue;
+			filtered.add(field);
+		}
+		ret = Collections.unmodifiableList(filtered);
+		synchronized (fieldsByFilter) {
+			fieldsByFilter[filter] = ret;
+		}
+		return ret;
+	}
+
+	private List<Field> getFields() {
+		if (fields == null) {
+			List<Field> ret = new ArrayList<Field>();
+			Class<?> c = type;
+			while (c != null && !c.equals(Object.class)) {
+				ret.addAll(Arrays.asList(c.getDeclaredFields()));
+				c = c.getSuperclass();
+			}
+			fields = Collections.unmodifiableList(ret);
+		}
+		return fields;
+	}
+
+	/**
+	 * @return the field with the given name, declared by the class or the nearest superclass, or <code>null</code>
+	 */
+	public Field getField(String name) {
+		if (fieldsByName == null) {
+			Map<String, Field> ret = new HashMap<String, Field>();
+			for (Field field : getFields()) {
+				if (!ret.containsKey(field.getName())) ret.put(field.getName(), field);
+			}
+			fieldsByName = ret;
+		}
+		return fieldsByName.get(name);
+	}
+
+	/**
+	 * @return the method with the given name and exact parameter types, declared by the class or the nearest
+	 *         superclass, or <code>null</code>
+	 */
+	public Method getMethod(String name, Class<?>... parameterTypes) {
+		if (parameterTypes == null) parameterTypes = new Class<?>[0];
+		MethodKey key = new MethodKey(name, parameterTypes);
+		Object method = methodsByKey.get(key);
+		if (method == null) {
+			method = findMethod(name, parameterTypes);
+			if (method == null) method = NONE;
+			methodsByKey.put(key, method);
+		}
+		return method == NONE ? null : (Method) method;
+	}
+
+	private Method findMethod(String name, Class<?>[] parameterTypes) {
+		Class<?> c = type;
+		while (c != null) {
+			Method bridge = null;
+			for (Method method : c.getDeclaredMethods()) {
+				if (!method.getName().equals(name) || !Arrays.equals(method.getParameterTypes(), parameterTypes))
+					continue;
+				if (!method.isBridge()) return method;
+				bridge = method;
+			}
+			if (bridge != null) return bridge;
+			c = c.getSuperclass();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the accessible <code>getX()</code> method or the <code>isX()</code> method returning a boolean, or
+	 *         <code>null</code>
+	 */
+	public Method getGetter(String property) {
+		Object getter = gettersByProperty.get(property);
+		if (getter == null) {
+			getter = findGetter(property);
+			if (getter == null) getter = NONE;
+			gettersByProperty.put(property, getter);
+		}
+		return getter == NONE ? null : (Method) getter;
+	}
+
+	private Method findGetter(String property) {
+		if (property.length() == 0) return null;
+		String methodSuffix = Str.uppercaseFirstLetter(property);
+		Method method = getMethod("get" + methodSuffix);
+		if (method == null) {
+			method = getMethod("is" + methodSuffix);
+			if (method == null) return null;
+			Class<?> returnType = method.getReturnType();
+			if (returnType != boolean.class && returnType != Boolean.class) return null;
+		}
+		return accessible(method);
+	}
+
+	/**
+	 * @return the accessible <code>setX()</code> method with one parameter, or <code>null</code>
+	 */
+	public Method getSetter(String property) {
+		Object setter = settersByProperty.get(property);
+		if (setter == null) {
+			setter = findSetter("set" + Str.uppercaseFirstLetter(property));
+			if (setter == null) setter = NONE;
+			settersByProperty.put(property, setter);
+		}
+		return setter == NONE ? null : (Method) setter;
+	}
+
+	private Method findSetter(String methodName) {
+		Class<?> c = type;
+		while (c != null) {
+			for (Method method : c.getDeclaredMethods()) {
+				if (method.getName().equals(methodName) && method.getParameterTypes().length == 1)
+					return accessible(method);
+			}
+			c = c.getSuperclass();
+		}
+		return null;
+	}
+
+	/**
+	 * Methods starting with <code>get</code> without parameters, declared by the class and its superclasses
+	 * without <code>Object</code>.
+	 */
+	public List<Method> getGetters() {
+		if (getters == null) getters = findAccessorMethods("get", 0);
+		return getters;
+	}
+
+	/**
+	 * Methods starting with <code>set</code> with one parameter, declared by the class and its superclasses
+	 * without <code>Object</code>.
+	 */
+	public List<Method> getSetters() {
+		if (setters == null) setters = findAccessorMethods("set", 1);
+		return setters;
+	}
+
+	private List<Method> findAccessorMethods(String prefix, int parameterCount) {
+		List<Method> ret = new ArrayList<Method>();
+		Class<?> c = type;
+		while (c != null && c != Object.class) {
+			for (Method method : c.getDeclaredMethods()) {
+				String name = method.getName();
+				if (name.length() <= prefix.length() || !name.startsWith(prefix)) continue;
+				if (method.getParameterTypes().length != parameterCount) continue;
+				ret.add(method);
+			}
+			c = c.getSuperclass();
+		}
+		return Collections.unmodifiableList(ret);
+	}
+
+	private static Method accessible(Method method) {
+		if (method.isAccessible()) return method;
+		try {
+			method.setAccessible(true);
+		} catch (SecurityException ex) {
+			// invoking may fail later
+		}
+		return method;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return "ClassMetadata: " + type.getName();
+	}
+
+	private static final class MethodKey {
+
+		private final String name;
+		private final Class<?>[] parameterTypes;
+		private final int hashCode;
+
+		public MethodKey(String name, Class<?>[] parameterTypes) {
+			super();
+			this.name = name;
+			this.parameterTypes = parameterTypes;
+			this.hashCode = 31 * name.hashCode() + Arrays.hashCode(parameterTypes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof MethodKey)) return false;
+			MethodKey other = (MethodKey) obj;
+			return name.equals(other.name) && Arrays.equals(parameterTypes, other.parameterTypes);
+		}
+
+	}
+
+}
@@ -52,17 +52,10 @@ public abstract class Reflect {
 	}
 
 	public static Object getProperty(Object o, String name) {
-		String methodSuffix = Str.uppercaseFirstLetter(name);
-		Method method = getDeclaredMethod(o.getClass(), "get" + methodSuffix);
-		if (method == null) {
-			method = getDeclaredMethod(o.getClass(), "is" + methodSuffix);
-			Class<?> returnType = method.getReturnType();
-			if (returnType != boolean.class && returnType != Boolean.class) method = null;
-		}
+		Method method = getGetterMethod(o.getClass(), name);
 		if (method == null)
 			throw new RuntimeException("No getter method for property: " + o.getClass().getSimpleName() + "." + name);
 		try {
-			method.setAccessible(true);
 			return method.invoke(o);
 		} catch (Exception ex) {
 			throw new RuntimeException(
@@ -78,6 +71,14 @@ public abstract class Reflect {
 		return m.getReturnType();
 	}
 
+	/**
+	 * @return the accessible <code>getX()</code> method or the <code>isX()</code> method returning a boolean, or
+	 *         <code>null</code>
+	 */
+	public static Method getGetterMethod(Class<?> clazz, String property) {
+		return ClassMetadata.get(clazz).getGetter(property);
+	}
+
 	public static Object getFieldValue(Object object, String fieldName) {
 		return getFieldValue(object.getClass(), object, fieldName);
 	}
@@ -289,17 +290,7 @@ public abstract class Reflect {
 	}
 
 	public static Method getDeclaredMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
-		Method m = null;
-		try {
-			m = clazz.getDeclaredMethod(name, parameterTypes);
-		} catch (SecurityException ex) {
-			throw new RuntimeException(ex);
-		} catch (NoSuchMethodException ex) {
-			if (clazz != Object.class) {
-				m = getDeclaredMethod(clazz.getSuperclass(), name, parameterTypes);
-			}
-		}
-		return m;
+		return ClassMetadata.get(clazz).getMethod(name, parameterTypes);
 	}
 
 	public static Method getDeclaredMethodIgnoreParameters(Class<?> clazz, String name) {
@@ -334,43 +325,16 @@ public abstract class Reflect {
 
 	public static List<Field> getFields(Class<?> clazz, boolean includeStatic, boolean includePrivate,
 			boolean includeTransient) {
-		List<Field> ret = new ArrayList<Field>();
-		while (clazz != null && !clazz.equals(Object.class)) {
-			for (Field field : clazz.getDeclaredFields()) {
-				if (!includeStatic && isStatic(field)) continue;
-				if (!includePrivate && isPrivate(field)) continue;
-				if (!includeTransient && isTransient(field)) continue;
-				ret.add(field);
-			}
-			clazz = clazz.getSuperclass();
-		}
-		return ret;
+		return new ArrayList<Field>(ClassMetadata.get(clazz).getFields(includeStatic, includePrivate,
+			includeTransient));
 	}
 
 	public static List<Method> getSetters(Class<?> clazz) {
-		List<Method> ret = new LinkedList<Method>();
-		for (Method method : clazz.getDeclaredMethods()) {
-			String name = method.getName();
-			if (name.length() < 4 || !name.startsWith("set")) continue;
-			if (method.getParameterTypes().length != 1) continue;
-			ret.add(method);
-		}
-		Class<?> superclass = clazz.getSuperclass();
-		if (superclass != null && superclass != Object.class) ret.addAll(getSetters(superclass));
-		return ret;
+		return new LinkedList<Method>(ClassMetadata.get(clazz).getSetters());
 	}
 
 	public static List<Method> getGetters(Class<?> clazz) {
-		List<Method> ret = new LinkedList<Method>();
-		for (Method method : clazz.getDeclaredMethods()) {
-			String name = method.getName();
-			if (name.length() < 4 || !name.startsWith("get")) continue;
-			if (method.getParameterTypes().length != 0) continue;
-			ret.add(method);
-		}
-		Class<?> superclass = clazz.getSuperclass();
-		if (superclass != null && superclass != Object.class) ret.addAll(getGetters(superclass));
-		return ret;
+		return new LinkedList<Method>(ClassMetadata.get(clazz).getGetters());
 	}
 
 	public static String getPropertyNameFromSetter(Method setter) {
@@ -390,38 +354,11 @@ public abstract class Reflect {
 	}
 
 	public static Method getSetterMethod(Class<?> clazz, String property) {
-		Method m = null;
-		String methodName = "set" + Str.uppercaseFirstLetter(property);
-		try {
-			for (Method method : clazz.getDeclaredMethods()) {
-				if (method.getName().equals(methodName) && method.getParameterTypes().length == 1) {
-					m = method;
-					break;
-				}
-			}
-		} catch (SecurityException ex) {
-			throw new RuntimeException(ex);
-		}
-		if (m == null) {
-			if (clazz != Object.class) {
-				m = getSetterMethod(clazz.getSuperclass(), property);
-			}
-		}
-		return m;
+		return ClassMetadata.get(clazz).getSetter(property);
 	}
 
 	public static Field getDeclaredField(Class<?> clazz, String name) {
-		Field f = null;
-		try {
-			f = clazz.getDeclaredField(name);
-		} catch (SecurityException ex) {
-			throw new RuntimeException(ex);
-		} catch (NoSuchFieldException ex) {
-			if (clazz != Object.class) {
-				f = getDeclaredField(clazz.getSuperclass(), name);
-			}
-		}
-		return f;
+		return ClassMetadata.get(clazz).getField(name);
 	}
 
 	public static Class<?>[] getClasses(Object... objects) {
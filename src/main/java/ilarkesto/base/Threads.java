@@ -116,7 +116,7 @@ public class Threads {
 			if (call.contains("javax.servlet.http.HttpServlet.service()")) return "HTTP";
 
 			// ILARKESTO
-			if (call.contains("DefaultLogRecordHandler$1.run()")) return "LOG";
+			if (call.contains("DefaultLogRecordHandler$WriterThread.run()")) return "LOG";
 			if (call.contains("ilarkesto.base.Proc$StreamGobbler.run()")) return "PROC";
 
 			return null;
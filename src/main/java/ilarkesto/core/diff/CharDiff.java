@@ -25,6 +25,9 @@ public class CharDiff {
 	private int lcsLen;
 	private int leftLen;
 	private int rightLen;
+	private int lcsIndex;
+	private int leftIndex;
+	private int rightIndex;
 
 	private StringBuilder out = new StringBuilder();
 	private char chLcs;
@@ -41,7 +44,7 @@ public class CharDiff {
 	}
 
 	public CharDiff diff() {
-		lcs = LongestCommonSubsequenceString.execute(left, right);
+		lcs = MyersDiff.lcs(left, right);
 		updateLengths();
 
 		while (skipBurn || (lcsLen > 0 && leftLen > 0 && rightLen > 0)) {
@@ -49,16 +52,16 @@ public class CharDiff {
 		}
 		if (leftLen == 0 && rightLen == 0) return this;
 		if (leftLen == 0) {
-			out.append(marker.added(right));
+			out.append(marker.added(right.substring(rightIndex)));
 			return this;
 		}
 		if (rightLen == 0) {
-			out.append(marker.removed(left));
+			out.append(marker.removed(left.substring(leftIndex)));
 			return this;
 		}
 		if (lcsLen == 0) {
-			out.append(marker.removed(left));
-			out.append(marker.added(right));
+			out.append(marker.removed(left.substring(leftIndex)));
+			out.append(marker.added(right.substring(rightIndex)));
 			return this;
 		}
 
@@ -120,13 +123,9 @@ public class CharDiff {
 		if (leftLen == 0) return false;
 		if (rightLen == 0) return false;
 
-		chLcs = lcs.charAt(0);
-		chLeft = left.charAt(0);
-		chRight = right.charAt(0);
-
-		lcs = lcs.substring(1);
-		left = left.substring(1);
-		right = right.substring(1);
+		chLcs = lcs.charAt(lcsIndex++);
+		chLeft = left.charAt(leftIndex++);
+		chRight = right.charAt(rightIndex++);
 
 		lcsLen--;
 		leftLen--;
@@ -138,9 +137,7 @@ public class CharDiff {
 	private boolean nextCharRight() {
 		if (rightLen == 0) return false;
 
-		chRight = right.charAt(0);
-
-		right = right.substring(1);
+		chRight = right.charAt(rightIndex++);
 
 		rightLen--;
 
@@ -150,9 +147,7 @@ public class CharDiff {
 	private boolean nextCharLeft() {
 		if (leftLen == 0) return false;
 
-		chLeft = left.charAt(0);
-
-		left = left.substring(1);
+		chLeft = left.charAt(leftIndex++);
 
 		leftLen--;
 
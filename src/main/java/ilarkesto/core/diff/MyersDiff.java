@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.diff;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Longest common subsequence by Myers' O((N+M)D) difference algorithm in linear space. Common prefixes and
+ * suffixes are trimmed first. The remaining range is split at the middle snake, which is found by searching
+ * forward and backward at the same time, and both halves are solved recursively. Tokens are compared by integer
+ * ids, so each token is hashed only once.
+ */
+public class MyersDiff {
+
+	private final int[] a;
+	private final int[] b;
+
+	private int[] matches;
+	private int matchCount;
+
+	private MyersDiff(int[] a, int[] b) {
+		this.a = a;
+		this.b = b;
+		this.matches = new int[Math.min(a.length, b.length)];
+	}
+
+	public static List<String> lcs(List<String> a, List<String> b) {
+		Map<String, Integer> idsByToken = new HashMap<String, Integer>();
+		int[] aIds = toIds(a, idsByToken);
+		int[] bIds = toIds(b, idsByToken);
+		MyersDiff diff = new MyersDiff(aIds, bIds);
+		diff.lcs(0, aIds.length, 0, bIds.length);
+
+		List<String> tokens = a instanceof ArrayList ? a : new ArrayList<String>(a);
+		List<String> ret = new ArrayList<String>(diff.matchCount);
+		for (int i = 0; i < diff.matchCount; i++) {
+			ret.add(tokens.get(diff.matches[i]));
+		}
+		return ret;
+	}
+
+	public static String lcs(String a, String b) {
+		int[] aChars = toChars(a);
+		MyersDiff diff = new MyersDiff(aChars, toChars(b));
+		diff.lcs(0, aChars.length, 0, diff.b.length);
+
+		char[] ret = new char[diff.matchCount];
+		for (int i = 0; i < diff.matchCount; i++) {
+			ret[i] = a.charAt(diff.matches[i]);
+		}
+		return new String(ret);
+	}
+
+	private static int[] toIds(List<String> tokens, Map<String, Integer> idsByToken) {
+		int[] ret = new int[tokens.size()];
+		int i = 0;
+		for (String token : tokens) {
+			Integer id = idsByToken.get(token);
+			if (id == null) {
+				id = Integer.valueOf(idsByToken.size());
+				idsByToken.put(token, id);
+			}
+			ret[i++] = id.intValue();
+		}
+		return ret;
+	}
+
+	private static int[] toChars(String s) {
+		int[] ret = new int[s.length()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = s.charAt(i);
+		}
+		return ret;
+	}
+
+	/**
+	 * Collects the indexes in <code>a</code> of the common subsequence of the given ranges, in order.
+	 */
+	private void lcs(int aStart, int aEnd, int bStart, int bEnd) {
+		while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+			matches[matchCount++] = aStart;
+			aStart++;
+			bStart++;
+		}
+		int suffixLength = 0;
+		while (aStart < aEnd - suffixLength && bStart < bEnd - suffixLength
+				&& a[aEnd - suffixLength - 1] == b[bEnd - suffixLength - 1]) {
+			suffixLength++;
+		}
+		aEnd -= suffixLength;
+		bEnd -= suffixLength;
+
+		if (aStart < aEnd && bStart < bEnd) bisect(aStart, aEnd, bStart, bEnd);
+
+		for (int i = 0; i < suffixLength; i++) {
+			matches[matchCount++] = aEnd + i;
+		}
+	}
+
+	/**
+	 * Finds the middle snake of the ranges and solves the parts before and after it. Ranges without any common
+	 * element produce no matches.
+	 */
+	private void bisect(int aStart, int aEnd, int bStart, int bEnd) {
+		int aLength = aEnd - aStart;
+		int bLength = bEnd - bStart;
+		int maxD = (aLength + bLength + 1) / 2;
+		int offset = maxD;
+		int vLength = 2 * maxD + 2;
+		int[] forward = new int[vLength];
+		int[] backward = new int[vLength];
+		for (int i = 0; i < vLength; i++) {
+			forward[i] = -1;
+			backward[i] = -1;
+		}
+		forward[offset + 1] = 0;
+		backward[offset + 1] = 0;
+		int delta = aLength - bLength;
+		boolean checkInForward = delta % 2 != 0;
+
+		int forwardKStart = 0;
+		int forwardKEnd = 0;
+		int backwardKStart = 0;
+		int backwardKEnd = 0;
+		for (int d = 0; d < maxD; d++) {
+			for (int k = -d + forwardKStart; k <= d - forwardKEnd; k += 2) {
+				int kOffset = offset + k;
+				int x;
+				if (k == -d || (k != d && forward[kOffset - 1] < forward[kOffset + 1])) {
+					x = forward[kOffset + 1];
+				} else {
+					x = forward[kOffset - 1] + 1;
+				}
+				int y = x - k;
+				while (x < aLength && y < bLength && a[aStart + x] == b[bStart + y]) {
+					x++;
+					y++;
+				}
+				forward[kOffset] = x;
+				if (x > aLength) {
+					forwardKEnd += 2;
+				} else if (y > bLength) {
+					forwardKStart += 2;
+				} else if (checkInForward) {
+					int backwardOffset = offset + delta - k;
+					if (backwardOffset >= 0 && backwardOffset < vLength && backward[backwardOffset] != -1) {
+						if (x >= aLength - backward[backwardOffset]) {
+							split(aStart, aEnd, bStart, bEnd, x, y);
+							return;
+						}
+					}
+				}
+			}
+
+			for (int k = -d + backwardKStart; k <= d - backwardKEnd; k += 2) {
+				int kOffset = offset + k;
+				int x;
+				if (k == -d || (k != d && backward[kOffset - 1] < backward[kOffset + 1])) {
+					x = backward[kOffset + 1];
+				} else {
+					x = backward[kOffset - 1] + 1;
+				}
+				int y = x - k;
+				while (x < aLength && y < bLength && a[aEnd - x - 1] == b[bEnd - y - 1]) {
+					x++;
+					y++;
+				}
+				backward[kOffset] = x;
+				if (x > aLength) {
+					backwardKEnd += 2;
+				} else if (y > bLength) {
+					backwardKStart += 2;
+				} else if (!checkInForward) {
+					int forwardOffset = offset + delta - k;
+					if (forwardOffset >= 0 && forwardOffset < vLength && forward[forwardOffset] != -1) {
+						int forwardX = forward[forwardOffset];
+						int forwardY = offset + forwardX - forwardOffset;
+						if (forwardX >= aLength - x) {
+							split(aStart, aEnd, bStart, bEnd, forwardX, forwardY);
+							return;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void split(int aStart, int aEnd, int bStart, int bEnd, int x, int y) {
+		lcs(aStart, aStart + x, bStart, bStart + y);
+		lcs(aStart + x, aEnd, bStart + y, bEnd);
+	}
+
+}
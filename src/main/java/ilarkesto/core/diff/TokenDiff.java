@@ -14,6 +14,7 @@
  */
 package ilarkesto.core.diff;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class TokenDiff {
@@ -28,6 +29,9 @@ public class TokenDiff {
 	private int lcsLen;
 	private int leftLen;
 	private int rightLen;
+	private int lcsIndex;
+	private int leftIndex;
+	private int rightIndex;
 
 	private StringBuilder out = new StringBuilder();
 	private String chLcs;
@@ -50,15 +54,15 @@ public class TokenDiff {
 	}
 
 	public TokenDiff(String left, String right, DiffMarker marker, DiffTokenizer tokenizer, DiffTokenizer subTokenizer) {
-		this.left = tokenizer.tokenize(left);
-		this.right = tokenizer.tokenize(right);
+		this.left = new ArrayList<String>(tokenizer.tokenize(left));
+		this.right = new ArrayList<String>(tokenizer.tokenize(right));
 		this.marker = marker;
 		this.tokenizer = tokenizer;
 		this.subTokenizer = subTokenizer;
 	}
 
 	public TokenDiff diff() {
-		lcs = LongestCommonSubsequenceList.execute(left, right);
+		lcs = MyersDiff.lcs(left, right);
 		updateLengths();
 
 		while (skipBurn || (lcsLen > 0 && leftLen > 0 && rightLen > 0)) {
@@ -70,15 +74,16 @@ public class TokenDiff {
 		}
 		if (leftLen == 0 && rightLen == 0) return this;
 		if (leftLen == 0) {
-			out.append(marker.added(tokenizer.concat(right)));
+			out.append(marker.added(tokenizer.concat(remaining(right, rightIndex))));
 			return this;
 		}
 		if (rightLen == 0) {
-			out.append(marker.removed(tokenizer.concat(left)));
+			out.append(marker.removed(tokenizer.concat(remaining(left, leftIndex))));
 			return this;
 		}
 		if (lcsLen == 0) {
-			outReplaced(tokenizer.concat(left), tokenizer.concat(right));
+			outReplaced(tokenizer.concat(remaining(left, leftIndex)),
+				tokenizer.concat(remaining(right, rightIndex)));
 			return this;
 		}
 
@@ -160,13 +165,9 @@ public class TokenDiff {
 		if (leftLen == 0) return false;
 		if (rightLen == 0) return false;
 
-		chLcs = lcs.get(0);
-		chLeft = left.get(0);
-		chRight = right.get(0);
-
-		lcs.remove(0);
-		left.remove(0);
-		right.remove(0);
+		chLcs = lcs.get(lcsIndex++);
+		chLeft = left.get(leftIndex++);
+		chRight = right.get(rightIndex++);
 
 		lcsLen--;
 		leftLen--;
@@ -178,9 +179,7 @@ public class TokenDiff {
 	private boolean nextCharRight() {
 		if (rightLen == 0) return false;
 
-		chRight = right.get(0);
-
-		right.remove(0);
+		chRight = right.get(rightIndex++);
 
 		rightLen--;
 
@@ -190,15 +189,17 @@ public class TokenDiff {
 	private boolean nextCharLeft() {
 		if (leftLen == 0) return false;
 
-		chLeft = left.get(0);
-
-		left.remove(0);
+		chLeft = left.get(leftIndex++);
 
 		leftLen--;
 
 		return true;
 	}
 
+	private static List<String> remaining(List<String> tokens, int index) {
+		return tokens.subList(index, tokens.size());
+	}
+
 	private void updateLengths() {
 		leftLen = left.size();
 		rightLen = right.size();
@@ -19,25 +19,61 @@ import ilarkesto.core.base.Str;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Logger. The minimum level of a logger is configured with <code>setLevel()</code> for its name or for one of its
+ * parents. Loggers obtained by <code>get(Class)</code> are below the package of the class, so
+ * <code>setLevel("ilarkesto.persistence", Level.INFO)</code> disables debug logging for all classes in
+ * <code>ilarkesto.persistence</code> and its subpackages. Without a configured level, debug logging is controlled by
+ * <code>setDebugEnabled()</code>.
+ * <p>
+ * The registry and the levels are copy-on-write maps, so looking them up takes no lock. Each logger caches its
+ * resolved level together with the version of the levels it was resolved from.
+ */
 public class Log {
 
+	private static final int LEVEL_BITS = 3;
+	private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+
 	private static final Log ANONYMOUS = new Log("----- ANONYMOUS ----->");
-	private static final Map<String, Log> LOGGERS = new HashMap<String, Log>();
+	private static volatile Map<String, Log> loggers = new HashMap<String, Log>();
+	private static volatile Map<String, Level> levels = new HashMap<String, Level>();
+	private static volatile int levelsVersion;
 	private static boolean debugEnabled = true;
 	private static LogRecordHandler logRecordHandler = new PrintStreamLogRecordHandler(System.err);
 
-	private String name;
+	private final String name;
+	private final String category;
+
+	/**
+	 * Version of the levels and ordinal of the resolved level in one field, so they are always read together.
+	 */
+	private int levelState = -1;
 
 	public Log(String name) {
+		this(name, name);
+	}
+
+	private Log(String name, String category) {
 		this.name = name;
+		this.category = category;
 	}
 
 	public void log(Level level, Object... parameters) {
 		if (logRecordHandler == null) return;
-		if (level.isDebug() && !isDebugEnabled()) return;
+		if (!isEnabled(level)) return;
 		logRecordHandler.log(new LogRecord(System.currentTimeMillis(), name, level, parameters));
 	}
 
+	/**
+	 * Logs the parameters of the message only if the level is enabled. The message is not even asked for its
+	 * parameters otherwise.
+	 */
+	public void log(Level level, LazyLogMessage message) {
+		if (logRecordHandler == null) return;
+		if (!isEnabled(level)) return;
+		logRecordHandler.log(new LogRecord(System.currentTimeMillis(), name, level, message.getParameters()));
+	}
+
 	/**
 	 * Logs an fatal error to the system admin. A fatal error indicates an error that prevents the system from
 	 * working at all.
@@ -46,6 +82,10 @@ public class Log {
 		log(Level.FATAL, s);
 	}
 
+	public void fatal(LazyLogMessage message) {
+		log(Level.FATAL, message);
+	}
+
 	/**
 	 * Logs an error to the system admin.
 	 */
@@ -53,6 +93,10 @@ public class Log {
 		log(Level.ERROR, s);
 	}
 
+	public void error(LazyLogMessage message) {
+		log(Level.ERROR, message);
+	}
+
 	/**
 	 * Logs a warning to the system admin.
 	 */
@@ -60,6 +104,10 @@ public class Log {
 		log(Level.WARN, s);
 	}
 
+	public void warn(LazyLogMessage message) {
+		log(Level.WARN, message);
+	}
+
 	/**
 	 * Logs an information to the system admin.
 	 */
@@ -67,13 +115,53 @@ public class Log {
 		log(Level.INFO, s);
 	}
 
+	public void info(LazyLogMessage message) {
+		log(Level.INFO, message);
+	}
+
 	/**
 	 * Indicates if debug is enabled. If it is not, {@link #debug(Object[])} does nothing.
 	 *
 	 * @see #debug(Object[])
 	 */
 	public boolean isDebugEnabled() {
-		return debugEnabled;
+		return isEnabled(Level.DEBUG);
+	}
+
+	public boolean isInfoEnabled() {
+		return isEnabled(Level.INFO);
+	}
+
+	public boolean isEnabled(Level level) {
+		int state = levelState;
+		if ((state >> LEVEL_BITS) != levelsVersion) state = updateLevelState();
+		return level.ordinal() >= (state & LEVEL_MASK);
+	}
+
+	private int updateLevelState() {
+		int version = levelsVersion;
+		int state = (version << LEVEL_BITS) | getEffectiveLevel().ordinal();
+		levelState = state;
+		return state;
+	}
+
+	/**
+	 * @return the level configured for this logger, its name or its nearest parent
+	 */
+	public Level getEffectiveLevel() {
+		Map<String, Level> levels = Log.levels;
+		Level level = levels.get(category);
+		if (level == null) level = levels.get(name);
+		String parent = category;
+		while (level == null) {
+			int idx = parent.lastIndexOf('.');
+			if (idx < 0) break;
+			parent = parent.substring(0, idx);
+			level = levels.get(parent);
+		}
+		if (level == null) level = levels.get("");
+		if (level == null) level = debugEnabled ? Level.DEBUG : Level.INFO;
+		return level;
 	}
 
 	/**
@@ -82,31 +170,79 @@ public class Log {
 	 * @see #isDebugEnabled()
 	 */
 	public void debug(Object... s) {
-		if (!isDebugEnabled()) return;
 		log(Level.DEBUG, s);
 	}
 
+	public void debug(LazyLogMessage message) {
+		log(Level.DEBUG, message);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getCategory() {
+		return category;
+	}
+
 	public static void flush() {
 		logRecordHandler.flush();
 	}
 
 	public static final Log get(Class type) {
-		return get(Str.getSimpleName(type));
+		return get(Str.getSimpleName(type), type.getName());
 	}
 
 	public static final Log get(String name) {
-		Log logger = LOGGERS.get(name);
-		if (logger == null) {
-			logger = new Log(name);
-			LOGGERS.put(name, logger);
-		}
+		return get(name, name);
+	}
+
+	private static Log get(String name, String category) {
+		Log logger = loggers.get(category);
+		if (logger != null) return logger;
+		return register(name, category);
+	}
+
+	private static synchronized Log register(String name, String category) {
+		Log logger = loggers.get(category);
+		if (logger != null) return logger;
+		logger = new Log(name, category);
+		Map<String, Log> copy = new HashMap<String, Log>(loggers);
+		copy.put(category, logger);
+		loggers = copy;
 		return logger;
+	}
 
+	/**
+	 * Sets the minimum level for the loggers with the given name and the loggers below it. <code>""</code> is the
+	 * root of all loggers.
+	 *
+	 * @param level <code>null</code> to inherit the level again
+	 */
+	public static synchronized void setLevel(String category, Level level) {
+		Map<String, Level> copy = new HashMap<String, Level>(levels);
+		if (level == null) {
+			copy.remove(category);
+		} else {
+			copy.put(category, level);
+		}
+		levels = copy;
+		levelsVersion++;
+	}
+
+	/**
+	 * @return the level set for exactly this name or <code>null</code>
+	 */
+	public static Level getLevel(String category) {
+		return levels.get(category);
 	}
 
 	public static void setDebugEnabled(boolean debugEnabled) {
 		if (Log.debugEnabled == debugEnabled) return;
-		Log.debugEnabled = debugEnabled;
+		synchronized (Log.class) {
+			Log.debugEnabled = debugEnabled;
+			levelsVersion++;
+		}
 		if (debugEnabled) {
 			Log.get(Log.class).info("Debug-logging enabled.");
 		} else {
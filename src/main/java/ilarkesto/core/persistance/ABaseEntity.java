@@ -85,6 +85,24 @@ public abstract class ABaseEntity implements Entity, TransferableEntity {
 					+ getId() + " failed. Given properties have other id: " + idFromProperties);
 	}
 
+	/**
+	 * Updates the properties like <code>updateProperties()</code>, but keeps the modification time from the
+	 * properties. The generated setters called by <code>updateProperties()</code> set it to the current time.
+	 */
+	public final void restoreProperties(Map<String, String> properties) {
+		updateProperties(properties);
+		String modificationTimeFromProperties = properties.get("modificationTime");
+		if (modificationTimeFromProperties != null) modificationTime = Long.valueOf(modificationTimeFromProperties);
+	}
+
+	/**
+	 * @return <code>true</code> if <code>updateProperties()</code> restores the property from the map created by
+	 *         <code>createPropertiesMap()</code>. Generated entities override this for their properties.
+	 */
+	public boolean isPropertyUpdatable(String property) {
+		return property.equals("@type") || property.equals("id") || property.equals("modificationTime");
+	}
+
 	@Override
 	public final HashMap<String, String> createPropertiesMap() {
 		HashMap<String, String> properties = new HashMap<String, String>();
@@ -98,6 +116,35 @@ public abstract class ABaseEntity implements Entity, TransferableEntity {
 		properties.put("modificationTime", getModificationTime().toString());
 	}
 
+	/**
+	 * Passes the values of all persistent fields to <code>out</code>, without reflection. Generated entities
+	 * override this for their fields. Serializers which use it have to check that all fields are passed and fall
+	 * back to reflection otherwise.
+	 */
+	public void storeFields(EntityFieldWriter out) {
+		out.field("id", getId());
+		out.field("modificationTime", modificationTime);
+	}
+
+	/**
+	 * Sets a persistent field to a value read by a serializer. Counterpart of <code>storeFields()</code>.
+	 * 
+	 * @param value <code>String</code>, <code>Number</code>, <code>Boolean</code>, <code>List</code> or
+	 *            <code>null</code>
+	 * @return <code>false</code> if the field is unknown
+	 */
+	public boolean updateField(String name, Object value) {
+		if (name.equals("id")) {
+			id = (String) value;
+			return true;
+		}
+		if (name.equals("modificationTime")) {
+			modificationTime = Persistence.parseFieldLong(value);
+			return true;
+		}
+		return false;
+	}
+
 	@Override
 	public void collectPassengers(TransferBus bus) {}
 
@@ -14,6 +14,9 @@
  */
 package ilarkesto.core.persistance;
 
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.search.SearchText;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -23,32 +26,202 @@ import java.util.Set;
 
 public abstract class ACachingEntitiesBackend extends AEntitiesBackend {
 
-	protected EntitiesCache<AEntity> cache = new EntitiesCache<AEntity>();
+	protected volatile EntitiesCache<AEntity> cache = new EntitiesCache<AEntity>();
+
+	private final Object updateLock = new Object();
+	private volatile boolean concurrentReads;
+	private volatile boolean searchIndexEnabled;
+	private volatile EntitySearchIndex searchIndex;
+	private SearchIndexBuild searchIndexBuild;
 
 	protected abstract void onUpdate(Collection<AEntity> entities, Collection<String> entityIds,
 			Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback, String transactionText);
 
 	@Override
-	public synchronized void update(Collection<AEntity> modified, Collection<String> deletedIds,
+	public void update(Collection<AEntity> modified, Collection<String> deletedIds,
 			Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback, String transactionText) {
-		onUpdate(modified, deletedIds, modifiedPropertiesByEntityId, callback, transactionText);
-		cache.addAll(modified);
-		cache.removeAll(deletedIds);
+		synchronized (updateLock) {
+			if (!concurrentReads) {
+				synchronized (this) {
+					onUpdate(modified, deletedIds, modifiedPropertiesByEntityId, callback, transactionText);
+					updateCache(modified, deletedIds);
+				}
+				return;
+			}
+
+			onUpdate(modified, deletedIds, modifiedPropertiesByEntityId, callback, transactionText);
+			updateCache(modified, deletedIds);
+		}
+	}
+
+	/**
+	 * Applies changes to the cache without calling <code>onUpdate()</code>.
+	 */
+	protected final void updateCache(Collection<AEntity> modified, Collection<String> deletedIds) {
+		synchronized (updateLock) {
+			if (searchIndex != null) updateSearchIndex(modified, deletedIds);
+			if (searchIndexBuild != null) searchIndexBuild.addChanged(modified, deletedIds);
+			if (!concurrentReads) {
+				synchronized (this) {
+					cache.addAll(modified);
+					cache.removeAll(deletedIds);
+				}
+				return;
+			}
+
+			EntitiesCache<AEntity> newCache = new EntitiesCache<AEntity>(cache);
+			newCache.addAll(modified);
+			newCache.removeAll(deletedIds);
+			cache = newCache;
+		}
+	}
+
+	/**
+	 * In concurrent read mode readers never wait for a running update. Every update copies the cache, applies
+	 * the changes to the copy and publishes it after <code>onUpdate()</code> has finished. Readers always see
+	 * a complete version of the cache. The copy shares the segments of its maps with the previous version, so an
+	 * update copies only the segments containing the changed entities. Should be switched on before the backend
+	 * is used by multiple threads.
+	 */
+	public void setConcurrentReads(boolean concurrentReads) {
+		synchronized (updateLock) {
+			this.concurrentReads = concurrentReads;
+		}
+	}
+
+	/**
+	 * Declares an index, which is used by queries providing <code>getIndexedProperty()</code>.
+	 */
+	public void addIndex(Class<? extends AEntity> type, String property, boolean multiValued) {
+		EntityPropertyIndex index = new EntityPropertyIndex(type, property, multiValued);
+		synchronized (updateLock) {
+			if (!concurrentReads) {
+				synchronized (this) {
+					cache.addIndex(index);
+				}
+				return;
+			}
+
+			EntitiesCache<AEntity> newCache = new EntitiesCache<AEntity>(cache);
+			newCache.addIndex(index);
+			cache = newCache;
+		}
+		log.info("Index added:", index);
+	}
+
+	/**
+	 * Switches the full-text index on or off. The index is built from all cached entities when the first query
+	 * providing <code>getSearchText()</code> runs and is updated with every change afterwards.
+	 */
+	public void setSearchIndexEnabled(boolean searchIndexEnabled) {
+		synchronized (updateLock) {
+			this.searchIndexEnabled = searchIndexEnabled;
+			if (!searchIndexEnabled) {
+				searchIndex = null;
+				searchIndexBuild = null;
+			}
+		}
+	}
+
+	public boolean isSearchIndexEnabled() {
+		return searchIndexEnabled;
+	}
+
+	/**
+	 * Builds the index outside of the update lock. Entities changed while building are indexed again before the
+	 * index is published. Queries running meanwhile in other threads do not use the index.
+	 */
+	private EntitySearchIndex getSearchIndex() {
+		EntitySearchIndex index = searchIndex;
+		if (index != null) return index;
+		SearchIndexBuild build;
+		List<AEntity> entities;
+		synchronized (updateLock) {
+			if (!searchIndexEnabled) return null;
+			if (searchIndex != null) return searchIndex;
+			if (searchIndexBuild != null) return null;
+			build = new SearchIndexBuild();
+			searchIndexBuild = build;
+			entities = getAll(new ArrayList<AEntity>());
+		}
+
+		RuntimeTracker rt = new RuntimeTracker();
+		index = new EntitySearchIndex();
+		try {
+			for (AEntity entity : entities) {
+				index.update(entity);
+			}
+		} catch (RuntimeException ex) {
+			synchronized (updateLock) {
+				if (searchIndexBuild == build) searchIndexBuild = null;
+			}
+			throw ex;
+		}
+
+		synchronized (updateLock) {
+			if (searchIndexBuild != build) return searchIndex;
+			searchIndexBuild = null;
+			for (String id : build.changedIds) {
+				if (cache.containsWithId(id)) {
+					index.update(cache.getById(id));
+				} else {
+					index.remove(id);
+				}
+			}
+			searchIndex = index;
+		}
+		log.info("Search index built in", rt.getRuntimeFormated() + ":", index);
+		return index;
+	}
+
+	private void updateSearchIndex(Collection<AEntity> modified, Collection<String> deletedIds) {
+		if (modified != null) {
+			for (AEntity entity : modified) {
+				searchIndex.update(entity);
+			}
+		}
+		if (deletedIds != null) {
+			for (String id : deletedIds) {
+				searchIndex.remove(id);
+			}
+		}
+	}
+
+	private Set<String> getSearchCandidateIds(AEntityQuery query) {
+		if (!searchIndexEnabled) return null;
+		SearchText searchText = query.getSearchText();
+		if (searchText == null) return null;
+		EntitySearchIndex index = getSearchIndex();
+		if (index == null) return null;
+		return index.getCandidateIds(searchText);
+	}
+
+	public boolean isConcurrentReads() {
+		return concurrentReads;
 	}
 
 	@Override
-	public synchronized AEntity getById(String id) throws EntityDoesNotExistException {
-		return cache.getById(id);
+	public AEntity getById(String id) throws EntityDoesNotExistException {
+		if (concurrentReads) return cache.getById(id);
+		synchronized (this) {
+			return cache.getById(id);
+		}
 	}
 
 	@Override
-	public synchronized boolean containsWithId(String id) {
-		return cache.containsWithId(id);
+	public boolean containsWithId(String id) {
+		if (concurrentReads) return cache.containsWithId(id);
+		synchronized (this) {
+			return cache.containsWithId(id);
+		}
 	}
 
 	@Override
-	public synchronized Set<AEntity> getByIdsAsSet(Collection<String> ids) throws EntityDoesNotExistException {
-		return cache.getByIdsAsSet(ids);
+	public Set<AEntity> getByIdsAsSet(Collection<String> ids) throws EntityDoesNotExistException {
+		if (concurrentReads) return cache.getByIdsAsSet(ids);
+		synchronized (this) {
+			return cache.getByIdsAsSet(ids);
+		}
 	}
 
 	@Override
@@ -64,16 +237,22 @@ public abstract class ACachingEntitiesBackend extends AEntitiesBackend {
 
 	@Override
 	public AEntity findFirst(AEntityQuery query) {
+		Set<String> candidateIds = getSearchCandidateIds(query);
+		if (candidateIds != null) return cache.findFirst(query, candidateIds);
 		return cache.findFirst(query);
 	}
 
 	@Override
 	public Set<AEntity> findAllAsSet(AEntityQuery query) {
+		Set<String> candidateIds = getSearchCandidateIds(query);
+		if (candidateIds != null) return cache.find(query, candidateIds, new HashSet<AEntity>());
 		return cache.findAllAsSet(query);
 	}
 
 	@Override
 	public <C extends Collection<AEntity>> C find(AEntityQuery<AEntity> query, C resultCollection) {
+		Set<String> candidateIds = getSearchCandidateIds(query);
+		if (candidateIds != null) return cache.find(query, candidateIds, resultCollection);
 		return cache.find(query, resultCollection);
 	}
 
@@ -92,4 +271,19 @@ public abstract class ACachingEntitiesBackend extends AEntitiesBackend {
 		return getAll(new ArrayList<AEntity>());
 	}
 
+	private static class SearchIndexBuild {
+
+		private Set<String> changedIds = new HashSet<String>();
+
+		private void addChanged(Collection<AEntity> modified, Collection<String> deletedIds) {
+			if (modified != null) {
+				for (AEntity entity : modified) {
+					changedIds.add(entity.getId());
+				}
+			}
+			if (deletedIds != null) changedIds.addAll(deletedIds);
+		}
+
+	}
+
 }
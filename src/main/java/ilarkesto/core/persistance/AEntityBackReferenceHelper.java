@@ -20,8 +20,23 @@ import java.util.Map;
 
 public abstract class AEntityBackReferenceHelper<E extends AEntity> {
 
+	private final Class<E> type;
 	private Map<String, String> cachesById = new HashMap<String, String>();
 
+	/**
+	 * Cached values which read back references depend on all entity types, use the constructor with the type.
+	 */
+	public AEntityBackReferenceHelper() {
+		this(null);
+	}
+
+	/**
+	 * @param type type of the referencing entities
+	 */
+	public AEntityBackReferenceHelper(Class<E> type) {
+		this.type = type;
+	}
+
 	protected abstract E loadById(String id);
 
 	public synchronized E getById(String id) {
@@ -29,6 +44,7 @@ public abstract class AEntityBackReferenceHelper<E extends AEntity> {
 		String cache = cachesById.get(id);
 
 		if (cache != null) {
+			recordDependency();
 			try {
 				return (E) AEntity.getById(cache);
 			} catch (EntityDoesNotExistException ex) {}
@@ -42,6 +58,16 @@ public abstract class AEntityBackReferenceHelper<E extends AEntity> {
 		return entity;
 	}
 
+	/**
+	 * Cached values which read a back reference depend on all entities of this type, because a new referencing
+	 * entity changes the back reference.
+	 */
+	private void recordDependency() {
+		if (Persistence.transactionManager == null) return;
+		ATransaction transaction = Persistence.transactionManager.getCurrentTransaction();
+		if (transaction != null) transaction.recordDependency(type);
+	}
+
 	public synchronized void clear(String id) {
 		cachesById.remove(id);
 	}
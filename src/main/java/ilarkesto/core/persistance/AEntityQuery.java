@@ -16,6 +16,7 @@ package ilarkesto.core.persistance;
 
 import ilarkesto.core.base.Utl;
 import ilarkesto.core.fp.Predicate;
+import ilarkesto.core.search.SearchText;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -43,6 +44,27 @@ public abstract class AEntityQuery<E extends Entity> implements Predicate<E> {
 		return null;
 	}
 
+	/**
+	 * Name of the property this query selects by. If the backend has an <code>EntityPropertyIndex</code> for
+	 * this property and <code>getType()</code>, only the entities with <code>getIndexedValue()</code> are tested.
+	 */
+	public String getIndexedProperty() {
+		return null;
+	}
+
+	public String getIndexedValue() {
+		return null;
+	}
+
+	/**
+	 * Text this query searches for. If the backend has an <code>EntitySearchIndex</code>, only the entities
+	 * containing all words of the text are tested. Queries providing a text must only accept
+	 * <code>Searchable</code> entities which match it.
+	 */
+	public SearchText getSearchText() {
+		return null;
+	}
+
 	public List<E> filter(Collection<E> entities) {
 		ArrayList<E> ret = new ArrayList<E>();
 		for (E entity : entities) {
@@ -21,8 +21,23 @@ import java.util.Set;
 
 public abstract class AEntitySetBackReferenceHelper<E extends AEntity> {
 
+	private final Class<E> type;
 	private Map<String, Set<String>> cachesById = new HashMap<String, Set<String>>();
 
+	/**
+	 * See <code>AEntityBackReferenceHelper()</code>.
+	 */
+	public AEntitySetBackReferenceHelper() {
+		this(null);
+	}
+
+	/**
+	 * @param type type of the referencing entities
+	 */
+	public AEntitySetBackReferenceHelper(Class<E> type) {
+		this.type = type;
+	}
+
 	protected abstract Set<E> loadById(String id);
 
 	public synchronized Set<E> getById(String id) {
@@ -30,6 +45,7 @@ public abstract class AEntitySetBackReferenceHelper<E extends AEntity> {
 		Set<String> cache = cachesById.get(id);
 
 		if (cache != null) {
+			recordDependency();
 			try {
 				return (Set<E>) AEntity.getByIdsAsSet(cache);
 			} catch (EntityDoesNotExistException ex) {
@@ -44,6 +60,15 @@ public abstract class AEntitySetBackReferenceHelper<E extends AEntity> {
 		return entities;
 	}
 
+	/**
+	 * A new referencing entity changes the back references.
+	 */
+	private void recordDependency() {
+		if (Persistence.transactionManager == null) return;
+		ATransaction transaction = Persistence.transactionManager.getCurrentTransaction();
+		if (transaction != null) transaction.recordDependency(type);
+	}
+
 	public synchronized void clear(String id) {
 		cachesById.remove(id);
 	}
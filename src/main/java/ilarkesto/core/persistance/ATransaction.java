@@ -17,14 +17,17 @@ package ilarkesto.core.persistance;
 import ilarkesto.core.base.Args;
 import ilarkesto.core.base.RuntimeTracker;
 import ilarkesto.core.base.Str;
+import ilarkesto.core.logging.LazyLogMessage;
 import ilarkesto.core.logging.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -49,6 +52,24 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 	private Map<String, Map<String, String>> modifiedPropertiesByEntityId = new HashMap<String, Map<String, String>>();
 	private Set<String> deleted = new HashSet<String>();
 
+	/**
+	 * Incremented whenever an entity is added to <code>modified</code> or <code>deleted</code>.
+	 */
+	private int changeVersion;
+	/**
+	 * Entities added to <code>modified</code> or modified again by another entity during the current integrity
+	 * pass.
+	 */
+	private Map<String, E> integrityWorklist;
+	/**
+	 * Entity whose integrity is currently ensured.
+	 */
+	private Entity integrityEntity;
+	/**
+	 * Dependencies of the <code>ValuesCache</code> values which are currently computed, innermost last.
+	 */
+	private LinkedList<ValuesCache.Dependencies> valuesCacheRecorders;
+
 	public ATransaction(String name, boolean writable, boolean autoCommit, boolean ensureIntegrityOnCommit) {
 		super();
 		transactionNumberCounter++;
@@ -74,52 +95,96 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 		Persistence.transactionManager.transactionFinished(this);
 	}
 
+	/**
+	 * Ensures integrity until no more entities get modified or deleted. After the first pass over all changes only
+	 * the entities which were modified by the previous pass are checked again, including entities which were
+	 * already modified and got invalidated by the repair of another entity. When an entity gets deleted, the
+	 * pass is aborted and all changes are checked again.
+	 */
 	private void ensureIntegrityUntilUnchanged() {
-		String changeHash = createChangeHash();
-		ensureIntegrity();
-		if (changeHash.equals(createChangeHash())) return;
-		ensureIntegrityUntilUnchanged();
+		RuntimeTracker rt = new RuntimeTracker();
+		List<E> entities = modified.getAllAsList();
+		Collection<String> deletedIds = new ArrayList<String>(deleted);
+		int passes = 0;
+		while (true) {
+			passes++;
+			int version = changeVersion;
+			integrityWorklist = new LinkedHashMap<String, E>();
+			boolean completed;
+			try {
+				completed = ensureIntegrity(entities, deletedIds);
+			} finally {
+				entities = new ArrayList<E>(integrityWorklist.values());
+				integrityWorklist = null;
+			}
+			if (version == changeVersion) break;
+			if (!completed) {
+				entities = modified.getAllAsList();
+				deletedIds = new ArrayList<String>(deleted);
+			} else {
+				deletedIds = Collections.emptyList();
+			}
+		}
+		if (passes > 2 || rt.getRuntime() > 1000)
+			log.debug(name, "Integrity ensured in", passes, "passes:", rt.getRuntimeFormated());
 	}
 
-	private void ensureIntegrity() {
+	/**
+	 * @return <code>false</code> if the pass was aborted because an entity got deleted
+	 */
+	private boolean ensureIntegrity(Collection<E> entities, Collection<String> deletedIds) {
 		ensuringIntegrity = true;
 		try {
-			for (E entity : modified.getAll(new ArrayList<E>())) {
+			for (E entity : entities) {
+				integrityEntity = entity;
 				entity.ensureIntegrity();
 			}
-			for (String id : deleted) {
-				E deletedEntity;
+			for (String id : deletedIds) {
+				final E deletedEntity;
 				try {
 					deletedEntity = getBackend().getById(id);
 				} catch (EntityDoesNotExistException ex) {
 					continue;
 				}
 
-				Set<Entity> referencedEntities = deletedEntity.getReferencedEntities();
-				log.debug(name, "Ensuring integrity for referenced entities of deleted entity:",
-					Persistence.toStringWithTypeAndId(deletedEntity), referencedEntities);
+				final Set<Entity> referencedEntities = deletedEntity.getReferencedEntities();
+				log.debug(new LazyLogMessage() {
+
+					@Override
+					public Object[] getParameters() {
+						return new Object[] { name, "Ensuring integrity for referenced entities of deleted entity:",
+								Persistence.toStringWithTypeAndId(deletedEntity), referencedEntities };
+					}
+				});
 
 				for (Entity referencedEntity : referencedEntities) {
 					if (referencedEntity == null) continue;
+					integrityEntity = referencedEntity;
 					referencedEntity.ensureIntegrity();
 				}
 			}
 		} catch (EntityDeletedWhileEnsureIntegrity ex) {
-			// redo (changeHash changed)
+			// redo all
+			return false;
 		} finally {
 			ensuringIntegrity = false;
+			integrityEntity = null;
 		}
+		return true;
 	}
 
-	private String createChangeHash() {
-		StringBuilder sb = new StringBuilder();
-		for (E entity : modified.getAllAsList()) {
-			sb.append("/").append(entity.getId());
-		}
-		for (String id : deleted) {
-			sb.append("/").append(id);
+	private void addModified(E entity) {
+		String id = entity.getId();
+		if (integrityWorklist != null) {
+			// an entity modifying itself while ensuring its integrity does not need to be checked again
+			if (entity != integrityEntity && !integrityWorklist.containsKey(id)) {
+				changeVersion++;
+				integrityWorklist.put(id, entity);
+			}
+		} else if (!modified.containsWithId(id)) {
+			changeVersion++;
 		}
-		return sb.toString();
+		modified.add(entity);
 	}
 
 	void rollback() {
@@ -133,6 +198,7 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 	public void persist(E entity) {
 		log.info(name, "PERSIST", toString(entity));
 		checkWritable();
+		Persistence.valuesCaches.invalidate(entity.getId(), entity.getClass());
 		if (autoCommit) {
 			getBackend().update(Arrays.asList(entity), null, updatePropertiesMap(null, entity), new CommitCallback(),
 				name);
@@ -140,7 +206,7 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 		}
 		if (deleted.contains(entity))
 			throw new IllegalStateException("Entity already deleted: " + Persistence.getTypeAndId(entity));
-		modified.add(entity);
+		addModified(entity);
 		updatePropertiesMap(modifiedPropertiesByEntityId, entity);
 	}
 
@@ -149,15 +215,13 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 		if (ignoreModificationEvents) return;
 		if (!containsWithId(entity.getId())) return;
 		log.info(name, "MODIFIED", toString(entity), field, value);
+		Persistence.valuesCaches.invalidate(entity.getId(), entity.getClass());
 		if (autoCommit) {
 			getBackend().update(Arrays.asList(entity), null, updatePropertiesMap(null, entity, field, value),
 				new CommitCallback(), name);
 			return;
 		}
-		modified.add(entity);
-
-		Persistence.clearCaches();
-
+		addModified(entity);
 		updatePropertiesMap(modifiedPropertiesByEntityId, entity, field, value);
 	}
 
@@ -182,6 +246,7 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 	public void delete(String entityId) {
 		checkWritable();
 		log.info(name, "DELETE", entityId);
+		Persistence.valuesCaches.invalidateDeleted(entityId, getEntityType(entityId));
 		if (autoCommit) {
 			getBackend().update(null, Arrays.asList(entityId), null, new CommitCallback(), name);
 			return;
@@ -192,14 +257,60 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 		}
 		deleted.add(entityId);
 		modified.remove(entityId);
-
-		Persistence.clearCaches();
+		changeVersion++;
 
 		if (ensuringIntegrity) throw new EntityDeletedWhileEnsureIntegrity();
 	}
 
+	/**
+	 * @return type of the entity or <code>null</code> if it does not exist
+	 */
+	private Class getEntityType(String id) {
+		if (modified.containsWithId(id)) return modified.getById(id).getClass();
+		try {
+			return getBackend().getById(id).getClass();
+		} catch (EntityDoesNotExistException ex) {
+			return null;
+		}
+	}
+
+	void startRecordingDependencies(ValuesCache.Dependencies dependencies) {
+		if (valuesCacheRecorders == null) valuesCacheRecorders = new LinkedList<ValuesCache.Dependencies>();
+		valuesCacheRecorders.add(dependencies);
+	}
+
+	/**
+	 * Ends recording for the given value. Its dependencies are also added to the enclosing value. Recordings which
+	 * were not ended (computation failed) are merged into the enclosing value.
+	 */
+	ValuesCache.Dependencies stopRecordingDependencies(ValuesCache cache, ValuesCache.Key key) {
+		if (valuesCacheRecorders == null) return null;
+		while (!valuesCacheRecorders.isEmpty()) {
+			ValuesCache.Dependencies dependencies = valuesCacheRecorders.removeLast();
+			if (!valuesCacheRecorders.isEmpty()) valuesCacheRecorders.getLast().addAll(dependencies);
+			if (dependencies.isFor(cache, key)) return dependencies;
+		}
+		return null;
+	}
+
+	void recordDependencies(ValuesCache.Dependencies dependencies) {
+		if (valuesCacheRecorders == null || valuesCacheRecorders.isEmpty()) return;
+		valuesCacheRecorders.getLast().addAll(dependencies);
+	}
+
+	private void recordDependency(String entityId) {
+		if (valuesCacheRecorders == null || valuesCacheRecorders.isEmpty()) return;
+		valuesCacheRecorders.getLast().entityIds.add(entityId);
+	}
+
+	void recordDependency(Class type) {
+		if (valuesCacheRecorders == null || valuesCacheRecorders.isEmpty()) return;
+		valuesCacheRecorders.getLast().types.add(type == null ? ABaseEntity.class : type);
+	}
+
 	@Override
 	public boolean containsWithId(String id) {
+		recordDependency(id);
 		if (deleted.contains(id)) return false;
 		return modified.containsWithId(id) || getBackend().containsWithId(id);
 	}
@@ -207,6 +318,7 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 	@Override
 	public E getById(String id) {
 		Args.assertNotNull(id, "id");
+		recordDependency(id);
 		if (deleted.contains(id)) throw new EntityDoesNotExistException(id);
 		if (modified.containsWithId(id)) return modified.getById(id);
 		return getBackend().getById(id);
@@ -214,6 +326,7 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 
 	@Override
 	public <C extends Collection<E>> C getAll(C resultCollection) {
+		recordDependency((Class) null);
 
 		if (deleted.isEmpty()) return getBackend().getAll(resultCollection);
 
@@ -241,6 +354,7 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 
 	@Override
 	public E findFirst(AEntityQuery query) {
+		recordDependency(query.getType());
 		Entity entity = modified.findFirst(query);
 		if (entity == null) entity = getBackend().findFirst(query);
 		if (entity != null && deleted.contains(entity.getId())) return null;
@@ -250,6 +364,7 @@ public abstract class ATransaction<E extends Entity> implements EntitiesProvider
 	@Override
 	public <C extends Collection<E>> C find(AEntityQuery<E> query, C resultCollection) {
 		RuntimeTracker rt = new RuntimeTracker();
+		recordDependency(query.getType());
 
 		getBackend().find(query, resultCollection);
 		modified.find(query, resultCollection);
@@ -25,13 +25,65 @@ import java.util.Set;
 
 public class EntitiesCache<E extends Entity> implements EntitiesProvider<E> {
 
-	private Map<Class, Map<String, E>> entitiesByTypeById = new HashMap<Class, Map<String, E>>();
+	private Map<Class, SegmentedMap<String, E>> entitiesByTypeById = new HashMap<Class, SegmentedMap<String, E>>();
+
+	/**
+	 * Global index over all types. Kept in sync with <code>entitiesByTypeById</code>, so lookups by id do not
+	 * depend on the number of entity types.
+	 */
+	private SegmentedMap<String, E> entitiesById = new SegmentedMap<String, E>();
+
+	private List<EntityPropertyIndex> indexes = new ArrayList<EntityPropertyIndex>();
+	private Map<Class, List<EntityPropertyIndex>> indexesByEntityType = new HashMap<Class, List<EntityPropertyIndex>>();
+
+	public EntitiesCache() {}
+
+	/**
+	 * Creates a shallow copy. The entities are shared, the maps share their segments until they are modified (see
+	 * <code>SegmentedMap</code>), so changes to the copy cost the touched segments and not the size of the cache.
+	 */
+	public EntitiesCache(EntitiesCache<E> template) {
+		entitiesById = template.entitiesById.copy();
+		for (Entry<Class, SegmentedMap<String, E>> entry : template.entitiesByTypeById.entrySet()) {
+			entitiesByTypeById.put(entry.getKey(), entry.getValue().copy());
+		}
+		for (EntityPropertyIndex index : template.indexes) {
+			indexes.add(new EntityPropertyIndex(index));
+		}
+	}
+
+	public void addIndex(EntityPropertyIndex index) {
+		for (E entity : entitiesById.values()) {
+			if (index.isResponsibleFor(entity.getClass()))
+				index.update(entity.getId(), entity.createPropertiesMap());
+		}
+		indexes.add(index);
+		indexesByEntityType.clear();
+	}
+
+	private List<EntityPropertyIndex> getIndexes(Class entityType) {
+		if (indexes.isEmpty()) return indexes;
+		List<EntityPropertyIndex> ret = indexesByEntityType.get(entityType);
+		if (ret == null) {
+			ret = new ArrayList<EntityPropertyIndex>();
+			for (EntityPropertyIndex index : indexes) {
+				if (index.isResponsibleFor(entityType)) ret.add(index);
+			}
+			indexesByEntityType.put(entityType, ret);
+		}
+		return ret;
+	}
+
+	private EntityPropertyIndex getIndex(AEntityQuery query) {
+		for (EntityPropertyIndex index : indexes) {
+			if (index.canResolve(query)) return index;
+		}
+		return null;
+	}
 
 	@Override
 	public <C extends Collection<E>> C getAll(C resultCollection) {
-		for (Map<String, E> entitiesById : entitiesByTypeById.values()) {
-			resultCollection.addAll(entitiesById.values());
-		}
+		resultCollection.addAll(entitiesById.values());
 		return resultCollection;
 	}
 
@@ -46,11 +98,7 @@ public class EntitiesCache<E extends Entity> implements EntitiesProvider<E> {
 	}
 
 	public Set<String> getAllIds() {
-		Set<String> ret = new HashSet<String>();
-		for (Map<String, E> entitiesById : entitiesByTypeById.values()) {
-			ret.addAll(entitiesById.keySet());
-		}
-		return ret;
+		return new HashSet<String>(entitiesById.keySet());
 	}
 
 	public Set<E> findAllAsSet(AEntityQuery query) {
@@ -59,10 +107,13 @@ public class EntitiesCache<E extends Entity> implements EntitiesProvider<E> {
 
 	@Override
 	public <C extends Collection<E>> C find(AEntityQuery<E> query, C resultCollection) {
-		for (Entry<Class, Map<String, E>> entry : entitiesByTypeById.entrySet()) {
+		EntityPropertyIndex index = getIndex(query);
+		if (index != null) return find(query, index.getIds(query.getIndexedValue()), resultCollection);
+
+		for (Entry<Class, SegmentedMap<String, E>> entry : entitiesByTypeById.entrySet()) {
 			if (!query.testType(entry.getKey())) continue;
 
-			Map<String, E> entitiesById = entry.getValue();
+			SegmentedMap<String, E> entitiesById = entry.getValue();
 			if (query.getClass().equals(AllByTypeQuery.class)) {
 				resultCollection.addAll(entitiesById.values());
 			} else {
@@ -75,12 +126,28 @@ public class EntitiesCache<E extends Entity> implements EntitiesProvider<E> {
 		return resultCollection;
 	}
 
+	/**
+	 * Tests only the entities with the given ids, for example candidates provided by an index.
+	 */
+	public <C extends Collection<E>> C find(AEntityQuery<E> query, Collection<String> candidateIds,
+			C resultCollection) {
+		for (String id : candidateIds) {
+			E entity = entitiesById.get(id);
+			if (entity == null || !query.testType(entity.getClass())) continue;
+			if (query.test(entity)) resultCollection.add(entity);
+		}
+		return resultCollection;
+	}
+
 	@Override
 	public E findFirst(AEntityQuery query) {
-		for (Entry<Class, Map<String, E>> entry : entitiesByTypeById.entrySet()) {
+		EntityPropertyIndex index = getIndex(query);
+		if (index != null) return findFirst(query, index.getIds(query.getIndexedValue()));
+
+		for (Entry<Class, SegmentedMap<String, E>> entry : entitiesByTypeById.entrySet()) {
 			if (!query.testType(entry.getKey())) continue;
 
-			Map<String, E> entitiesById = entry.getValue();
+			SegmentedMap<String, E> entitiesById = entry.getValue();
 			for (E entity : entitiesById.values()) {
 				if (query.test(entity)) return entity;
 			}
@@ -89,14 +156,40 @@ public class EntitiesCache<E extends Entity> implements EntitiesProvider<E> {
 		return null;
 	}
 
+	public E findFirst(AEntityQuery query, Collection<String> candidateIds) {
+		for (String id : candidateIds) {
+			E entity = entitiesById.get(id);
+			if (entity == null || !query.testType(entity.getClass())) continue;
+			if (query.test(entity)) return entity;
+		}
+		return null;
+	}
+
 	public void add(E entity) {
 		Class type = entity.getClass();
-		Map<String, E> entitiesById = entitiesByTypeById.get(type);
-		if (entitiesById == null) {
-			entitiesById = new HashMap<String, E>();
-			entitiesByTypeById.put(type, entitiesById);
+		String id = entity.getId();
+
+		E previous = entitiesById.put(id, entity);
+		if (previous != null && previous.getClass() != type) {
+			removeFromTypeMap(previous.getClass(), id);
+			for (EntityPropertyIndex index : getIndexes(previous.getClass())) {
+				index.remove(id);
+			}
+		}
+
+		SegmentedMap<String, E> entitiesOfType = entitiesByTypeById.get(type);
+		if (entitiesOfType == null) {
+			entitiesOfType = new SegmentedMap<String, E>();
+			entitiesByTypeById.put(type, entitiesOfType);
+		}
+		entitiesOfType.put(id, entity);
+
+		List<EntityPropertyIndex> indexesOfType = getIndexes(type);
+		if (indexesOfType.isEmpty()) return;
+		Map<String, String> properties = entity.createPropertiesMap();
+		for (EntityPropertyIndex index : indexesOfType) {
+			index.update(id, properties);
 		}
-		entitiesById.put(entity.getId(), entity);
 	}
 
 	public void addAll(Collection<E> entities) {
@@ -108,11 +201,24 @@ public class EntitiesCache<E extends Entity> implements EntitiesProvider<E> {
 
 	public E remove(String entityId) {
 		if (entityId == null) return null;
-		for (Map<String, E> entitiesById : entitiesByTypeById.values()) {
-			E removed = entitiesById.remove(entityId);
-			if (removed != null) return removed;
+		E removed = entitiesById.remove(entityId);
+		if (removed == null) return null;
+		removeFromTypeMap(removed.getClass(), entityId);
+		for (EntityPropertyIndex index : getIndexes(removed.getClass())) {
+			index.remove(entityId);
 		}
-		return null;
+		return removed;
+	}
+
+	private void removeFromTypeMap(Class type, String entityId) {
+		SegmentedMap<String, E> entitiesOfType = entitiesByTypeById.get(type);
+		if (entitiesOfType == null) return;
+		entitiesOfType.remove(entityId);
+	}
+
+	public Class getTypeById(String id) {
+		E entity = entitiesById.get(id);
+		return entity == null ? null : entity.getClass();
 	}
 
 	public void removeAll(Collection<String> ids) {
@@ -124,19 +230,12 @@ public class EntitiesCache<E extends Entity> implements EntitiesProvider<E> {
 
 	@Override
 	public boolean containsWithId(String id) {
-		for (Map<String, E> entitiesById : entitiesByTypeById.values()) {
-			if (entitiesById.containsKey(id)) return true;
-		}
-		return false;
+		return entitiesById.containsKey(id);
 	}
 
 	@Override
 	public E getById(String id) throws EntityDoesNotExistException {
-		E entity = null;
-		for (Map<String, E> entitiesById : entitiesByTypeById.values()) {
-			entity = entitiesById.get(id);
-			if (entity != null) break;
-		}
+		E entity = entitiesById.get(id);
 		if (entity == null) throw new EntityDoesNotExistException(id);
 		return entity;
 	}
@@ -161,24 +260,17 @@ public class EntitiesCache<E extends Entity> implements EntitiesProvider<E> {
 	}
 
 	public int size() {
-		int sum = 0;
-		for (Map<String, E> entitiesById : entitiesByTypeById.values()) {
-			sum += entitiesById.size();
-		}
-		return sum;
+		return entitiesById.size();
 	}
 
 	public boolean isEmpty() {
-		for (Map<String, E> entitiesById : entitiesByTypeById.values()) {
-			if (!entitiesById.isEmpty()) return false;
-		}
-		return true;
+		return entitiesById.isEmpty();
 	}
 
 	public final Map<Class, Integer> countEntities() {
 		Map<Class, Integer> countsByType = new HashMap<Class, Integer>();
 
-		for (Entry<Class, Map<String, E>> entry : entitiesByTypeById.entrySet()) {
+		for (Entry<Class, SegmentedMap<String, E>> entry : entitiesByTypeById.entrySet()) {
 			countsByType.put(entry.getKey(), entry.getValue().size());
 		}
 
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps the values of one property to the ids of the entities which have this value. The property is read from
+ * <code>createPropertiesMap()</code>, so reference properties are indexed by <code>xxxId</code> or
+ * <code>xxxIds</code>. Multi valued properties are split by comma.
+ */
+public class EntityPropertyIndex {
+
+	private Class type;
+	private String property;
+	private boolean multiValued;
+
+	private SegmentedMap<String, SegmentedMap<String, String>> idsByValue =
+			new SegmentedMap<String, SegmentedMap<String, String>>();
+	private SegmentedMap<String, Collection<String>> valuesById = new SegmentedMap<String, Collection<String>>();
+
+	/**
+	 * Id sets which were created by this index and not shared with a copy. <code>null</code> if all are owned.
+	 */
+	private Set<SegmentedMap<String, String>> ownedIdSets;
+
+	public EntityPropertyIndex(Class type, String property, boolean multiValued) {
+		super();
+		this.type = type;
+		this.property = property;
+		this.multiValued = multiValued;
+	}
+
+	/**
+	 * Creates a copy which shares the segments of the maps and the id sets with the template until one of both
+	 * modifies them.
+	 */
+	public EntityPropertyIndex(EntityPropertyIndex template) {
+		this(template.type, template.property, template.multiValued);
+		idsByValue = template.idsByValue.copy();
+		valuesById = template.valuesById.copy();
+		ownedIdSets = new HashSet<SegmentedMap<String, String>>();
+		template.ownedIdSets = new HashSet<SegmentedMap<String, String>>();
+	}
+
+	public boolean isResponsibleFor(Class entityType) {
+		return AEntityQuery.isInstanceOf(entityType, type);
+	}
+
+	public boolean canResolve(AEntityQuery query) {
+		if (!property.equals(query.getIndexedProperty())) return false;
+		if (query.getIndexedValue() == null) return false;
+		Class queryType = query.getType();
+		if (queryType == null) return false;
+		return AEntityQuery.isInstanceOf(queryType, type);
+	}
+
+	/**
+	 * @param properties the <code>createPropertiesMap()</code> of the entity, shared by all indexes
+	 */
+	void update(String id, Map<String, String> properties) {
+		remove(id);
+
+		String value = properties.get(property);
+		if (value == null) return;
+		Collection<String> values = multiValued ? Persistence.parsePropertyStringSet(value) : Collections
+				.singletonList(value);
+		if (values.isEmpty()) return;
+
+		for (String v : values) {
+			SegmentedMap<String, String> ids = getIdsForWrite(v);
+			if (ids == null) {
+				ids = new SegmentedMap<String, String>();
+				idsByValue.put(v, ids);
+				if (ownedIdSets != null) ownedIdSets.add(ids);
+			}
+			ids.put(id, id);
+		}
+		valuesById.put(id, values);
+	}
+
+	void remove(String id) {
+		Collection<String> values = valuesById.remove(id);
+		if (values == null) return;
+		for (String v : values) {
+			SegmentedMap<String, String> ids = getIdsForWrite(v);
+			if (ids == null) continue;
+			ids.remove(id);
+			if (ids.isEmpty()) idsByValue.remove(v);
+		}
+	}
+
+	private SegmentedMap<String, String> getIdsForWrite(String value) {
+		SegmentedMap<String, String> ids = idsByValue.get(value);
+		if (ids == null || ownedIdSets == null || ownedIdSets.contains(ids)) return ids;
+		ids = ids.copy();
+		idsByValue.put(value, ids);
+		ownedIdSets.add(ids);
+		return ids;
+	}
+
+	public Set<String> getIds(String value) {
+		SegmentedMap<String, String> ids = idsByValue.get(value);
+		if (ids == null) return Collections.emptySet();
+		return ids.keySet();
+	}
+
+	public Class getType() {
+		return type;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	@Override
+	public String toString() {
+		return type.getName() + "." + property;
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import ilarkesto.core.search.SearchText;
+import ilarkesto.core.search.Searchable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index from trigrams of the searchable values to entity ids. The values are the ones an entity passes to
+ * <code>SearchText.matches()</code> in its <code>Searchable.matches()</code>. The index only narrows the
+ * candidates, every candidate still has to be tested. Entities whose values can not be collected completely are
+ * always candidates: when <code>Searchable.matches()</code> does not call <code>SearchText.matches()</code>,
+ * reads the words of the search text, matches without any value matching or fails. Values which are entities (or
+ * collections of entities) are indexed by their <code>toString()</code>, so the entity is indexed again when one
+ * of them changes.
+ * <p>
+ * Only text from the entity itself and from the entities passed as values is indexed. The reads from the current
+ * transaction are recorded while the values are collected. An entity whose values read any other entity, or query
+ * a type, is always a candidate. Otherwise its text would go stale when that entity changes.
+ * <p>
+ * Updates are expected to be serialized by the backend. The values are collected outside of the lock, so queries
+ * only wait for the index maps to be changed.
+ */
+public class EntitySearchIndex {
+
+	private static final int GRAM_LENGTH = 3;
+	private static final String DEPENDENCIES_KEY = "searchIndex";
+
+	private Map<String, Set<String>> idsByGram = new HashMap<String, Set<String>>();
+	private Map<String, Set<String>> gramsById = new HashMap<String, Set<String>>();
+	private Set<String> unindexedIds = new HashSet<String>();
+	private Map<String, Set<Entity>> referencingEntitiesById = new HashMap<String, Set<Entity>>();
+	private Map<String, Set<String>> referencedIdsById = new HashMap<String, Set<String>>();
+
+	public void update(Entity entity) {
+		index(entity, collectValues(entity));
+		List<Entity> referencingEntities;
+		synchronized (this) {
+			Set<Entity> entities = referencingEntitiesById.get(entity.getId());
+			if (entities == null) return;
+			referencingEntities = new ArrayList<Entity>(entities);
+		}
+		for (Entity referencingEntity : referencingEntities) {
+			index(referencingEntity, collectValues(referencingEntity));
+		}
+	}
+
+	/**
+	 * @return the collected values or <code>null</code> if the entity is not searchable
+	 */
+	private static ValuesCollector collectValues(Entity entity) {
+		if (!(entity instanceof Searchable)) return null;
+		ValuesCollector collector = new ValuesCollector();
+		ValuesCache.Key key = new ValuesCache.Key(DEPENDENCIES_KEY, new Object[] { entity.getId() });
+		ValuesCache.Dependencies dependencies = new ValuesCache.Dependencies(null, key);
+		ATransaction transaction = getTransaction();
+		if (transaction != null) transaction.startRecordingDependencies(dependencies);
+		try {
+			if (((Searchable) entity).matches(collector)) collector.incomplete = true;
+			for (Object value : collector.values) {
+				if (value != null) collector.texts.add(value.toString().toLowerCase());
+			}
+		} catch (RuntimeException ex) {
+			collector.incomplete = true;
+		} finally {
+			if (transaction != null) transaction.stopRecordingDependencies(null, key);
+		}
+		if (!isOwnText(entity, collector, dependencies)) collector.incomplete = true;
+		return collector;
+	}
+
+	/**
+	 * @return true, if the values only read the entity itself and the entities passed as values
+	 */
+	private static boolean isOwnText(Entity entity, ValuesCollector collector, ValuesCache.Dependencies dependencies) {
+		if (!dependencies.types.isEmpty()) return false;
+		if (dependencies.entityIds.isEmpty()) return true;
+		Set<String> ids = new HashSet<String>();
+		ids.add(entity.getId());
+		for (Object value : collector.values) {
+			addIds(value, ids);
+		}
+		return ids.containsAll(dependencies.entityIds);
+	}
+
+	private static void addIds(Object value, Set<String> ids) {
+		if (value instanceof Collection) {
+			for (Object element : (Collection) value) {
+				addIds(element, ids);
+			}
+			return;
+		}
+		if (value instanceof Entity) ids.add(((Entity) value).getId());
+	}
+
+	private static ATransaction getTransaction() {
+		if (Persistence.transactionManager == null) return null;
+		return Persistence.transactionManager.getCurrentTransaction();
+	}
+
+	private synchronized void index(Entity entity, ValuesCollector collector) {
+		String id = entity.getId();
+		removeFromIndex(id);
+		if (collector == null) return;
+
+		if (!collector.called || collector.incomplete) {
+			unindexedIds.add(id);
+			return;
+		}
+
+		Set<String> grams = new HashSet<String>();
+		for (String text : collector.texts) {
+			addGrams(text, grams);
+		}
+		for (Object value : collector.values) {
+			addReferences(entity, value);
+		}
+		for (String gram : grams) {
+			Set<String> ids = idsByGram.get(gram);
+			if (ids == null) {
+				ids = new HashSet<String>();
+				idsByGram.put(gram, ids);
+			}
+			ids.add(id);
+		}
+		gramsById.put(id, grams);
+	}
+
+	private void addReferences(Entity entity, Object value) {
+		if (value instanceof Collection) {
+			for (Object element : (Collection) value) {
+				addReferences(entity, element);
+			}
+			return;
+		}
+		if (!(value instanceof Entity)) return;
+		String referencedId = ((Entity) value).getId();
+		if (referencedId.equals(entity.getId())) return;
+		Set<Entity> referencingEntities = referencingEntitiesById.get(referencedId);
+		if (referencingEntities == null) {
+			referencingEntities = new HashSet<Entity>();
+			referencingEntitiesById.put(referencedId, referencingEntities);
+		}
+		referencingEntities.add(entity);
+		Set<String> referencedIds = referencedIdsById.get(entity.getId());
+		if (referencedIds == null) {
+			referencedIds = new HashSet<String>();
+			referencedIdsById.put(entity.getId(), referencedIds);
+		}
+		referencedIds.add(referencedId);
+	}
+
+	public synchronized void remove(String id) {
+		removeFromIndex(id);
+		referencingEntitiesById.remove(id);
+	}
+
+	private void removeFromIndex(String id) {
+		Set<String> referencedIds = referencedIdsById.remove(id);
+		if (referencedIds != null) {
+			for (String referencedId : referencedIds) {
+				Set<Entity> referencingEntities = referencingEntitiesById.get(referencedId);
+				if (referencingEntities == null) continue;
+				for (Entity referencingEntity : new ArrayList<Entity>(referencingEntities)) {
+					if (referencingEntity.getId().equals(id)) referencingEntities.remove(referencingEntity);
+				}
+				if (referencingEntities.isEmpty()) referencingEntitiesById.remove(referencedId);
+			}
+		}
+		unindexedIds.remove(id);
+		Set<String> grams = gramsById.remove(id);
+		if (grams == null) return;
+		for (String gram : grams) {
+			Set<String> ids = idsByGram.get(gram);
+			if (ids == null) continue;
+			ids.remove(id);
+			if (ids.isEmpty()) idsByGram.remove(gram);
+		}
+	}
+
+	/**
+	 * @return ids of the entities which may match or <code>null</code> if no word is long enough to use the index
+	 */
+	public synchronized Set<String> getCandidateIds(SearchText searchText) {
+		Set<String> grams = new HashSet<String>();
+		for (String word : searchText.getWords()) {
+			addGrams(word, grams);
+		}
+		if (grams.isEmpty()) return null;
+
+		List<Set<String>> postings = new ArrayList<Set<String>>(grams.size());
+		Set<String> smallest = null;
+		for (String gram : grams) {
+			Set<String> ids = idsByGram.get(gram);
+			if (ids == null) {
+				ids = Collections.emptySet();
+			}
+			postings.add(ids);
+			if (smallest == null || ids.size() < smallest.size()) smallest = ids;
+		}
+
+		Set<String> candidates = new HashSet<String>(unindexedIds);
+		for (String id : smallest) {
+			if (containsInAll(postings, id)) candidates.add(id);
+		}
+		return candidates;
+	}
+
+	private static boolean containsInAll(List<Set<String>> postings, String id) {
+		for (Set<String> ids : postings) {
+			if (!ids.contains(id)) return false;
+		}
+		return true;
+	}
+
+	private static void addGrams(String s, Set<String> grams) {
+		for (int i = 0; i + GRAM_LENGTH <= s.length(); i++) {
+			grams.add(s.substring(i, i + GRAM_LENGTH));
+		}
+	}
+
+	public synchronized int size() {
+		return gramsById.size() + unindexedIds.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EntitySearchIndex: " + gramsById.size() + " entities, " + idsByGram.size() + " trigrams, "
+				+ unindexedIds.size() + " unindexed";
+	}
+
+	/**
+	 * Passed to <code>Searchable.matches()</code> to get the searchable values of an entity.
+	 */
+	private static class ValuesCollector extends SearchText {
+
+		private List<Object> values = new ArrayList<Object>();
+		private List<String> texts = new ArrayList<String>();
+		private boolean called;
+		private boolean incomplete;
+
+		public ValuesCollector() {
+			super(new ArrayList<String>());
+		}
+
+		@Override
+		public Collection<String> getWords() {
+			// the entity matches the words by itself
+			incomplete = true;
+			return super.getWords();
+		}
+
+		@Override
+		public boolean matches(Object... values) {
+			called = true;
+			for (Object value : values) {
+				this.values.add(value);
+			}
+			return false;
+		}
+
+	}
+
+}
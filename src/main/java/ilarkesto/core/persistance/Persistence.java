@@ -26,9 +26,9 @@ import ilarkesto.core.time.Time;
 import ilarkesto.core.time.TimePeriod;
 
 import java.math.BigDecimal;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -40,7 +40,25 @@ public class Persistence {
 
 	public static EntitiesBackend backend;
 	public static ATransactionManager transactionManager;
-	public static Map<String, ValuesCache> valuesCachesById = new HashMap<String, ValuesCache>();
+	public static ValuesCaches valuesCaches = new ValuesCaches();
+
+	/**
+	 * @deprecated Use <code>valuesCaches</code>. Read-only view of its caches, <code>clear()</code> clears all
+	 *             caches.
+	 */
+	@Deprecated
+	public static final Map<String, ValuesCache> valuesCachesById = new AbstractMap<String, ValuesCache>() {
+
+		@Override
+		public Set<Map.Entry<String, ValuesCache>> entrySet() {
+			return valuesCaches.getCachesById().entrySet();
+		}
+
+		@Override
+		public void clear() {
+			valuesCaches.clear();
+		}
+	};
 
 	public static void initialize(EntitiesBackend backend, ATransactionManager transactionManager) {
 		Args.assertNotNull(backend, "backend");
@@ -85,17 +103,30 @@ public class Persistence {
 		transaction.commit();
 	}
 
-	static ValuesCache getValuesCache(String id) {
-		ValuesCache cache = valuesCachesById.get(id);
-		if (cache == null) {
-			cache = new ValuesCache();
-			valuesCachesById.put(id, cache);
+	/**
+	 * Runs code which calls setters or <code>updateProperties()</code> on entities without recording the
+	 * modifications in the current transaction, e.g. while loading entities. If there is no transaction manager
+	 * yet, a temporary one is used.
+	 */
+	public static void runWithoutModificationEvents(Runnable runnable) {
+		ATransactionManager originalTransactionManager = transactionManager;
+		if (originalTransactionManager == null) transactionManager = new SingletonTransactionManager();
+		ATransaction transaction = transactionManager.getCurrentTransaction();
+		transaction.setIgnoreModificationEvents(true);
+		try {
+			runnable.run();
+		} finally {
+			transaction.setIgnoreModificationEvents(false);
+			if (originalTransactionManager == null) transactionManager = null;
 		}
-		return cache;
+	}
+
+	static ValuesCache getValuesCache(String id) {
+		return valuesCaches.getCache(id);
 	}
 
 	public static void clearCaches() {
-		valuesCachesById.clear();
+		valuesCaches.clear();
 	}
 
 	public static int parsePropertyint(String value) {
@@ -239,6 +270,98 @@ public class Persistence {
 		return value;
 	}
 
+	public static String parseFieldString(Object value) {
+		return value == null ? null : value.toString();
+	}
+
+	public static int parseFieldint(Object value) {
+		return value == null ? 0 : ((Number) value).intValue();
+	}
+
+	public static Integer parseFieldInteger(Object value) {
+		return value == null ? null : ((Number) value).intValue();
+	}
+
+	public static long parseFieldlong(Object value) {
+		return value == null ? 0 : ((Number) value).longValue();
+	}
+
+	public static Long parseFieldLong(Object value) {
+		return value == null ? null : ((Number) value).longValue();
+	}
+
+	public static float parseFieldfloat(Object value) {
+		return value == null ? 0 : ((Number) value).floatValue();
+	}
+
+	public static Float parseFieldFloat(Object value) {
+		return value == null ? null : ((Number) value).floatValue();
+	}
+
+	public static double parseFielddouble(Object value) {
+		return value == null ? 0 : ((Number) value).doubleValue();
+	}
+
+	public static Double parseFieldDouble(Object value) {
+		return value == null ? null : ((Number) value).doubleValue();
+	}
+
+	public static boolean parseFieldboolean(Object value) {
+		return value != null && ((Boolean) value).booleanValue();
+	}
+
+	public static Boolean parseFieldBoolean(Object value) {
+		return (Boolean) value;
+	}
+
+	public static BigDecimal parseFieldBigDecimal(Object value) {
+		if (value == null) return null;
+		if (value instanceof BigDecimal) return (BigDecimal) value;
+		return new BigDecimal(value.toString());
+	}
+
+	public static Date parseFieldDate(Object value) {
+		return value == null ? null : new Date(value.toString());
+	}
+
+	public static Time parseFieldTime(Object value) {
+		return value == null ? null : new Time(value.toString());
+	}
+
+	public static DateAndTime parseFieldDateAndTime(Object value) {
+		return value == null ? null : new DateAndTime(value.toString());
+	}
+
+	public static DateRange parseFieldDateRange(Object value) {
+		return value == null ? null : new DateRange(value.toString());
+	}
+
+	public static DayAndMonth parseFieldDayAndMonth(Object value) {
+		return value == null ? null : new DayAndMonth(value.toString());
+	}
+
+	public static Money parseFieldMoney(Object value) {
+		return value == null ? null : new Money(value.toString());
+	}
+
+	public static List<String> parseFieldStringList(Object value) {
+		List<String> ret = new ArrayList<String>();
+		if (value == null) return ret;
+		for (Object element : (Collection) value) {
+			ret.add(parseFieldString(element));
+		}
+		return ret;
+	}
+
+	public static Set<String> parseFieldStringSet(Object value) {
+		Set<String> ret = new HashSet<String>();
+		if (value == null) return ret;
+		for (Object element : (Collection) value) {
+			ret.add(parseFieldString(element));
+		}
+		return ret;
+	}
+
 	public static String propertyAsString(String value) {
 		return value;
 	}
@@ -27,8 +27,17 @@ public class SearchQuery extends AEntityQuery<AEntity> {
 	private Collection<Class> excludedTypes;
 
 	public SearchQuery(String text) {
+		this(new SearchText(text));
+	}
+
+	public SearchQuery(SearchText searchText) {
 		super();
-		this.searchText = new SearchText(text);
+		this.searchText = searchText;
+	}
+
+	@Override
+	public SearchText getSearchText() {
+		return searchText;
 	}
 
 	@Override
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Hash map for the copy-on-write updates of <code>EntitiesCache</code>. The entries are split into segments by
+ * the hash of their keys. A copy shares all segments with its template, a segment is copied when one of both
+ * maps modifies it the first time. So copying costs the number of segments and a modification copies at most
+ * one segment, which holds about <code>MAX_SEGMENT_SIZE</code> entries. The number of segments grows with the
+ * size.
+ * <p>
+ * Not synchronized. <code>null</code> values are not supported.
+ */
+class SegmentedMap<K, V> {
+
+	private static final int MAX_SEGMENT_SIZE = 1024;
+
+	private HashMap<K, V>[] segments;
+	private boolean[] owned;
+	private int size;
+
+	SegmentedMap() {
+		segments = new HashMap[] { new HashMap<K, V>() };
+		owned = new boolean[] { true };
+	}
+
+	private SegmentedMap(SegmentedMap<K, V> template) {
+		int count = template.segments.length;
+		segments = new HashMap[count];
+		owned = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = template.segments[i];
+			template.owned[i] = false;
+		}
+		size = template.size;
+	}
+
+	SegmentedMap<K, V> copy() {
+		return new SegmentedMap<K, V>(this);
+	}
+
+	V get(Object key) {
+		return segments[getSegmentIndex(key)].get(key);
+	}
+
+	boolean containsKey(Object key) {
+		return segments[getSegmentIndex(key)].containsKey(key);
+	}
+
+	V put(K key, V value) {
+		V previous = getSegmentForWrite(getSegmentIndex(key)).put(key, value);
+		if (previous == null) {
+			size++;
+			if (size > segments.length * MAX_SEGMENT_SIZE) split();
+		}
+		return previous;
+	}
+
+	V remove(Object key) {
+		int index = getSegmentIndex(key);
+		if (!segments[index].containsKey(key)) return null;
+		size--;
+		return getSegmentForWrite(index).remove(key);
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return view of the values, which must not be used after the map is modified
+	 */
+	Collection<V> values() {
+		return new AbstractCollection<V>() {
+
+			@Override
+			public Iterator<V> iterator() {
+				return new SegmentsIterator<V>() {
+
+					@Override
+					protected Iterator<V> iterator(HashMap<K, V> segment) {
+						return segment.values().iterator();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * @return view of the keys, which must not be used after the map is modified
+	 */
+	Set<K> keySet() {
+		return new AbstractSet<K>() {
+
+			@Override
+			public Iterator<K> iterator() {
+				return new SegmentsIterator<K>() {
+
+					@Override
+					protected Iterator<K> iterator(HashMap<K, V> segment) {
+						return segment.keySet().iterator();
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private HashMap<K, V> getSegmentForWrite(int index) {
+		if (!owned[index]) {
+			segments[index] = new HashMap<K, V>(segments[index]);
+			owned[index] = true;
+		}
+		return segments[index];
+	}
+
+	private int getSegmentIndex(Object key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return hash & (segments.length - 1);
+	}
+
+	private void split() {
+		HashMap<K, V>[] previous = segments;
+		int count = previous.length * 8;
+		segments = new HashMap[count];
+		owned = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new HashMap<K, V>();
+			owned[i] = true;
+		}
+		for (HashMap<K, V> segment : previous) {
+			for (Map.Entry<K, V> entry : segment.entrySet()) {
+				segments[getSegmentIndex(entry.getKey())].put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private abstract class SegmentsIterator<T> implements Iterator<T> {
+
+		private final HashMap<K, V>[] iteratedSegments = segments;
+		private int nextSegment;
+		private Iterator<T> current;
+
+		protected abstract Iterator<T> iterator(HashMap<K, V> segment);
+
+		@Override
+		public boolean hasNext() {
+			while (current == null || !current.hasNext()) {
+				if (nextSegment >= iteratedSegments.length) return false;
+				current = iterator(iteratedSegments[nextSegment++]);
+			}
+			return true;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
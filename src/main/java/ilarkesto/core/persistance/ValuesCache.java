@@ -15,34 +15,176 @@
 package ilarkesto.core.persistance;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Computed values of one entity. A miss in <code>get()</code> starts recording the entities which are read from
+ * the current transaction until the value is stored by <code>put()</code>. The value is evicted when one of
+ * these entities is modified or deleted, or when an entity of a queried type changes.
+ */
 public class ValuesCache {
 
-	private Map<String, Object> valuesByKey = new HashMap<String, Object>();
+	private final ValuesCaches caches;
+	private final String entityId;
+	final Map<Key, CachedValue> valuesByKey = new HashMap<Key, CachedValue>();
+	long hitCount;
+	long missCount;
+
+	ValuesCache(ValuesCaches caches, String entityId) {
+		this.caches = caches;
+		this.entityId = entityId;
+	}
 
 	public Object get(String name, Object... keyParts) {
-		String key = createKey(name, keyParts);
-		return valuesByKey.get(key);
+		Key key = new Key(name, keyParts);
+		CachedValue value;
+		synchronized (this) {
+			value = valuesByKey.get(key);
+			if (value == null) {
+				missCount++;
+			} else {
+				hitCount++;
+			}
+		}
+		ATransaction transaction = getTransaction();
+		if (value == null) {
+			if (transaction != null) transaction.startRecordingDependencies(new Dependencies(this, key));
+			return null;
+		}
+		value.accessed = true;
+		if (transaction != null) transaction.recordDependencies(value.dependencies);
+		return value.value;
 	}
 
 	public <T> T put(T value, String name, Object... keyParts) {
-		String key = createKey(name, keyParts);
-		valuesByKey.put(key, value);
+		Key key = new Key(name, keyParts);
+		ATransaction transaction = getTransaction();
+		Dependencies dependencies = transaction == null ? null : transaction.stopRecordingDependencies(this, key);
+		if (dependencies == null) dependencies = new Dependencies(this, key);
+		dependencies.entityIds.add(entityId);
+		caches.add(new CachedValue(this, key, value, dependencies));
 		return value;
 	}
 
-	private String createKey(String name, Object... keyParts) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(name);
-		for (Object keyPart : keyParts) {
-			if (keyPart instanceof AEntity) {
-				sb.append(((AEntity) keyPart).getId());
-			} else {
-				sb.append(keyPart);
+	private ATransaction getTransaction() {
+		if (Persistence.transactionManager == null) return null;
+		return Persistence.transactionManager.getCurrentTransaction();
+	}
+
+	public String getEntityId() {
+		return entityId;
+	}
+
+	/**
+	 * Name and parameters of a value. Entities are compared by id.
+	 */
+	static final class Key {
+
+		private final String name;
+		private final Object[] parts;
+		private final int hashCode;
+
+		Key(String name, Object[] parts) {
+			this.name = name;
+			this.parts = replaceEntitiesByIds(parts);
+			int hash = name.hashCode();
+			for (Object part : this.parts) {
+				hash = 31 * hash + (part == null ? 0 : part.hashCode());
+			}
+			this.hashCode = hash;
+		}
+
+		private static Object[] replaceEntitiesByIds(Object[] parts) {
+			Object[] ret = parts;
+			for (int i = 0; i < parts.length; i++) {
+				if (!(parts[i] instanceof AEntity)) continue;
+				if (ret == parts) {
+					ret = new Object[parts.length];
+					for (int j = 0; j < parts.length; j++) {
+						ret[j] = parts[j];
+					}
+				}
+				ret[i] = ((AEntity) parts[i]).getId();
+			}
+			return ret;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			if (hashCode != other.hashCode || !name.equals(other.name)) return false;
+			if (parts.length != other.parts.length) return false;
+			for (int i = 0; i < parts.length; i++) {
+				Object part = parts[i];
+				Object otherPart = other.parts[i];
+				if (part == null ? otherPart != null : !part.equals(otherPart)) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(name);
+			for (Object part : parts) {
+				sb.append(":").append(part);
 			}
+			return sb.toString();
 		}
-		return sb.toString();
+
+	}
+
+	static class CachedValue {
+
+		final ValuesCache cache;
+		final Key key;
+		final Object value;
+		final Dependencies dependencies;
+		volatile boolean accessed;
+
+		public CachedValue(ValuesCache cache, Key key, Object value, Dependencies dependencies) {
+			super();
+			this.cache = cache;
+			this.key = key;
+			this.value = value;
+			this.dependencies = dependencies;
+		}
+
+	}
+
+	/**
+	 * Entity ids and types read while computing one value.
+	 */
+	static class Dependencies {
+
+		final ValuesCache cache;
+		final Key key;
+		final Set<String> entityIds = new HashSet<String>();
+		final Set<Class> types = new HashSet<Class>();
+
+		public Dependencies(ValuesCache cache, Key key) {
+			super();
+			this.cache = cache;
+			this.key = key;
+		}
+
+		boolean isFor(ValuesCache cache, Key key) {
+			return this.cache == cache && this.key.equals(key);
+		}
+
+		void addAll(Dependencies other) {
+			entityIds.addAll(other.entityIds);
+			types.addAll(other.types);
+		}
+
 	}
 
 }
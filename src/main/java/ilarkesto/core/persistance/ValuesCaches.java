@@ -0,0 +1,283 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the <code>ValuesCache</code> of every entity. Each cached value knows the entities it read while it was
+ * computed and the entity types it queried. When an entity is modified or deleted, only the values which depend
+ * on it are evicted.
+ * <p>
+ * The caches are looked up in lock-striped segments, values are read under the lock of their entity's cache. Only
+ * storing and evicting values locks the whole registry. With <code>setMaxSize()</code> the number of values is
+ * bounded. When the bound is exceeded, values are evicted in insertion order, values which were read since the
+ * last sweep get a second chance (CLOCK approximation of LRU).
+ */
+public class ValuesCaches {
+
+	private static final int SEGMENT_COUNT = 16;
+
+	private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+	private Map<String, Set<ValuesCache.CachedValue>> dependentsByEntityId = new HashMap<String, Set<ValuesCache.CachedValue>>();
+	private Map<Class, Set<ValuesCache.CachedValue>> dependentsByType = new HashMap<Class, Set<ValuesCache.CachedValue>>();
+	private LinkedHashSet<ValuesCache.CachedValue> clock = new LinkedHashSet<ValuesCache.CachedValue>();
+	private int maxSize;
+
+	private long retiredHitCount;
+	private long retiredMissCount;
+	private long evictionCount;
+
+	public ValuesCaches() {
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	public ValuesCache getCache(String entityId) {
+		Segment segment = getSegment(entityId);
+		synchronized (segment) {
+			ValuesCache cache = segment.cachesByEntityId.get(entityId);
+			if (cache == null) {
+				cache = new ValuesCache(this, entityId);
+				segment.cachesByEntityId.put(entityId, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * @return a copy of the caches by entity id
+	 */
+	public Map<String, ValuesCache> getCachesById() {
+		Map<String, ValuesCache> ret = new HashMap<String, ValuesCache>();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				ret.putAll(segment.cachesByEntityId);
+			}
+		}
+		return ret;
+	}
+
+	private Segment getSegment(String entityId) {
+		return segments[(entityId.hashCode() & 0x7fffffff) % SEGMENT_COUNT];
+	}
+
+	/**
+	 * Evicts all values which depend on the given entity or on queries for its type.
+	 */
+	public synchronized void invalidate(String entityId, Class entityType) {
+		evict(dependentsByEntityId.get(entityId));
+		if (entityType == null) {
+			for (Set<ValuesCache.CachedValue> dependents : new ArrayList<Set<ValuesCache.CachedValue>>(
+					dependentsByType.values())) {
+				evict(dependents);
+			}
+			return;
+		}
+		for (Class type : new ArrayList<Class>(dependentsByType.keySet())) {
+			if (AEntityQuery.isInstanceOf(entityType, type)) evict(dependentsByType.get(type));
+		}
+	}
+
+	/**
+	 * Evicts all values which depend on the given entity and removes its cache.
+	 */
+	public synchronized void invalidateDeleted(String entityId, Class entityType) {
+		invalidate(entityId, entityType);
+		Segment segment = getSegment(entityId);
+		ValuesCache cache;
+		synchronized (segment) {
+			cache = segment.cachesByEntityId.remove(entityId);
+		}
+		if (cache == null) return;
+		List<ValuesCache.CachedValue> values;
+		synchronized (cache) {
+			retiredHitCount += cache.hitCount;
+			retiredMissCount += cache.missCount;
+			values = new ArrayList<ValuesCache.CachedValue>(cache.valuesByKey.values());
+		}
+		evict(values);
+	}
+
+	public synchronized void clear() {
+		evictionCount += clock.size();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (ValuesCache cache : segment.cachesByEntityId.values()) {
+					synchronized (cache) {
+						retiredHitCount += cache.hitCount;
+						retiredMissCount += cache.missCount;
+						cache.valuesByKey.clear();
+					}
+				}
+				segment.cachesByEntityId.clear();
+			}
+		}
+		dependentsByEntityId.clear();
+		dependentsByType.clear();
+		clock.clear();
+	}
+
+	synchronized void add(ValuesCache.CachedValue value) {
+		ValuesCache.CachedValue replaced;
+		synchronized (value.cache) {
+			replaced = value.cache.valuesByKey.put(value.key, value);
+		}
+		if (replaced != null) {
+			unregister(replaced);
+			clock.remove(replaced);
+		}
+		for (String id : value.dependencies.entityIds) {
+			Set<ValuesCache.CachedValue> dependents = dependentsByEntityId.get(id);
+			if (dependents == null) {
+				dependents = new HashSet<ValuesCache.CachedValue>();
+				dependentsByEntityId.put(id, dependents);
+			}
+			dependents.add(value);
+		}
+		for (Class type : value.dependencies.types) {
+			Set<ValuesCache.CachedValue> dependents = dependentsByType.get(type);
+			if (dependents == null) {
+				dependents = new HashSet<ValuesCache.CachedValue>();
+				dependentsByType.put(type, dependents);
+			}
+			dependents.add(value);
+		}
+		clock.add(value);
+		if (maxSize > 0) evictToMaxSize();
+	}
+
+	private void evictToMaxSize() {
+		while (clock.size() > maxSize) {
+			Iterator<ValuesCache.CachedValue> iterator = clock.iterator();
+			ValuesCache.CachedValue value = iterator.next();
+			if (value.accessed) {
+				value.accessed = false;
+				iterator.remove();
+				clock.add(value);
+				continue;
+			}
+			evict(value);
+		}
+	}
+
+	private void evict(Collection<ValuesCache.CachedValue> values) {
+		if (values == null || values.isEmpty()) return;
+		for (ValuesCache.CachedValue value : new ArrayList<ValuesCache.CachedValue>(values)) {
+			evict(value);
+		}
+	}
+
+	private void evict(ValuesCache.CachedValue value) {
+		synchronized (value.cache) {
+			if (value.cache.valuesByKey.get(value.key) == value) value.cache.valuesByKey.remove(value.key);
+		}
+		if (!clock.remove(value)) return;
+		unregister(value);
+		evictionCount++;
+	}
+
+	private void unregister(ValuesCache.CachedValue value) {
+		for (String id : value.dependencies.entityIds) {
+			Set<ValuesCache.CachedValue> dependents = dependentsByEntityId.get(id);
+			if (dependents == null) continue;
+			dependents.remove(value);
+			if (dependents.isEmpty()) dependentsByEntityId.remove(id);
+		}
+		for (Class type : value.dependencies.types) {
+			Set<ValuesCache.CachedValue> dependents = dependentsByType.get(type);
+			if (dependents == null) continue;
+			dependents.remove(value);
+			if (dependents.isEmpty()) dependentsByType.remove(type);
+		}
+	}
+
+	/**
+	 * @param maxSize Maximum number of values. <code>0</code> for no limit.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		if (maxSize > 0) evictToMaxSize();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHitCount() {
+		long count;
+		synchronized (this) {
+			count = retiredHitCount;
+		}
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (ValuesCache cache : segment.cachesByEntityId.values()) {
+					synchronized (cache) {
+						count += cache.hitCount;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	public long getMissCount() {
+		long count;
+		synchronized (this) {
+			count = retiredMissCount;
+		}
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (ValuesCache cache : segment.cachesByEntityId.values()) {
+					synchronized (cache) {
+						count += cache.missCount;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public synchronized int size() {
+		return clock.size();
+	}
+
+	@Override
+	public String toString() {
+		return "ValuesCaches: " + size() + " values, " + getHitCount() + " hits, " + getMissCount() + " misses, "
+				+ getEvictionCount() + " evictions";
+	}
+
+	private static class Segment {
+
+		private Map<String, ValuesCache> cachesByEntityId = new HashMap<String, ValuesCache>();
+
+	}
+
+}
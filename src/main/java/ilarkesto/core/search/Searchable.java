@@ -17,6 +17,13 @@ package ilarkesto.core.search;
 
 public interface Searchable {
 
+	/**
+	 * Entities backends with a search index also call this with a <code>SearchText</code> which collects the values
+	 * passed to <code>SearchText.matches()</code>. To be found through the index, implementations should only pass
+	 * their searchable values to <code>SearchText.matches()</code>, without side effects. Implementations which read
+	 * <code>getWords()</code>, match without a value or derive values from other entities than the ones passed as
+	 * values are tested on every search.
+	 */
 	boolean matches(SearchText searchText);
 
 }
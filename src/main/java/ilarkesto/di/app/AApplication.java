@@ -46,6 +46,7 @@ import ilarkesto.persistence.LegacySingletonTransactionManager;
 import ilarkesto.persistence.LegacyThreadlocalTransactionManager;
 import ilarkesto.persistence.Serializer;
 import ilarkesto.persistence.ThreadlocalTransactionManager;
+import ilarkesto.persistence.git.AJsonFilesWithGitEntitiesBackend;
 import ilarkesto.properties.FilePropertiesStore;
 
 import java.io.File;
@@ -279,6 +280,13 @@ public abstract class AApplication {
 						log.warn("Aborting tasks on shutdown failed:", tasks);
 					}
 					if (entityStore != null) entityStore.lock();
+					if (Persistence.backend instanceof AJsonFilesWithGitEntitiesBackend) {
+						try {
+							((AJsonFilesWithGitEntitiesBackend) Persistence.backend).close();
+						} catch (Exception ex) {
+							log.error("Committing entity changes to git on shutdown failed", ex);
+						}
+					}
 					shutdown = true;
 
 					if (context != null) context.destroy(true);
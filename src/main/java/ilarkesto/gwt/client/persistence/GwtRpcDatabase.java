@@ -57,6 +57,7 @@ public class GwtRpcDatabase extends ACachingEntitiesBackend {
 					cache.add(entity);
 				}
 				entity.updateProperties(data);
+				cache.add(entity); // updates property indexes
 				entities.add(entity);
 			}
 		} finally {
@@ -30,12 +30,8 @@ import ilarkesto.gwt.client.ClientDataTransporter;
 import ilarkesto.gwt.client.Transportable;
 import ilarkesto.webapp.AWebSession;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -50,7 +46,7 @@ public abstract class AGwtConversation<S extends AWebSession>
 	 */
 	private ADataTransferObject nextData;
 	private Object nextDataLock = new Object();
-	private Map<Entity, Long> remoteEntityModificationTimes = Collections.synchronizedMap(new HashMap<Entity, Long>());
+	private RemoteEntities remoteEntities = new RemoteEntities();
 
 	private S session;
 	private int number;
@@ -83,21 +79,15 @@ public abstract class AGwtConversation<S extends AWebSession>
 	}
 
 	public final void clearRemoteEntities() {
-		remoteEntityModificationTimes.clear();
+		remoteEntities.clear();
 	}
 
 	public final void clearRemoteEntity(Entity entity) {
-		remoteEntityModificationTimes.remove(entity);
+		remoteEntities.remove(entity.getId());
 	}
 
 	public final void clearRemoteEntitiesByType(Class<? extends Entity> type) {
-		List<Entity> toRemove = new ArrayList<Entity>();
-		for (Entity entity : remoteEntityModificationTimes.keySet()) {
-			if (entity.getClass().equals(type)) toRemove.add(entity);
-		}
-		for (Entity entity : toRemove) {
-			remoteEntityModificationTimes.remove(entity);
-		}
+		remoteEntities.removeType(type);
 	}
 
 	protected boolean isEntityVisible(Entity entity) {
@@ -107,14 +97,14 @@ public abstract class AGwtConversation<S extends AWebSession>
 	protected void filterEntityProperties(Entity entity, Map propertiesMap) {}
 
 	public boolean isAvailableOnClient(Entity entity) {
-		return remoteEntityModificationTimes.containsKey(entity);
+		return remoteEntities.contains(entity.getId());
 	}
 
 	@Override
 	public void sendToClient(Entity entity) {
 		if (entity == null) return;
 		RuntimeTracker rt = new RuntimeTracker();
-		sendToClientInternal(entity);
+		sendToClientInternal(entity, null);
 		if (rt.getRuntime() > 1000) {
 			log.warn("sendToClient(Entity) took", rt.getRuntimeFormated(), "->", entity.getClass().getSimpleName(),
 				entity.getId(), entity.toString());
@@ -123,11 +113,18 @@ public abstract class AGwtConversation<S extends AWebSession>
 
 	@Override
 	public final void sendToClient(Collection<? extends Entity> entities) {
+		sendToClient(entities, null);
+	}
+
+	/**
+	 * Sends the entities using the properties maps shared by all conversations in <code>snapshots</code>.
+	 */
+	public final void sendToClient(Collection<? extends Entity> entities, EntityPropertiesSnapshots snapshots) {
 		if (entities == null) return;
 		transferBusWarningPosted = false;
 		RuntimeTracker rt = new RuntimeTracker();
 		for (Entity entity : entities) {
-			sendToClientInternal(entity);
+			sendToClientInternal(entity, snapshots);
 		}
 		if (rt.getRuntime() > 3000) {
 			log.warn("sendToClient(Collection) took", rt.getRuntimeFormated(), "->", entities.size(), entities);
@@ -136,7 +133,7 @@ public abstract class AGwtConversation<S extends AWebSession>
 
 	boolean transferBusWarningPosted;
 
-	private void sendToClientInternal(Entity entity) {
+	private void sendToClientInternal(Entity entity, EntityPropertiesSnapshots snapshots) {
 		if (entity == null) return;
 
 		if (!Persistence.transactionManager.getCurrentTransaction().containsWithId(entity.getId())) {
@@ -157,7 +154,7 @@ public abstract class AGwtConversation<S extends AWebSession>
 		}
 
 		for (Entity e : transferBus.getEntities()) {
-			addToNextData(e);
+			addToNextData(e, snapshots);
 		}
 	}
 
@@ -172,6 +169,15 @@ public abstract class AGwtConversation<S extends AWebSession>
 		}
 	}
 
+	public final void sendToClientIfTracking(Collection<? extends Entity> entities,
+			EntityPropertiesSnapshots snapshots) {
+		if (entities == null) return;
+		for (Entity entity : entities) {
+			if (entity == null || !isAvailableOnClient(entity)) continue;
+			sendToClientInternal(entity, snapshots);
+		}
+	}
+
 	@Override
 	public final void sendToClient(Entity... entities) {
 		sendToClient(Arrays.asList(entities));
@@ -180,12 +186,7 @@ public abstract class AGwtConversation<S extends AWebSession>
 	public void deleteFromClient(String entityId) {
 		if (entityId == null) return;
 		getNextData().addDeletedEntity(entityId);
-		for (Entity entity : remoteEntityModificationTimes.keySet()) {
-			if (entity.getId().equals(entityId)) {
-				remoteEntityModificationTimes.remove(entity);
-				break;
-			}
-		}
+		remoteEntities.remove(entityId);
 	}
 
 	public void sendToClientIfTracking(Entity entity) {
@@ -194,24 +195,32 @@ public abstract class AGwtConversation<S extends AWebSession>
 		sendToClient(entity);
 	}
 
-	private void addToNextData(Entity entity) {
-		Long timeRemote = remoteEntityModificationTimes.get(entity);
+	private void addToNextData(Entity entity, EntityPropertiesSnapshots snapshots) {
+		long timeRemote = remoteEntities.getModificationTime(entity.getId());
 		Long timeLocal = entity.getModificationTime();
 
 		ADataTransferObject nd = getNextData();
 		if (nd.containsDeletedEntity(entity.getId())) return;
 
-		if (timeLocal.equals(timeRemote)) {
+		if (timeLocal.longValue() == timeRemote) {
 			if (log.isDebugEnabled()) log.debug("Remote entity already up to date:", toString(entity), "for", this,
 				"->", timeLocal, "/", timeRemote);
 			return;
 		}
 
-		Map<String, String> propertiesMap = entity.createPropertiesMap();
-		filterEntityProperties(entity, propertiesMap);
+		Map<String, String> propertiesMap;
+		if (snapshots == null) {
+			propertiesMap = entity.createPropertiesMap();
+			filterEntityProperties(entity, propertiesMap);
+		} else {
+			CopyOnWritePropertiesMap filteredMap = new CopyOnWritePropertiesMap(snapshots,
+					snapshots.getPropertiesMap(entity));
+			filterEntityProperties(entity, filteredMap);
+			propertiesMap = filteredMap.getResult();
+		}
 
 		nd.addEntity(propertiesMap);
-		remoteEntityModificationTimes.put(entity, timeLocal);
+		remoteEntities.put(entity.getId(), entity.getClass(), timeLocal);
 		if (log.isDebugEnabled()) log.debug("Sending", toString(entity), "to", this);
 	}
 
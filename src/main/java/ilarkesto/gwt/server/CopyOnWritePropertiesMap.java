@@ -0,0 +1,136 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.gwt.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads from a shared properties map and copies it before the first modification. The views returned by
+ * <code>keySet()</code>, <code>values()</code> and <code>entrySet()</code> are modifiable, so they are
+ * taken from the copy.
+ */
+class CopyOnWritePropertiesMap implements Map<String, String> {
+
+	private final EntityPropertiesSnapshots snapshots;
+	private Map<String, String> map;
+	private boolean copied;
+
+	CopyOnWritePropertiesMap(EntityPropertiesSnapshots snapshots, Map<String, String> sharedMap) {
+		this.snapshots = snapshots;
+		this.map = sharedMap;
+	}
+
+	private Map<String, String> getMapForWrite() {
+		if (!copied) {
+			map = new HashMap<String, String>(map);
+			copied = true;
+			snapshots.onCopied();
+		}
+		return map;
+	}
+
+	/**
+	 * @return the shared map if it was not modified, the copy otherwise
+	 */
+	Map<String, String> getResult() {
+		return map;
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return map.containsValue(value);
+	}
+
+	@Override
+	public String get(Object key) {
+		return map.get(key);
+	}
+
+	@Override
+	public String put(String key, String value) {
+		if (copied) return map.put(key, value);
+		String previous = map.get(key);
+		if (map.containsKey(key) && (previous == null ? value == null : previous.equals(value))) return previous;
+		return getMapForWrite().put(key, value);
+	}
+
+	@Override
+	public String remove(Object key) {
+		if (!copied && !map.containsKey(key)) return null;
+		return getMapForWrite().remove(key);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends String> m) {
+		for (Map.Entry<? extends String, ? extends String> entry : m.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public void clear() {
+		if (!copied && map.isEmpty()) return;
+		getMapForWrite().clear();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return getMapForWrite().keySet();
+	}
+
+	@Override
+	public Collection<String> values() {
+		return getMapForWrite().values();
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return getMapForWrite().entrySet();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return map.equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		return map.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return map.toString();
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.gwt.server;
+
+import ilarkesto.core.persistance.Entity;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Properties maps of the entities sent to the clients in one fan-out, for example after a commit. Each map is
+ * created once per entity and modification time and shared by all conversations. The shared maps must not be
+ * modified, <code>AGwtConversation.filterEntityProperties()</code> gets a copy-on-write view of them.
+ */
+public class EntityPropertiesSnapshots {
+
+	private Map<String, Snapshot> snapshotsById = new HashMap<String, Snapshot>();
+
+	private int createCount;
+	private int shareCount;
+	private int copyCount;
+
+	public synchronized Map<String, String> getPropertiesMap(Entity entity) {
+		Long modificationTime = entity.getModificationTime();
+		Snapshot snapshot = snapshotsById.get(entity.getId());
+		if (snapshot != null && modificationTime != null && modificationTime.equals(snapshot.modificationTime)) {
+			shareCount++;
+			return snapshot.propertiesMap;
+		}
+		snapshot = new Snapshot(modificationTime, entity.createPropertiesMap());
+		snapshotsById.put(entity.getId(), snapshot);
+		createCount++;
+		return snapshot.propertiesMap;
+	}
+
+	synchronized void onCopied() {
+		copyCount++;
+	}
+
+	/**
+	 * Number of properties maps created by <code>Entity.createPropertiesMap()</code>.
+	 */
+	public synchronized int getCreateCount() {
+		return createCount;
+	}
+
+	/**
+	 * Number of times an already created properties map was reused.
+	 */
+	public synchronized int getShareCount() {
+		return shareCount;
+	}
+
+	/**
+	 * Number of properties maps copied because a conversation filtered them.
+	 */
+	public synchronized int getCopyCount() {
+		return copyCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return createCount + " created, " + shareCount + " shared, " + copyCount + " copied";
+	}
+
+	private static class Snapshot {
+
+		private final Long modificationTime;
+		private final Map<String, String> propertiesMap;
+
+		public Snapshot(Long modificationTime, Map<String, String> propertiesMap) {
+			this.modificationTime = modificationTime;
+			this.propertiesMap = propertiesMap;
+		}
+
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.gwt.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Modification times of the entities available on the client of a conversation. Entities are tracked by id and
+ * grouped by type, so lookups, deletions and clearing a type do not scan the other tracked entities. Lookups do
+ * not lock, modifications are synchronized to keep both maps consistent. The entities themselves are not
+ * referenced.
+ */
+class RemoteEntities {
+
+	private final ConcurrentHashMap<String, RemoteEntity> entitiesById = new ConcurrentHashMap<String, RemoteEntity>();
+	private final Map<Class, Set<String>> idsByType = new HashMap<Class, Set<String>>();
+
+	/**
+	 * @return the modification time the client has or <code>-1</code> if the entity is not on the client
+	 */
+	public long getModificationTime(String id) {
+		RemoteEntity entity = entitiesById.get(id);
+		return entity == null ? -1 : entity.modificationTime;
+	}
+
+	public boolean contains(String id) {
+		return entitiesById.containsKey(id);
+	}
+
+	public synchronized void put(String id, Class type, long modificationTime) {
+		RemoteEntity previous = entitiesById.put(id, new RemoteEntity(type, modificationTime));
+		if (previous != null) {
+			if (previous.type == type) return;
+			removeFromType(id, previous.type);
+		}
+		Set<String> ids = idsByType.get(type);
+		if (ids == null) {
+			ids = new HashSet<String>();
+			idsByType.put(type, ids);
+		}
+		ids.add(id);
+	}
+
+	public synchronized void remove(String id) {
+		RemoteEntity entity = entitiesById.remove(id);
+		if (entity != null) removeFromType(id, entity.type);
+	}
+
+	private void removeFromType(String id, Class type) {
+		Set<String> ids = idsByType.get(type);
+		ids.remove(id);
+		if (ids.isEmpty()) idsByType.remove(type);
+	}
+
+	public synchronized void removeType(Class type) {
+		Set<String> ids = idsByType.remove(type);
+		if (ids == null) return;
+		for (String id : ids) {
+			entitiesById.remove(id);
+		}
+	}
+
+	public synchronized void clear() {
+		entitiesById.clear();
+		idsByType.clear();
+	}
+	public int size() {
+		return entitiesById.size();
+	}
+
+	private static class RemoteEntity {
+
+		private final Class type;
+		private final long modificationTime;
+
+		public RemoteEntity(Class type, long modificationTime) {
+			this.type = type;
+			this.modificationTime = modificationTime;
+		}
+
+	}
+
+}
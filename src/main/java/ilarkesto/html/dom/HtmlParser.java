@@ -14,15 +14,17 @@
  */
 package ilarkesto.html.dom;
 
-import ilarkesto.core.base.Parser;
 import ilarkesto.core.base.Parser.ParseException;
-import ilarkesto.core.base.Str;
 import ilarkesto.core.logging.Log;
 
-import java.util.LinkedHashMap;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Map;
 
-public class HtmlParser {
+/**
+ * Builds an <code>HtmlPage</code> from the events of an <code>HtmlTokenizer</code>.
+ */
+public class HtmlParser implements HtmlTokenizer.Handler {
 
 	private static final boolean debug = false;
 	private static final Log log = Log.get(HtmlParser.class);
@@ -31,142 +33,42 @@ public class HtmlParser {
 
 	private HtmlDataContainer currentContainer;
 	private HtmlTag currentTag;
-	private Parser parser;
 
 	public HtmlPage parse(String html) throws ParseException {
+		return parse(new StringReader(html));
+	}
+
+	public HtmlPage parse(Reader reader) throws ParseException {
 		page = new HtmlPage();
 		currentContainer = page;
+		currentTag = null;
 
-		parser = new Parser(html);
-		String prefix = parser.getUntilIf("<html");
-		if (prefix != null) {
-			parser.gotoAfter(prefix);
-			onText(prefix);
-		}
-		while (!parser.isEnd()) {
-			parseNext();
-		}
+		new HtmlTokenizer(reader, this).tokenize();
 
 		return page;
 	}
 
-	private void parseNext() throws ParseException {
-		String text = parser.getUntilIf("<");
-		if (text == null) {
-			text = parser.getRemaining();
-			onText(text);
-			parser.gotoEnd();
-			return;
-		}
-
-		parser.gotoAfter(text);
-		onText(text);
-
-		if (parser.isNext("</")) {
-			parseClosingTag();
-		} else if (parser.isNext("<!--")) {
-			parseComment();
-		} else {
-			parseOpeningTag();
-		}
-	}
-
-	private void parseComment() throws ParseException {
-		parser.gotoAfter("<!--");
-		String text = parser.getUntilAndGotoAfter("-->");
-		onComment(text);
-	}
-
-	private void parseOpeningTag() throws ParseException {
-		parser.gotoAfter("<");
-		String tagName = parser.getUntil(" ", "/>", ">");
-
-		parser.gotoAfter(tagName);
-
-		Map<String, String> attributes = null;
-
-		if (parser.isNext(" ")) {
-			attributes = parseAttributes();
-		}
-
-		boolean closed = false;
-		if (parser.isNext("/>")) {
-			closed = true;
-			parser.gotoAfter("/");
-		}
-
-		// next must be ">"
-		parser.gotoAfter(">");
-
-		HtmlTag tag = new HtmlTag(currentTag, tagName, attributes, closed);
-		onTagStarted(tag);
-
-		if (tag.isContentTextOnly()) {
-			String text = parser.getUntil("</" + tag.getName() + ">");
-			parser.gotoAfter(text);
-			onText(text);
-		}
-	}
-
-	private void parseClosingTag() throws ParseException {
-		parser.gotoAfter("</");
-		String tagName = parser.getUntilAndGotoAfter(">");
-		onTagClosed(tagName);
-	}
-
-	private LinkedHashMap<String, String> parseAttributes() throws ParseException {
-		Parser p = parser;
-		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
-
-		try {
-
-			while (true) {
-				p.skipWhitespace();
-				if (p.isNext(">") || p.isNext("/>")) break;
-				String name = p.getUntilAndGotoAfter("=").trim();
-				p.skipWhitespace();
-				String quoting = null;
-				if (p.isNext("\"")) {
-					quoting = "\"";
-				} else if (p.isNext("'")) {
-					quoting = "'";
-				}
-				String value;
-				if (quoting == null) {
-					value = p.getUntilIf(" ", "/>", ">");
-					if (value == null) value = p.getRemaining();
-					p.gotoAfter(value);
-				} else {
-					p.gotoAfter(quoting);
-					value = p.getUntilAndGotoAfter(quoting);
-				}
-				ret.put(name.trim(), value.trim());
-			}
-		} catch (Exception ex) {
-			throw new ParseException("Parsing HTTML attributes failed. Already parsed: " + Str.format(ret), 0,
-					p.getRemaining());
-		}
-
-		return ret;
-	}
-
-	private void onComment(String text) {
+	@Override
+	public void onComment(char[] chars, int start, int length) {
+		String text = new String(chars, start, length);
 		if (debug) log.debug("Comment:", text);
 		currentContainer.add(new HtmlComment(text));
 	}
 
-	private void onTagStarted(HtmlTag tag) {
+	@Override
+	public boolean onTagStarted(String name, Map<String, String> attributes, boolean closed) {
+		HtmlTag tag = new HtmlTag(currentTag, name, attributes, closed);
 		if (debug) log.debug("Start tag:", tag.getName());
 		currentContainer.add(tag);
-		if (tag.isShort()) {
-
-		} else {
+		if (!tag.isShort()) {
 			currentTag = tag;
 			currentContainer = tag;
 		}
+		return tag.isContentTextOnly();
 	}
 
-	private void onTagClosed(String tagName) {
+	@Override
+	public void onTagClosed(String tagName) {
 		if (debug) log.debug("End tag:", tagName);
 
 		// TODO auto correction here
@@ -175,10 +77,11 @@ public class HtmlParser {
 		currentContainer = currentTag == null ? page : currentTag;
 	}
 
-	private void onText(String text) {
+	@Override
+	public void onText(char[] chars, int start, int length) {
+		if (length == 0) return;
+		String text = new String(chars, start, length);
 		if (debug) log.debug("Text:", text);
-		if (text == null) return;
-		if (text.isEmpty()) return;
 		currentContainer.add(new HtmlText(currentTag == null ? page : currentTag, text));
 	}
 }
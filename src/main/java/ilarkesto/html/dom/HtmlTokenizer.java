@@ -0,0 +1,308 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.html.dom;
+
+import ilarkesto.core.base.Parser.ParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Single pass HTML tokenizer. Reads characters from a <code>Reader</code> and reports text, comments and tags
+ * to a <code>Handler</code>. Text and comments are passed as ranges of an internal buffer, which is reused after
+ * the call returns. Declarations like <code>&lt;!doctype html&gt;</code> are reported as text.
+ */
+public class HtmlTokenizer {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader reader;
+	private final Handler handler;
+
+	private char[] buffer = new char[BUFFER_SIZE];
+	private int bufferPosition;
+	private int bufferLength;
+	private int pushedBack = -1;
+	private long position;
+
+	private char[] token = new char[256];
+	private int tokenLength;
+
+	public HtmlTokenizer(Reader reader, Handler handler) {
+		this.reader = reader;
+		this.handler = handler;
+	}
+
+	public void tokenize() throws ParseException {
+		int c;
+		while ((c = next()) != -1) {
+			if (c != '<') {
+				append(c);
+				continue;
+			}
+			int c2 = next();
+			if (c2 == '/') {
+				flushText();
+				parseClosingTag();
+			} else if (c2 == '!') {
+				parseExclamation();
+			} else if (c2 == '?') {
+				append('<');
+				append('?');
+				appendUntilInclusive('>');
+			} else if (isNameChar(c2)) {
+				flushText();
+				parseOpeningTag(c2);
+			} else {
+				append('<');
+				pushBack(c2);
+			}
+		}
+		flushText();
+	}
+
+	private void parseExclamation() throws ParseException {
+		int c = next();
+		if (c == '-') {
+			int c2 = next();
+			if (c2 == '-') {
+				flushText();
+				parseComment();
+				return;
+			}
+			append('<');
+			append('!');
+			append('-');
+			pushBack(c2);
+		} else {
+			append('<');
+			append('!');
+			pushBack(c);
+		}
+		appendUntilInclusive('>');
+	}
+
+	private void parseComment() throws ParseException {
+		int c;
+		while ((c = next()) != -1) {
+			append(c);
+			if (c == '>' && tokenLength >= 3 && token[tokenLength - 2] == '-' && token[tokenLength - 3] == '-') {
+				handler.onComment(token, 0, tokenLength - 3);
+				tokenLength = 0;
+				return;
+			}
+		}
+		throw new ParseException("Unterminated comment", (int) position, new String(token, 0, tokenLength));
+	}
+
+	private void parseClosingTag() throws ParseException {
+		int c;
+		while ((c = next()) != '>') {
+			if (c == -1) throw new ParseException("Unterminated closing tag", (int) position, tokenString());
+			append(c);
+		}
+		String name = tokenString().trim();
+		tokenLength = 0;
+		handler.onTagClosed(name);
+	}
+
+	private void parseOpeningTag(int first) throws ParseException {
+		append(first);
+		int c;
+		while (isNameChar(c = next())) {
+			append(c);
+		}
+		String name = tokenString();
+		tokenLength = 0;
+
+		Map<String, String> attributes = null;
+		boolean closed = false;
+		while (true) {
+			if (isWhitespace(c)) {
+				if (attributes == null) attributes = new LinkedHashMap<String, String>();
+				c = skipWhitespace();
+			}
+			if (c == -1) throw new ParseException("Unterminated tag", (int) position, name);
+			if (c == '>') break;
+			if (c == '/') {
+				c = next();
+				if (c == '>') {
+					closed = true;
+					break;
+				}
+				continue;
+			}
+			if (attributes == null) attributes = new LinkedHashMap<String, String>();
+			c = parseAttribute(c, attributes);
+		}
+
+		boolean rawText = handler.onTagStarted(name, attributes, closed);
+		if (rawText && !closed) parseRawText(name);
+	}
+
+	/**
+	 * @return the character after the attribute
+	 */
+	private int parseAttribute(int c, Map<String, String> attributes) throws ParseException {
+		while (c != -1 && c != '=' && c != '>' && c != '/' && !isWhitespace(c)) {
+			append(c);
+			c = next();
+		}
+		String name = tokenString();
+		tokenLength = 0;
+		if (isWhitespace(c)) c = skipWhitespace();
+		if (c != '=') {
+			attributes.put(name, null);
+			return c;
+		}
+
+		c = skipWhitespace();
+		if (c == '"' || c == '\'') {
+			int quote = c;
+			while ((c = next()) != quote) {
+				if (c == -1) throw new ParseException("Unterminated attribute value", (int) position, name);
+				append(c);
+			}
+			c = next();
+		} else {
+			while (c != -1 && c != '>' && !isWhitespace(c)) {
+				if (c == '/') {
+					int c2 = next();
+					if (c2 == '>') {
+						pushBack(c2);
+						break;
+					}
+					pushBack(c2);
+				}
+				append(c);
+				c = next();
+			}
+		}
+		attributes.put(name, tokenString().trim());
+		tokenLength = 0;
+		return c;
+	}
+
+	private void parseRawText(String tagName) {
+		int terminatorLength = tagName.length() + 3;
+		int c;
+		while ((c = next()) != -1) {
+			append(c);
+			if (c == '>' && isRawTextTerminator(tagName, terminatorLength)) {
+				handler.onText(token, 0, tokenLength - terminatorLength);
+				tokenLength = 0;
+				handler.onTagClosed(tagName);
+				return;
+			}
+		}
+		flushText();
+	}
+
+	private boolean isRawTextTerminator(String tagName, int terminatorLength) {
+		int start = tokenLength - terminatorLength;
+		if (start < 0) return false;
+		if (token[start] != '<' || token[start + 1] != '/') return false;
+		for (int i = 0; i < tagName.length(); i++) {
+			if (Character.toLowerCase(token[start + 2 + i]) != Character.toLowerCase(tagName.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private void appendUntilInclusive(char end) {
+		int c;
+		while ((c = next()) != -1) {
+			append(c);
+			if (c == end) return;
+		}
+	}
+
+	private void flushText() {
+		if (tokenLength == 0) return;
+		handler.onText(token, 0, tokenLength);
+		tokenLength = 0;
+	}
+
+	private int skipWhitespace() {
+		int c;
+		while (isWhitespace(c = next())) {}
+		return c;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+	}
+
+	private static boolean isNameChar(int c) {
+		return c != -1 && c != '>' && c != '/' && c != '<' && !isWhitespace(c);
+	}
+
+	private void append(int c) {
+		if (tokenLength == token.length) {
+			char[] newToken = new char[token.length * 2];
+			System.arraycopy(token, 0, newToken, 0, tokenLength);
+			token = newToken;
+		}
+		token[tokenLength++] = (char) c;
+	}
+
+	private String tokenString() {
+		return new String(token, 0, tokenLength);
+	}
+
+	private void pushBack(int c) {
+		pushedBack = c;
+	}
+
+	private int next() {
+		if (pushedBack != -1) {
+			int c = pushedBack;
+			pushedBack = -1;
+			return c;
+		}
+		if (bufferPosition == bufferLength) {
+			try {
+				bufferLength = reader.read(buffer, 0, buffer.length);
+			} catch (IOException ex) {
+				throw new RuntimeException("Reading HTML failed", ex);
+			}
+			bufferPosition = 0;
+			if (bufferLength <= 0) {
+				bufferLength = 0;
+				return -1;
+			}
+		}
+		position++;
+		return buffer[bufferPosition++];
+	}
+
+	public static interface Handler {
+
+		void onText(char[] chars, int start, int length);
+
+		void onComment(char[] chars, int start, int length);
+
+		/**
+		 * @return <code>true</code> if the content of the tag is text until its closing tag
+		 */
+		boolean onTagStarted(String name, Map<String, String> attributes, boolean closed);
+
+		void onTagClosed(String name);
+
+	}
+
+}
@@ -1076,7 +1076,7 @@ public abstract class IO {
 	}
 
 	public static void copyData(InputStream in, OutputStream out, CopyObserver observer) {
-		byte[] block = new byte[1000];
+		byte[] block = new byte[8192];
 		try {
 			while (true) {
 				if (observer != null && observer.isAbortRequested()) return;
@@ -19,19 +19,46 @@ import ilarkesto.io.nio.tcpserver.DataHandler;
 import ilarkesto.io.nio.tcpserver.ServerDataEvent;
 import ilarkesto.io.nio.tcpserver.TcpConnection;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Parses the requests of one connection incrementally from the received bytes. Requests may be split over several
+ * chunks and one chunk may contain several pipelined requests. Bodies are read by <code>Content-Length</code> or
+ * chunked transfer encoding. The requests are passed to the server in order, each is answered before the next one
+ * is parsed.
+ */
 public class HttpDataHandler implements DataHandler {
 
 	private static Log log = Log.get(HttpDataHandler.class);
 
-	private static final String CRLF = "\r\n";
+	private static final int MAX_LINE_LENGTH = 8192;
+	private static final int MAX_HEADER_COUNT = 100;
+	private static final int MAX_BODY_LENGTH = 10 * 1024 * 1024;
+	private static final int INITIAL_BODY_CAPACITY = 1024;
 
-	private HttpServer server;
+	private static final int START_LINE = 0;
+	private static final int HEADERS = 1;
+	private static final int BODY = 2;
+	private static final int CHUNK_SIZE = 3;
+	private static final int CHUNK_DATA = 4;
+	private static final int CHUNK_END = 5;
+	private static final int TRAILERS = 6;
+	private static final int CLOSED = 7;
 
-	private ServerDataEvent event;
+	private HttpServer server;
 
+	private TcpConnection connection;
 	private HttpRequest request;
-	private boolean startLineDone;
-	private boolean headerDone;
+	private int state = START_LINE;
+
+	private byte[] line = new byte[256];
+	private int lineLength;
+	private int headerCount;
+
+	private byte[] body;
+	private int bodyLength;
+	private int contentLength;
+	private int chunkRemaining;
 
 	public HttpDataHandler(HttpServer server) {
 		super();
@@ -40,86 +67,222 @@ public class HttpDataHandler implements DataHandler {
 
 	@Override
 	public void onDataReceived(ServerDataEvent event) {
-		this.event = event;
-
-		if (request == null) {
-			request = new HttpRequest(event.getConnection());
-			request.setResponseHeaderServer(server.getName());
-		}
-
+		if (state == CLOSED) return;
+		connection = event.getConnection();
 		try {
-			processEvent(event);
+			processData(event.getBuffer());
 		} catch (Throwable ex) {
-			log.error("Processing request failed:", request.getUri() == null ? event.getConnection() : request, ex);
-			request.sendEmptyResponse(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
+			log.error("Processing request failed:", request == null || request.getUri() == null ? connection
+					: request, ex);
+			sendError(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
 		}
 	}
 
-	private void processEvent(ServerDataEvent event) {
-		byte[] data = event.getData();
+	private void processData(ByteBuffer data) {
+		while (data.hasRemaining() && state != CLOSED) {
+			if (state == BODY || state == CHUNK_DATA) {
+				readBody(data);
+				continue;
+			}
+			if (!readLine(data)) return;
+			String s = new String(line, 0, lineLength, HttpRequest.HEADER_CHARSET);
+			lineLength = 0;
+			onLineReceived(s);
+		}
+	}
 
-		if (headerDone) {
-			onBodyData(data);
-			return;
+	/**
+	 * Collects bytes up to the next line feed.
+	 * 
+	 * @return true, if a complete line was read
+	 */
+	private boolean readLine(ByteBuffer data) {
+		while (data.hasRemaining()) {
+			byte b = data.get();
+			if (b == '\n') {
+				if (lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+				return true;
+			}
+			if (lineLength == line.length) {
+				if (lineLength >= MAX_LINE_LENGTH) {
+					sendError(HttpStatusCode.BAD_REQUEST, "Line too long");
+					return false;
+				}
+				byte[] newLine = new byte[line.length * 2];
+				System.arraycopy(line, 0, newLine, 0, lineLength);
+				line = newLine;
+			}
+			line[lineLength++] = b;
 		}
+		return false;
+	}
 
-		String s = new String(data);
+	private void onLineReceived(String line) {
+		switch (state) {
+			case START_LINE:
+				// empty lines before a request are ignored
+				if (line.length() == 0) return;
+				request = new HttpRequest(connection);
+				request.setResponseHeaderServer(server.getName());
+				headerCount = 0;
+				if (parseStartLine(line)) state = HEADERS;
+				return;
+			case HEADERS:
+				if (line.length() == 0) {
+					onHeaderDone();
+					return;
+				}
+				parseHeaderLine(line);
+				return;
+			case CHUNK_SIZE:
+				parseChunkSize(line);
+				return;
+			case CHUNK_END:
+				if (line.length() > 0) {
+					sendError(HttpStatusCode.BAD_REQUEST, "Invalid chunk end");
+					return;
+				}
+				state = CHUNK_SIZE;
+				return;
+			case TRAILERS:
+				if (line.length() == 0) onRequestComplete();
+				return;
+		}
+	}
 
-		int from = 0;
-		int idx = s.indexOf(CRLF);
-		while (idx >= 0) {
-			String line = s.substring(from, idx);
-			onLineReceived(line);
-			if (headerDone) {
-				int len = data.length - idx;
-				byte[] remainingData = new byte[len];
-				System.arraycopy(data, idx, remainingData, 0, len);
-				onBodyData(remainingData);
+	private void onHeaderDone() {
+		String transferEncoding = request.getHeaderTransferEncoding();
+		if (transferEncoding != null) {
+			if (!transferEncoding.equalsIgnoreCase("chunked")) {
+				sendError(HttpStatusCode.NOT_IMPLEMENTED, "Transfer-Encoding " + transferEncoding);
 				return;
 			}
-			from = idx + 2;
-			idx = s.indexOf(CRLF, from);
+			body = new byte[INITIAL_BODY_CAPACITY];
+			bodyLength = 0;
+			state = CHUNK_SIZE;
+			sendContinue();
+			return;
+		}
+
+		Long contentLength;
+		try {
+			contentLength = request.getHeaderContentLength();
+		} catch (NumberFormatException ex) {
+			sendError(HttpStatusCode.BAD_REQUEST, "Invalid Content-Length");
+			return;
+		}
+		if (contentLength == null || contentLength.longValue() == 0) {
+			onRequestComplete();
+			return;
+		}
+		if (contentLength.longValue() < 0 || contentLength.longValue() > MAX_BODY_LENGTH) {
+			sendError(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE, null);
+			return;
 		}
+		// the buffer grows with the received data, an announced length alone does not allocate memory
+		this.contentLength = contentLength.intValue();
+		body = new byte[Math.min(this.contentLength, INITIAL_BODY_CAPACITY)];
+		bodyLength = 0;
+		state = BODY;
+		sendContinue();
 	}
 
-	private void onBodyData(byte[] data) {}
+	private void sendContinue() {
+		String expect = request.getHeaderExpect();
+		if (expect != null && expect.equalsIgnoreCase("100-continue"))
+			connection.sendString(HttpRequest.PROTOCOL_VERSION + " 100 Continue\r\n\r\n");
+	}
 
-	private void onLineReceived(String line) {
-		if (!startLineDone) {
-			parseStartLine(line);
+	private void parseChunkSize(String line) {
+		int idx = line.indexOf(';');
+		String size = (idx >= 0 ? line.substring(0, idx) : line).trim();
+		int chunkSize;
+		try {
+			chunkSize = Integer.parseInt(size, 16);
+		} catch (NumberFormatException ex) {
+			sendError(HttpStatusCode.BAD_REQUEST, "Invalid chunk size");
 			return;
 		}
+		if (chunkSize < 0 || bodyLength + (long) chunkSize > MAX_BODY_LENGTH) {
+			sendError(HttpStatusCode.REQUEST_ENTITY_TOO_LARGE, null);
+			return;
+		}
+		if (chunkSize == 0) {
+			state = TRAILERS;
+			return;
+		}
+		chunkRemaining = chunkSize;
+		state = CHUNK_DATA;
+	}
 
-		if (line.length() == 0) {
-			headerDone = true;
-			onHeaderDone();
+	private void readBody(ByteBuffer data) {
+		if (state == BODY) {
+			int count = Math.min(data.remaining(), contentLength - bodyLength);
+			growBody(bodyLength + count, contentLength);
+			data.get(body, bodyLength, count);
+			bodyLength += count;
+			if (bodyLength == contentLength) onRequestComplete();
 			return;
 		}
 
-		parseHeaderLine(line);
+		int count = Math.min(data.remaining(), chunkRemaining);
+		growBody(bodyLength + count, MAX_BODY_LENGTH);
+		data.get(body, bodyLength, count);
+		bodyLength += count;
+		chunkRemaining -= count;
+		if (chunkRemaining == 0) state = CHUNK_END;
 	}
 
-	private void onHeaderDone() {
-		if (!checkHeaders()) return;
-		server.onHttpRequest(request);
+	private void growBody(int length, int maxLength) {
+		if (length <= body.length) return;
+		byte[] newBody = new byte[Math.min(Math.max(body.length * 2, length), maxLength)];
+		System.arraycopy(body, 0, newBody, 0, bodyLength);
+		body = newBody;
 	}
 
-	private boolean checkHeaders() {
-		if (request.getHeaderContentLenght() != null) {
-			request.sendEmptyResponse(HttpStatusCode.NOT_IMPLEMENTED, "Content-Length");
-			return false;
+	private void onRequestComplete() {
+		HttpRequest completedRequest = request;
+		if (body != null) {
+			if (bodyLength == body.length) {
+				completedRequest.setBody(body);
+			} else {
+				byte[] requestBody = new byte[bodyLength];
+				System.arraycopy(body, 0, requestBody, 0, bodyLength);
+				completedRequest.setBody(requestBody);
+			}
 		}
-		if (request.getHeaderTransferEncoding() != null) {
-			request.sendEmptyResponse(HttpStatusCode.NOT_IMPLEMENTED, "Transfer-Encoding");
-			return false;
+		request = null;
+		body = null;
+		bodyLength = 0;
+		state = START_LINE;
+
+		log.debug(completedRequest);
+		try {
+			server.onHttpRequest(completedRequest);
+		} catch (Throwable ex) {
+			log.error("Processing request failed:", completedRequest, ex);
+			completedRequest.sendError(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
 		}
-		return true;
+		if (completedRequest.isCloseConnection()) state = CLOSED;
+	}
+
+	private void sendError(HttpStatusCode code, String message) {
+		state = CLOSED;
+		if (request == null) {
+			request = new HttpRequest(connection);
+			request.setResponseHeaderServer(server.getName());
+		}
+		request.sendError(code, message);
 	}
 
 	private void parseHeaderLine(String line) {
-		int idx = line.indexOf(":");
+		if (++headerCount > MAX_HEADER_COUNT) {
+			sendError(HttpStatusCode.BAD_REQUEST, "Too many headers");
+			return;
+		}
+		int idx = line.indexOf(':');
 		if (idx <= 0) {
-			request.sendEmptyResponse(HttpStatusCode.BAD_REQUEST, "Invalid header line: " + line);
+			sendError(HttpStatusCode.BAD_REQUEST, "Invalid header line: " + line);
 			return;
 		}
 		String name = line.substring(0, idx);
@@ -127,32 +290,29 @@ public class HttpDataHandler implements DataHandler {
 		request.setHeader(name, value);
 	}
 
-	private void parseStartLine(String line) {
-		if (startLineDone) throw new IllegalStateException("Start line already parsed");
-		startLineDone = true;
-		for (HttpMethod m : HttpMethod.values()) {
-			if (line.startsWith(m.name())) {
-				request.setMethod(m);
-				break;
-			}
-		}
-		if (request.getMethod() == null) {
-			int idx = line.indexOf(' ');
-			String methodName = idx > 0 ? line.substring(0, idx) : line;
-			request.sendEmptyResponse(HttpStatusCode.BAD_REQUEST, "Unknown method: " + methodName);
-			return;
+	/**
+	 * @return true, if the start line is valid
+	 */
+	private boolean parseStartLine(String line) {
+		int methodIdx = line.indexOf(' ');
+		String methodName = methodIdx > 0 ? line.substring(0, methodIdx) : line;
+		HttpMethod method = HttpMethod.get(methodName);
+		if (method == null) {
+			sendError(HttpStatusCode.NOT_IMPLEMENTED, "Unknown method: " + methodName);
+			return false;
 		}
+		request.setMethod(method);
 
-		int pathIdx = request.getMethod().name().length() + 1;
-		if (pathIdx >= line.length()) {
-			request.sendEmptyResponse(HttpStatusCode.BAD_REQUEST, "Invalid start line: " + line);
-			return;
+		int pathIdx = methodIdx + 1;
+		if (methodIdx < 0 || pathIdx >= line.length()) {
+			sendError(HttpStatusCode.BAD_REQUEST, "Invalid start line: " + line);
+			return false;
 		}
 
 		int versionIdx = line.indexOf(' ', pathIdx);
-		if (versionIdx > 0 && versionIdx + 1 >= line.length()) {
-			request.sendEmptyResponse(HttpStatusCode.BAD_REQUEST, "Invalid start line: " + line);
-			return;
+		if (versionIdx == pathIdx || (versionIdx > 0 && versionIdx + 1 >= line.length())) {
+			sendError(HttpStatusCode.BAD_REQUEST, "Invalid start line: " + line);
+			return false;
 		}
 
 		String uri = versionIdx > 0 ? line.substring(pathIdx, versionIdx) : line.substring(pathIdx);
@@ -160,11 +320,12 @@ public class HttpDataHandler implements DataHandler {
 
 		request.setUri(uri);
 		request.setVersion(version);
-
-		log.debug(request);
+		return true;
 	}
 
 	@Override
-	public void onConnectionClosed(TcpConnection connection) {}
+	public void onConnectionClosed(TcpConnection connection) {
+		state = CLOSED;
+	}
 
 }
@@ -15,5 +15,13 @@
 package ilarkesto.io.nio.httpserver;
 
 public enum HttpMethod {
-	GET
+	GET, HEAD, POST, PUT, DELETE, OPTIONS, PATCH;
+
+	public static HttpMethod get(String name) {
+		for (HttpMethod method : values()) {
+			if (method.name().equals(name)) return method;
+		}
+		return null;
+	}
+
 }
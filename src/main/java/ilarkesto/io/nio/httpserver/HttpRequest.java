@@ -18,14 +18,28 @@ import ilarkesto.core.base.Str;
 import ilarkesto.core.logging.Log;
 import ilarkesto.io.nio.tcpserver.TcpConnection;
 
+import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * A request and its response. The response is either sent at once by <code>sendResponse()</code> or
+ * <code>sendEmptyResponse()</code>, or streamed by <code>sendResponseHeaders()</code>, <code>sendChunk()</code> and
+ * <code>finishResponse()</code>. Streamed responses without <code>Content-Length</code> are sent with chunked
+ * transfer encoding to HTTP/1.1 clients. The connection is kept alive unless the client or an error requires
+ * closing it.
+ */
 public class HttpRequest<S> {
 
 	static String SERVER = "Ilarkesto/1.1";
 	static final String PROTOCOL_VERSION = "HTTP/1.1";
 
+	static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] CRLF = new byte[] { 13, 10 };
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(HEADER_CHARSET);
+
 	private static Log log = Log.get(HttpRequest.class);
 
 	private HttpMethod method;
@@ -33,10 +47,14 @@ public class HttpRequest<S> {
 	private String version;
 	private TcpConnection connection;
 	private Map<String, String> headers = new HashMap<String, String>();
+	private byte[] body;
 
 	private String responseStatusLine;
-	private Map<String, String> responseHeaders = new HashMap<String, String>();
+	private Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
 	private boolean responseHeadersSent;
+	private boolean responseChunked;
+	private boolean responseComplete;
+	private boolean closeConnection;
 
 	private HttpSession<S> session;
 
@@ -63,6 +81,12 @@ public class HttpRequest<S> {
 		return Integer.parseInt(value);
 	}
 
+	public Long getHeaderAsLong(String name) {
+		String value = getHeader(name);
+		if (value == null) return null;
+		return Long.parseLong(value.trim());
+	}
+
 	void setMethod(HttpMethod method) {
 		this.method = method;
 	}
@@ -79,6 +103,34 @@ public class HttpRequest<S> {
 		headers.put(formatHeaderName(name), value);
 	}
 
+	void setBody(byte[] body) {
+		this.body = body;
+	}
+
+	/**
+	 * @return the request body or <code>null</code> if the request has none
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	public String getBodyAsString() {
+		if (body == null) return null;
+		return new String(body, UTF8);
+	}
+
+	/**
+	 * @return true, if the client wants to send further requests on this connection
+	 */
+	public boolean isKeepAlive() {
+		String value = getHeader("Connection");
+		if (value != null) {
+			if (value.equalsIgnoreCase("close")) return false;
+			if (value.equalsIgnoreCase("keep-alive")) return true;
+		}
+		return PROTOCOL_VERSION.equals(version);
+	}
+
 	private String formatHeaderName(String name) {
 		return name.toLowerCase();
 	}
@@ -87,10 +139,6 @@ public class HttpRequest<S> {
 		responseHeaders.put(formatHeaderName(name), value);
 	}
 
-	private void closeConnection() {
-		connection.close();
-	}
-
 	public void setResponseStatus(HttpStatusCode code, String message) {
 		String text = code.getText();
 		if (!Str.isBlank(message)) text += ": " + message;
@@ -103,8 +151,37 @@ public class HttpRequest<S> {
 
 	public void sendEmptyResponse(HttpStatusCode code, String statusMessage) {
 		setResponseStatus(code, statusMessage);
+		setResponseHeader("Content-Length", "0");
 		sendResponseHeaders();
-		closeConnection();
+		completeResponse();
+	}
+
+	public void sendResponse(HttpStatusCode code, String contentType, String content) {
+		sendResponse(code, contentType, content.getBytes(UTF8));
+	}
+
+	public void sendResponse(HttpStatusCode code, String contentType, byte[] content) {
+		setResponseStatus(code, null);
+		if (contentType != null) setResponseHeader("Content-Type", contentType);
+		setResponseHeader("Content-Length", String.valueOf(content.length));
+		sendResponseHeaders();
+		if (method != HttpMethod.HEAD && content.length > 0) connection.sendData(content);
+		completeResponse();
+	}
+
+	/**
+	 * Sends an error response and closes the connection afterwards. If the response headers are already sent, the
+	 * connection is just closed.
+	 */
+	void sendError(HttpStatusCode code, String statusMessage) {
+		if (responseComplete) return;
+		closeConnection = true;
+		if (responseHeadersSent) {
+			completeResponse();
+			return;
+		}
+		responseHeaders.remove(formatHeaderName("Transfer-Encoding"));
+		sendEmptyResponse(code, statusMessage);
 	}
 
 	public void sendResponseHeaders() {
@@ -115,18 +192,77 @@ public class HttpRequest<S> {
 			setResponseStatus(HttpStatusCode.INTERNAL_SERVER_ERROR, null);
 			log.error("sendHeaders() responseStatusLine==null");
 		}
-		sendLine(responseStatusLine);
 		completeResponseHeaders();
+		StringBuilder sb = new StringBuilder();
+		sb.append(responseStatusLine).append("\r\n");
 		for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
-			sendLine(header.getKey() + ": " + header.getValue());
+			sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
 		}
-		sendLine("");
+		sb.append("\r\n");
+		connection.sendData(sb.toString().getBytes(HEADER_CHARSET));
 		responseHeadersSent = true;
 		log.debug(responseStatusLine);
 	}
 
+	/**
+	 * Sends a part of a streamed response. The response headers are sent first, if not done yet.
+	 */
+	public void sendChunk(byte[] data) {
+		if (responseComplete) throw new IllegalStateException("Response already complete: " + toString());
+		if (!responseHeadersSent) sendResponseHeaders();
+		if (data.length == 0 || method == HttpMethod.HEAD) return;
+		if (responseChunked) {
+			connection.sendData((Integer.toHexString(data.length) + "\r\n").getBytes(HEADER_CHARSET));
+			connection.sendData(data);
+			connection.sendData(CRLF);
+			return;
+		}
+		connection.sendData(data);
+	}
+
+	public void sendChunk(String s) {
+		sendChunk(s.getBytes(UTF8));
+	}
+
+	/**
+	 * Completes a streamed response.
+	 */
+	public void finishResponse() {
+		if (responseComplete) return;
+		if (!responseHeadersSent) {
+			if (!responseHeaders.containsKey(formatHeaderName("Content-Length"))) setResponseHeader("Content-Length", "0");
+			sendResponseHeaders();
+		}
+		if (responseChunked && method != HttpMethod.HEAD) connection.sendData(LAST_CHUNK);
+		completeResponse();
+	}
+
+	private void completeResponse() {
+		responseComplete = true;
+		if (closeConnection) connection.close();
+	}
+
+	public boolean isResponseComplete() {
+		return responseComplete;
+	}
+
+	boolean isCloseConnection() {
+		return closeConnection;
+	}
+
 	private void completeResponseHeaders() {
 		completeResponseHeader("Server", SERVER);
+		if (!isKeepAlive()) closeConnection = true;
+		if (!responseHeaders.containsKey(formatHeaderName("Content-Length"))
+				&& !responseHeaders.containsKey(formatHeaderName("Transfer-Encoding"))) {
+			if (PROTOCOL_VERSION.equals(version)) {
+				setResponseHeader("Transfer-Encoding", "chunked");
+				responseChunked = true;
+			} else {
+				closeConnection = true;
+			}
+		}
+		if (closeConnection) setResponseHeader("Connection", "close");
 	}
 
 	private void completeResponseHeader(String name, String defaultValue) {
@@ -134,10 +270,6 @@ public class HttpRequest<S> {
 		if (!responseHeaders.containsKey(name)) responseHeaders.put(name, defaultValue);
 	}
 
-	private void sendLine(String line) {
-		connection.sendLineCrLf(line);
-	}
-
 	public HttpMethod getMethod() {
 		return method;
 	}
@@ -153,7 +285,7 @@ public class HttpRequest<S> {
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append(method.name());
+		sb.append(method == null ? "?" : method.name());
 		sb.append(" ");
 		sb.append(uri);
 		sb.append(" ");
@@ -171,8 +303,12 @@ public class HttpRequest<S> {
 		return getHeader("Transfer-Encoding");
 	}
 
-	public Integer getHeaderContentLenght() {
-		return getHeaderAsInteger("Content-Lenght");
+	public Long getHeaderContentLength() {
+		return getHeaderAsLong("Content-Length");
+	}
+
+	public String getHeaderExpect() {
+		return getHeader("Expect");
 	}
 
 	// --- response header fields ---
@@ -22,22 +22,57 @@ import ilarkesto.io.nio.tcpserver.TcpConnection;
 import ilarkesto.io.nio.tcpserver.TcpServer;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class HttpServer<S> {
 
+	public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 60000;
+
 	private TcpServer server;
 	private String name;
 
 	private Set<HttpSession<S>> sessions = new HashSet<HttpSession<S>>();
+	private List<HttpRequestHandler> requestHandlers = new CopyOnWriteArrayList<HttpRequestHandler>();
 
 	public HttpServer(int port, String serverName) {
+		this(port, serverName, 1, 1);
+	}
+
+	/**
+	 * @param workerCount With more than one worker the request handlers have to be thread safe.
+	 */
+	public HttpServer(int port, String serverName, int selectorCount, int workerCount) {
 		this.name = serverName;
-		server = new TcpServer(port, new PerConnectionDataHandler(new LocalHandlerFactory()));
+		server = new TcpServer(port, new PerConnectionDataHandler(new LocalHandlerFactory()), selectorCount,
+				workerCount);
+		server.setIdleTimeout(DEFAULT_KEEP_ALIVE_TIMEOUT);
+	}
+
+	/**
+	 * Kept alive connections without a new request within <code>timeout</code> milliseconds are closed. Has to be
+	 * set before the server is started.
+	 */
+	public void setKeepAliveTimeout(long timeout) {
+		server.setIdleTimeout(timeout);
+	}
+
+	/**
+	 * Adds a handler. Requests are passed to the handlers in the order they were added, until one returns
+	 * <code>true</code>. A handler has to send the response before it returns.
+	 */
+	public void addRequestHandler(HttpRequestHandler handler) {
+		requestHandlers.add(handler);
 	}
 
 	void onHttpRequest(HttpRequest request) {
 		updateSession(request);
+		for (HttpRequestHandler handler : requestHandlers) {
+			if (!handler.onHttpRequest(request)) continue;
+			if (!request.isResponseComplete()) request.finishResponse();
+			return;
+		}
 		request.sendEmptyResponse(HttpStatusCode.NOT_FOUND);
 	}
 
@@ -62,6 +97,18 @@ public class HttpServer<S> {
 		server.start(taskManager);
 	}
 
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop();
+	}
+
+	public int getPort() {
+		return server.getPort();
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.tcpserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers with a fixed size. At most <code>maxPooled</code> direct buffers exist at a time, when all
+ * of them are in use heap buffers are handed out, so slow connections with a lot of pending data can not exhaust
+ * the direct memory. Heap buffers are not pooled.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooledCount = new AtomicInteger();
+	private final AtomicInteger allocatedCount = new AtomicInteger();
+	private final AtomicInteger directCount = new AtomicInteger();
+	private final AtomicInteger heapAllocatedCount = new AtomicInteger();
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a cleared buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer != null) {
+			pooledCount.decrementAndGet();
+			return buffer;
+		}
+		if (directCount.incrementAndGet() <= maxPooled) {
+			allocatedCount.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		directCount.decrementAndGet();
+		heapAllocatedCount.incrementAndGet();
+		return ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers which were not acquired from this pool are ignored.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (!isPooled(buffer)) return;
+		if (pooledCount.incrementAndGet() > maxPooled) {
+			pooledCount.decrementAndGet();
+			directCount.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		buffers.add(buffer);
+	}
+
+	boolean isPooled(ByteBuffer buffer) {
+		return buffer != null && buffer.isDirect() && buffer.capacity() == bufferSize && !buffer.isReadOnly();
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getAllocatedCount() {
+		return allocatedCount.get();
+	}
+
+	public int getHeapAllocatedCount() {
+		return heapAllocatedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool: " + pooledCount.get() + " pooled, " + allocatedCount.get() + " allocated, "
+				+ heapAllocatedCount.get() + " heap buffers";
+	}
+
+}
@@ -21,12 +21,14 @@ public class ChangeRequest {
 	public static final int REGISTER = 1;
 	public static final int CHANGEOPS = 2;
 
+	public TcpConnection connection;
 	public SocketChannel socket;
 	public int type;
 	public int ops;
 
-	public ChangeRequest(SocketChannel socket, int type, int ops) {
-		this.socket = socket;
+	public ChangeRequest(TcpConnection connection, int type, int ops) {
+		this.connection = connection;
+		this.socket = connection.socketChannel;
 		this.type = type;
 		this.ops = ops;
 	}
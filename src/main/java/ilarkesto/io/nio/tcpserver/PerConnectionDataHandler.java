@@ -14,14 +14,14 @@
  */
 package ilarkesto.io.nio.tcpserver;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PerConnectionDataHandler implements DataHandler {
 
 	private HandlerFacotry factory;
 
-	private Map<TcpConnection, DataHandler> handlers = new HashMap<TcpConnection, DataHandler>();
+	private final ConcurrentHashMap<TcpConnection, DataHandler> handlers =
+			new ConcurrentHashMap<TcpConnection, DataHandler>();
 
 	public PerConnectionDataHandler(Class<? extends DataHandler> handlerType) {
 		this(new ReflectionHandlerFactory(handlerType));
@@ -39,21 +39,16 @@ public class PerConnectionDataHandler implements DataHandler {
 
 	@Override
 	public void onConnectionClosed(TcpConnection connection) {
-		synchronized (handlers) {
-			handlers.remove(connection);
-		}
-		getHandler(connection).onConnectionClosed(connection);
+		DataHandler handler = handlers.remove(connection);
+		if (handler != null) handler.onConnectionClosed(connection);
 	}
 
 	private DataHandler getHandler(TcpConnection connection) {
-		synchronized (handlers) {
-			DataHandler handler = handlers.get(connection);
-			if (handler == null) {
-				handler = factory.createHandler(connection);
-				handlers.put(connection, handler);
-			}
-			return handler;
-		}
+		DataHandler handler = handlers.get(connection);
+		if (handler != null) return handler;
+		handler = factory.createHandler(connection);
+		DataHandler existing = handlers.putIfAbsent(connection, handler);
+		return existing == null ? handler : existing;
 	}
 
 	public static interface HandlerFacotry {
@@ -21,218 +21,317 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectableChannel;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector loop which reads from and writes to its connections. The first selector of a server also accepts new
+ * connections and distributes them round robin over all selectors. The <code>TcpConnection</code> is attached to
+ * its <code>SelectionKey</code>.
+ */
 public class SelectorTask extends ALoopTask {
 
 	private Log log = Log.get(getClass());
 
-	private WorkerTask worker;
+	private WorkerPool workers;
+	private BufferPool buffers;
 	private int port;
 
 	private InetAddress hostAddress;
 	private ServerSocketChannel serverChannel;
 	private Selector selector;
+	private SelectorTask[] selectors;
+	private int nextSelector;
+
+	private ByteBuffer[] writeBuffers = new ByteBuffer[16];
 
-	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+	private long idleTimeout;
+	private long nextIdleCheckTime;
 
-	private List changeRequests = new LinkedList();
-	private List<TcpConnection> connections = new LinkedList<TcpConnection>();
+	private ConcurrentLinkedQueue<ChangeRequest> changeRequests = new ConcurrentLinkedQueue<ChangeRequest>();
+	private Set<TcpConnection> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<TcpConnection, Boolean>());
 
-	public SelectorTask(int port, WorkerTask worker) {
+	SelectorTask(int port, WorkerPool workers, BufferPool buffers) {
 		this.port = port;
-		this.worker = worker;
+		this.workers = workers;
+		this.buffers = buffers;
+	}
+
+	void open() throws IOException {
+		selector = SelectorProvider.provider().openSelector();
+	}
+
+	/**
+	 * Binds the server socket, accepted connections are distributed over the given selectors.
+	 */
+	void bind(SelectorTask[] selectors) throws IOException {
+		this.selectors = selectors;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		InetSocketAddress isa = new InetSocketAddress(hostAddress, port);
+		serverChannel.socket().bind(isa);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		port = serverChannel.socket().getLocalPort();
 	}
 
 	@Override
 	protected void beforeLoop() throws InterruptedException {
-		try {
-			selector = initSelector();
-		} catch (IOException ex) {
-			throw new RuntimeException("Initializing selector failed.", ex);
-		}
-		log.info("TCP server started on port", port);
+		if (serverChannel != null) log.info("TCP server started on port", port, "with", selectors.length, "selectors");
 	}
 
 	@Override
 	protected void iteration() throws InterruptedException {
-		synchronized (this.changeRequests) {
-			Iterator changes = this.changeRequests.iterator();
-			while (changes.hasNext()) {
-				ChangeRequest change = (ChangeRequest) changes.next();
-				switch (change.type) {
-					case ChangeRequest.CHANGEOPS:
-						SelectionKey key = change.socket.keyFor(this.selector);
-						if (key.isValid()) {
-							key.interestOps(change.ops);
-						}
-				}
-			}
-			this.changeRequests.clear();
-		}
+		processChangeRequests();
 
 		try {
-			selector.select();
+			selector.select(idleTimeout > 0 ? getIdleCheckInterval() : 0);
 		} catch (IOException ex) {
-			throw new RuntimeException("Selector.select() failed.");
+			throw new RuntimeException("Selector.select() failed.", ex);
 		}
+		if (isAbortRequested()) return;
 
-		Iterator selectedKeys = this.selector.selectedKeys().iterator();
+		Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
 		while (selectedKeys.hasNext()) {
-			SelectionKey key = (SelectionKey) selectedKeys.next();
+			SelectionKey key = selectedKeys.next();
 			selectedKeys.remove();
 
-			if (!key.isValid()) {
-				continue;
-			}
+			if (!key.isValid()) continue;
 
 			if (key.isAcceptable()) {
-				try {
-					accept(key);
-				} catch (IOException ex) {
-					throw new RuntimeException("Accepting connection failed.", ex);
-				}
-			} else if (key.isReadable()) {
-				try {
-					read(key);
-				} catch (IOException ex) {
-					throw new RuntimeException("Reading failed.", ex);
-				}
-			} else if (key.isWritable()) {
-				try {
-					this.write(key);
-				} catch (IOException ex) {
-					throw new RuntimeException("Writing failed.", ex);
-				}
+				accept();
+				continue;
 			}
+			try {
+				if (key.isReadable()) read(key);
+				if (key.isValid() && key.isWritable()) write(key);
+			} catch (CancelledKeyException ex) {
+				// connection closed by stop()
+			}
+		}
+
+		if (idleTimeout > 0 && System.currentTimeMillis() >= nextIdleCheckTime) closeIdleConnections();
+	}
+
+	/**
+	 * Closes the connections which neither received nor sent data within the idle timeout. Connections with events
+	 * in process or with pending data are not idle.
+	 */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		nextIdleCheckTime = now + getIdleCheckInterval();
+		for (TcpConnection connection : new ArrayList<TcpConnection>(connections)) {
+			if (connection.scheduled.get() || !connection.pendingData.isEmpty()) continue;
+			if (now - connection.lastActivityTime < idleTimeout) continue;
+			log.debug("Closing idle connection:", connection);
+			closeConnection(connection);
 		}
 	}
 
+	private long getIdleCheckInterval() {
+		return Math.max(idleTimeout / 2, 1);
+	}
+
 	@Override
 	protected void onError(Throwable ex) throws Throwable {
+		if (isAbortRequested()) return;
 		throw ex;
 	}
 
-	void sendChangeRequestForWrite(SocketChannel socket) {
-		synchronized (changeRequests) {
-			changeRequests.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
+	@Override
+	protected boolean isRunInTransactionEnabled() {
+		return false;
+	}
+
+	private void processChangeRequests() {
+		ChangeRequest change;
+		while ((change = changeRequests.poll()) != null) {
+			switch (change.type) {
+				case ChangeRequest.REGISTER:
+					register(change.connection, change.ops);
+					break;
+				case ChangeRequest.CHANGEOPS:
+					SelectionKey key = change.connection.key;
+					if (key != null && key.isValid()) key.interestOps(change.ops);
+					break;
+			}
 		}
 	}
 
-	void wakeupSelector() {
+	void requestWrite(TcpConnection connection) {
+		changeRequests.add(new ChangeRequest(connection, ChangeRequest.CHANGEOPS, SelectionKey.OP_READ
+				| SelectionKey.OP_WRITE));
 		selector.wakeup();
 	}
 
-	private void write(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		TcpConnection connection = getConnectionByChannel(socketChannel);
-		// Write until there's not more data ...
+	/**
+	 * Writes the pending data with gathering writes, so that small pieces like response headers and body leave in
+	 * one packet.
+	 */
+	private void write(SelectionKey key) {
+		TcpConnection connection = (TcpConnection) key.attachment();
 		while (!connection.pendingData.isEmpty()) {
-			ByteBuffer data = connection.pendingData.peek();
-			if (data == TcpConnection.CLOSE_CONNECTION) {
+			int count = 0;
+			for (ByteBuffer data : connection.pendingData) {
+				if (data == TcpConnection.CLOSE_CONNECTION || count == writeBuffers.length) break;
+				writeBuffers[count++] = data;
+			}
+			if (count == 0) {
 				log.debug("Closing client connection:", connection);
-				closeConnectionInternal(connection);
+				closeConnection(connection);
 				return;
 			}
-			socketChannel.write(data);
-			if (data.remaining() > 0) {
-				// ... or the socket's buffer fills up
-				break;
+			try {
+				connection.socketChannel.write(writeBuffers, 0, count);
+			} catch (IOException ex) {
+				log.debug("Writing failed, closing connection:", connection, ex);
+				closeConnection(connection);
+				return;
+			} finally {
+				Arrays.fill(writeBuffers, 0, count, null);
 			}
-			connection.pendingData.remove(data);
-		}
-		if (connection.pendingData.isEmpty()) {
-			// We wrote away all data, so we're no longer interested
-			// in writing on this socket. Switch back to waiting for
-			// data.
-			key.interestOps(SelectionKey.OP_READ);
+			connection.lastActivityTime = System.currentTimeMillis();
+			ByteBuffer data;
+			while ((data = connection.pendingData.peek()) != null && data != TcpConnection.CLOSE_CONNECTION
+					&& !data.hasRemaining()) {
+				connection.pendingData.poll();
+				buffers.release(data);
+			}
+			// socket buffer is full, stay interested in writing
+			if (data != null && data.hasRemaining()) return;
 		}
-	}
 
-	private void read(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-		TcpConnection connection = getConnectionByChannel(socketChannel);
+		// all data written, switch back to waiting for data
+		key.interestOps(SelectionKey.OP_READ);
+		connection.writeRequested.set(false);
+		if (!connection.pendingData.isEmpty() && connection.writeRequested.compareAndSet(false, true))
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
 
-		this.readBuffer.clear();
+	private void read(SelectionKey key) {
+		TcpConnection connection = (TcpConnection) key.attachment();
+		ByteBuffer buffer = buffers.acquire();
 
 		int numRead;
 		try {
-			numRead = socketChannel.read(this.readBuffer);
+			numRead = connection.socketChannel.read(buffer);
 		} catch (IOException e) {
+			buffers.release(buffer);
 			log.debug("Client forcibly closed connection:", connection);
-			closeConnection(key);
+			closeConnection(connection);
 			return;
 		}
 
 		if (numRead == -1) {
+			buffers.release(buffer);
 			log.debug("Client closed connection:", connection);
-			closeConnection(key);
+			closeConnection(connection);
+			return;
+		}
+		if (numRead == 0) {
+			buffers.release(buffer);
 			return;
 		}
 
-		worker.processData(connection, readBuffer.array(), numRead);
+		connection.lastActivityTime = System.currentTimeMillis();
+		buffer.flip();
+		workers.dispatch(new ServerDataEvent(connection, buffer));
 	}
 
-	private TcpConnection getConnectionByKey(SelectionKey key) {
-		return getConnectionByChannel(key.channel());
+	private void closeConnection(TcpConnection connection) {
+		if (!connections.remove(connection)) return;
+		connection.closed = true;
+		if (connection.key != null) connection.key.cancel();
+		try {
+			connection.socketChannel.close();
+		} catch (IOException ex) {
+			// nop
+		}
+		// after the channel is closed, so that data enqueued concurrently is released by the sender
+		connection.releasePendingData();
+		workers.dispatch(new ServerDataEvent(connection, (ByteBuffer) null));
 	}
 
-	private TcpConnection getConnectionByChannel(SelectableChannel channel) {
-		synchronized (connections) {
-			for (TcpConnection connection : connections) {
-				if (connection.socketChannel == channel) return connection;
-			}
+	private void accept() {
+		SocketChannel socketChannel;
+		try {
+			socketChannel = serverChannel.accept();
+			if (socketChannel == null) return;
+			socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+		} catch (IOException ex) {
+			log.error("Accepting connection failed:", ex);
+			return;
 		}
-		throw new IllegalStateException("No TcpConnection found for channel " + channel);
-	}
 
-	private void closeConnection(SelectionKey key) {
-		key.cancel();
-		closeConnectionInternal(getConnectionByKey(key));
-	}
+		SelectorTask target = selectors[nextSelector];
+		nextSelector = (nextSelector + 1) % selectors.length;
+		TcpConnection connection = new TcpConnection(target, socketChannel);
+		log.debug("Client connected:", connection);
 
-	private void closeConnectionInternal(TcpConnection connection) {
-		synchronized (connections) {
-			connections.remove(connection);
+		if (target == this) {
+			register(connection, SelectionKey.OP_READ);
+			return;
 		}
+		target.changeRequests.add(new ChangeRequest(connection, ChangeRequest.REGISTER, SelectionKey.OP_READ));
+		target.selector.wakeup();
+	}
+
+	private void register(TcpConnection connection, int ops) {
 		try {
-			connection.socketChannel.close();
+			connection.key = connection.socketChannel.register(selector, ops, connection);
 		} catch (IOException ex) {
-			// nop
+			log.error("Registering connection failed:", connection, ex);
+			try {
+				connection.socketChannel.close();
+			} catch (IOException ex1) {
+				// nop
+			}
+			return;
 		}
-		worker.processData(connection, null, -1);
+		connections.add(connection);
 	}
 
-	private void accept(SelectionKey key) throws IOException {
-		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-		SocketChannel socketChannel = serverSocketChannel.accept();
-		TcpConnection tcpConnection = new TcpConnection(this, socketChannel);
-		synchronized (connections) {
-			connections.add(tcpConnection);
+	/**
+	 * Closes the server socket, all connections and the selector. Called when the server is stopped.
+	 */
+	void close() {
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException ex) {
+				// nop
+			}
 		}
+		for (TcpConnection connection : new ArrayList<TcpConnection>(connections)) {
+			closeConnection(connection);
+		}
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				// nop
+			}
+		}
+	}
 
-		log.debug("Client connected:", tcpConnection);
-
-		socketChannel.configureBlocking(false);
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
+	void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
 	}
 
-	private Selector initSelector() throws IOException {
-		Selector socketSelector = SelectorProvider.provider().openSelector();
-		serverChannel = ServerSocketChannel.open();
-		serverChannel.configureBlocking(false);
-		InetSocketAddress isa = new InetSocketAddress(hostAddress, port);
-		serverChannel.socket().bind(isa);
-		serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
-		return socketSelector;
+	BufferPool getBufferPool() {
+		return buffers;
 	}
 
 	public int getPort() {
@@ -14,14 +14,25 @@
  */
 package ilarkesto.io.nio.tcpserver;
 
+import java.nio.ByteBuffer;
+
 public class ServerDataEvent {
 
 	private TcpConnection connection;
 	private byte[] data;
+	private ByteBuffer buffer;
+	private boolean connectionClosed;
 
 	public ServerDataEvent(TcpConnection connection, byte[] data) {
 		this.connection = connection;
 		this.data = data;
+		this.connectionClosed = data == null;
+	}
+
+	ServerDataEvent(TcpConnection connection, ByteBuffer buffer) {
+		this.connection = connection;
+		this.buffer = buffer;
+		this.connectionClosed = buffer == null;
 	}
 
 	public TcpConnection getConnection() {
@@ -29,7 +40,29 @@ public class ServerDataEvent {
 	}
 
 	public byte[] getData() {
+		if (data == null && buffer != null) {
+			data = new byte[buffer.remaining()];
+			buffer.duplicate().get(data);
+		}
 		return data;
 	}
 
+	/**
+	 * @return the received data without copying it. Only valid until <code>onDataReceived()</code> returns.
+	 */
+	public ByteBuffer getBuffer() {
+		if (buffer == null) return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	boolean isConnectionClosed() {
+		return connectionClosed;
+	}
+
+	void release(BufferPool pool) {
+		if (buffer == null) return;
+		pool.release(buffer);
+		buffer = null;
+	}
+
 }
@@ -14,23 +14,35 @@
  */
 package ilarkesto.io.nio.tcpserver;
 
+import ilarkesto.core.logging.Log;
+
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TcpConnection {
 
+	private static final Log log = Log.get(TcpConnection.class);
+
 	static final ByteBuffer CLOSE_CONNECTION = ByteBuffer.wrap(new byte[0]);
 
 	SelectorTask server;
 	SocketChannel socketChannel;
+	SelectionKey key;
 	String remoteHost;
 	int remotePort;
 	int localPort;
 
 	ConcurrentLinkedQueue<ByteBuffer> pendingData = new ConcurrentLinkedQueue<ByteBuffer>();
-	boolean closed;
+	final AtomicBoolean writeRequested = new AtomicBoolean();
+	volatile boolean closed;
+	volatile long lastActivityTime = System.currentTimeMillis();
+
+	final ConcurrentLinkedQueue<ServerDataEvent> events = new ConcurrentLinkedQueue<ServerDataEvent>();
+	final AtomicBoolean scheduled = new AtomicBoolean();
 
 	TcpConnection(SelectorTask server, SocketChannel socketChannel) {
 		this.server = server;
@@ -41,11 +53,59 @@ public class TcpConnection {
 		localPort = socket.getLocalPort();
 	}
 
+	/**
+	 * Data sent after the connection was closed is discarded.
+	 */
 	public void sendData(byte[] data) {
-		if (closed) throw new IllegalStateException("Connection already closed: " + toString());
-		server.sendChangeRequestForWrite(socketChannel);
+		if (isClosedForSending()) return;
 		pendingData.add(data == null ? CLOSE_CONNECTION : ByteBuffer.wrap(data));
-		server.wakeupSelector();
+		requestWrite();
+	}
+
+	/**
+	 * Copies the remaining bytes of the buffer into pooled buffers and sends them. Data sent after the connection
+	 * was closed is discarded.
+	 */
+	public void sendData(ByteBuffer data) {
+		if (isClosedForSending()) return;
+		BufferPool buffers = server.getBufferPool();
+		while (data.hasRemaining()) {
+			ByteBuffer buffer = buffers.acquire();
+			if (data.remaining() <= buffer.remaining()) {
+				buffer.put(data);
+			} else {
+				ByteBuffer chunk = data.duplicate();
+				chunk.limit(chunk.position() + buffer.remaining());
+				buffer.put(chunk);
+				data.position(chunk.position());
+			}
+			buffer.flip();
+			pendingData.add(buffer);
+		}
+		requestWrite();
+	}
+
+	private boolean isClosedForSending() {
+		if (!closed) return false;
+		log.debug("Connection already closed, data discarded:", this);
+		return true;
+	}
+
+	private void requestWrite() {
+		// the selector may have closed the connection and released its pending data meanwhile
+		if (!socketChannel.isOpen()) {
+			releasePendingData();
+			return;
+		}
+		if (writeRequested.compareAndSet(false, true)) server.requestWrite(this);
+	}
+
+	void releasePendingData() {
+		BufferPool buffers = server.getBufferPool();
+		ByteBuffer data;
+		while ((data = pendingData.poll()) != null) {
+			buffers.release(data);
+		}
 	}
 
 	public void sendString(String s) {
@@ -58,7 +118,7 @@ public class TcpConnection {
 	}
 
 	public void close() {
-		sendData(null);
+		sendData((byte[]) null);
 		closed = true;
 	}
 
@@ -14,36 +14,121 @@
  */
 package ilarkesto.io.nio.tcpserver;
 
+import ilarkesto.concurrent.ATask;
 import ilarkesto.concurrent.TaskManager;
 
+import java.io.IOException;
+
 // http://rox-xmlrpc.sourceforge.net/niotut/
 public class TcpServer {
 
-	private SelectorTask selectorTask;
-	private WorkerTask workerTask;
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
+	private BufferPool bufferPool;
+	private WorkerPool workerPool;
+	private SelectorTask[] selectorTasks;
+	private WorkerTask[] workerTasks;
 
 	public TcpServer(int port, DataHandler dataHandler) {
-		workerTask = new WorkerTask(dataHandler);
-		selectorTask = new SelectorTask(port, workerTask);
+		this(port, dataHandler, 1, 1);
+	}
+
+	/**
+	 * @param selectorCount Number of threads which accept, read and write.
+	 * @param workerCount Number of threads which call the <code>DataHandler</code>. With more than one worker the
+	 *            handler has to be thread safe. The data of a connection is always processed in order.
+	 */
+	public TcpServer(int port, DataHandler dataHandler, int selectorCount, int workerCount) {
+		bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+		workerPool = new WorkerPool(dataHandler, bufferPool);
+		selectorTasks = new SelectorTask[selectorCount];
+		for (int i = 0; i < selectorCount; i++) {
+			selectorTasks[i] = new SelectorTask(port, workerPool, bufferPool);
+		}
+		workerTasks = new WorkerTask[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workerTasks[i] = new WorkerTask(workerPool);
+		}
+	}
+
+	/**
+	 * Connections which neither receive nor send data for <code>idleTimeout</code> milliseconds are closed, unless
+	 * their data is being processed. <code>0</code> (the default) keeps idle connections open. Has to be set before
+	 * the server is started.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		for (SelectorTask selectorTask : selectorTasks) {
+			selectorTask.setIdleTimeout(idleTimeout);
+		}
 	}
 
 	public void start(TaskManager taskManager) {
-		taskManager.start(workerTask);
-		taskManager.start(selectorTask);
+		open();
+		for (WorkerTask workerTask : workerTasks) {
+			taskManager.start(workerTask);
+		}
+		for (SelectorTask selectorTask : selectorTasks) {
+			taskManager.start(selectorTask);
+		}
+	}
+
+	/**
+	 * Starts the server in own daemon threads.
+	 */
+	public void start() {
+		open();
+		for (WorkerTask workerTask : workerTasks) {
+			startThread(workerTask);
+		}
+		for (SelectorTask selectorTask : selectorTasks) {
+			startThread(selectorTask);
+		}
+	}
+
+	private void startThread(ATask task) {
+		Thread thread = task.createThread();
+		thread.setName(toString() + ":" + task);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void open() {
+		try {
+			for (SelectorTask selectorTask : selectorTasks) {
+				selectorTask.open();
+			}
+			selectorTasks[0].bind(selectorTasks);
+		} catch (IOException ex) {
+			for (SelectorTask selectorTask : selectorTasks) {
+				selectorTask.close();
+			}
+			throw new RuntimeException("Starting TCP server failed: " + getPort(), ex);
+		}
 	}
 
 	public void stop() {
-		selectorTask.abort();
-		workerTask.abort();
+		for (SelectorTask selectorTask : selectorTasks) {
+			selectorTask.abort();
+			selectorTask.close();
+		}
+		for (WorkerTask workerTask : workerTasks) {
+			workerTask.abort();
+		}
+		workerPool.wakeup(workerTasks.length);
 	}
 
 	public int getPort() {
-		return selectorTask.getPort();
+		return selectorTasks[0].getPort();
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
 	}
 
 	@Override
 	public String toString() {
-		return getClass().getSimpleName() + ":" + selectorTask.getPort();
+		return getClass().getSimpleName() + ":" + getPort();
 	}
 
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.tcpserver;
+
+import ilarkesto.core.logging.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands received data from the selectors to the workers. Every connection has its own event queue and is scheduled
+ * to at most one worker at a time, so the events of a connection are processed in order while different
+ * connections are processed in parallel.
+ */
+class WorkerPool {
+
+	private static final Log log = Log.get(WorkerPool.class);
+
+	private static final int MAX_EVENTS_PER_TURN = 16;
+
+	private DataHandler handler;
+	private BufferPool buffers;
+
+	private ConcurrentLinkedQueue<TcpConnection> readyConnections = new ConcurrentLinkedQueue<TcpConnection>();
+	private Semaphore readyCount = new Semaphore(0);
+
+	WorkerPool(DataHandler handler, BufferPool buffers) {
+		this.handler = handler;
+		this.buffers = buffers;
+	}
+
+	void dispatch(ServerDataEvent event) {
+		TcpConnection connection = event.getConnection();
+		connection.events.add(event);
+		if (connection.scheduled.compareAndSet(false, true)) schedule(connection);
+	}
+
+	private void schedule(TcpConnection connection) {
+		readyConnections.add(connection);
+		readyCount.release();
+	}
+
+	/**
+	 * Waits for a connection with events and processes some of them.
+	 */
+	void processNextConnection() throws InterruptedException {
+		readyCount.acquire();
+		TcpConnection connection = readyConnections.poll();
+		if (connection == null) return;
+
+		for (int i = 0; i < MAX_EVENTS_PER_TURN; i++) {
+			ServerDataEvent event = connection.events.poll();
+			if (event == null) break;
+			process(event);
+		}
+
+		if (!connection.events.isEmpty()) {
+			schedule(connection);
+			return;
+		}
+		connection.scheduled.set(false);
+		if (!connection.events.isEmpty() && connection.scheduled.compareAndSet(false, true)) schedule(connection);
+	}
+
+	private void process(ServerDataEvent event) {
+		try {
+			if (event.isConnectionClosed()) {
+				handler.onConnectionClosed(event.getConnection());
+			} else {
+				handler.onDataReceived(event);
+			}
+		} catch (Throwable ex) {
+			log.error("Processing data failed:", event.getConnection(), ex);
+		} finally {
+			event.release(buffers);
+		}
+	}
+
+	void wakeup(int workerCount) {
+		readyCount.release(workerCount);
+	}
+
+}
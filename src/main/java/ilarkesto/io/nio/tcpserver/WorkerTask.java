@@ -16,50 +16,23 @@ package ilarkesto.io.nio.tcpserver;
 
 import ilarkesto.concurrent.ALoopTask;
 
-import java.util.LinkedList;
-import java.util.List;
-
 public class WorkerTask extends ALoopTask {
 
-	private DataHandler handler;
-
-	private List<ServerDataEvent> queue = new LinkedList<ServerDataEvent>();
+	private WorkerPool pool;
 
-	public WorkerTask(DataHandler handler) {
+	WorkerTask(WorkerPool pool) {
 		super();
-		this.handler = handler;
-	}
-
-	public void processData(TcpConnection connection, byte[] data, int count) {
-		byte[] dataCopy;
-		if (data == null) {
-			dataCopy = null;
-		} else {
-			dataCopy = new byte[count];
-			System.arraycopy(data, 0, dataCopy, 0, count);
-		}
-		synchronized (queue) {
-			queue.add(new ServerDataEvent(connection, dataCopy));
-			queue.notify();
-		}
+		this.pool = pool;
 	}
 
 	@Override
 	protected void iteration() throws InterruptedException {
-		ServerDataEvent dataEvent;
-
-		synchronized (queue) {
-			while (queue.isEmpty()) {
-				queue.wait();
-			}
-			dataEvent = queue.remove(0);
-		}
+		pool.processNextConnection();
+	}
 
-		if (dataEvent.getData() == null) {
-			handler.onConnectionClosed(dataEvent.getConnection());
-		} else {
-			handler.onDataReceived(dataEvent);
-		}
+	@Override
+	protected boolean isRunInTransactionEnabled() {
+		return false;
 	}
 
 }
@@ -173,27 +173,6 @@ public class Json {
 		return value.toString();
 	}
 
-	static int getFirstNonWhitespaceIndex(String s, int offset) {
-		int len = s.length();
-		for (int i = offset; i < len; i++) {
-			if (!isWhitespace(s.charAt(i))) return i;
-		}
-		return -1;
-	}
-
-	static int getFirstQuoting(String s, int offset) {
-		int len = s.length();
-		for (int i = offset; i < len; i++) {
-			char ch = s.charAt(i);
-			if (ch == '\\') {
-				i++;
-				continue;
-			}
-			if (ch == '"') return i;
-		}
-		return -1;
-	}
-
 	public static interface JsonWrapper {
 
 		JsonObject getJson();
@@ -14,6 +14,7 @@
  */
 package ilarkesto.json;
 
+import ilarkesto.base.ClassMetadata;
 import ilarkesto.base.Reflect;
 import ilarkesto.core.logging.Log;
 import ilarkesto.core.money.Money;
@@ -113,7 +114,7 @@ public class JsonMapper {
 		out.print('{');
 		indent++;
 		boolean first = true;
-		for (Field field : Reflect.getSerializableFields(object)) {
+		for (Field field : ClassMetadata.get(object.getClass()).getFields(false, true, false)) {
 			if (first) {
 				first = false;
 			} else {
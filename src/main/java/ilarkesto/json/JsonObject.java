@@ -1,9 +1,9 @@
 package ilarkesto.json;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -11,9 +11,12 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
@@ -41,18 +44,17 @@ public class JsonObject {
 	}
 
 	private final Map<String, Object> elements = new LinkedHashMap<String, Object>();
-	private int idx = -1;
 	private JsonObject parent;
 	private File file;
 
 	public JsonObject() {}
 
-	private JsonObject(String json, int offset) {
-		parse(json, offset);
+	JsonObject(JsonObject parent) {
+		this.parent = parent;
 	}
 
 	public JsonObject(String json) {
-		this(json, 0);
+		new JsonReader(json).readObject(this);
 	}
 
 	public JsonObject(Map<?, ?> map) {
@@ -73,7 +75,15 @@ public class JsonObject {
 
 	public static JsonObject parse(String json) {
 		if (json == null || json.length() == 0) return new JsonObject();
-		return new JsonObject(json, 0);
+		return new JsonReader(json).readObject();
+	}
+
+	public static JsonObject parse(Reader in) {
+		return new JsonReader(in).readObject();
+	}
+
+	public static JsonObject parse(ByteBuffer bytes, Charset charset) {
+		return new JsonReader(bytes, charset).readObject();
 	}
 
 	public File getFile() {
@@ -95,7 +105,7 @@ public class JsonObject {
 		}
 		JsonObject object;
 		try {
-			object = parse(load(file));
+			object = read(file);
 		} catch (ParseException ex) {
 			if (!createEmptyIfNoFile) throw ex;
 			object = new JsonObject();
@@ -112,14 +122,14 @@ public class JsonObject {
 			if (createemptyIfNoResource) return new JsonObject();
 			return null;
 		}
-		return parse(load(is));
+		return read(is);
 	}
 
 	public static JsonObject loadFromUrl(String url) {
 		InputStream is = null;
 		try {
 			is = new URL(url).openStream();
-			return parse(load(is));
+			return read(is);
 		} catch (Exception ex) {
 			throw new RuntimeException(ex);
 		} finally {
@@ -130,7 +140,7 @@ public class JsonObject {
 	}
 
 	public static JsonObject loadFromStream(InputStream is) {
-		return parse(load(is));
+		return read(is);
 	}
 
 	public void assignFile(File file) {
@@ -324,6 +334,10 @@ public class JsonObject {
 
 	// --- manipulating ---
 
+	void putParsed(String name, Object value) {
+		elements.put(name, value);
+	}
+
 	/**
 	 * @return true, if property did not exist before
 	 */
@@ -442,114 +456,6 @@ public class JsonObject {
 		return toString(-1);
 	}
 
-	// --- parsing ---
-
-	private int parse(String json, int offset) {
-		if (json.length() < 2) throw new ParseException("Empty string is invalid", json, 0);
-		idx = offset;
-		parseWhitespace(json, "'{'");
-		if (json.charAt(idx) != '{') throw new ParseException("Expecting '{'", json, idx);
-		idx++;
-		parseWhitespace(json, "elements or '}'");
-		boolean first = true;
-		while (json.charAt(idx) != '}') {
-			if (first) {
-				first = false;
-			} else {
-				if (json.charAt(idx) == ',') {
-					idx++;
-				} else {
-					throw new ParseException("Expecting ','", json, idx);
-				}
-			}
-			parseElement(json);
-			parseWhitespace(json, "',' or '}'");
-		}
-		idx++;
-		return idx;
-	}
-
-	private void parseWhitespace(String json, String expectation) {
-		idx = Json.getFirstNonWhitespaceIndex(json, idx);
-		if (idx < 0) throw new ParseException("Expecting " + expectation, json, idx);
-	}
-
-	private void parseElement(String json) {
-		parseWhitespace(json, "'\"'");
-		if (json.charAt(idx) == '}') return;
-		if (json.charAt(idx) != '"') throw new ParseException("Expecting '\"'", json, idx);
-		idx++;
-		int nameEndIdx = Json.getFirstQuoting(json, idx);
-		if (nameEndIdx < 0) throw new ParseException("Unclosed element name", json, idx);
-		String name = json.substring(idx, nameEndIdx);
-		idx = nameEndIdx + 1;
-		parseWhitespace(json, "':'");
-		if (json.charAt(idx) != ':')
-			throw new ParseException("Expecting ':' after element name \"" + name + "\"", json, idx);
-		idx++;
-		parseWhitespace(json, "element value");
-		Object value = parseValue(json);
-		put(name, value);
-	}
-
-	private Object parseValue(String json) {
-		if (json.startsWith("null", idx)) {
-			idx += 4;
-			return null;
-		} else if (json.startsWith("true", idx)) {
-			idx += 4;
-			return true;
-		} else if (json.startsWith("false", idx)) {
-			idx += 5;
-			return false;
-		} else if (json.charAt(idx) == '"') {
-			idx++;
-			int valueEndIdx = Json.getFirstQuoting(json, idx);
-			if (valueEndIdx < 0) throw new ParseException("Unclosed element string value", json, idx);
-			String value = json.substring(idx, valueEndIdx);
-			idx = valueEndIdx + 1;
-			return Json.parseString(value);
-		} else if (json.charAt(idx) == '{') {
-			JsonObject value = new JsonObject(json, idx);
-			idx = value.idx;
-			return value;
-		} else if (json.charAt(idx) == '[') {
-			List list = new ArrayList();
-			idx++;
-			while (true) {
-				parseWhitespace(json, "array");
-				if (json.charAt(idx) == ']') break;
-				Object value = parseValue(json);
-				list.add(value);
-				parseWhitespace(json, "array");
-				if (json.charAt(idx) == ']') break;
-				if (json.charAt(idx) != ',') throw new ParseException("Expecting array separator ','", json, idx);
-				idx++;
-			}
-			idx++;
-			return list;
-		} else {
-			int len = json.length();
-			int endIdx = idx;
-			while (endIdx < len) {
-				endIdx++;
-				char endCh = json.charAt(endIdx);
-				if (endCh == ',' || endCh == '}' || endCh == ']' || Json.isWhitespace(endCh)) {
-					break;
-				}
-			}
-			String sNumber = json.substring(idx, endIdx);
-			Number number;
-			try {
-				number = Json.parseNumber(sNumber);
-			} catch (NumberFormatException ex) {
-				throw new ParseException("Expecting number in <" + sNumber + ">", json, idx);
-			}
-			idx = endIdx;
-			return number;
-		}
-	}
-
 	// --- IO ---
 
 	public void write(OutputStream out, boolean formated) {
@@ -587,31 +493,22 @@ public class JsonObject {
 		out.flush();
 	}
 
-	private static String load(File file) {
-		if (!file.exists()) return null;
+	private static JsonObject read(File file) {
 		try {
-			return load(new FileInputStream(file));
-		} catch (Exception ex) {
-			throw new RuntimeException("Loading file failed: +" + file.getAbsolutePath(), ex);
+			return read(new FileInputStream(file));
+		} catch (FileNotFoundException ex) {
+			throw new RuntimeException("Loading file failed: " + file.getAbsolutePath(), ex);
 		}
 	}
 
-	private static String load(InputStream is) {
-		BufferedReader in = null;
+	private static JsonObject read(InputStream is) {
+		Reader in = new InputStreamReader(is);
 		try {
-			in = new BufferedReader(new InputStreamReader(is));
-			StringBuilder sb = new StringBuilder();
-			String line = null;
-			while ((line = in.readLine()) != null) {
-				sb.append(line).append('\n');
-			}
-			return sb.toString();
-		} catch (Exception ex) {
-			throw new RuntimeException("Loading JSON failed", ex);
+			return parse(in);
 		} finally {
-			if (in != null) try {
+			try {
 				in.close();
-			} catch (Exception e) {}
+			} catch (IOException ex) {}
 		}
 	}
 
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses <code>JsonObject</code> trees from a stream. The input is read in chunks into a reused buffer, strings
+ * and numbers are decoded directly from the buffer. Property names are interned per reader, so objects in large
+ * arrays share their name strings.
+ */
+public class JsonReader {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int NAME_TABLE_SIZE = 512;
+
+	private Reader in;
+	private char[] buffer;
+	private int pos;
+	private int limit;
+	private long consumed;
+	private String source;
+
+	private final StringBuilder sb = new StringBuilder();
+	private final String[] names = new String[NAME_TABLE_SIZE];
+
+	public JsonReader(Reader in) {
+		this.in = in;
+		this.buffer = new char[BUFFER_SIZE];
+	}
+
+	public JsonReader(ByteBuffer bytes, Charset charset) {
+		CharBuffer chars = charset.decode(bytes);
+		if (chars.hasArray()) {
+			buffer = chars.array();
+			pos = chars.arrayOffset() + chars.position();
+			limit = chars.arrayOffset() + chars.limit();
+		} else {
+			buffer = new char[chars.remaining()];
+			chars.get(buffer);
+			limit = buffer.length;
+		}
+	}
+
+	public JsonReader(String json) {
+		this.source = json;
+		this.buffer = json.toCharArray();
+		this.limit = buffer.length;
+	}
+
+	/**
+	 * @return the parsed object, an empty object if the input is empty
+	 */
+	public JsonObject readObject() {
+		JsonObject object = new JsonObject();
+		if (!ensureAvailable()) return object;
+		readObject(object);
+		return object;
+	}
+
+	void readObject(JsonObject object) {
+		skipWhitespace("'{'");
+		if (buffer[pos] != '{') throw error("Expecting '{'");
+		pos++;
+		readObjectBody(object);
+	}
+
+	private void readObjectBody(JsonObject object) {
+		boolean first = true;
+		while (true) {
+			skipWhitespace("elements or '}'");
+			char ch = buffer[pos];
+			if (ch == '}') {
+				pos++;
+				return;
+			}
+			if (first) {
+				first = false;
+			} else {
+				if (ch != ',') throw error("Expecting ','");
+				pos++;
+				skipWhitespace("'\"'");
+				if (buffer[pos] == '}') {
+					pos++;
+					return;
+				}
+			}
+			if (buffer[pos] != '"') throw error("Expecting '\"'");
+			pos++;
+			String name = readString(true);
+			skipWhitespace("':'");
+			if (buffer[pos] != ':') throw error("Expecting ':' after element name \"" + name + "\"");
+			pos++;
+			skipWhitespace("element value");
+			object.putParsed(name, readValue(object));
+		}
+	}
+
+	private Object readValue(JsonObject owner) {
+		char ch = buffer[pos];
+		switch (ch) {
+			case '"':
+				pos++;
+				return readString(false);
+			case '{':
+				pos++;
+				JsonObject object = new JsonObject(owner);
+				readObjectBody(object);
+				return object;
+			case '[':
+				pos++;
+				return readArray(owner);
+			case 'n':
+				readLiteral("null");
+				return null;
+			case 't':
+				readLiteral("true");
+				return Boolean.TRUE;
+			case 'f':
+				readLiteral("false");
+				return Boolean.FALSE;
+			default:
+				return readNumber();
+		}
+	}
+
+	private List readArray(JsonObject owner) {
+		List list = new ArrayList();
+		while (true) {
+			skipWhitespace("array");
+			if (buffer[pos] == ']') break;
+			list.add(readValue(owner));
+			skipWhitespace("array");
+			if (buffer[pos] == ']') break;
+			if (buffer[pos] != ',') throw error("Expecting array separator ','");
+			pos++;
+		}
+		pos++;
+		return list;
+	}
+
+	private void readLiteral(String literal) {
+		for (int i = 0; i < literal.length(); i++) {
+			if (!ensureAvailable() || buffer[pos] != literal.charAt(i)) throw error("Expecting " + literal);
+			pos++;
+		}
+	}
+
+	/**
+	 * Reads a string after the opening quote. Strings which are completely in the buffer and contain no escapes are
+	 * created directly from the buffer.
+	 */
+	private String readString(boolean name) {
+		int start = pos;
+		while (pos < limit) {
+			char ch = buffer[pos];
+			if (ch == '"') {
+				String s = name ? internName(start, pos - start) : new String(buffer, start, pos - start);
+				pos++;
+				return s;
+			}
+			if (ch == '\\') break;
+			pos++;
+		}
+
+		sb.setLength(0);
+		sb.append(buffer, start, pos - start);
+		while (true) {
+			if (!ensureAvailable()) throw error("Unclosed string");
+			char ch = buffer[pos++];
+			if (ch == '"') break;
+			if (ch != '\\') {
+				sb.append(ch);
+				continue;
+			}
+			if (!ensureAvailable()) throw error("Unclosed string");
+			ch = buffer[pos++];
+			switch (ch) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; i++) {
+						if (!ensureAvailable()) throw error("Unclosed string");
+						int digit = Character.digit(buffer[pos++], 16);
+						if (digit < 0) throw error("Illegal unicode escape");
+						code = code * 16 + digit;
+					}
+					sb.append((char) code);
+					break;
+				default:
+					sb.append(ch);
+			}
+		}
+		return name ? intern(sb.toString()) : sb.toString();
+	}
+
+	private String internName(int start, int length) {
+		int hash = 0;
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + buffer[i];
+		}
+		int slot = hash & (NAME_TABLE_SIZE - 1);
+		String name = names[slot];
+		if (name != null && name.length() == length) {
+			boolean equal = true;
+			for (int i = 0; i < length; i++) {
+				if (name.charAt(i) != buffer[start + i]) {
+					equal = false;
+					break;
+				}
+			}
+			if (equal) return name;
+		}
+		name = new String(buffer, start, length);
+		names[slot] = name;
+		return name;
+	}
+
+	private String intern(String s) {
+		int slot = s.hashCode() & (NAME_TABLE_SIZE - 1);
+		String name = names[slot];
+		if (s.equals(name)) return name;
+		names[slot] = s;
+		return s;
+	}
+
+	/**
+	 * Reads a number up to the next delimiter. Integers which fit into a long are computed directly from the
+	 * buffer.
+	 */
+	private Number readNumber() {
+		sb.setLength(0);
+		boolean negative = false;
+		boolean simple = true;
+		long value = 0;
+		int digits = 0;
+		while (ensureAvailable()) {
+			char ch = buffer[pos];
+			if (ch == ',' || ch == '}' || ch == ']' || Json.isWhitespace(ch)) break;
+			sb.append(ch);
+			pos++;
+			if (ch >= '0' && ch <= '9') {
+				value = value * 10 + (ch - '0');
+				digits++;
+			} else if (ch == '-' && sb.length() == 1) {
+				negative = true;
+			} else {
+				simple = false;
+			}
+		}
+		if (simple && digits > 0 && digits <= 18) return Long.valueOf(negative ? -value : value);
+		String s = sb.toString();
+		try {
+			return Json.parseNumber(s);
+		} catch (NumberFormatException ex) {
+			throw error("Expecting number in <" + s + ">");
+		}
+	}
+
+	private void skipWhitespace(String expectation) {
+		while (true) {
+			if (!ensureAvailable()) throw error("Expecting " + expectation);
+			if (!Json.isWhitespace(buffer[pos])) return;
+			pos++;
+		}
+	}
+
+	private boolean ensureAvailable() {
+		if (pos < limit) return true;
+		if (in == null) return false;
+		consumed += limit;
+		try {
+			limit = in.read(buffer, 0, buffer.length);
+		} catch (IOException ex) {
+			throw new RuntimeException("Reading JSON failed", ex);
+		}
+		pos = 0;
+		if (limit > 0) return true;
+		limit = 0;
+		in = null;
+		return false;
+	}
+
+	private ParseException error(String message) {
+		if (source != null) return new ParseException(message, source, pos);
+		return new ParseException(message + " at position " + (consumed + pos));
+	}
+
+}
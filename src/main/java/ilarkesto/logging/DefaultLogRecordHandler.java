@@ -23,115 +23,133 @@ import ilarkesto.io.IO;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Writes log records to <code>System.err</code> and warnings and errors to a log file. Logging threads only put
+ * the records into a bounded ring buffer, formatting and writing is done in batches by a separate thread. What
+ * happens when the buffer is full is defined by the <code>OverflowPolicy</code>. The log file is kept open and
+ * rotated when it exceeds a maximum size.
+ */
 public class DefaultLogRecordHandler extends LogRecordHandler {
 
 	private static final Log LOG = Log.get(DefaultLogRecordHandler.class);
 	public static final DateFormat LOG_TIME_FORMAT = new SimpleDateFormat("EEE, dd. MMMM yyyy, HH:mm");
 	public static final DefaultLogRecordHandler INSTANCE = new DefaultLogRecordHandler();
 
-	private BlockingQueue<LogRecord> queue = new LinkedBlockingQueue<LogRecord>();
-	private File logFile;
-	private Thread sysoutThread;
-	private boolean shutdown = false;
-	private LogRecordHandler errorHandler;
+	private static final int DEFAULT_CAPACITY = 8192;
+	private static final int MAX_BATCH_SIZE = 512;
+	private static final int LATEST_RECORDS_COUNT = 256;
+	private static final String SEPARATOR =
+			"--------------------------------------------------------------------------------\n";
+
+	private final LogRecordQueue queue;
+	private final PrintStream console;
+	private final WriterThread writerThread;
+	private final AtomicLong discardedCount = new AtomicLong();
+	private volatile long writtenCount;
+	private volatile boolean writerParked;
+	private volatile boolean shutdown = false;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DISCARD_BELOW_WARN;
+	private volatile LogRecordHandler errorHandler;
 
-	private LinkedList<LogRecord> latestRecords = new LinkedList<LogRecord>();
+	private volatile File logFile;
+	private volatile long maxLogFileSize = 1048576;
+	private volatile int logFileBackups = 3;
 
-	private LinkedList<LogRecord> errorRecords = new LinkedList<LogRecord>();
+	private LogRecordRing latestRecords = new LogRecordRing(LATEST_RECORDS_COUNT);
+
+	private LogRecordRing errorRecords = new LogRecordRing(LATEST_RECORDS_COUNT);
 
 	public static void activate() {}
 
 	private DefaultLogRecordHandler() {
+		this(DEFAULT_CAPACITY, System.err);
 		System.err.println("Initializing logging system");
-		sysoutThread = new Thread(new Runnable() {
-
-			@Override
-			public void run() {
-				while (true) {
-					try {
-						synchronized (Log.class) {
-							if (shutdown && queue.isEmpty()) {
-								System.err.println("Shutting down logging system");
-								return;
-							}
-						}
-						LogRecord record = queue.poll(1, TimeUnit.SECONDS);
-						if (record != null) {
-							System.err.println(record.toString());
-							if (record.level.isWarnOrWorse() && errorHandler != null) {
-								try {
-									errorHandler.log(record);
-									errorHandler.flush();
-								} catch (Exception ex) {
-									ex.printStackTrace();
-								}
-							}
-						}
-					} catch (InterruptedException ignored) {
-						shutdown = true;
-					}
-				}
-			}
-		});
-		sysoutThread.setName(getClass().getSimpleName() + "-sysoutThread");
-		sysoutThread.setPriority(Thread.MIN_PRIORITY);
-		sysoutThread.setDaemon(true);
-		sysoutThread.start();
-
 		Log.setLogRecordHandler(this);
 	}
 
+	DefaultLogRecordHandler(int capacity, PrintStream console) {
+		this.queue = new LogRecordQueue(capacity);
+		this.console = console;
+		writerThread = new WriterThread();
+		writerThread.setName(getClass().getSimpleName() + "-sysoutThread");
+		writerThread.setPriority(Thread.MIN_PRIORITY);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
 	public static void stopLogging() {
-		INSTANCE.flush();
-		INSTANCE.shutdown = true;
-		if (INSTANCE.sysoutThread != null) INSTANCE.sysoutThread.interrupt();
+		INSTANCE.shutdown();
 		INSTANCE.latestRecords.clear();
 	}
 
+	void shutdown() {
+		flush();
+		shutdown = true;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	@Override
 	public void log(LogRecord record) {
-		super.log(record);
-
-		synchronized (latestRecords) {
-			latestRecords.add(record);
-			if (latestRecords.size() > 256) latestRecords.remove(0);
-		}
+		record.context = Thread.currentThread().getName();
+		latestRecords.add(record);
+		if (record.level.isWarnOrWorse()) errorRecords.addIfAbsent(record);
 
-		if (record.level.isWarnOrWorse()) {
-			synchronized (errorRecords) {
-				if (!errorRecords.contains(record)) {
-					errorRecords.add(record);
-					if (errorRecords.size() > 256) errorRecords.remove(0);
-				}
-			}
+		if (shutdown) {
+			console.println(record.toString());
+			return;
 		}
+		if (!queue.offer(record)) offerOnOverflow(record);
+		if (writerParked) LockSupport.unpark(writerThread);
+	}
 
-		record.context = Thread.currentThread().getName();
-		try {
-			queue.put(record);
-		} catch (InterruptedException e) {
+	private void offerOnOverflow(LogRecord record) {
+		OverflowPolicy policy = overflowPolicy;
+		if (policy == OverflowPolicy.DISCARD
+				|| (policy == OverflowPolicy.DISCARD_BELOW_WARN && !record.level.isWarnOrWorse())
+				|| Thread.currentThread() == writerThread) {
+			discardedCount.incrementAndGet();
 			return;
 		}
-
-		if (record.level.isWarnOrWorse()) appendToFile(record.toString());
+		while (!queue.offer(record)) {
+			if (shutdown || !writerThread.isAlive()) {
+				discardedCount.incrementAndGet();
+				return;
+			}
+			LockSupport.unpark(writerThread);
+			Thread.yield();
+		}
 	}
 
+	/**
+	 * Waits until all records which were logged before are written.
+	 */
 	@Override
 	public void flush() {
-		while (sysoutThread != null && sysoutThread.isAlive() && !queue.isEmpty()) {
+		long count = queue.getEnqueuedCount();
+		while (writtenCount < count && writerThread.isAlive()) {
+			LockSupport.unpark(writerThread);
 			try {
-				Thread.sleep(100);
+				Thread.sleep(1);
 			} catch (InterruptedException ex) {
 				throw new RuntimeException(ex);
 			}
@@ -139,12 +157,17 @@ public class DefaultLogRecordHandler extends LogRecordHandler {
 	}
 
 	public static boolean setLogFile(File file) {
-		if (!IO.isFileWritable(file)) return false;
-		INSTANCE.logFile = file;
+		if (!INSTANCE.useLogFile(file)) return false;
 		LOG.info("Log-file:", file);
 		return true;
 	}
 
+	boolean useLogFile(File file) {
+		if (!IO.isFileWritable(file)) return false;
+		logFile = file;
+		return true;
+	}
+
 	public static File getLogFile() {
 		return INSTANCE.logFile;
 	}
@@ -153,6 +176,26 @@ public class DefaultLogRecordHandler extends LogRecordHandler {
 		this.errorHandler = errorHandler;
 	}
 
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * @param maxLogFileSize size in bytes after which the log file is rotated
+	 * @param logFileBackups number of rotated log files to keep as <code>.1</code>, <code>.2</code> etc.
+	 */
+	public void setLogFileRotation(long maxLogFileSize, int logFileBackups) {
+		this.maxLogFileSize = maxLogFileSize;
+		this.logFileBackups = logFileBackups;
+	}
+
+	/**
+	 * @return number of records which were discarded because the buffer was full
+	 */
+	public long getDiscardedCount() {
+		return discardedCount.get();
+	}
+
 	public static boolean setLogFileToHomeOrWorkdir(String name) {
 		if (setLogFileToWorkdir(name)) return true;
 		return setLogFileToHome(name);
@@ -170,41 +213,208 @@ public class DefaultLogRecordHandler extends LogRecordHandler {
 		return setLogFile(new File(Sys.getWorkDir() + "/webapps/" + name + ".log"));
 	}
 
-	private void appendToFile(String record) {
-		if (logFile == null) {
-			File runtimedataDir = new File("runtimedata");
-			if (runtimedataDir.exists() && runtimedataDir.isDirectory()) {
-				setLogFile(new File("runtimedata/error.log"));
-			} else {
-				setLogFile(new File("error.log"));
+	@Override
+	public List<LogRecord> getLatestLogs() {
+		return latestRecords.getRecords();
+	}
+
+	@Override
+	public String getLatestLogsAsString() {
+		StringBuilder sb = new StringBuilder();
+		for (LogRecord record : getLatestLogs()) {
+			sb.append(record.toString()).append("\n");
+		}
+		return sb.toString();
+	}
+
+	public static List<LogRecord> getLatestRecords() {
+		return INSTANCE.getLatestLogs();
+	}
+
+	public static List<LogRecord> getErrors() {
+		return INSTANCE.getErrorRecords();
+	}
+
+	List<LogRecord> getErrorRecords() {
+		return new ArrayList<LogRecord>(new LinkedHashSet<LogRecord>(errorRecords.getRecords()));
+	}
+
+	/**
+	 * What <code>log()</code> does when the buffer is full.
+	 */
+	public static enum OverflowPolicy {
+
+		/**
+		 * Wait until the writer made room.
+		 */
+		BLOCK,
+
+		/**
+		 * Discard the record.
+		 */
+		DISCARD,
+
+		/**
+		 * Discard debug and info records, wait for warnings and errors.
+		 */
+		DISCARD_BELOW_WARN
+
+	}
+
+	private class WriterThread extends Thread {
+
+		private final LogRecord[] batch = new LogRecord[MAX_BATCH_SIZE];
+		private final String[] texts = new String[MAX_BATCH_SIZE];
+		private final StringBuilder buffer = new StringBuilder();
+		private long reportedDiscardedCount;
+
+		private File openLogFile;
+		private FileOutputStream logFileOut;
+		private Writer logFileWriter;
+
+		@Override
+		public void run() {
+			while (true) {
+				int size = 0;
+				LogRecord record;
+				while (size < MAX_BATCH_SIZE && (record = queue.poll()) != null) {
+					batch[size++] = record;
+				}
+				if (size > 0) {
+					try {
+						write(size);
+					} catch (Throwable ex) {
+						// the writer thread has to survive, otherwise logging blocks or discards everything
+						System.err.println("Writing " + size + " log records failed: " + ex);
+					} finally {
+						for (int i = 0; i < size; i++) {
+							batch[i] = null;
+							texts[i] = null;
+						}
+						writtenCount += size;
+					}
+					continue;
+				}
+				if (shutdown) {
+					closeLogFile();
+					System.err.println("Shutting down logging system");
+					return;
+				}
+				writerParked = true;
+				if (queue.isEmpty() && !shutdown) LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+				writerParked = false;
 			}
 		}
-		if (logFile == null) return;
-		synchronized (logFile) {
+
+		private void write(int size) {
+			buffer.setLength(0);
+			long discarded = discardedCount.get();
+			if (discarded != reportedDiscardedCount) {
+				buffer.append(discarded - reportedDiscardedCount).append(" log records discarded\n");
+				reportedDiscardedCount = discarded;
+			}
+			boolean warnings = false;
+			for (int i = 0; i < size; i++) {
+				texts[i] = format(batch[i]);
+				buffer.append(texts[i]).append('\n');
+				if (batch[i].level.isWarnOrWorse()) warnings = true;
+			}
+			console.print(buffer.toString());
+			console.flush();
+
+			if (warnings) {
+				writeToLogFile(size);
+				LogRecordHandler errorHandler = DefaultLogRecordHandler.this.errorHandler;
+				if (errorHandler != null) {
+					try {
+						for (int i = 0; i < size; i++) {
+							if (batch[i].level.isWarnOrWorse()) errorHandler.log(batch[i]);
+						}
+						errorHandler.flush();
+					} catch (Exception ex) {
+						ex.printStackTrace();
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the text of the record or a fallback line if a parameter can not be formatted
+		 */
+		private String format(LogRecord record) {
+			try {
+				return record.toString();
+			} catch (Throwable ex) {
+				return new Date(record.time) + " " + record.level + " " + record.name
+						+ " Formatting log record failed: " + ex;
+			}
+		}
+
+		private void writeToLogFile(int size) {
+			if (logFile == null) {
+				File runtimedataDir = new File("runtimedata");
+				if (runtimedataDir.exists() && runtimedataDir.isDirectory()) {
+					useLogFile(new File("runtimedata/error.log"));
+				} else {
+					useLogFile(new File("error.log"));
+				}
+			}
+			File file = logFile;
+			if (file == null) return;
 			try {
-				BufferedWriter out = new BufferedWriter(new FileWriter(logFile, logFile.length() < 1048576));
-				out.write("--------------------------------------------------------------------------------\n");
-				out.write(LOG_TIME_FORMAT.format(new Date()));
-				out.write(" -> ");
-				out.write(record);
-				out.write('\n');
-				out.close();
+				if (!file.equals(openLogFile)) openLogFile(file);
+				for (int i = 0; i < size; i++) {
+					if (!batch[i].level.isWarnOrWorse()) continue;
+					logFileWriter.write(SEPARATOR);
+					logFileWriter.write(LOG_TIME_FORMAT.format(new Date(batch[i].time)));
+					logFileWriter.write(" -> ");
+					logFileWriter.write(texts[i]);
+					logFileWriter.write('\n');
+				}
+				logFileWriter.flush();
+				if (logFileOut.getChannel().size() >= maxLogFileSize) rotateLogFile();
 			} catch (Exception e) {
-				System.err.println("Failed to write to logFile: " + logFile.getAbsolutePath() + ": " + Str.format(e));
+				System.err.println("Failed to write to logFile: " + file.getAbsolutePath() + ": " + Str.format(e));
+				closeLogFile();
 			}
 		}
-	}
 
-	public static List<LogRecord> getLatestRecords() {
-		synchronized (INSTANCE.latestRecords) {
-			return new ArrayList<LogRecord>(INSTANCE.latestRecords);
+		private void openLogFile(File file) throws IOException {
+			closeLogFile();
+			logFileOut = new FileOutputStream(file, true);
+			logFileWriter = new BufferedWriter(new OutputStreamWriter(logFileOut, IO.UTF_8), 65536);
+			openLogFile = file;
 		}
-	}
 
-	public static List<LogRecord> getErrors() {
-		synchronized (INSTANCE.errorRecords) {
-			return new ArrayList<LogRecord>(INSTANCE.errorRecords);
+		private void rotateLogFile() {
+			File file = openLogFile;
+			closeLogFile();
+			int backups = logFileBackups;
+			if (backups <= 0) {
+				file.delete();
+				return;
+			}
+			for (int i = backups; i > 0; i--) {
+				File source = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+				if (!source.exists()) continue;
+				File target = new File(file.getPath() + "." + i);
+				target.delete();
+				source.renameTo(target);
+			}
+		}
+
+		private void closeLogFile() {
+			if (logFileWriter == null) return;
+			try {
+				logFileWriter.close();
+			} catch (IOException ex) {
+				System.err.println("Failed to close logFile: " + openLogFile.getAbsolutePath() + ": " + Str.format(ex));
+			}
+			logFileWriter = null;
+			logFileOut = null;
+			openLogFile = null;
 		}
+
 	}
 
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>, Artjom Kochtchi
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.logging;
+
+import ilarkesto.core.logging.LogRecord;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring buffer to hand log records from many threads over to one consumer thread without locks. Each slot
+ * carries a sequence number which tells producers and the consumer whether the slot is free or filled.
+ */
+class LogRecordQueue {
+
+	private final int mask;
+	private final AtomicReferenceArray<LogRecord> records;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	LogRecordQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = size - 1;
+		this.records = new AtomicReferenceArray<LogRecord>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the queue is full
+	 */
+	boolean offer(LogRecord record) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) (position & mask);
+			long diff = sequences.get(index) - position;
+			if (diff < 0) return false;
+			if (diff > 0) continue;
+			if (!tail.compareAndSet(position, position + 1)) continue;
+			records.lazySet(index, record);
+			sequences.set(index, position + 1);
+			return true;
+		}
+	}
+
+	/**
+	 * Must only be called by the consumer thread.
+	 *
+	 * @return the next record or <code>null</code> if the queue is empty
+	 */
+	LogRecord poll() {
+		long position = head;
+		int index = (int) (position & mask);
+		if (sequences.get(index) != position + 1) return null;
+		LogRecord record = records.get(index);
+		records.lazySet(index, null);
+		sequences.set(index, position + mask + 1);
+		head = position + 1;
+		return record;
+	}
+
+	/**
+	 * @return number of records which were offered successfully so far
+	 */
+	long getEnqueuedCount() {
+		return tail.get();
+	}
+
+	/**
+	 * @return number of records which were polled so far
+	 */
+	long getDequeuedCount() {
+		return head;
+	}
+
+	boolean isEmpty() {
+		return head == tail.get();
+	}
+
+	int getCapacity() {
+		return mask + 1;
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>, Artjom Kochtchi
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.logging;
+
+import ilarkesto.core.logging.LogRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the latest log records. Adding overwrites the oldest slot without locking, so a snapshot taken while
+ * records are added may miss a record.
+ */
+class LogRecordRing {
+
+	private final int mask;
+	private final AtomicReferenceArray<LogRecord> records;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicReferenceArray<Added> latestByHash;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	LogRecordRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = size - 1;
+		this.records = new AtomicReferenceArray<LogRecord>(size);
+		this.latestByHash = new AtomicReferenceArray<Added>(size);
+	}
+
+	void add(LogRecord record) {
+		add(record, count.getAndIncrement());
+	}
+
+	private void add(LogRecord record, long index) {
+		records.set((int) (index & mask), record);
+	}
+
+	/**
+	 * Adds the record unless an equal one is still in the ring, so a repeated record does not push out the others.
+	 * Compares only with the latest record added with the same hash slot, so equal records can be added when
+	 * records with other hashes share the slot or when added concurrently.
+	 */
+	void addIfAbsent(LogRecord record) {
+		int hash = record.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		Added latest = latestByHash.get(slot);
+		if (latest != null && latest.hash == hash && count.get() - latest.index <= mask + 1
+				&& record.equals(latest.record)) return;
+		long index = count.getAndIncrement();
+		add(record, index);
+		latestByHash.set(slot, new Added(record, hash, index));
+	}
+
+	/**
+	 * @return the records from the oldest to the latest
+	 */
+	List<LogRecord> getRecords() {
+		long end = count.get();
+		long start = Math.max(0, end - mask - 1);
+		List<LogRecord> ret = new ArrayList<LogRecord>((int) (end - start));
+		for (long i = start; i < end; i++) {
+			LogRecord record = records.get((int) (i & mask));
+			if (record != null) ret.add(record);
+		}
+		return ret;
+	}
+
+	void clear() {
+		for (int i = 0; i <= mask; i++) {
+			records.set(i, null);
+			latestByHash.set(i, null);
+		}
+	}
+
+	private static class Added {
+
+		private final LogRecord record;
+		private final int hash;
+		private final long index;
+
+		public Added(LogRecord record, int hash, long index) {
+			super();
+			this.record = record;
+			this.hash = hash;
+			this.index = index;
+		}
+
+	}
+
+}
@@ -102,7 +102,7 @@ public abstract class ABeanGenerator<B extends BeanModel> extends AClassGenerato
 	}
 
 	@Deprecated
-	public boolean isLegacyBean(BeanModel model) {
+	public static boolean isLegacyBean(BeanModel model) {
 		if (model == null) return false;
 		if (model.getName().equals("AEntity")) return true;
 		if (model.getName().equals("ADatob")) return true;
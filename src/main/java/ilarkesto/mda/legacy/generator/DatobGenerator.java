@@ -107,26 +107,12 @@ public class DatobGenerator<D extends DatobModel> extends ABeanGenerator<D> {
 		ln("            String value = entry.getValue();");
 		for (PropertyModel p : bean.getProperties()) {
 
-			if (p.isValueObject()) {
-				comment("TODO ValueObject");
+			if (!isUpdatedByProperties(p)) {
+				comment("TODO " + getUpdatePropertiesTodo(p));
 				continue;
 			}
 
-			if (p.getType().equals(EmailAddress.class.getName())) {
-				comment("TODO EmailAddress");
-				continue;
-			}
-
-			if (p.getName().equals("changeNotificationEmails")) {
-				comment("TODO changeNotificationEmails");
-				continue;
-			}
-
-			String propertyName = p.getName();
-			if (p.isReference()) {
-				propertyName += "Id";
-				if (p.isCollection()) propertyName += "s";
-			}
+			String propertyName = getPropertiesMapName(p);
 			String parseType;
 			if (p.isReference()) {
 				if (p.isCollection()) {
@@ -160,6 +146,29 @@ public class DatobGenerator<D extends DatobModel> extends ABeanGenerator<D> {
 		super.writeContent();
 	}
 
+	/**
+	 * @return <code>false</code> if the generated <code>updateProperties()</code> does not restore the property
+	 */
+	protected boolean isUpdatedByProperties(PropertyModel p) {
+		return getUpdatePropertiesTodo(p) == null;
+	}
+
+	private String getUpdatePropertiesTodo(PropertyModel p) {
+		if (p.isValueObject()) return "ValueObject";
+		if (p.getType().equals(EmailAddress.class.getName())) return "EmailAddress";
+		if (p.getName().equals("changeNotificationEmails")) return "changeNotificationEmails";
+		return null;
+	}
+
+	protected String getPropertiesMapName(PropertyModel p) {
+		String propertyName = p.getName();
+		if (p.isReference()) {
+			propertyName += "Id";
+			if (p.isCollection()) propertyName += "s";
+		}
+		return propertyName;
+	}
+
 	protected void writeEnsureIntegrity() {
 		if (!(bean instanceof EntityModel)) return;
 		ln();
@@ -443,7 +452,7 @@ public class DatobGenerator<D extends DatobModel> extends ABeanGenerator<D> {
 
 	}
 
-	public boolean isOutsourced(PropertyModel p) {
+	public static boolean isOutsourced(PropertyModel p) {
 		return p instanceof StringPropertyModel && ((StringPropertyModel) p).isOutsourced();
 	}
 
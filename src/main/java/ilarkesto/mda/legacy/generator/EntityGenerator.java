@@ -22,6 +22,7 @@ import ilarkesto.base.Str;
 import ilarkesto.core.base.Uuid;
 import ilarkesto.core.localization.GermanComparator;
 import ilarkesto.core.logging.Log;
+import ilarkesto.core.money.Money;
 import ilarkesto.core.persistance.AEntityBackReferenceHelper;
 import ilarkesto.core.persistance.AEntityQuery;
 import ilarkesto.core.persistance.AEntitySetBackReferenceHelper;
@@ -29,12 +30,18 @@ import ilarkesto.core.persistance.AllByTypeQuery;
 import ilarkesto.core.persistance.EditableKeytableValue;
 import ilarkesto.core.persistance.Entity;
 import ilarkesto.core.persistance.EntityDoesNotExistException;
+import ilarkesto.core.persistance.EntityFieldWriter;
 import ilarkesto.core.persistance.KeytableValue;
 import ilarkesto.core.persistance.Transaction;
 import ilarkesto.core.persistance.ValuesCache;
 import ilarkesto.core.persistance.meta.EntityFieldMetadata;
 import ilarkesto.core.persistance.meta.EntityMetadata;
 import ilarkesto.core.search.Searchable;
+import ilarkesto.core.time.Date;
+import ilarkesto.core.time.DateAndTime;
+import ilarkesto.core.time.DateRange;
+import ilarkesto.core.time.DayAndMonth;
+import ilarkesto.core.time.Time;
 import ilarkesto.mda.legacy.model.BackReferenceModel;
 import ilarkesto.mda.legacy.model.BeanModel;
 import ilarkesto.mda.legacy.model.ComputedValueModel;
@@ -47,12 +54,20 @@ import ilarkesto.mda.legacy.model.ReferenceSetPropertyModel;
 import ilarkesto.persistence.ADatob;
 import ilarkesto.persistence.AEntity;
 
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class EntityGenerator extends DatobGenerator<EntityModel> {
 
+	private static final Class[] FIELD_PARSE_TYPES = { String.class, int.class, Integer.class, long.class,
+			Long.class, float.class, Float.class, double.class, Double.class, boolean.class, Boolean.class,
+			BigDecimal.class, Date.class, Time.class, DateAndTime.class, DateRange.class, DayAndMonth.class,
+			Money.class };
+
 	public EntityGenerator(EntityModel bean) {
 		super(bean);
 	}
@@ -138,6 +153,11 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 		}
 		ln("    }");
 
+		if (!isLegacyBean(bean)) {
+			writeStoreFields();
+			writeIsPropertyUpdatable();
+		}
+
 		if (!bean.isAbstract()) {
 			ln();
 			annotationOverride();
@@ -272,6 +292,71 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 		ln("    }");
 	}
 
+	/**
+	 * Writes <code>storeFields()</code> and <code>updateField()</code> for <code>EntityJsonCodec</code>. Not
+	 * written if a property has a type without a <code>parseField</code> method in <code>Persistence</code>, these
+	 * entities are serialized by reflection.
+	 */
+	private void writeStoreFields() {
+		Map<String, String> parseTypesByField = new LinkedHashMap<String, String>();
+		for (PropertyModel p : bean.getProperties()) {
+			if (isOutsourced(p)) continue;
+			String parseType = getFieldParseType(p);
+			if (parseType == null) return;
+			parseTypesByField.put(getFieldName(p).substring(5), parseType);
+		}
+
+		ln();
+		ln("    @Override");
+		ln("    public void storeFields(" + EntityFieldWriter.class.getName() + " out) {");
+		ln("        super.storeFields(out);");
+		for (String field : parseTypesByField.keySet()) {
+			ln("        out.field(\"" + field + "\", this." + field + ");");
+		}
+		ln("    }");
+
+		ln();
+		ln("    @Override");
+		ln("    public boolean updateField(String name, Object value) {");
+		ln("        if (super.updateField(name, value)) return true;");
+		for (Map.Entry<String, String> entry : parseTypesByField.entrySet()) {
+			String field = entry.getKey();
+			ln("        if (name.equals(\"" + field + "\")) {");
+			ln("            this." + field + " = " + persistenceUtilClass + ".parseField" + entry.getValue() + "(value);");
+			ln("            return true;");
+			ln("        }");
+		}
+		ln("        return false;");
+		ln("    }");
+	}
+
+	private void writeIsPropertyUpdatable() {
+		ln();
+		ln("    @Override");
+		ln("    public boolean isPropertyUpdatable(String property) {");
+		for (PropertyModel p : bean.getProperties()) {
+			if (isOutsourced(p) || !isUpdatedByProperties(p)) continue;
+			ln("        if (property.equals(\"" + getPropertiesMapName(p) + "\")) return true;");
+		}
+		ln("        return super.isPropertyUpdatable(property);");
+		ln("    }");
+	}
+
+	private static String getFieldParseType(PropertyModel p) {
+		if (p.isValueObject()) return null;
+		if (p.isCollection()) {
+			if (!p.isReference() && !String.class.getName().equals(p.getContentType())) return null;
+			if (List.class.getName().equals(p.getCollectionType())) return "StringList";
+			if (Set.class.getName().equals(p.getCollectionType())) return "StringSet";
+			return null;
+		}
+		if (p.isReference()) return "String";
+		for (Class type : FIELD_PARSE_TYPES) {
+			if (type.getName().equals(p.getType())) return type.getSimpleName();
+		}
+		return null;
+	}
+
 	private void writeOnAfterPersist() {
 		ln();
 		annotationOverride();
@@ -544,7 +629,8 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 					ln("    private static transient",
 						AEntityBackReferenceHelper.class.getName() + "<" + bean.getName() + ">", p.getName()
 								+ "BackReferencesCache = new",
-						AEntityBackReferenceHelper.class.getName() + "<" + bean.getName() + ">() {");
+						AEntityBackReferenceHelper.class.getName() + "<" + bean.getName() + ">(" + bean.getName()
+								+ ".class) {");
 					annotationOverride();
 					ln("        protected " + bean.getName() + " loadById(final String id) {");
 					ln("        return new " + queryName + "() {");
@@ -561,6 +647,7 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 								+ "Id());");
 					}
 					ln("            }");
+					writeIndexedQueryMethods(p, "id");
 					ln("            }.findFirst();");
 					ln("            }");
 					ln("            @Override");
@@ -609,7 +696,7 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 					ln("    private static transient",
 						AEntitySetBackReferenceHelper.class.getName() + "<" + bean.getName() + ">", p.getName()
 								+ "BackReferencesCache = new", AEntitySetBackReferenceHelper.class.getName() + "<"
-								+ bean.getName() + ">() {");
+								+ bean.getName() + ">(" + bean.getName() + ".class) {");
 					annotationOverride();
 					ln("        protected Set<" + bean.getName() + "> loadById(final String id) {");
 					ln("        return new " + queryName + "() {");
@@ -627,6 +714,7 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 					}
 
 					ln("            }");
+					writeIndexedQueryMethods(p, "id");
 					ln("            @Override");
 					ln("            public String toString() {");
 					ln("                return \"" + bean.getName() + ":by" + Str.uppercaseFirstLetter(p.getName())
@@ -683,6 +771,21 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 		}
 	}
 
+	private void writeIndexedQueryMethods(PropertyModel p, String valueExpression) {
+		ln("            @Override");
+		ln("            public String getIndexedProperty() {");
+		ln("                return \"" + getIndexedPropertyName(p) + "\";");
+		ln("            }");
+		ln("            @Override");
+		ln("            public String getIndexedValue() {");
+		ln("                return " + valueExpression + ";");
+		ln("            }");
+	}
+
+	public static String getIndexedPropertyName(PropertyModel p) {
+		return p.getName() + (p.isCollection() ? "Ids" : "Id");
+	}
+
 	private void writeBackReference(BackReferenceModel br) {
 		ln();
 		PropertyModel ref = br.getReference();
@@ -14,8 +14,10 @@
  */
 package ilarkesto.mda.legacy.generator;
 
+import ilarkesto.core.persistance.ACachingEntitiesBackend;
 import ilarkesto.core.persistance.AEntity;
 import ilarkesto.mda.legacy.model.EntityModel;
+import ilarkesto.mda.legacy.model.PropertyModel;
 
 import java.util.Collection;
 
@@ -42,6 +44,18 @@ public class EntityIndexGenerator extends AClassGenerator {
 			ln("        types.add(" + entity.getBeanClass() + ".class);");
 		}
 		ln("    }");
+
+		ln();
+		ln("    public static void addPropertyIndexes(" + ACachingEntitiesBackend.class.getName() + " backend) {");
+		for (EntityModel entity : entities) {
+			if (entity.isAbstract() || ABeanGenerator.isLegacyBean(entity)) continue;
+			for (PropertyModel p : entity.getPropertiesAndSuperbeanProperties()) {
+				if (!p.isReference() || DatobGenerator.isOutsourced(p)) continue;
+				ln("        backend.addIndex(" + entity.getBeanClass() + ".class, \""
+						+ EntityGenerator.getIndexedPropertyName(p) + "\", " + p.isCollection() + ");");
+			}
+		}
+		ln("    }");
 	}
 
 	@Override
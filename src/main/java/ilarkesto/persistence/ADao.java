@@ -242,7 +242,7 @@ public abstract class ADao<E extends AEntity> implements IdentifiableResolver<E>
 		final AuthUser searcher = searchBox.getSearcher();
 
 		RuntimeTracker rt = new RuntimeTracker();
-		Predicate<E> filter = new Predicate<E>() {
+		Set<E> entities = (Set<E>) Transaction.get().findAllAsSet(new AEntityQuery<E>() {
 
 			@Override
 			public boolean test(E e) {
@@ -251,8 +251,17 @@ public abstract class ADao<E extends AEntity> implements IdentifiableResolver<E>
 				return true;
 			}
 
-		};
-		for (AEntity entity : getEntities(filter)) {
+			@Override
+			public Class<E> getType() {
+				return ADao.this.getEntityClass();
+			}
+
+			@Override
+			public SearchText getSearchText() {
+				return searchText;
+			}
+		});
+		for (AEntity entity : entities) {
 			searchBox.addEntity(entity);
 		}
 		log.info("Search took", rt);
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.concurrent.DeamonThreadFactory;
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.persistance.ACachingEntitiesBackend;
+import ilarkesto.core.persistance.AEntity;
+import ilarkesto.core.persistance.EntityDoesNotExistException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Caching backend with an optional write-behind mode. When enabled, committed changes are queued. A writer thread
+ * drains the queue and passes all queued transactions as one merged batch to <code>onUpdate()</code> (group
+ * commit).
+ * <p>
+ * The durability level defines when a commit is acknowledged, which means when <code>update()</code> returns
+ * and the commit callback (<code>runAfterCommited</code>) is executed.
+ * <p>
+ * A batch which fails to be written is retried as long as it contains acknowledged (<code>MEMORY</code>)
+ * commits. Until the retry succeeds, all following commits are rejected.
+ */
+public abstract class AWriteBehindEntitiesBackend extends ACachingEntitiesBackend {
+
+	public static enum Durability {
+		/**
+		 * Changes are applied to the cache when they are queued and commits are acknowledged immediately. Changes
+		 * which are not written yet are lost on a crash.
+		 */
+		MEMORY,
+
+		/**
+		 * Changes are applied to the cache and commits are acknowledged after the batch containing the changes was
+		 * written by <code>onUpdate()</code>. If writing fails, the commit fails and the cache stays unchanged.
+		 */
+		DISK
+	}
+
+	private static final int QUEUE_CAPACITY = 10000;
+	private static final int MAX_BATCH_SIZE = 1000;
+	private static final long MAX_RETRY_DELAY = 60000;
+
+	private final Object writerThreadLock = new Object();
+	private final Object queueLock = new Object();
+	private BlockingQueue<PendingUpdate> queue;
+	private Map<String, AEntity> deletedEntitiesNotWritten = new ConcurrentHashMap<String, AEntity>();
+	private volatile Durability durability;
+	private Thread writerThread;
+
+	private final Object writtenLock = new Object();
+	private long enqueuedCount;
+	private long writtenCount;
+	private long batchCount;
+	private int maxBatchSize;
+	private long lastBatchTime;
+	private volatile Exception lastWriteError;
+	private volatile Exception writeFailure;
+
+	/**
+	 * Starts the writer thread. All following commits are written asynchronously.
+	 */
+	public void startWriteBehind(Durability durability) {
+		if (durability == null) throw new IllegalArgumentException("durability == null");
+		synchronized (writerThreadLock) {
+			if (writerThread != null) {
+				this.durability = durability;
+				return;
+			}
+			final BlockingQueue<PendingUpdate> queue = new ArrayBlockingQueue<PendingUpdate>(QUEUE_CAPACITY);
+			writerThread = new DeamonThreadFactory().newThread(new Runnable() {
+
+				@Override
+				public void run() {
+					writeLoop(queue);
+				}
+			});
+			writerThread.setName(getClass().getSimpleName() + "-writer");
+			writerThread.start();
+			synchronized (queueLock) {
+				this.queue = queue;
+				this.durability = durability;
+			}
+		}
+		log.info("Write-behind started:", durability);
+	}
+
+	/**
+	 * Writes all queued changes and stops the writer thread. Following commits are written synchronously.
+	 */
+	public void stopWriteBehind() {
+		synchronized (writerThreadLock) {
+			if (writerThread == null) return;
+			synchronized (queueLock) {
+				durability = null;
+				queue = null;
+			}
+			// no monitor of the cache may be held here, the writer thread needs them for onUpdate()
+			flush();
+			writerThread.interrupt();
+			try {
+				writerThread.join();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			writerThread = null;
+		}
+		log.info("Write-behind stopped");
+	}
+
+	/**
+	 * Blocks until all changes committed before this call are written.
+	 */
+	public void flush() {
+		synchronized (writtenLock) {
+			long target = enqueuedCount;
+			while (writtenCount < target) {
+				try {
+					writtenLock.wait();
+				} catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+	}
+
+	public Durability getWriteBehindDurability() {
+		return durability;
+	}
+
+	@Override
+	public void update(Collection<AEntity> modified, Collection<String> deletedIds,
+			Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback, String transactionText) {
+		PendingUpdate update = null;
+		synchronized (queueLock) {
+			Durability durability = this.durability;
+			if (durability != null) {
+				if (writeFailure != null)
+					throw new RuntimeException("Commit rejected, writing previous entity changes failed: "
+							+ transactionText, writeFailure);
+				update = enqueue(modified, deletedIds, modifiedPropertiesByEntityId, transactionText, durability);
+			}
+		}
+
+		if (update == null) {
+			// changes queued before write-behind was stopped need to be written first
+			flush();
+			super.update(modified, deletedIds, modifiedPropertiesByEntityId, callback, transactionText);
+			return;
+		}
+
+		if (update.written != null) {
+			try {
+				update.written.await();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			if (update.error != null)
+				throw new RuntimeException("Writing entity changes failed: " + transactionText, update.error);
+		}
+
+		if (callback != null) callback.run();
+	}
+
+	private PendingUpdate enqueue(Collection<AEntity> modified, Collection<String> deletedIds,
+			Map<String, Map<String, String>> modifiedPropertiesByEntityId, String transactionText,
+			Durability durability) {
+		PendingUpdate update = new PendingUpdate(modified, deletedIds, modifiedPropertiesByEntityId, transactionText,
+				durability == Durability.DISK);
+		if (deletedIds != null) {
+			for (String id : deletedIds) {
+				try {
+					deletedEntitiesNotWritten.put(id, getById(id));
+				} catch (EntityDoesNotExistException ex) {}
+			}
+		}
+		if (update.written == null) updateCache(modified, deletedIds);
+		synchronized (writtenLock) {
+			enqueuedCount++;
+		}
+		try {
+			queue.put(update);
+		} catch (InterruptedException ex) {
+			throw new RuntimeException(ex);
+		}
+		return update;
+	}
+
+	/**
+	 * Returns an entity from the cache or an entity which was deleted, but whose deletion is not written yet.
+	 * Subclasses use this in <code>onUpdate()</code> to resolve deleted ids.
+	 */
+	protected AEntity getEntityForWrite(String id) {
+		AEntity entity = deletedEntitiesNotWritten.get(id);
+		if (entity != null) return entity;
+		return getById(id);
+	}
+
+	private void writeLoop(BlockingQueue<PendingUpdate> queue) {
+		List<PendingUpdate> batch = new ArrayList<PendingUpdate>();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException ex) {
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private void write(List<PendingUpdate> batch) {
+		RuntimeTracker rt = new RuntimeTracker();
+		Map<String, AEntity> modified = new LinkedHashMap<String, AEntity>();
+		Set<String> deleted = new LinkedHashSet<String>();
+		Map<String, Map<String, String>> modifiedProperties = new LinkedHashMap<String, Map<String, String>>();
+		StringBuilder text = new StringBuilder();
+		for (PendingUpdate update : batch) {
+			if (update.modified != null) {
+				for (AEntity entity : update.modified) {
+					modified.put(entity.getId(), entity);
+				}
+			}
+			if (update.modifiedProperties != null) {
+				for (Map.Entry<String, Map<String, String>> entry : update.modifiedProperties.entrySet()) {
+					Map<String, String> properties = modifiedProperties.get(entry.getKey());
+					if (properties == null) {
+						properties = new HashMap<String, String>();
+						modifiedProperties.put(entry.getKey(), properties);
+					}
+					if (entry.getValue() != null) properties.putAll(entry.getValue());
+				}
+			}
+			if (update.deletedIds != null) {
+				for (String id : update.deletedIds) {
+					deleted.add(id);
+					modified.remove(id);
+				}
+			}
+			if (update.transactionText != null) {
+				if (text.length() > 0) text.append(", ");
+				text.append(update.transactionText);
+			}
+		}
+
+		boolean acknowledged = false;
+		for (PendingUpdate update : batch) {
+			if (update.written == null) acknowledged = true;
+		}
+
+		Exception error = null;
+		long retryDelay = 1000;
+		while (true) {
+			try {
+				onUpdate(modified.values(), deleted, modifiedProperties, null, text.toString());
+				error = null;
+				break;
+			} catch (Exception ex) {
+				error = ex;
+				lastWriteError = ex;
+				log.error("Writing entity changes failed:", batch.size(), "transactions", ex);
+				if (!acknowledged) break;
+				// the commits were already acknowledged, dropping the batch would lose them
+				writeFailure = ex;
+				try {
+					Thread.sleep(retryDelay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					log.error("Writer thread interrupted, entity changes not written:", text);
+					break;
+				}
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+			}
+		}
+		if (error == null && writeFailure != null) {
+			writeFailure = null;
+			log.info("Writing entity changes succeeded after retry");
+		}
+
+		for (PendingUpdate update : batch) {
+			if (update.written == null) continue;
+			if (error == null) {
+				try {
+					updateCache(update.modified, update.deletedIds);
+				} catch (Exception ex) {
+					log.error("Updating cache after write failed:", update.transactionText, ex);
+					update.error = ex;
+				}
+			} else {
+				update.error = error;
+			}
+		}
+		for (String id : deleted) {
+			deletedEntitiesNotWritten.remove(id);
+		}
+		for (PendingUpdate update : batch) {
+			if (update.written != null) update.written.countDown();
+		}
+		synchronized (writtenLock) {
+			writtenCount += batch.size();
+			batchCount++;
+			maxBatchSize = Math.max(maxBatchSize, batch.size());
+			lastBatchTime = rt.getRuntime();
+			writtenLock.notifyAll();
+		}
+		log.debug("Batch written:", batch.size(), "transactions in", rt.getRuntimeFormated());
+	}
+
+	protected String createWriteBehindInfo() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nWrite-behind:\n");
+		sb.append("* durability: ").append(durability == null ? "synchronous" : durability).append("\n");
+		synchronized (writtenLock) {
+			sb.append("* pending transactions: ").append(enqueuedCount - writtenCount).append("\n");
+			sb.append("* written transactions: ").append(writtenCount).append("\n");
+			sb.append("* batches: ").append(batchCount).append("\n");
+			sb.append("* max batch size: ").append(maxBatchSize).append("\n");
+			sb.append("* last batch time: ").append(lastBatchTime).append(" ms\n");
+		}
+		if (lastWriteError != null) sb.append("* last error: ").append(lastWriteError).append("\n");
+		if (writeFailure != null) sb.append("* commits rejected until retry succeeds\n");
+		return sb.toString();
+	}
+
+	private static class PendingUpdate {
+
+		private Collection<AEntity> modified;
+		private Collection<String> deletedIds;
+		private Map<String, Map<String, String>> modifiedProperties;
+		private String transactionText;
+		private CountDownLatch written;
+		private volatile Exception error;
+
+		public PendingUpdate(Collection<AEntity> modified, Collection<String> deletedIds,
+				Map<String, Map<String, String>> modifiedProperties, String transactionText, boolean waitForWrite) {
+			this.modified = modified == null ? null : new ArrayList<AEntity>(modified);
+			this.deletedIds = deletedIds == null ? null : new ArrayList<String>(deletedIds);
+			this.modifiedProperties = modifiedProperties;
+			this.transactionText = transactionText;
+			if (waitForWrite) written = new CountDownLatch(1);
+		}
+
+	}
+
+}
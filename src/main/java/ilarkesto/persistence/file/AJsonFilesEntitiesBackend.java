@@ -14,12 +14,13 @@
  */
 package ilarkesto.persistence.file;
 
+import ilarkesto.concurrent.DeamonThreadFactory;
 import ilarkesto.core.base.RuntimeTracker;
 import ilarkesto.core.base.Str;
-import ilarkesto.core.persistance.ACachingEntitiesBackend;
 import ilarkesto.core.persistance.AEntity;
 import ilarkesto.core.persistance.Entity;
 import ilarkesto.core.persistance.EntityDoesNotExistException;
+import ilarkesto.core.persistance.Persistence;
 import ilarkesto.core.persistance.Transient;
 import ilarkesto.core.time.DateAndTime;
 import ilarkesto.io.AFileStorage;
@@ -27,6 +28,7 @@ import ilarkesto.io.IO;
 import ilarkesto.json.JsonMapper;
 import ilarkesto.json.JsonMapper.TypeResolver;
 import ilarkesto.json.JsonObject;
+import ilarkesto.persistence.AWriteBehindEntitiesBackend;
 
 import java.io.File;
 import java.io.IOException;
@@ -34,8 +36,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend {
+public abstract class AJsonFilesEntitiesBackend extends AWriteBehindEntitiesBackend {
+
+	private static final int LOADER_BATCH_SIZE = 256;
+	private static final String DELTA_SUFFIX = ".delta";
 
 	protected AFileStorage storage;
 	protected AFileStorage logStorage;
@@ -49,13 +60,26 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 	private DateAndTime loadTime;
 	private DateAndTime lastSaveTime;
 
+	private boolean deltaWrites;
+	private int maxDeltasPerEntity = 32;
+	private Map<String, Integer> deltaCountsByEntityId = new ConcurrentHashMap<String, Integer>();
+	private long deltaSaveCount;
+
 	public AJsonFilesEntitiesBackend(AFileStorage storage, AFileStorage logStorage) {
+		this(storage, logStorage, 1);
+	}
+
+	/**
+	 * @param loaderThreadCount Number of threads which parse the entity files on startup. <code>1</code> loads
+	 *            all files in the calling thread.
+	 */
+	public AJsonFilesEntitiesBackend(AFileStorage storage, AFileStorage logStorage, int loaderThreadCount) {
 		this.storage = storage;
 		this.logStorage = logStorage;
-		load();
+		load(loaderThreadCount);
 	}
 
-	private void load() {
+	private void load(int threadCount) {
 		int dataVersion = loadVersion();
 		AEntityJsonFileUpgrades upgrader = createUpgrader();
 		int softwareVersion = upgrader.getSoftwareVersion();
@@ -68,35 +92,145 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 		RuntimeTracker rt = new RuntimeTracker();
 		upgrader.upgradeEntitiesDir(storage.getFile(null), dataVersion);
 		TypeResolver typeResolver = createTypeResolver();
-		for (Class<? extends AEntity> type : getEntityTypes()) {
-			log.info("   ", type.getSimpleName());
-			RuntimeTracker rt2 = new RuntimeTracker();
-			int count = 0;
-			File dir = storage.getFile(type.getSimpleName());
-			File[] files = dir.listFiles();
-			if (files != null) {
-				for (File file : files) {
-					if (!file.isFile()) continue;
-					if (!file.getName().endsWith(".json")) continue;
-					upgrader.upgradeEntity(file, type, dataVersion);
-					if (!file.exists()) continue;
-					AEntity entity;
-					try {
-						entity = JsonMapper.deserialize(file, type, typeResolver);
-					} catch (Exception ex) {
-						throw new RuntimeException("Loading entity failed: " + file, ex);
+		ExecutorService executor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount,
+			new DeamonThreadFactory()) : null;
+		try {
+			for (Class<? extends AEntity> type : getEntityTypes()) {
+				log.info("   ", type.getSimpleName());
+				RuntimeTracker rt2 = new RuntimeTracker();
+				List<File> files = new ArrayList<File>();
+				File dir = storage.getFile(type.getSimpleName());
+				File[] dirFiles = dir.listFiles();
+				if (dirFiles != null) {
+					for (File file : dirFiles) {
+						if (!file.isFile()) continue;
+						if (!file.getName().endsWith(".json")) continue;
+						upgrader.upgradeEntity(file, type, dataVersion);
+						if (!file.exists()) continue;
+						files.add(file);
+					}
+				}
+				if (executor == null) {
+					for (File file : files) {
+						cache.add(loadEntity(file, type, typeResolver));
 					}
-					cache.add(entity);
-					count++;
+				} else {
+					loadEntities(files, type, typeResolver, executor);
 				}
+				long runtime = rt2.getRuntime();
+				int count = files.size();
+				log.info("      ->", count, runtime > 1000 ? rt2.getRuntimeFormated() : "",
+					runtime > 0 && count > 0 ? "| " + (count * 1000L / runtime) + " entities/s" : "");
 			}
-			log.info("      ->", count, rt2.getRuntime() > 1000 ? rt2.getRuntimeFormated() : "");
+		} finally {
+			if (executor != null) executor.shutdownNow();
 		}
 
+		mergeDeltas();
+
 		saveVersion(softwareVersion);
 
 		loadTime = DateAndTime.now();
-		log.info(cache.size(), "entities loaded in", rt.getRuntimeFormated());
+		log.info(cache.size(), "entities loaded in", rt.getRuntimeFormated(), "| threads:", threadCount);
+	}
+
+	/**
+	 * Parses the files in the worker pool. The entities are added to the cache by the calling thread in the order
+	 * of the files.
+	 */
+	private void loadEntities(List<File> files, final Class<? extends AEntity> type,
+			final TypeResolver typeResolver, ExecutorService executor) {
+		List<Future<List<AEntity>>> batches = new ArrayList<Future<List<AEntity>>>();
+		for (int i = 0; i < files.size(); i += LOADER_BATCH_SIZE) {
+			final List<File> batch = files.subList(i, Math.min(i + LOADER_BATCH_SIZE, files.size()));
+			batches.add(executor.submit(new Callable<List<AEntity>>() {
+
+				@Override
+				public List<AEntity> call() throws Exception {
+					List<AEntity> entities = new ArrayList<AEntity>(batch.size());
+					for (File file : batch) {
+						entities.add(loadEntity(file, type, typeResolver));
+					}
+					return entities;
+				}
+			}));
+		}
+
+		for (Future<List<AEntity>> batch : batches) {
+			List<AEntity> entities;
+			try {
+				entities = batch.get();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException("Loading entities interrupted: " + type.getSimpleName(), ex);
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw new RuntimeException("Loading entities failed: " + type.getSimpleName(), cause);
+			}
+			cache.addAll(entities);
+		}
+	}
+
+	private AEntity loadEntity(File file, Class<? extends AEntity> type, TypeResolver typeResolver) {
+		try {
+			if (isEntityJsonCodecEnabled() && EntityJsonCodec.isSupported(type))
+				return EntityJsonCodec.read(file, type);
+			return JsonMapper.deserialize(file, type, typeResolver);
+		} catch (Exception ex) {
+			throw new RuntimeException("Loading entity failed: " + file, ex);
+		}
+	}
+
+	/**
+	 * Applies all delta files to the loaded entities and writes the complete entity files.
+	 */
+	private void mergeDeltas() {
+		final List<File> deltaFiles = new ArrayList<File>();
+		for (Class<? extends AEntity> type : getEntityTypes()) {
+			File[] dirFiles = storage.getFile(type.getSimpleName()).listFiles();
+			if (dirFiles == null) continue;
+			for (File file : dirFiles) {
+				if (file.isFile() && file.getName().endsWith(DELTA_SUFFIX)) deltaFiles.add(file);
+			}
+		}
+		if (deltaFiles.isEmpty()) return;
+
+		RuntimeTracker rt = new RuntimeTracker();
+		Persistence.runWithoutModificationEvents(new Runnable() {
+
+			@Override
+			public void run() {
+				for (File file : deltaFiles) {
+					mergeDelta(file);
+				}
+			}
+		});
+		log.info("   ", deltaFiles.size(), "delta files merged in", rt.getRuntimeFormated());
+	}
+
+	private void mergeDelta(File deltaFile) {
+		String id = Str.removeSuffix(deltaFile.getName(), DELTA_SUFFIX);
+		AEntity entity;
+		try {
+			entity = cache.getById(id);
+		} catch (EntityDoesNotExistException ex) {
+			log.warn("Deleting delta file of missing entity:", deltaFile);
+			IO.delete(deltaFile);
+			return;
+		}
+		for (String line : IO.readLines(deltaFile)) {
+			if (Str.isBlank(line)) continue;
+			Map<String, String> properties;
+			try {
+				properties = new JsonObject(line).toMapOfStrings();
+			} catch (Exception ex) {
+				log.warn("Ignoring incomplete delta:", deltaFile, line);
+				break;
+			}
+			entity.restoreProperties(properties);
+		}
+		writeEntity(entity, getFile(entity));
+		IO.delete(deltaFile);
 	}
 
 	private void saveVersion(int version) {
@@ -122,6 +256,7 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 		List<File> files = new ArrayList<File>();
 		RuntimeTracker rt = new RuntimeTracker();
 		int saveCount = 0;
+		int deltaCount = 0;
 		Collection<AEntity> created = new ArrayList<AEntity>();
 		if (modified != null) {
 			for (AEntity entity : modified) {
@@ -129,14 +264,17 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 				File file = getFile(entity);
 				if (!file.exists()) {
 					created.add(entity);
+				} else if (deltaWrites && modifiedPropertiesByEntityIds != null) {
+					File deltaFile = writeDelta(entity, modifiedPropertiesByEntityIds.get(entity.getId()));
+					if (deltaFile != null) {
+						files.add(deltaFile);
+						deltaCount++;
+						continue;
+					}
 				}
 				files.add(file);
 				log.debug("Saving entity:", entity.getClass().getSimpleName(), file.getName(), "in", file.getParent());
-				try {
-					JsonMapper.serialize(entity, file);
-				} catch (IOException ex) {
-					throw new RuntimeException("Writing entity to file failed: " + file + " -> " + entity, ex);
-				}
+				writeEntity(entity, file);
 				saveCount++;
 			}
 		}
@@ -145,7 +283,7 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 			for (String id : deleted) {
 				AEntity entity;
 				try {
-					entity = cache.getById(id);
+					entity = getEntityForWrite(id);
 				} catch (EntityDoesNotExistException ex) {
 					continue;
 				}
@@ -153,13 +291,16 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 				files.add(file);
 				log.debug("Deleting entity", entity.getClass().getSimpleName(), file);
 				IO.delete(file);
+				deleteDelta(entity);
 				deleteCount++;
 			}
 		}
 
 		writeLog(modifiedPropertiesByEntityIds, deleted, transactionText);
 
-		log.info("Entity changes saved:", rt.getRuntimeFormated(), "(" + saveCount, "saved,", deleteCount, "deleted)");
+		log.info("Entity changes saved:", rt.getRuntimeFormated(), "(" + saveCount, "saved,", deltaCount, "deltas,",
+			deleteCount, "deleted)");
+		deltaSaveCount += deltaCount;
 
 		lastSaveTime = DateAndTime.now();
 		onEntityChangesSaved(modified, deleted, created);
@@ -167,6 +308,76 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 		if (callback != null) callback.run();
 	}
 
+	private void writeEntity(AEntity entity, File file) {
+		try {
+			if (isEntityJsonCodecEnabled() && EntityJsonCodec.isSupported(entity.getClass())) {
+				EntityJsonCodec.write(entity, file);
+			} else {
+				JsonMapper.serialize(entity, file);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing entity to file failed: " + file + " -> " + entity, ex);
+		}
+		deleteDelta(entity);
+	}
+
+	/**
+	 * Appends the modified properties to the delta file of the entity.
+	 * 
+	 * @return the delta file or <code>null</code> if the complete entity file needs to be written
+	 */
+	private File writeDelta(AEntity entity, Map<String, String> modifiedProperties) {
+		if (modifiedProperties == null || modifiedProperties.isEmpty()) return null;
+		for (String property : modifiedProperties.keySet()) {
+			// not restorable from a delta, the complete entity needs to be written
+			if (!entity.isPropertyUpdatable(property)) return null;
+		}
+		String id = entity.getId();
+		Integer count = deltaCountsByEntityId.get(id);
+		if (count == null) count = 0;
+		if (count >= maxDeltasPerEntity) return null;
+
+		JsonObject json = new JsonObject(modifiedProperties);
+		json.put("id", id);
+		json.put("modificationTime", String.valueOf(entity.getModificationTime()));
+		File file = getDeltaFile(entity);
+		try {
+			IO.appendLine(file.getPath(), json.toString());
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing entity delta to file failed: " + file + " -> " + entity, ex);
+		}
+		deltaCountsByEntityId.put(id, count + 1);
+		return file;
+	}
+
+	private void deleteDelta(AEntity entity) {
+		if (deltaCountsByEntityId.remove(entity.getId()) == null) return;
+		IO.delete(getDeltaFile(entity));
+	}
+
+	/**
+	 * Write only the modified properties of existing entities to a delta file next to the entity file, instead of
+	 * rewriting the complete entity. Delta files are merged into the entity files after
+	 * <code>maxDeltasPerEntity</code> deltas, on the next complete write and on startup. Data upgrades are not
+	 * applied to delta files, so they should be merged (by restarting) before changing the data version.
+	 */
+	public void setDeltaWrites(boolean deltaWrites) {
+		this.deltaWrites = deltaWrites;
+	}
+
+	/**
+	 * Read and write entities through their generated <code>storeFields()</code> and <code>updateField()</code>
+	 * methods when they support it, see <code>EntityJsonCodec</code>. Other entities are read and written by
+	 * reflection.
+	 */
+	protected boolean isEntityJsonCodecEnabled() {
+		return true;
+	}
+
+	public void setMaxDeltasPerEntity(int maxDeltasPerEntity) {
+		this.maxDeltasPerEntity = maxDeltasPerEntity;
+	}
+
 	private void writeLog(Map<String, Map<String, String>> modifiedPropertiesByEntityIds, Collection<String> deleted,
 			String transactionText) {
 		File file = getLogFile();
@@ -209,6 +420,10 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 		return storage.getFile(entity.getClass().getSimpleName() + "/" + entity.getId() + ".json");
 	}
 
+	private File getDeltaFile(AEntity entity) {
+		return storage.getFile(entity.getClass().getSimpleName() + "/" + entity.getId() + DELTA_SUFFIX);
+	}
+
 	private File getLogFile() {
 		if (logStorage == null) return null;
 		long ct = System.currentTimeMillis();
@@ -229,6 +444,13 @@ public abstract class AJsonFilesEntitiesBackend extends ACachingEntitiesBackend
 		sb.append("* loadTime: ").append(loadTime).append("\n");
 		sb.append("* lastSaveTime: ").append(lastSaveTime).append("\n");
 
+		sb.append("\nDelta writes:\n");
+		sb.append("* enabled: ").append(deltaWrites).append("\n");
+		sb.append("* entities with deltas: ").append(deltaCountsByEntityId.size()).append("\n");
+		sb.append("* deltas saved: ").append(deltaSaveCount).append("\n");
+
+		sb.append(createWriteBehindInfo());
+
 		return sb.toString();
 	}
 
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.file;
+
+import ilarkesto.base.ClassMetadata;
+import ilarkesto.base.Reflect;
+import ilarkesto.core.logging.Log;
+import ilarkesto.core.persistance.AEntity;
+import ilarkesto.core.persistance.EntityFieldWriter;
+import ilarkesto.io.IO;
+import ilarkesto.json.JsonMapper;
+import ilarkesto.json.JsonSaxParser;
+import ilarkesto.json.JsonSaxParser.ContentHandler;
+import ilarkesto.json.JsonSaxParser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads and writes entity files through the generated <code>storeFields()</code> and <code>updateField()</code>
+ * methods instead of reflection. The files have the same format as the ones written by <code>JsonMapper</code>.
+ * Entity types which do not pass all their fields to <code>storeFields()</code> (not generated, additional fields
+ * in the subclass, unsupported property types) are not supported and have to use <code>JsonMapper</code>.
+ */
+public class EntityJsonCodec {
+
+	private static final Log log = Log.get(EntityJsonCodec.class);
+
+	private static final Map<Class, Boolean> supportedByType = new ConcurrentHashMap<Class, Boolean>();
+
+	public static boolean isSupported(Class<? extends AEntity> type) {
+		Boolean supported = supportedByType.get(type);
+		if (supported == null) {
+			supported = checkSupported(type);
+			supportedByType.put(type, supported);
+		}
+		return supported;
+	}
+
+	private static boolean checkSupported(Class<? extends AEntity> type) {
+		AEntity entity;
+		try {
+			entity = Reflect.newInstance(type);
+		} catch (Exception ex) {
+			return false;
+		}
+		final Set<String> storedNames = new HashSet<String>();
+		entity.storeFields(new EntityFieldWriter() {
+
+			@Override
+			public void field(String name, Object value) {
+				storedNames.add(name);
+			}
+		});
+		for (Field field : ClassMetadata.get(type).getFields(false, true, false)) {
+			if (storedNames.contains(field.getName())) continue;
+			log.info("Generated JSON codec not used for", type.getSimpleName() + ", field not stored:",
+				field.getName());
+			return false;
+		}
+		return true;
+	}
+
+	public static void write(AEntity entity, final PrintWriter out) {
+		out.print('{');
+		entity.storeFields(new EntityFieldWriter() {
+
+			private boolean first = true;
+
+			@Override
+			public void field(String name, Object value) {
+				if (first) {
+					first = false;
+				} else {
+					out.print(',');
+				}
+				out.print("\n \"");
+				out.print(name);
+				out.print("\": ");
+				JsonMapper.serialize(value, out, 1);
+			}
+		});
+		out.print("\n}");
+	}
+
+	public static void write(AEntity entity, File file) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		IO.createDirectory(file.getParentFile());
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tempFile)));
+		write(entity, out);
+		out.close();
+
+		try {
+			IO.delete(file);
+			IO.move(tempFile, file);
+		} finally {
+			IO.delete(tempFile);
+		}
+	}
+
+	public static <E extends AEntity> E read(Reader in, Class<E> type) throws IOException, ParseException {
+		EntityContentHandler<E> handler = new EntityContentHandler<E>(type);
+		new JsonSaxParser().parse(in, handler);
+		return handler.entity;
+	}
+
+	public static <E extends AEntity> E read(File file, Class<E> type) throws IOException, ParseException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			return read(in, type);
+		} finally {
+			IO.close(in);
+		}
+	}
+
+	private static class EntityContentHandler<E extends AEntity> implements ContentHandler {
+
+		private Class<E> type;
+		private E entity;
+		private String fieldName;
+		private List<Object> array;
+
+		public EntityContentHandler(Class<E> type) {
+			super();
+			this.type = type;
+		}
+
+		@Override
+		public void onBegin() {}
+
+		@Override
+		public void onEnd() {}
+
+		@Override
+		public boolean onBeginObject() {
+			if (entity != null)
+				throw new IllegalStateException("Nested objects not supported: " + type.getSimpleName() + "."
+						+ fieldName);
+			entity = Reflect.newInstance(type);
+			return true;
+		}
+
+		@Override
+		public boolean onEndObject() {
+			return true;
+		}
+
+		@Override
+		public boolean onBeginAttribute(String key) {
+			fieldName = key;
+			return true;
+		}
+
+		@Override
+		public boolean onEndAttribute() {
+			fieldName = null;
+			return true;
+		}
+
+		@Override
+		public boolean onBeginArray() {
+			if (array != null)
+				throw new IllegalStateException("Nested arrays not supported: " + type.getSimpleName() + "."
+						+ fieldName);
+			array = new ArrayList<Object>();
+			return true;
+		}
+
+		@Override
+		public boolean onEndArray() {
+			List<Object> value = array;
+			array = null;
+			updateField(value);
+			return true;
+		}
+
+		@Override
+		public boolean onPrimitiveValue(Object value) {
+			if (array != null) {
+				array.add(value);
+				return true;
+			}
+			updateField(value);
+			return true;
+		}
+
+		private void updateField(Object value) {
+			if (!entity.updateField(fieldName, value))
+				throw new IllegalStateException("Field does not exist: " + type.getName() + "." + fieldName);
+		}
+
+	}
+
+}
@@ -16,11 +16,12 @@ package ilarkesto.persistence.git;
 
 import ilarkesto.base.Env;
 import ilarkesto.core.base.Bytes;
-import ilarkesto.core.base.Utl;
+import ilarkesto.core.base.RuntimeTracker;
 import ilarkesto.core.persistance.AEntity;
 import ilarkesto.core.time.DateAndTime;
 import ilarkesto.di.Context;
 import ilarkesto.di.app.AApplication;
+import ilarkesto.gwt.server.EntityPropertiesSnapshots;
 import ilarkesto.integration.git.Git;
 import ilarkesto.integration.git.GitProject;
 import ilarkesto.persistence.file.AJsonFilesEntitiesBackend;
@@ -32,55 +33,86 @@ import java.util.Collection;
 public abstract class AJsonFilesWithGitEntitiesBackend extends AJsonFilesEntitiesBackend {
 
 	private GitProject git;
+	private GitCommitter gitCommitter;
+
+	private long fanOutCount;
+	private long fanOutTime;
+	private long fanOutMaxTime;
+	private long fanOutCreateCount;
+	private long fanOutShareCount;
+	private long fanOutCopyCount;
 
 	public AJsonFilesWithGitEntitiesBackend() {
+		this(1);
+	}
+
+	public AJsonFilesWithGitEntitiesBackend(int loaderThreadCount) {
 		super(AApplication.get().getFileStorage().getSubStorage("entities"), AApplication.get().getFileStorage()
-				.getSubStorage("transactions").getSubStorage(DateAndTime.now().formatLog()));
+				.getSubStorage("transactions").getSubStorage(DateAndTime.now().formatLog()), loaderThreadCount);
 
 		git = new GitProject(new Git(), new File(AApplication.get().getApplicationDataDir()));
+		gitCommitter = new GitCommitter(git);
+	}
+
+	/**
+	 * Saved changes are committed to git in a background thread. Transactions within the window are committed
+	 * together.
+	 * 
+	 * @param windowMillis time to wait for more transactions after the first uncommitted one
+	 * @param maxTransactions number of transactions which are committed without waiting for the window
+	 */
+	public void setGitCommitWindow(long windowMillis, int maxTransactions) {
+		gitCommitter.setWindow(windowMillis, maxTransactions);
+	}
+
+	/**
+	 * Blocks until all saved changes are committed to git.
+	 */
+	public void flushGit() {
+		gitCommitter.flush();
+	}
+
+	/**
+	 * Commits all saved changes to git and stops the committer thread. Gets called on application shutdown.
+	 */
+	public void close() {
+		gitCommitter.stop();
 	}
 
 	@Override
 	protected void onEntityChangesSaved(Collection<AEntity> modified, Collection<String> deleted,
 			Collection<AEntity> created) {
-		if (git.isInitialized()) {
-			try {
-				git.addAll();
-			} catch (Exception ex) {
-				String message = Utl.getRootCauseMessage(ex);
-				if (message != null && message.contains(".git/index.lock")) {
-					git.deleteIndexLock();
-					try {
-						git.addAll();
-					} catch (Exception ex2) {
-						log.error("git add failed:", ex);
-					}
-				} else {
-					log.error("git add failed:", ex);
-				}
-			}
-
-			try {
-				git.commit(Context.get().toString());
-			} catch (Exception ex) {
-				String message = Utl.getRootCauseMessage(ex);
-				if (message != null && message.contains(".git/index.lock")) {
-					git.deleteIndexLock();
-					try {
-						git.commit(Context.get().toString());
-					} catch (Exception ex2) {
-						log.error("git commit failed:", ex);
-					}
-				} else {
-					log.error("git commit failed:", ex);
-				}
-			}
-		}
+		if (git.isInitialized()) gitCommitter.requestCommit(Context.get().toString());
 
 		AWebApplication webApplication = AWebApplication.get();
+		RuntimeTracker rt = new RuntimeTracker();
+		EntityPropertiesSnapshots snapshots = new EntityPropertiesSnapshots();
 		webApplication.deleteFromClients(deleted);
-		webApplication.sendToAllIfTracking((Collection) modified);
-		webApplication.sendToAll((Collection) created);
+		webApplication.sendToAllIfTracking((Collection) modified, snapshots);
+		webApplication.sendToAll((Collection) created, snapshots);
+		onFanOut(rt.getRuntime(), snapshots);
+	}
+
+	private synchronized void onFanOut(long time, EntityPropertiesSnapshots snapshots) {
+		fanOutCount++;
+		fanOutTime += time;
+		if (time > fanOutMaxTime) fanOutMaxTime = time;
+		fanOutCreateCount += snapshots.getCreateCount();
+		fanOutShareCount += snapshots.getShareCount();
+		fanOutCopyCount += snapshots.getCopyCount();
+		if (log.isDebugEnabled()) log.debug("Sent changes to clients in", time, "ms:", snapshots);
+	}
+
+	private synchronized String createFanOutInfo() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nSending changes to clients:\n");
+		sb.append("* commits: ").append(fanOutCount).append("\n");
+		sb.append("* average time: ").append(fanOutCount == 0 ? 0 : fanOutTime / fanOutCount).append(" ms\n");
+		sb.append("* max time: ").append(fanOutMaxTime).append(" ms\n");
+		sb.append("* properties maps created: ").append(fanOutCreateCount).append("\n");
+		sb.append("* properties maps shared: ").append(fanOutShareCount).append("\n");
+		sb.append("* properties maps copied by filters: ").append(fanOutCopyCount).append("\n");
+		return sb.toString();
 	}
 
 	@Override
@@ -92,7 +124,11 @@ public abstract class AJsonFilesWithGitEntitiesBackend extends AJsonFilesEntitie
 
 		sb.append(super.createInfo());
 
-		if (git.isInitialized()) sb.append("\nGit status: ").append(git.status()).append("\n");
+		sb.append(createFanOutInfo());
+
+		sb.append(gitCommitter.createInfo());
+
+		if (git.isInitialized()) sb.append("\nGit status: ").append(gitCommitter.status()).append("\n");
 
 		return sb.toString();
 	}
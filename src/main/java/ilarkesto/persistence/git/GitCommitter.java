@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.git;
+
+import ilarkesto.concurrent.DeamonThreadFactory;
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.base.Utl;
+import ilarkesto.core.logging.Log;
+import ilarkesto.integration.git.GitProject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adds and commits the working tree of a git project in a background thread, so git never runs on the committing
+ * thread. Requests are collected until the window since the first pending request has passed or the maximum
+ * number of requests is reached, then all of them are committed at once. All git commands of the committer run
+ * serialized under one lock, so a <code>.git/index.lock</code> found while holding it is never held by one of our
+ * own git processes. Such a stale lock is deleted and the git command is retried.
+ */
+public class GitCommitter {
+
+	private static final Log log = Log.get(GitCommitter.class);
+
+	private static final int MAX_RETRIES = 3;
+	private static final int MAX_MESSAGES_IN_COMMIT = 10;
+
+	private final GitProject git;
+	private final Object gitLock = new Object();
+	private long windowMillis = 2000;
+	private int maxRequests = 100;
+
+	private List<String> pendingMessages = new ArrayList<String>();
+	private long firstPendingTime;
+	private long requestCount;
+	private long processedCount;
+	private long committedCount;
+	private long flushTarget;
+	private Thread thread;
+
+	private long commitCount;
+	private long lastCommitDuration;
+	private long lastLag;
+	private long maxLag;
+	private int maxBatchSize;
+	private Exception lastError;
+	private Exception commitError;
+
+	public GitCommitter(GitProject git) {
+		this.git = git;
+	}
+
+	/**
+	 * @param windowMillis time to wait for more requests after the first pending one
+	 * @param maxRequests number of pending requests which are committed without waiting for the window
+	 */
+	public synchronized void setWindow(long windowMillis, int maxRequests) {
+		this.windowMillis = windowMillis;
+		this.maxRequests = maxRequests;
+		notifyAll();
+	}
+
+	public synchronized void requestCommit(String message) {
+		if (pendingMessages.isEmpty()) firstPendingTime = System.currentTimeMillis();
+		pendingMessages.add(message);
+		requestCount++;
+		if (thread == null) start();
+		notifyAll();
+	}
+
+	private void start() {
+		thread = new DeamonThreadFactory().newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				commitLoop();
+			}
+		});
+		thread.setName(getClass().getSimpleName());
+		thread.start();
+	}
+
+	/**
+	 * Blocks until all requests made before this call are committed.
+	 * 
+	 * @throws RuntimeException if the last commit failed, the changes are committed with the next request
+	 */
+	public synchronized void flush() {
+		long target = requestCount;
+		flushTarget = Math.max(flushTarget, target);
+		notifyAll();
+		while (processedCount < target) {
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+		if (commitError != null) throw new RuntimeException("git commit failed", commitError);
+	}
+
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = this.thread;
+			if (thread == null) return;
+		}
+		try {
+			flush();
+		} finally {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			} finally {
+				synchronized (this) {
+					this.thread = null;
+				}
+			}
+		}
+	}
+
+	private void commitLoop() {
+		while (!Thread.currentThread().isInterrupted()) {
+			List<String> messages;
+			long requestTime;
+			try {
+				synchronized (this) {
+					while (!isBatchReady()) {
+						if (pendingMessages.isEmpty()) {
+							wait();
+						} else {
+							wait(Math.max(1, firstPendingTime + windowMillis - System.currentTimeMillis()));
+						}
+					}
+					messages = pendingMessages;
+					requestTime = firstPendingTime;
+					pendingMessages = new ArrayList<String>();
+				}
+			} catch (InterruptedException ex) {
+				return;
+			}
+			commit(messages, requestTime);
+		}
+	}
+
+	private boolean isBatchReady() {
+		if (pendingMessages.isEmpty()) return false;
+		if (pendingMessages.size() >= maxRequests) return true;
+		if (flushTarget > processedCount) return true;
+		return System.currentTimeMillis() >= firstPendingTime + windowMillis;
+	}
+
+	private void commit(List<String> messages, long requestTime) {
+		RuntimeTracker rt = new RuntimeTracker();
+		Exception error = null;
+		try {
+			synchronized (gitLock) {
+				runWithRetry("add", null);
+				runWithRetry("commit", createCommitMessage(messages));
+			}
+		} catch (Exception ex) {
+			error = ex;
+			log.error("git commit failed:", messages.size(), "transactions", ex);
+		}
+		long lag = System.currentTimeMillis() - requestTime;
+		synchronized (this) {
+			processedCount += messages.size();
+			commitError = error;
+			if (error == null) {
+				commitCount++;
+				committedCount += messages.size();
+			} else {
+				lastError = error;
+			}
+			lastCommitDuration = rt.getRuntime();
+			lastLag = lag;
+			maxLag = Math.max(maxLag, lag);
+			maxBatchSize = Math.max(maxBatchSize, messages.size());
+			notifyAll();
+		}
+		log.debug("git commit of", messages.size(), "transactions took", rt.getRuntimeFormated() + ", lag:", lag,
+			"ms");
+	}
+
+	/**
+	 * Runs <code>git status</code> serialized with the commits, since it may take the index lock too.
+	 */
+	public String status() {
+		synchronized (gitLock) {
+			return git.status();
+		}
+	}
+
+	/**
+	 * Must be called while holding <code>gitLock</code>, which guarantees no other git process of ours is running.
+	 */
+	private void runWithRetry(String command, String message) {
+		for (int i = 1;; i++) {
+			try {
+				if (message == null) {
+					git.addAll();
+				} else {
+					git.commit(message);
+				}
+				return;
+			} catch (RuntimeException ex) {
+				String rootCauseMessage = Utl.getRootCauseMessage(ex);
+				if (i >= MAX_RETRIES || rootCauseMessage == null || !rootCauseMessage.contains(".git/index.lock"))
+					throw ex;
+				log.warn("git", command, "failed, deleting index.lock and retrying:", rootCauseMessage);
+				git.deleteIndexLock();
+				try {
+					Thread.sleep(100 * i);
+				} catch (InterruptedException ie) {
+					throw new RuntimeException(ie);
+				}
+			}
+		}
+	}
+
+	private static String createCommitMessage(List<String> messages) {
+		if (messages.size() == 1) return messages.get(0);
+		StringBuilder sb = new StringBuilder();
+		sb.append(messages.size()).append(" transactions");
+		for (int i = 0; i < messages.size() && i < MAX_MESSAGES_IN_COMMIT; i++) {
+			sb.append("\n").append(messages.get(i));
+		}
+		if (messages.size() > MAX_MESSAGES_IN_COMMIT) sb.append("\n...");
+		return sb.toString();
+	}
+
+	public synchronized String createInfo() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\nGit commits:\n");
+		sb.append("* window: ").append(windowMillis).append(" ms / ").append(maxRequests).append(" transactions\n");
+		sb.append("* pending transactions: ").append(pendingMessages.size()).append("\n");
+		sb.append("* transactions in failed commits: ").append(processedCount - committedCount).append("\n");
+		long currentLag = pendingMessages.isEmpty() ? 0 : System.currentTimeMillis() - firstPendingTime;
+		sb.append("* current lag: ").append(currentLag).append(" ms\n");
+		sb.append("* last lag: ").append(lastLag).append(" ms\n");
+		sb.append("* max lag: ").append(maxLag).append(" ms\n");
+		sb.append("* commits: ").append(commitCount).append(" for ").append(committedCount)
+				.append(" transactions\n");
+		sb.append("* max transactions per commit: ").append(maxBatchSize).append("\n");
+		sb.append("* last commit time: ").append(lastCommitDuration).append(" ms\n");
+		if (lastError != null) sb.append("* last error: ").append(lastError).append("\n");
+		return sb.toString();
+	}
+
+}
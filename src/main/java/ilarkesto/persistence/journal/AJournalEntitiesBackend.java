@@ -0,0 +1,534 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.journal;
+
+import ilarkesto.concurrent.DeamonThreadFactory;
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.base.Str;
+import ilarkesto.core.persistance.ACachingEntitiesBackend;
+import ilarkesto.core.persistance.AEntity;
+import ilarkesto.core.persistance.Entity;
+import ilarkesto.core.persistance.EntityDoesNotExistException;
+import ilarkesto.core.persistance.Persistence;
+import ilarkesto.core.persistance.Transient;
+import ilarkesto.core.time.DateAndTime;
+import ilarkesto.io.AFileStorage;
+import ilarkesto.io.IO;
+import ilarkesto.json.JsonMapper;
+import ilarkesto.json.JsonMapper.TypeResolver;
+import ilarkesto.json.JsonObject;
+import ilarkesto.persistence.file.EntityJsonCodec;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entities backend which appends the changes of every transaction as one record to a journal file. When the
+ * journal gets too big, all entities are written to a snapshot and a new journal segment is started. On startup
+ * the snapshot and the following journal segments are replayed.
+ * <p>
+ * Entities are stored by <code>createPropertiesMap()</code> and restored by <code>updateProperties()</code>. If
+ * <code>updateProperties()</code> can not restore one of the properties (see <code>isPropertyUpdatable()</code>),
+ * all fields of the entity are stored instead, like <code>AJsonFilesEntitiesBackend</code> does with
+ * <code>EntityJsonCodec</code> or <code>JsonMapper</code>.
+ * <p>
+ * Commits are reported as commited after the journal is forced to the disk. Commits which wait at the same time
+ * share one sync (group commit). When a segment exceeds the compaction threshold, the transaction starts a new
+ * segment and the snapshot is written by a background thread.
+ */
+public abstract class AJournalEntitiesBackend extends ACachingEntitiesBackend {
+
+	private static final String SNAPSHOT_FILENAME = "snapshot.dat";
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String FIELDS = "@fields";
+
+	protected AFileStorage storage;
+
+	private long syncInterval;
+	private long compactionThreshold = 64 * 1024 * 1024;
+
+	private volatile JournalFile journal;
+	private volatile int segment;
+	private Map<String, Class<? extends AEntity>> typesByName;
+	private TypeResolver typeResolver;
+	private Thread syncThread;
+	private volatile Thread compactionThread;
+
+	private final Object syncLock = new Object();
+	private volatile long appendedCount;
+	private long syncedCount;
+	private boolean syncing;
+	private RuntimeException syncFailure;
+
+	private DateAndTime loadTime;
+	private volatile DateAndTime lastSaveTime;
+	private volatile DateAndTime lastCompactionTime;
+	private volatile long recordCount;
+
+	protected abstract List<Class<? extends AEntity>> getEntityTypes();
+
+	/**
+	 * Resolves the types of collection fields of entities which are stored with all their fields and not
+	 * supported by <code>EntityJsonCodec</code>.
+	 */
+	protected TypeResolver createTypeResolver() {
+		return TypeResolver.NONE;
+	}
+
+	/**
+	 * @param syncInterval Milliseconds between forcing the journal to the disk. With <code>0</code> the first
+	 *            waiting commit forces the journal for all commits appended until then. Otherwise the journal is
+	 *            forced by a background thread, which covers all transactions of the interval with one sync, and
+	 *            commits wait up to the interval.
+	 */
+	public AJournalEntitiesBackend(AFileStorage storage, long syncInterval) {
+		this.storage = storage;
+		this.syncInterval = syncInterval;
+		load();
+		if (syncInterval > 0) startSyncThread();
+	}
+
+	private void load() {
+		typesByName = new HashMap<String, Class<? extends AEntity>>();
+		for (Class<? extends AEntity> type : getEntityTypes()) {
+			typesByName.put(Str.getSimpleName(type), type);
+		}
+		typeResolver = createTypeResolver();
+
+		log.info("Loading entities from", storage);
+		RuntimeTracker rt = new RuntimeTracker();
+		Persistence.runWithoutModificationEvents(new Runnable() {
+
+			@Override
+			public void run() {
+				loadSnapshot();
+				replaySegments();
+			}
+		});
+
+		loadTime = DateAndTime.now();
+		log.info(cache.size(), "entities loaded in", rt.getRuntimeFormated(), "| segment:", segment);
+	}
+
+	private void loadSnapshot() {
+		File file = storage.getFile(SNAPSHOT_FILENAME);
+		if (!file.exists()) return;
+		JournalFile snapshot = new JournalFile(file);
+		List<String> records = snapshot.readRecords();
+		snapshot.close();
+		if (records.isEmpty()) return;
+
+		JsonObject header = new JsonObject(records.get(0));
+		segment = header.getInteger("segment");
+		for (int i = 1; i < records.size(); i++) {
+			updateEntity(new JsonObject(records.get(i)));
+		}
+		log.info("   ", records.size() - 1, "entities from snapshot");
+	}
+
+	private void replaySegments() {
+		List<Integer> segments = listSegments();
+		for (Integer number : segments) {
+			if (number < segment) {
+				log.info("    Deleting obsolete journal segment", number);
+				IO.delete(getSegmentFile(number));
+				continue;
+			}
+			if (journal != null) journal.close();
+			journal = new JournalFile(getSegmentFile(number));
+			segment = number;
+			List<String> records = journal.readRecords();
+			for (String record : records) {
+				replay(new JsonObject(record));
+			}
+			log.info("   ", records.size(), "transactions from journal segment", number);
+		}
+		if (journal == null) journal = new JournalFile(getSegmentFile(segment));
+	}
+
+	private void replay(JsonObject record) {
+		JsonObject modified = record.getObject("modified");
+		if (modified != null) {
+			for (String id : modified.getProperties()) {
+				updateEntity(modified.getObject(id));
+			}
+		}
+		List<String> deleted = record.getArrayOfStrings("deleted");
+		if (deleted != null) cache.removeAll(deleted);
+		recordCount++;
+	}
+
+	private void updateEntity(JsonObject json) {
+		if (json.contains(FIELDS)) {
+			loadEntity(json);
+			return;
+		}
+		Map<String, String> properties = json.toMapOfStrings();
+		String id = properties.get("id");
+		AEntity entity;
+		try {
+			entity = cache.getById(id);
+		} catch (EntityDoesNotExistException ex) {
+			Class<? extends AEntity> type = getType(properties.get("@type"), id);
+			if (type == null) return;
+			try {
+				entity = type.newInstance();
+			} catch (Exception ex2) {
+				throw new RuntimeException("Instantiating entity failed: " + type.getName(), ex2);
+			}
+			entity.setId(id);
+		}
+		entity.restoreProperties(properties);
+		cache.add(entity);
+	}
+
+	private void loadEntity(JsonObject json) {
+		String id = json.getString("id");
+		Class<? extends AEntity> type = getType(json.getString("@type"), id);
+		if (type == null) return;
+		String fields = json.getObject(FIELDS).toString();
+		AEntity entity;
+		try {
+			if (EntityJsonCodec.isSupported(type)) {
+				entity = EntityJsonCodec.read(new StringReader(fields), type);
+			} else {
+				entity = JsonMapper.deserialize(fields, type, typeResolver);
+			}
+		} catch (Exception ex) {
+			throw new RuntimeException("Loading entity failed: " + type.getSimpleName() + " " + id, ex);
+		}
+		cache.add(entity);
+	}
+
+	private Class<? extends AEntity> getType(String typeName, String id) {
+		Class<? extends AEntity> type = typeName == null ? null : typesByName.get(typeName);
+		if (type == null) log.warn("Skipping properties of unknown entity:", typeName, id);
+		return type;
+	}
+
+	/**
+	 * Appends the record while updating and waits for the sync afterwards, so other transactions can append
+	 * their records to the same sync. The callback runs after the sync.
+	 */
+	@Override
+	public void update(Collection<AEntity> modified, Collection<String> deletedIds,
+			Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback, String transactionText) {
+		if ((modified == null || modified.isEmpty()) && (deletedIds == null || deletedIds.isEmpty())) {
+			super.update(modified, deletedIds, modifiedPropertiesByEntityId, callback, transactionText);
+			return;
+		}
+		super.update(modified, deletedIds, modifiedPropertiesByEntityId, null, transactionText);
+		awaitSync(appendedCount);
+		if (callback != null) callback.run();
+	}
+
+	@Override
+	protected void onUpdate(Collection<AEntity> modified, Collection<String> deleted,
+			Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback, String transactionText) {
+		if ((modified == null || modified.isEmpty()) && (deleted == null || deleted.isEmpty())) {
+			if (callback != null) callback.run();
+			return;
+		}
+		if (journal.getSize() > compactionThreshold && compactionThread == null) startCompaction();
+
+		journal.append(createRecord(modified, deleted, modifiedPropertiesByEntityId, transactionText).toString());
+		appendedCount++;
+		recordCount++;
+		lastSaveTime = DateAndTime.now();
+
+		if (callback != null) callback.run();
+	}
+
+	/**
+	 * Blocks until the journal is forced to the disk up to the given number of appended records.
+	 */
+	private void awaitSync(long count) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				synchronized (syncLock) {
+					if (syncedCount >= count) return;
+					if (syncInterval > 0 && syncFailure != null)
+						throw new RuntimeException("Syncing journal failed", syncFailure);
+					if (syncing || syncInterval > 0) {
+						try {
+							syncLock.wait();
+						} catch (InterruptedException ex) {
+							interrupted = true;
+						}
+						continue;
+					}
+					syncing = true;
+				}
+				sync();
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Forces the journal to the disk and releases the commits which were appended before.
+	 */
+	private void sync() {
+		// read before the journal: the records of a replaced journal were forced when it was closed
+		long count = appendedCount;
+		RuntimeException failure = null;
+		try {
+			journal.sync();
+		} catch (RuntimeException ex) {
+			failure = ex;
+		}
+		synchronized (syncLock) {
+			syncing = false;
+			syncFailure = failure;
+			if (failure == null && count > syncedCount) syncedCount = count;
+			syncLock.notifyAll();
+		}
+		if (failure != null) throw failure;
+	}
+
+	private JsonObject createRecord(Collection<AEntity> modified, Collection<String> deleted,
+			Map<String, Map<String, String>> modifiedPropertiesByEntityId, String transactionText) {
+		JsonObject record = new JsonObject();
+		record.put("time", DateAndTime.now().toString());
+		record.put("txMessage", transactionText);
+		JsonObject modifiedJson = record.putNewObject("modified");
+		if (modified != null) {
+			for (AEntity entity : modified) {
+				if (entity instanceof Transient) continue;
+				String id = entity.getId();
+				Map<String, String> properties = modifiedPropertiesByEntityId == null ? null
+						: modifiedPropertiesByEntityId.get(id);
+				if (properties == null || !cache.containsWithId(id)) properties = entity.createPropertiesMap();
+				modifiedJson.put(id, createEntityJson(entity, properties));
+			}
+		}
+		record.put("deleted", deleted == null ? Collections.emptyList() : deleted);
+		return record;
+	}
+
+	/**
+	 * Continues with a new journal segment and writes all entities to a new snapshot in a background thread.
+	 * Called while the backend is updating, before the record of the transaction is appended, so the cache
+	 * contains all changes from the previous segments. Entities which are changed while the snapshot is written
+	 * can be written with their newer state, the records of the new segment set the same values again on replay.
+	 * If writing the snapshot fails, the previous snapshot and segments stay in place.
+	 */
+	private void startCompaction() {
+		final List<AEntity> entities = cache.getAllAsList();
+		final int nextSegment = segment + 1;
+		journal.close();
+		journal = new JournalFile(getSegmentFile(nextSegment));
+		segment = nextSegment;
+
+		compactionThread = new DeamonThreadFactory().newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					writeSnapshot(entities, nextSegment);
+				} catch (Throwable ex) {
+					log.error("Writing journal snapshot failed:", nextSegment, ex);
+				} finally {
+					compactionThread = null;
+				}
+			}
+		});
+		compactionThread.setName(getClass().getSimpleName() + "-compaction");
+		compactionThread.start();
+	}
+
+	private void writeSnapshot(List<AEntity> entities, int nextSegment) {
+		RuntimeTracker rt = new RuntimeTracker();
+		File tmpFile = storage.getFile(SNAPSHOT_FILENAME + ".tmp");
+		IO.delete(tmpFile);
+		JournalFile snapshot = new JournalFile(tmpFile);
+		int count = 0;
+		try {
+			JsonObject header = new JsonObject();
+			header.put("segment", nextSegment);
+			header.put("time", DateAndTime.now().toString());
+			snapshot.append(header.toString());
+			for (AEntity entity : entities) {
+				if (entity instanceof Transient) continue;
+				snapshot.append(createEntityJson(entity, entity.createPropertiesMap()).toString());
+				count++;
+			}
+		} finally {
+			snapshot.close();
+		}
+		IO.move(tmpFile, storage.getFile(SNAPSHOT_FILENAME), true);
+
+		for (Integer number : listSegments()) {
+			if (number < nextSegment) IO.delete(getSegmentFile(number));
+		}
+
+		lastCompactionTime = DateAndTime.now();
+		log.info("Journal compacted:", count, "entities in", rt.getRuntimeFormated(), "| segment:", nextSegment);
+	}
+
+	/**
+	 * @return the properties, or all fields of the entity if <code>updateProperties()</code> can not restore one
+	 *         of the properties
+	 */
+	private JsonObject createEntityJson(AEntity entity, Map<String, String> properties) {
+		for (String property : properties.keySet()) {
+			if (!entity.isPropertyUpdatable(property)) return createFieldsJson(entity);
+		}
+		return new JsonObject(properties);
+	}
+
+	private JsonObject createFieldsJson(AEntity entity) {
+		String fields;
+		if (EntityJsonCodec.isSupported(entity.getClass())) {
+			StringWriter stringWriter = new StringWriter();
+			PrintWriter out = new PrintWriter(stringWriter);
+			EntityJsonCodec.write(entity, out);
+			out.close();
+			fields = stringWriter.toString();
+		} else {
+			fields = JsonMapper.serialize(entity);
+		}
+		JsonObject json = new JsonObject();
+		json.put("@type", Str.getSimpleName(entity.getClass()));
+		json.put("id", entity.getId());
+		json.put(FIELDS, new JsonObject(fields));
+		return json;
+	}
+
+	private List<Integer> listSegments() {
+		List<Integer> ret = new ArrayList<Integer>();
+		for (File file : storage.listFiles()) {
+			String name = file.getName();
+			if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+			ret.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private File getSegmentFile(int number) {
+		return storage.getFile(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+	}
+
+	private void startSyncThread() {
+		syncThread = new DeamonThreadFactory().newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				boolean running = true;
+				while (running) {
+					try {
+						Thread.sleep(syncInterval);
+					} catch (InterruptedException ex) {
+						running = false;
+					}
+					try {
+						sync();
+					} catch (Exception ex) {
+						log.error("Syncing journal failed:", journal, ex);
+					}
+				}
+			}
+		});
+		syncThread.setName(getClass().getSimpleName() + "-sync");
+		syncThread.start();
+	}
+
+	/**
+	 * Waits for a running compaction, forces the journal to the disk and stops the sync thread.
+	 */
+	public void close() {
+		join(compactionThread);
+		if (syncThread != null) {
+			syncThread.interrupt();
+			join(syncThread);
+		}
+		journal.close();
+	}
+
+	private static void join(Thread thread) {
+		if (thread == null) return;
+		try {
+			thread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @param compactionThreshold Journal size in bytes after which a new segment is started and a new snapshot
+	 *            is written by a background thread. Until the snapshot is written the previous segments are kept,
+	 *            so a bigger threshold means fewer snapshots but more journal to replay on startup.
+	 */
+	public void setCompactionThreshold(long compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	@Override
+	public String loadOutsourcedString(Entity entity, String propertyName) {
+		File file = getOutsourcedPropertyFile(entity, propertyName);
+		if (!file.exists()) return null;
+		return IO.readFile(file, IO.UTF_8);
+	}
+
+	@Override
+	public void saveOutsourcedString(Entity entity, String propertyName, String value) {
+		File file = getOutsourcedPropertyFile(entity, propertyName);
+		if (value == null) {
+			IO.delete(file);
+		} else {
+			IO.writeFile(file, value, IO.UTF_8);
+		}
+	}
+
+	private File getOutsourcedPropertyFile(Entity entity, String propertyName) {
+		return storage.getFile(entity.getClass().getSimpleName() + "/" + entity.getId() + "." + propertyName + ".txt");
+	}
+
+	@Override
+	public String createInfo() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("\nEntity counts:\n");
+		for (Map.Entry<Class, Integer> entry : cache.countEntities().entrySet()) {
+			sb.append("* ").append(entry.getKey().getSimpleName()).append(": ").append(entry.getValue()).append("\n");
+		}
+
+		sb.append("\nJournal:\n");
+		sb.append("* segment: ").append(segment).append("\n");
+		sb.append("* size: ").append(journal.getSize()).append(" bytes\n");
+		sb.append("* transactions since start: ").append(recordCount).append("\n");
+		sb.append("* syncInterval: ").append(syncInterval).append(" ms\n");
+
+		sb.append("\nTimes:\n");
+		sb.append("* loadTime: ").append(loadTime).append("\n");
+		sb.append("* lastSaveTime: ").append(lastSaveTime).append("\n");
+		sb.append("* lastCompactionTime: ").append(lastCompactionTime).append("\n");
+
+		return sb.toString();
+	}
+
+}
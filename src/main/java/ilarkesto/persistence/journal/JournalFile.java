@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.journal;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of framed records. Each record is written as <code>[int length][int crc32][utf-8 bytes]</code>.
+ * A record which was not written completely (crash while appending) is detected by its length or checksum and
+ * cut off when the file is opened.
+ */
+public class JournalFile {
+
+	private static final Log log = Log.get(JournalFile.class);
+
+	private static final int HEADER_SIZE = 8;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long size;
+	private volatile boolean dirty;
+	private boolean closed;
+
+	/**
+	 * Opens the file for appending. Records which are not complete are removed.
+	 */
+	public JournalFile(File file) {
+		this.file = file;
+		IO.createDirectory(file.getParentFile());
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			long validSize = readRecords(null);
+			if (validSize < channel.size()) {
+				log.warn("Incomplete record at end of journal, truncating:", file, channel.size(), "->", validSize);
+				channel.truncate(validSize);
+			}
+			size = validSize;
+			channel.position(size);
+		} catch (IOException ex) {
+			if (raf != null) try {
+				raf.close();
+			} catch (IOException ex2) {}
+			throw new RuntimeException("Opening journal file failed: " + file, ex);
+		}
+	}
+
+	public synchronized void append(String record) {
+		byte[] data;
+		try {
+			data = record.getBytes(IO.UTF_8);
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
+		buffer.putInt(data.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(data);
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing to journal file failed: " + file, ex);
+		}
+		size += HEADER_SIZE + data.length;
+		dirty = true;
+	}
+
+	/**
+	 * Forces all records appended before the call to the disk. Does nothing if nothing was appended since the last
+	 * call or if the file is closed, which forces it too. Records can be appended while the sync is running.
+	 */
+	public void sync() {
+		synchronized (this) {
+			if (closed || !dirty) return;
+			dirty = false;
+		}
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException ex) {
+			// closed while syncing, close() forced the file before closing it
+		} catch (IOException ex) {
+			dirty = true;
+			throw new RuntimeException("Syncing journal file failed: " + file, ex);
+		}
+	}
+
+	public synchronized List<String> readRecords() {
+		List<String> records = new ArrayList<String>();
+		try {
+			readRecords(records);
+			channel.position(size);
+		} catch (IOException ex) {
+			throw new RuntimeException("Reading journal file failed: " + file, ex);
+		}
+		return records;
+	}
+
+	/**
+	 * @return size of the file up to the end of the last complete record
+	 */
+	private long readRecords(List<String> records) throws IOException {
+		long fileSize = channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		while (position + HEADER_SIZE <= fileSize) {
+			header.clear();
+			channel.read(header, position);
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (length < 0 || position + HEADER_SIZE + length > fileSize) break;
+
+			ByteBuffer data = ByteBuffer.allocate(length);
+			while (data.hasRemaining()) {
+				if (channel.read(data, position + HEADER_SIZE + data.position()) < 0) break;
+			}
+			crc.reset();
+			crc.update(data.array());
+			if ((int) crc.getValue() != checksum) break;
+
+			if (records != null) records.add(new String(data.array(), IO.UTF_8));
+			position += HEADER_SIZE + length;
+		}
+		return position;
+	}
+
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			channel.force(false);
+			raf.close();
+		} catch (IOException ex) {
+			throw new RuntimeException("Closing journal file failed: " + file, ex);
+		}
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+
+}
@@ -53,10 +53,18 @@ public abstract class ATemplateElement {
 		return context.getExpressionProcessor().eval(expression, context);
 	}
 
+	protected Object evalExpression(CompiledExpression expression) {
+		return context.getExpressionProcessor().eval(expression, context);
+	}
+
 	protected boolean evalExpressionAsBoolean(String expression) {
 		return isTrue(evalExpression(expression));
 	}
 
+	protected boolean evalExpressionAsBoolean(CompiledExpression expression) {
+		return isTrue(evalExpression(expression));
+	}
+
 	protected boolean isTrue(Object value) {
 		if (value == null) return false;
 
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.templating;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.core.parsing.sax.ParseException;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves template paths relative to a directory. Parsed templates are cached by file and parsed again only when
+ * the modification time or the length of the file changed. Elements keep the context while processing, so a cached
+ * template must not be processed by multiple threads at once.
+ */
+public class CachingTemplateResolver implements TemplateResolver {
+
+	private static final Log log = Log.get(CachingTemplateResolver.class);
+
+	private File dir;
+	private Map<String, CachedTemplate> templatesByPath = new ConcurrentHashMap<String, CachedTemplate>();
+	private long parseCount;
+
+	public CachingTemplateResolver(File dir) {
+		super();
+		this.dir = dir;
+	}
+
+	@Override
+	public Template getTemplate(String path) {
+		if (dir == null) return null;
+		File file = new File(dir, path);
+		if (!file.exists()) return null;
+		return getTemplate(file);
+	}
+
+	public Template getTemplate(File file) {
+		String key = file.getAbsolutePath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		CachedTemplate cached = templatesByPath.get(key);
+		if (cached != null && cached.lastModified == lastModified && cached.length == length) return cached.template;
+
+		Template template;
+		try {
+			template = MustacheLikeTemplateParser.parseTemplate(file);
+		} catch (ParseException ex) {
+			throw new RuntimeException("Parsing template failed: " + file.getAbsolutePath(), ex);
+		}
+		if (log.isDebugEnabled()) log.debug("Template parsed:", file.getAbsolutePath());
+		templatesByPath.put(key, new CachedTemplate(template, lastModified, length));
+		synchronized (this) {
+			parseCount++;
+		}
+		return template;
+	}
+
+	public void clear() {
+		templatesByPath.clear();
+	}
+
+	public int size() {
+		return templatesByPath.size();
+	}
+
+	public synchronized long getParseCount() {
+		return parseCount;
+	}
+
+	private static class CachedTemplate {
+
+		private final Template template;
+		private final long lastModified;
+		private final long length;
+
+		public CachedTemplate(Template template, long lastModified, long length) {
+			super();
+			this.template = template;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+	}
+
+}
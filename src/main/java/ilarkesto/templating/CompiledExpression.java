@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.templating;
+
+import ilarkesto.base.Str;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Expression parsed into the property path it walks. A leading <code>/</code> or <code>$</code> starts on the
+ * root scope, otherwise on the current scope. Template elements compile their expressions once when they are
+ * constructed.
+ */
+public final class CompiledExpression {
+
+	private final String expression;
+	private final boolean rootScope;
+	private final String[] path;
+
+	private CompiledExpression(String expression, boolean rootScope, String[] path) {
+		super();
+		this.expression = expression;
+		this.rootScope = rootScope;
+		this.path = path;
+	}
+
+	public static CompiledExpression compile(String expression) {
+		if (Str.isBlank(expression)) return new CompiledExpression(expression, false, new String[0]);
+		boolean rootScope = false;
+		String s = expression;
+		if (s.startsWith("/")) {
+			rootScope = true;
+			s = s.substring(1);
+		} else if (s.startsWith("$")) {
+			rootScope = true;
+		}
+
+		List<String> path = new ArrayList<String>();
+		while (true) {
+			int idx = s.indexOf('/');
+			if (idx <= 0) {
+				path.add(s);
+				break;
+			}
+			path.add(s.substring(0, idx));
+			s = s.substring(idx + 1);
+		}
+		return new CompiledExpression(expression, rootScope, path.toArray(new String[path.size()]));
+	}
+
+	public boolean isRootScope() {
+		return rootScope;
+	}
+
+	String[] getPath() {
+		return path;
+	}
+
+	public boolean isEmpty() {
+		return path.length == 0;
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+}
@@ -16,6 +16,7 @@ package ilarkesto.templating;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -37,6 +38,14 @@ public class Context {
 		this.out = out;
 	}
 
+	/**
+	 * Output is written straight through to <code>out</code>, the caller flushes and closes it. Write errors are
+	 * not thrown by the <code>PrintWriter</code>, the caller checks them with <code>checkError()</code>.
+	 */
+	public Context(Writer out) {
+		this(out instanceof PrintWriter ? (PrintWriter) out : new PrintWriter(out));
+	}
+
 	public Context() {
 		stringWriter = new StringWriter();
 		out = new PrintWriter(stringWriter);
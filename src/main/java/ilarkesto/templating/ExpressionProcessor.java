@@ -19,39 +19,53 @@ import ilarkesto.base.Str;
 import ilarkesto.core.logging.Log;
 import ilarkesto.json.JsonObject;
 
+import java.lang.reflect.Method;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ExpressionProcessor {
 
+	private static final Map<String, CompiledExpression> compiledExpressions = new ConcurrentHashMap<String, CompiledExpression>();
+
 	private Log log = Log.get(ExpressionProcessor.class);
 
 	public Object eval(String expression, Context context) {
 		if (Str.isBlank(expression)) return null;
-		if (expression.startsWith("/")) return evalOnObject(expression.substring(1), context.getRootScope());
-		if (expression.startsWith("$")) return evalOnObject(expression, context.getRootScope());
-		return evalOnObject(expression, context.getScope());
+		return eval(compile(expression), context);
 	}
 
-	private Object evalOnObject(String expression, Object object) {
-		if (object == null) return null;
-
-		int idx = expression.indexOf('/');
-		if (idx <= 0) return getFromObject(expression, object);
-
-		object = getFromObject(expression.substring(0, idx), object);
-		if (object == null) return null;
-		return evalOnObject(expression.substring(idx + 1), object);
+	public Object eval(CompiledExpression expression, Context context) {
+		if (expression.isEmpty()) return null;
+		Object object = expression.isRootScope() ? context.getRootScope() : context.getScope();
+		for (String property : expression.getPath()) {
+			if (object == null) return null;
+			object = getFromObject(property, object);
+		}
+		return object;
 	}
 
-	private Object getFromObject(String propertyExpression, Object object) {
-		String property = propertyExpression;
+	public static CompiledExpression compile(String expression) {
+		CompiledExpression compiled = compiledExpressions.get(expression);
+		if (compiled == null) {
+			compiled = CompiledExpression.compile(expression);
+			compiledExpressions.put(expression, compiled);
+		}
+		return compiled;
+	}
 
+	private Object getFromObject(String property, Object object) {
 		if (object instanceof Map) return ((Map) object).get(property);
 
 		if (object instanceof JsonObject) return ((JsonObject) object).get(property);
 
+		Method method = Reflect.getGetterMethod(object.getClass(), property);
+		if (method == null) {
+			log.debug("getFromObject() failed: No getter method for property:", object.getClass().getSimpleName()
+					+ "." + property);
+			return null;
+		}
 		try {
-			return Reflect.getProperty(object, property);
+			return method.invoke(object);
 		} catch (Throwable ex) {
 			log.debug("getFromObject() failed:", ex);
 			return null;
@@ -20,12 +20,12 @@ import java.util.Map;
 
 class LoopElement extends ContainerElement {
 
-	private String expression;
+	private CompiledExpression expression;
 
 	private String name = "loop";
 
 	public LoopElement(String expression) {
-		this.expression = expression;
+		this.expression = ExpressionProcessor.compile(expression);
 	}
 
 	public LoopElement(String expression, ATemplateElement contentTemplate) {
@@ -89,7 +89,7 @@ class LoopElement extends ContainerElement {
 	}
 
 	public String getExpression() {
-		return expression;
+		return expression.getExpression();
 	}
 
 }
\ No newline at end of file
@@ -16,12 +16,12 @@ package ilarkesto.templating;
 
 class OptionalElement extends ATemplateElement {
 
-	private String expression;
+	private CompiledExpression expression;
 	private ATemplateElement contentTemplate;
 
 	public OptionalElement(String expression, ATemplateElement contentTemplate) {
 		super();
-		this.expression = expression;
+		this.expression = ExpressionProcessor.compile(expression);
 		this.contentTemplate = contentTemplate;
 	}
 
@@ -16,13 +16,13 @@ package ilarkesto.templating;
 
 class VariableElement extends ATemplateElement {
 
-	private String expression;
+	private CompiledExpression expression;
 	private String defaultValue;
 	private boolean escape = true;
 
 	public VariableElement(String expression) {
 		super();
-		this.expression = expression;
+		this.expression = ExpressionProcessor.compile(expression);
 	}
 
 	@Override
@@ -56,7 +56,7 @@ class VariableElement extends ATemplateElement {
 	}
 
 	public String getExpression() {
-		return expression;
+		return expression.getExpression();
 	}
 
 }
\ No newline at end of file
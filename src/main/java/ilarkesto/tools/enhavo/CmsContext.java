@@ -24,6 +24,7 @@ import ilarkesto.protocol.AProtocolConsumer;
 import ilarkesto.protocol.HtmlProtocolConsumer;
 import ilarkesto.protocol.ProtocolWriter;
 import ilarkesto.protocol.SysoutProtocolConsumer;
+import ilarkesto.templating.CachingTemplateResolver;
 import ilarkesto.ui.web.HtmlBuilder;
 
 import java.io.File;
@@ -59,6 +60,8 @@ public class CmsContext {
 	private DirChangeState templatesDirChangeState;
 	private DirChangeState dataDirChangeState;
 
+	private CachingTemplateResolver templateResolver;
+
 	public CmsContext(File dir, ContentProvider additionalContentProvider) {
 		this.dir = dir;
 
@@ -69,6 +72,7 @@ public class CmsContext {
 		sitesDir = new File(inputDir.getPath() + "/sites");
 		templatesDir = new File(inputDir.getPath() + "/templates");
 		dataDir = new File(inputDir.getPath() + "/data");
+		templateResolver = new CachingTemplateResolver(templatesDir);
 
 		FilesContentProvider filesContentProvider = new FilesContentProvider(dataDir, additionalContentProvider)
 				.setBeanshellExecutor(beanshellExecutor);
@@ -194,6 +198,10 @@ public class CmsContext {
 		return null;
 	}
 
+	public CachingTemplateResolver getTemplateResolver() {
+		return templateResolver;
+	}
+
 	public ContentProvider getContentProvider() {
 		return contentProvider;
 	}
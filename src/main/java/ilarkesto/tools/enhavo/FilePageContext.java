@@ -17,12 +17,14 @@ package ilarkesto.tools.enhavo;
 import ilarkesto.base.Str;
 import ilarkesto.core.base.Filename;
 import ilarkesto.core.base.Filepath;
+import ilarkesto.io.IO;
 import ilarkesto.json.JsonObject;
 import ilarkesto.templating.Context;
 import ilarkesto.templating.Template;
 import ilarkesto.templating.TemplateResolver;
 
 import java.io.File;
+import java.io.PrintWriter;
 import java.util.List;
 
 public class FilePageContext extends APageContext implements TemplateResolver {
@@ -93,13 +95,27 @@ public class FilePageContext extends APageContext implements TemplateResolver {
 	}
 
 	private void processTemplate(String outputPath) {
-		Context templateContext = createTemplateContext();
-		template.process(templateContext);
-		site.writeOutputFile(outputPath, templateContext.popOutput());
+		File tmpFile = site.getTempOutputFile(outputPath);
+		PrintWriter out = new PrintWriter(site.openTempOutputFile(outputPath));
+		boolean written = false;
+		try {
+			template.process(createTemplateContext(out));
+			out.close();
+			// PrintWriter does not throw IOExceptions
+			written = !out.checkError();
+		} finally {
+			if (!written) {
+				out.close();
+				IO.delete(tmpFile);
+			}
+		}
+		File file = site.getOutputFile(outputPath);
+		if (!written) throw new RuntimeException("Writing output file failed: " + file.getPath());
+		IO.move(tmpFile, file, true);
 	}
 
-	private Context createTemplateContext() {
-		Context context = new Context();
+	private Context createTemplateContext(PrintWriter out) {
+		Context context = new Context(out);
 		context.setTemplateResolver(this);
 
 		context.put("content", content);
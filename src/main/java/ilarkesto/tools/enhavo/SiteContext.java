@@ -23,8 +23,13 @@ import ilarkesto.templating.MustacheLikeTemplateParser;
 import ilarkesto.templating.Template;
 import ilarkesto.templating.TemplateResolver;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 public class SiteContext extends ABuilder implements TemplateResolver {
 
@@ -169,10 +174,31 @@ public class SiteContext extends ABuilder implements TemplateResolver {
 		info("output>", file.getPath(), copied ? "" : "[unchanged]");
 	}
 
+	/**
+	 * Opens the temporary file of an output file, see <code>getTempOutputFile()</code>.
+	 */
+	public Writer openTempOutputFile(String path) {
+		info("output>", getOutputFile(path).getPath());
+		File file = getTempOutputFile(path);
+		IO.createDirectory(file.getParentFile());
+		try {
+			return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), IO.UTF_8));
+		} catch (IOException ex) {
+			throw new RuntimeException("Opening output file failed: " + file.getPath(), ex);
+		}
+	}
+
 	File getOutputFile(String path) {
 		return new File(outputDir.getPath() + "/" + path);
 	}
 
+	/**
+	 * Streamed output is written to a temporary file, which replaces the output file after all writes succeeded.
+	 */
+	File getTempOutputFile(String path) {
+		return new File(getOutputFile(path).getPath() + ".tmp");
+	}
+
 	public File getDir() {
 		return dir;
 	}
@@ -205,11 +231,7 @@ public class SiteContext extends ABuilder implements TemplateResolver {
 			return null;
 		}
 		info("template:", templatePath, "->", file.getPath());
-		try {
-			return MustacheLikeTemplateParser.parseTemplate(file);
-		} catch (ParseException ex) {
-			throw new RuntimeException(ex);
-		}
+		return cms.getTemplateResolver().getTemplate(file);
 	}
 
 	public File findTemplateFile(String templatePath) {
@@ -19,6 +19,7 @@ import ilarkesto.base.Sys;
 import ilarkesto.core.persistance.TransferableEntity;
 import ilarkesto.di.app.AApplication;
 import ilarkesto.gwt.server.AGwtConversation;
+import ilarkesto.gwt.server.EntityPropertiesSnapshots;
 import ilarkesto.logging.DefaultLogRecordHandler;
 import ilarkesto.webapp.jsonapi.JsonApiFactory;
 import ilarkesto.webapp.jsonapi.ReflectionJsonApiFactory;
@@ -184,14 +185,28 @@ public abstract class AWebApplication extends AApplication {
 	}
 
 	public void sendToAll(Collection<TransferableEntity> entities) {
+		sendToAll(entities, new EntityPropertiesSnapshots());
+	}
+
+	/**
+	 * Sends the entities to all conversations. Each properties map is created once and shared by the
+	 * conversations through <code>snapshots</code>.
+	 */
+	public void sendToAll(Collection<TransferableEntity> entities, EntityPropertiesSnapshots snapshots) {
+		if (entities == null || entities.isEmpty()) return;
 		for (AGwtConversation conversation : getGwtConversations()) {
-			conversation.sendToClient(entities);
+			conversation.sendToClient(entities, snapshots);
 		}
 	}
 
 	public void sendToAllIfTracking(Collection<TransferableEntity> entities) {
+		sendToAllIfTracking(entities, new EntityPropertiesSnapshots());
+	}
+
+	public void sendToAllIfTracking(Collection<TransferableEntity> entities, EntityPropertiesSnapshots snapshots) {
+		if (entities == null || entities.isEmpty()) return;
 		for (AGwtConversation conversation : getGwtConversations()) {
-			conversation.sendToClientIfTracking(entities);
+			conversation.sendToClientIfTracking(entities, snapshots);
 		}
 	}
 
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.webapp;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves static files. Supports conditional requests (<code>If-None-Match</code>, <code>If-Modified-Since</code>),
+ * byte ranges (<code>Range</code>, <code>If-Range</code>) and optionally gzip compressed variants. The content is
+ * handed to the container by sendfile if it supports it (Tomcat), otherwise it is copied with large pooled
+ * buffers.
+ */
+public class FileServer {
+
+	private static final Log log = Log.get(FileServer.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 16;
+	private static final int MAX_RANGES = 16;
+	private static final int MIN_GZIP_LENGTH = 1024;
+	private static final String MULTIPART_BOUNDARY = "ilarkesto-byteranges";
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	private File gzipCacheDir;
+	private boolean sendfileEnabled = true;
+
+	/**
+	 * Enables serving gzip compressed variants of compressible files to clients which accept them. A
+	 * <code>.gz</code> file next to the file is used if it is up to date, otherwise the variant is created in the
+	 * given directory.
+	 */
+	public void setGzipCacheDir(File gzipCacheDir) {
+		this.gzipCacheDir = gzipCacheDir;
+	}
+
+	public void setSendfileEnabled(boolean sendfileEnabled) {
+		this.sendfileEnabled = sendfileEnabled;
+	}
+
+	public void serveFile(File file, HttpServletRequest request, HttpServletResponse response, boolean setFilename,
+			boolean enableCaching) throws IOException {
+		if (!file.isFile()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		long lastModified = file.lastModified();
+		String contentType = Servlet.getMimeType(file);
+		File content = file;
+		String eTag = Servlet.createEtag(file);
+
+		if (gzipCacheDir != null && isCompressible(contentType) && file.length() >= MIN_GZIP_LENGTH) {
+			response.setHeader("Vary", "Accept-Encoding");
+			if (request.getHeader("Range") == null && isGzipAccepted(request)) {
+				File variant = getGzipVariant(file);
+				if (variant != null) {
+					content = variant;
+					eTag += "-gzip";
+					response.setHeader("Content-Encoding", "gzip");
+				}
+			}
+		}
+
+		if (enableCaching) {
+			if (isNotModified(request, eTag, lastModified)) {
+				log.debug("Not modified. Returning: 304 Not Modified");
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				Servlet.setEtag(response, eTag);
+				return;
+			}
+			Servlet.setEtag(response, eTag);
+			response.setDateHeader("Last-Modified", lastModified);
+		}
+
+		response.setContentType(contentType);
+		if (setFilename) Servlet.setFilename(file.getName(), response);
+		response.setHeader("Accept-Ranges", "bytes");
+		boolean head = "HEAD".equals(request.getMethod());
+		long length = content.length();
+
+		String rangeHeader = request.getHeader("Range");
+		List<long[]> ranges = null;
+		if (rangeHeader != null && content == file && isIfRangeMatching(request, eTag, lastModified))
+			ranges = parseRanges(rangeHeader, length);
+
+		if (ranges == null) {
+			setContentLength(response, length);
+			if (!head) send(content, 0, length, request, response);
+			return;
+		}
+
+		if (ranges.isEmpty()) {
+			response.setHeader("Content-Range", "bytes */" + length);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			response.setHeader("Content-Range", getContentRange(range, length));
+			setContentLength(response, range[1] - range[0] + 1);
+			if (!head) send(content, range[0], range[1] - range[0] + 1, request, response);
+			return;
+		}
+
+		List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+		long multipartLength = 0;
+		for (long[] range : ranges) {
+			byte[] partHeader = ("\r\n--" + MULTIPART_BOUNDARY + "\r\nContent-Type: " + contentType
+					+ "\r\nContent-Range: " + getContentRange(range, length) + "\r\n\r\n").getBytes(IO.ISO_LATIN_1);
+			partHeaders.add(partHeader);
+			multipartLength += partHeader.length + range[1] - range[0] + 1;
+		}
+		byte[] end = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(IO.ISO_LATIN_1);
+		multipartLength += end.length;
+
+		response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+		setContentLength(response, multipartLength);
+		if (head) return;
+		OutputStream out = response.getOutputStream();
+		for (int i = 0; i < ranges.size(); i++) {
+			long[] range = ranges.get(i);
+			out.write(partHeaders.get(i));
+			copy(content, range[0], range[1] - range[0] + 1, out);
+		}
+		out.write(end);
+	}
+
+	private void send(File file, long offset, long count, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		if (sendfileEnabled && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+			request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START, Long.valueOf(offset));
+			request.setAttribute(SENDFILE_END, Long.valueOf(offset + count));
+			return;
+		}
+		copy(file, offset, count, response.getOutputStream());
+	}
+
+	/**
+	 * Copies a part of a file by positional reads into a pooled buffer.
+	 */
+	void copy(File file, long offset, long count, OutputStream out) throws IOException {
+		byte[] buffer = buffers.poll();
+		if (buffer == null) buffer = new byte[BUFFER_SIZE];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+			long position = offset;
+			long remaining = count;
+			while (remaining > 0) {
+				byteBuffer.clear();
+				if (remaining < buffer.length) byteBuffer.limit((int) remaining);
+				int read = channel.read(byteBuffer, position);
+				if (read < 0) throw new IOException("Unexpected end of file: " + file);
+				out.write(buffer, 0, read);
+				position += read;
+				remaining -= read;
+			}
+		} finally {
+			in.close();
+			if (buffers.size() < MAX_POOLED_BUFFERS) buffers.add(buffer);
+		}
+	}
+
+	private static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*") || unquote(tag).equals(eTag)) return true;
+			}
+			return false;
+		}
+		long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+		return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	private static boolean isIfRangeMatching(HttpServletRequest request, String eTag, long lastModified) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("W/")) return false;
+		if (ifRange.startsWith("\"")) return unquote(ifRange).equals(eTag);
+		// the tags of Servlet.createEtag() are sent unquoted
+		if (ifRange.equals(eTag)) return true;
+		long date = getDateHeader(request, "If-Range");
+		return date >= 0 && lastModified / 1000 == date / 1000;
+	}
+
+	private static String unquote(String tag) {
+		if (tag.startsWith("W/")) tag = tag.substring(2);
+		if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) tag = tag.substring(1, tag.length() - 1);
+		return tag;
+	}
+
+	private static long getDateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the satisfiable ranges, an empty list if none is satisfiable or <code>null</code> if the header is
+	 *         invalid and has to be ignored
+	 */
+	static List<long[]> parseRanges(String header, long length) {
+		if (!header.startsWith("bytes=")) return null;
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) return null;
+		List<long[]> ranges = new ArrayList<long[]>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int idx = spec.indexOf('-');
+			if (idx < 0) return null;
+			String first = spec.substring(0, idx).trim();
+			String last = spec.substring(idx + 1).trim();
+			long start;
+			long end;
+			try {
+				if (first.length() == 0) {
+					if (last.length() == 0) return null;
+					long suffixLength = Long.parseLong(last);
+					if (suffixLength <= 0 || length == 0) continue;
+					start = Math.max(0, length - suffixLength);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(first);
+					end = last.length() == 0 ? length - 1 : Long.parseLong(last);
+					if (start < 0 || end < start) return null;
+					if (start >= length) continue;
+					end = Math.min(end, length - 1);
+				}
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+			ranges.add(new long[] { start, end });
+		}
+		return ranges;
+	}
+
+	private static void setContentLength(HttpServletResponse response, long length) {
+		// setContentLength(int) would overflow for files > 2 GB
+		response.setHeader("Content-Length", String.valueOf(length));
+	}
+
+	private static String getContentRange(long[] range, long length) {
+		return "bytes " + range[0] + "-" + range[1] + "/" + length;
+	}
+
+	private static boolean isGzipAccepted(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) return false;
+		for (String encoding : acceptEncoding.split(",")) {
+			encoding = encoding.trim();
+			if (encoding.equals("gzip")) return true;
+			if (encoding.startsWith("gzip;")) return !encoding.replace(" ", "").endsWith("q=0");
+		}
+		return false;
+	}
+
+	private static boolean isCompressible(String contentType) {
+		return contentType.startsWith("text/") || contentType.endsWith("javascript") || contentType.endsWith("json")
+				|| contentType.endsWith("xml") || contentType.equals("image/svg+xml");
+	}
+
+	/**
+	 * @return an up to date gzip compressed copy of the file or <code>null</code> if it could not be created
+	 */
+	File getGzipVariant(File file) {
+		File sibling = new File(file.getPath() + ".gz");
+		if (sibling.isFile() && sibling.lastModified() >= file.lastModified()) return sibling;
+
+		String name = Integer.toHexString(file.getAbsolutePath().hashCode()) + "-" + Long.toHexString(file.length())
+				+ "-" + Long.toHexString(file.lastModified()) + "-" + file.getName() + ".gz";
+		File variant = new File(gzipCacheDir, name);
+		if (variant.isFile()) return variant;
+
+		IO.createDirectory(gzipCacheDir);
+		File tmp = new File(gzipCacheDir, name + "~" + Thread.currentThread().getId());
+		try {
+			GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+			try {
+				copy(file, 0, file.length(), out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException ex) {
+			log.warn("Creating gzip variant failed:", file, ex);
+			tmp.delete();
+			return null;
+		}
+		if (!tmp.renameTo(variant) && !variant.isFile()) {
+			tmp.delete();
+			return null;
+		}
+		tmp.delete();
+		return variant;
+	}
+
+}
@@ -50,6 +50,8 @@ public abstract class Servlet {
 
 	private static final Log log = Log.get(Servlet.class);
 
+	private static final FileServer fileServer = new FileServer();
+
 	public static final String ENCODING = IO.UTF_8;
 
 	public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy, HH:mm:";
@@ -178,40 +180,17 @@ public abstract class Servlet {
 
 	public static void serveFile(File file, HttpServletRequest httpRequest, HttpServletResponse httpResponse,
 			boolean setFilename, boolean enableCaching) {
-		if (!file.exists()) {
-			try {
-				httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
-			} catch (IOException ex) {
-				throw new RuntimeException("Serving file failed: " + file, ex);
-			}
-			return;
-		}
-
-		if (enableCaching) {
-			String eTag = createEtag(file);
-			String requestEtag = getEtag(httpRequest);
-			if (eTag.equals(requestEtag)) {
-				log.debug("ETag valid. Returning: 304 Not Modified");
-				try {
-					httpResponse.sendError(HttpServletResponse.SC_NOT_MODIFIED);
-				} catch (IOException ex) {
-					throw new RuntimeException("Serving file failed: " + file, ex);
-				}
-				return;
-			}
-			setEtag(httpResponse, eTag);
-		}
-
-		httpResponse.setContentType(getMimeType(file));
-		httpResponse.setContentLength((int) file.length());
-		if (setFilename) Servlet.setFilename(file.getName(), httpResponse);
 		try {
-			IO.copyFile(file, httpResponse.getOutputStream());
+			fileServer.serveFile(file, httpRequest, httpResponse, setFilename, enableCaching);
 		} catch (IOException ex) {
 			throw new RuntimeException("Serving file failed: " + file, ex);
 		}
 	}
 
+	public static FileServer getFileServer() {
+		return fileServer;
+	}
+
 	public static String getMimeType(File file) {
 		// String ret = Files.probeContentType(file);
 		// if (ret != null) return ret;
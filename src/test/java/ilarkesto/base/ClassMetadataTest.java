@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.base;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.testng.ATest;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class ClassMetadataTest extends ATest {
+
+	@Test
+	public void fields() {
+		ClassMetadata metadata = ClassMetadata.get(Rose.class);
+		assertSame(ClassMetadata.get(Rose.class), metadata);
+
+		List<Field> fields = metadata.getFields(false, true, false);
+		assertSize(fields, 3);
+		assertEquals(fields.get(0).getName(), "color");
+		assertEquals(fields.get(1).getName(), "name");
+		assertEquals(fields.get(2).getName(), "count");
+		assertSize(metadata.getFields(true, true, true), 5);
+		assertSize(metadata.getFields(false, false, false), 1);
+
+		assertEquals(metadata.getField("name").getDeclaringClass(), Rose.class);
+		assertEquals(metadata.getField("count").getDeclaringClass(), Flower.class);
+		assertNull(metadata.getField("doesNotExist"));
+		assertNull(metadata.getField("doesNotExist"));
+	}
+
+	@Test
+	public void accessors() {
+		Rose rose = new Rose();
+		assertEquals(Reflect.getProperty(rose, "name"), "rose");
+		assertEquals(Reflect.getProperty(rose, "red"), Boolean.TRUE);
+		assertEquals(Reflect.getProperty(rose, "count"), 1);
+		assertNull(Reflect.getGetterMethod(Rose.class, "doesNotExist"));
+		assertNull(Reflect.getGetterMethod(Rose.class, "colorless"));
+
+		Reflect.setProperty(rose, "count", 3);
+		assertEquals(rose.getCount(), 3);
+		assertNull(Reflect.getSetterMethod(Rose.class, "doesNotExist"));
+
+		assertSize(Reflect.getSetters(Rose.class), 1);
+		assertSize(Reflect.getGetters(Rose.class), 3);
+		assertNotNull(Reflect.getDeclaredMethod(Rose.class, "setCount", int.class));
+		assertNull(Reflect.getDeclaredMethod(Rose.class, "setCount", Integer.class));
+	}
+
+	@Test
+	public void lookupPerformance() {
+		String[] names = { "name", "color", "count", "doesNotExist" };
+		for (int run = 0; run < 2; run++) {
+			RuntimeTracker rt = new RuntimeTracker();
+			for (int i = 0; i < 100000; i++) {
+				findFieldUncached(Rose.class, names[i % names.length]);
+			}
+			String uncached = rt.getRuntimeFormated();
+
+			rt = new RuntimeTracker();
+			for (int i = 0; i < 100000; i++) {
+				Reflect.getDeclaredField(Rose.class, names[i % names.length]);
+			}
+			if (run > 0) log.info("100000 field lookups uncached:", uncached, "cached:", rt.getRuntimeFormated());
+		}
+	}
+
+	private static Field findFieldUncached(Class<?> c, String name) {
+		while (c != null) {
+			try {
+				return c.getDeclaredField(name);
+			} catch (NoSuchFieldException ex) {
+				c = c.getSuperclass();
+			}
+		}
+		return null;
+	}
+
+	static class Flower {
+
+		private int count = 1;
+		static String family = "plant";
+
+		public int getCount() {
+			return count;
+		}
+
+		public void setCount(int count) {
+			this.count = count;
+		}
+
+	}
+
+	static class Rose extends Flower {
+
+		String color = "red";
+		private String name = "rose";
+		private transient boolean cached;
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isRed() {
+			return "red".equals(color);
+		}
+
+		public String isColorless() {
+			return "no";
+		}
+
+		public String getColor() {
+			return color;
+		}
+
+	}
+
+}
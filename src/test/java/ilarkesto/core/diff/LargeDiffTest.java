@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>, Artjom Kochtchi
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.diff;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.testng.ATest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class LargeDiffTest extends ATest {
+
+	private static final int LINE_COUNT = 20000;
+
+	@Test
+	public void lcsIsLongest() {
+		Random random = new Random(42);
+		for (int i = 0; i < 500; i++) {
+			List<String> a = randomTokens(random, random.nextInt(40), 4);
+			List<String> b = randomTokens(random, random.nextInt(40), 4);
+			List<String> lcs = MyersDiff.lcs(a, b);
+			assertEquals(lcs.size(), LongestCommonSubsequenceList2.executeProc(a, b).size());
+			assertSubsequence(lcs, a);
+			assertSubsequence(lcs, b);
+		}
+	}
+
+	@Test
+	public void charLcsIsLongest() {
+		Random random = new Random(7);
+		for (int i = 0; i < 500; i++) {
+			String a = randomString(random, random.nextInt(60));
+			String b = randomString(random, random.nextInt(60));
+			String lcs = MyersDiff.lcs(a, b);
+			assertEquals(lcs.length(), LongestCommonSubsequenceList2.executeProc(chars(a), chars(b)).size());
+		}
+	}
+
+	@Test
+	public void largeLineDiff() {
+		Random random = new Random(1);
+		StringBuilder left = new StringBuilder();
+		StringBuilder right = new StringBuilder();
+		for (int i = 0; i < LINE_COUNT; i++) {
+			String line = "line " + i + " " + random.nextInt(1000);
+			int change = random.nextInt(100);
+			if (change != 0) left.append(line).append('\n');
+			if (change == 1) {
+				right.append("changed ").append(line).append('\n');
+			} else if (change != 2) {
+				right.append(line).append('\n');
+			}
+		}
+
+		RuntimeTracker rt = new RuntimeTracker();
+		String diff = TokenDiff.lineDiff(left.toString(), right.toString(), new TxtDiffMarker());
+		log.info("Line diff of", LINE_COUNT, "lines with 3% changes:", rt.getRuntimeFormated());
+		assertTrue(diff.contains("[+changed line"));
+
+		rt = new RuntimeTracker();
+		TokenDiff.lineDiff(left.toString(), left.toString() + "appended", new TxtDiffMarker());
+		log.info("Line diff of", LINE_COUNT, "lines with appended line:", rt.getRuntimeFormated());
+	}
+
+	@Test
+	public void largeCharDiff() {
+		Random random = new Random(2);
+		String left = randomString(random, 100000);
+		String right = left.substring(0, 30000) + "INSERTED" + left.substring(30000, 70000) + left.substring(70100);
+
+		RuntimeTracker rt = new RuntimeTracker();
+		String diff = new CharDiff(left, right, new TxtDiffMarker()).diff().toString();
+		log.info("Char diff of", left.length(), "characters:", rt.getRuntimeFormated());
+		assertTrue(diff.contains("[+INSERTED]"));
+	}
+
+	private static void assertSubsequence(List<String> subsequence, List<String> sequence) {
+		int i = 0;
+		for (String token : sequence) {
+			if (i < subsequence.size() && subsequence.get(i).equals(token)) i++;
+		}
+		assertEquals(i, subsequence.size());
+	}
+
+	private static List<String> randomTokens(Random random, int count, int alphabetSize) {
+		List<String> ret = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			ret.add(String.valueOf((char) ('a' + random.nextInt(alphabetSize))));
+		}
+		return ret;
+	}
+
+	private static String randomString(Random random, int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append((char) ('a' + random.nextInt(5)));
+		}
+		return sb.toString();
+	}
+
+	private static List<String> chars(String s) {
+		List<String> ret = new ArrayList<String>(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			ret.add(String.valueOf(s.charAt(i)));
+		}
+		return ret;
+	}
+
+}
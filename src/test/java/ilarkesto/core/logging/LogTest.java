@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.logging;
+
+import ilarkesto.core.logging.Log.Level;
+import ilarkesto.testng.ATest;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class LogTest extends ATest {
+
+	@AfterMethod
+	public void resetLevels() {
+		Log.setLevel("", null);
+		Log.setLevel("ilarkesto", null);
+		Log.setLevel("ilarkesto.core", null);
+		Log.setLevel("ilarkesto.core.logging", null);
+		Log.setLevel("LogTest", null);
+	}
+
+	@Test
+	public void hierarchicalLevels() {
+		Log logger = Log.get(LogTest.class);
+		assertEquals(logger.getName(), "LogTest");
+		assertEquals(logger.getCategory(), "ilarkesto.core.logging.LogTest");
+		assertTrue(logger.isDebugEnabled());
+
+		Log.setLevel("ilarkesto", Level.WARN);
+		assertFalse(logger.isInfoEnabled());
+		assertTrue(logger.isEnabled(Level.WARN));
+
+		Log.setLevel("ilarkesto.core.logging", Level.INFO);
+		assertFalse(logger.isDebugEnabled());
+		assertTrue(logger.isInfoEnabled());
+
+		Log.setLevel("LogTest", Level.DEBUG);
+		assertTrue(logger.isDebugEnabled());
+
+		Log.setLevel("LogTest", null);
+		Log.setLevel("ilarkesto.core.logging", null);
+		assertEquals(logger.getEffectiveLevel(), Level.WARN);
+
+		Log.setLevel("ilarkesto", null);
+		Log.setLevel("", Level.ERROR);
+		assertFalse(logger.isEnabled(Level.WARN));
+		assertFalse(Log.get("Other").isEnabled(Level.WARN));
+	}
+
+	@Test
+	public void disabledLevelIsNotLogged() {
+		RecordingHandler handler = new RecordingHandler();
+		LogRecordHandler originalHandler = Log.getLogRecordHandler();
+		Log.setLogRecordHandler(handler);
+		try {
+			Log logger = Log.get(LogTest.class);
+			Log.setLevel("ilarkesto.core", Level.INFO);
+			logger.debug("hidden");
+			logger.info("visible");
+			assertEquals(handler.count, 1);
+			assertEquals(handler.last.parameters[0], "visible");
+		} finally {
+			Log.setLogRecordHandler(originalHandler);
+		}
+	}
+
+	@Test
+	public void lazyMessage() {
+		RecordingHandler handler = new RecordingHandler();
+		LogRecordHandler originalHandler = Log.getLogRecordHandler();
+		Log.setLogRecordHandler(handler);
+		try {
+			Log logger = Log.get(LogTest.class);
+			CountingMessage message = new CountingMessage();
+			Log.setLevel("LogTest", Level.INFO);
+			logger.debug(message);
+			assertEquals(message.count, 0);
+			assertEquals(handler.count, 0);
+			logger.info(message);
+			assertEquals(message.count, 1);
+			assertEquals(handler.last.parameters[0], "lazy");
+		} finally {
+			Log.setLogRecordHandler(originalHandler);
+		}
+	}
+
+	@Test
+	public void concurrentRegistry() throws InterruptedException {
+		final Set<Log> loggers = Collections.newSetFromMap(new ConcurrentHashMap<Log, Boolean>());
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[16];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					for (int i = 0; i < 1000; i++) {
+						Log logger = Log.get("ConcurrentRegistry" + i);
+						if (i == 500) loggers.add(logger);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(loggers.size(), 1);
+		assertSame(loggers.iterator().next(), Log.get("ConcurrentRegistry500"));
+	}
+
+	@Test
+	public void disabledDebugCost() {
+		Log logger = Log.get("DisabledDebugCost");
+		Log.setLevel("DisabledDebugCost", Level.INFO);
+		try {
+			final int calls = 10000000;
+			final Object entity = new StringBuilder("Entity");
+			for (int run = 0; run < 2; run++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < calls; i++) {
+					logger.debug("Sending", entity.toString() + ":" + i, "to", this);
+				}
+				long eagerNanos = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < calls; i++) {
+					final int n = i;
+					logger.debug(new LazyLogMessage() {
+
+						@Override
+						public Object[] getParameters() {
+							return new Object[] { "Sending", entity.toString() + ":" + n, "to", LogTest.this };
+						}
+					});
+				}
+				long lazyNanos = System.nanoTime() - start;
+				log.info("Disabled debug call: eager arguments", eagerNanos / calls, "ns, lazy arguments", lazyNanos
+						/ calls, "ns");
+			}
+		} finally {
+			Log.setLevel("DisabledDebugCost", null);
+		}
+	}
+
+	private static class CountingMessage implements LazyLogMessage {
+
+		private int count;
+
+		@Override
+		public Object[] getParameters() {
+			count++;
+			return new Object[] { "lazy" };
+		}
+
+	}
+
+	private static class RecordingHandler extends LogRecordHandler {
+
+		private int count;
+		private LogRecord last;
+
+		@Override
+		public void log(LogRecord record) {
+			count++;
+			last = record;
+		}
+
+	}
+
+}
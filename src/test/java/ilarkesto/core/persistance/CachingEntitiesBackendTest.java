@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import ilarkesto.base.Utl;
+import ilarkesto.core.persistance.EntityCacheTest.Car;
+import ilarkesto.testng.ATest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class CachingEntitiesBackendTest extends ATest {
+
+	private static final long UPDATE_DURATION = 200;
+
+	private volatile boolean readersRunning;
+
+	@Test
+	public void update() {
+		SlowBackend backend = new SlowBackend(0);
+		backend.setConcurrentReads(true);
+		Car car = new Car().setName("c1");
+		backend.update(Arrays.asList((AEntity) car), null, null, null, "create");
+		assertSame(backend.getById(car.getId()), car);
+
+		backend.update(null, Arrays.asList(car.getId()), null, null, "delete");
+		assertFalse(backend.containsWithId(car.getId()));
+	}
+
+	@Test
+	public void readersDoNotBlockOnCommits() throws InterruptedException {
+		final SlowBackend backend = new SlowBackend(UPDATE_DURATION);
+		backend.setConcurrentReads(true);
+
+		final List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			Car car = new Car().setName("c" + i);
+			backend.cache.add(car);
+			ids.add(car.getId());
+		}
+
+		final long[] maxReadTimes = new long[4];
+		readersRunning = true;
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int i = 0; i < maxReadTimes.length; i++) {
+			final int index = i;
+			Thread reader = new Thread() {
+
+				@Override
+				public void run() {
+					int n = 0;
+					while (readersRunning) {
+						String id = ids.get(n++ % ids.size());
+						long start = System.currentTimeMillis();
+						assertNotNull(backend.getById(id));
+						assertTrue(backend.containsWithId(id));
+						long time = System.currentTimeMillis() - start;
+						if (time > maxReadTimes[index]) maxReadTimes[index] = time;
+					}
+				}
+			};
+			reader.start();
+			readers.add(reader);
+		}
+
+		List<String> committedIds = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			Car car = new Car().setName("new" + i);
+			backend.update(Arrays.asList((AEntity) car), null, null, null, "commit " + i);
+			assertTrue(backend.containsWithId(car.getId()));
+			committedIds.add(car.getId());
+		}
+
+		readersRunning = false;
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		long maxReadTime = 0;
+		for (long time : maxReadTimes) {
+			maxReadTime = Math.max(maxReadTime, time);
+		}
+		log.info("Max read time during", committedIds.size(), "commits:", maxReadTime, "ms");
+		assertTrue(maxReadTime < UPDATE_DURATION, "Reader blocked for " + maxReadTime + " ms");
+		assertEquals(backend.getByIdsAsList(committedIds).size(), committedIds.size());
+	}
+
+	private static class SlowBackend extends ACachingEntitiesBackend {
+
+		private long updateDuration;
+
+		public SlowBackend(long updateDuration) {
+			this.updateDuration = updateDuration;
+		}
+
+		@Override
+		protected void onUpdate(Collection<AEntity> entities, Collection<String> entityIds,
+				Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback,
+				String transactionText) {
+			if (updateDuration > 0) Utl.sleep(updateDuration);
+			if (callback != null) callback.run();
+		}
+
+		@Override
+		public String loadOutsourcedString(Entity entity, String propertyName) {
+			throw new RuntimeException(getClass().getName() + ".loadOutsourcedString() is not implemented");
+		}
+
+		@Override
+		public void saveOutsourcedString(Entity entity, String propertyName, String value) {
+			throw new RuntimeException(getClass().getName() + ".saveOutsourcedString() is not implemented");
+		}
+
+	}
+
+}
@@ -15,8 +15,12 @@
 package ilarkesto.core.persistance;
 
 import ilarkesto.base.Utl;
+import ilarkesto.core.base.RuntimeTracker;
 import ilarkesto.testng.ATest;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.testng.annotations.Test;
@@ -97,6 +101,129 @@ public class EntityCacheTest extends ATest {
 		assertSize(cars, 3);
 	}
 
+	@Test
+	public void idIndex() {
+		EntitiesCache cache = new EntitiesCache();
+		Car car = new Car().setName("c1");
+		Car mercedes = new Mercedes().setName("m1");
+		cache.add(car);
+		cache.add(mercedes);
+
+		assertSame(cache.getById(car.getId()), car);
+		assertSame(cache.getById(mercedes.getId()), mercedes);
+		assertEquals(cache.getTypeById(mercedes.getId()), Mercedes.class);
+		assertEquals(cache.size(), 2);
+
+		assertSame(cache.remove(car.getId()), car);
+		assertFalse(cache.containsWithId(car.getId()));
+		assertNull(cache.getTypeById(car.getId()));
+		assertEquals(cache.size(), 1);
+		assertEquals(cache.countEntities().get(Car.class), Integer.valueOf(0));
+
+		Car replacement = (Car) new Car().setName("m1 as car").setId(mercedes.getId());
+		cache.add(replacement);
+		assertSame(cache.getById(mercedes.getId()), replacement);
+		assertEquals(cache.countEntities().get(Mercedes.class), Integer.valueOf(0));
+		assertEquals(cache.size(), 1);
+	}
+
+	@Test
+	public void propertyIndex() {
+		EntitiesCache cache = new EntitiesCache();
+		Car c1 = new Car().setName("a");
+		Car c2 = new Car().setName("b");
+		Car m1 = new Mercedes().setName("a");
+		cache.add(c1);
+		cache.add(c2);
+		cache.add(m1);
+		cache.addIndex(new EntityPropertyIndex(Car.class, "name", false));
+
+		NameQuery query = new NameQuery(Car.class, "a");
+		assertSize(cache.findAllAsSet(query), 2);
+		assertEquals(query.testCount, 2);
+		assertSize(cache.findAllAsSet(new NameQuery(Mercedes.class, "a")), 1);
+
+		c1.setName("b");
+		cache.add(c1);
+		assertSize(cache.findAllAsSet(new NameQuery(Car.class, "a")), 1);
+		assertSize(cache.findAllAsSet(new NameQuery(Car.class, "b")), 2);
+
+		cache.remove(m1.getId());
+		assertNull(cache.findFirst(new NameQuery(Car.class, "a")));
+		assertSame(new EntitiesCache(cache).findFirst(new NameQuery(Car.class, "b")).getClass(), Car.class);
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		EntitiesCache template = new EntitiesCache();
+		template.addIndex(new EntityPropertyIndex(Car.class, "name", false));
+		List<Car> cars = new ArrayList<Car>();
+		for (int i = 0; i < 5000; i++) {
+			Car car = new Car().setName(i % 2 == 0 ? "even" : "odd");
+			template.add(car);
+			cars.add(car);
+		}
+
+		EntitiesCache copy = new EntitiesCache(template);
+		copy.remove(cars.get(0).getId());
+		Car added = new Car().setName("even");
+		copy.add(added);
+		template.remove(cars.get(2).getId());
+
+		assertEquals(template.size(), 4999);
+		assertTrue(template.containsWithId(cars.get(0).getId()));
+		assertFalse(template.containsWithId(added.getId()));
+		assertSize(template.findAllAsSet(new NameQuery(Car.class, "even")), 2499);
+
+		assertEquals(copy.size(), 5000);
+		assertFalse(copy.containsWithId(cars.get(0).getId()));
+		assertTrue(copy.containsWithId(cars.get(2).getId()));
+		assertSame(copy.getById(added.getId()), added);
+		assertSize(copy.findAllAsSet(new NameQuery(Car.class, "even")), 2500);
+		assertSize(copy.getAllAsList(), 5000);
+	}
+
+	@Test
+	public void getByIdPerformance() {
+		int count = 60000;
+		Class[] types = new Class[] { Car.class, Mercedes.class, Truck.class, Bus.class, Bike.class, Tractor.class };
+
+		EntitiesCache singleTypeCache = new EntitiesCache();
+		EntitiesCache multiTypeCache = new EntitiesCache();
+		List<String> ids = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			Car car = new Car().setName("c" + i);
+			singleTypeCache.add(car);
+			Car other = createCar(types[i % types.length]);
+			other.setId(car.getId());
+			multiTypeCache.add(other);
+			ids.add(car.getId());
+		}
+
+		long singleTypeTime = measureGetById(singleTypeCache, ids);
+		long multiTypeTime = measureGetById(multiTypeCache, ids);
+		log.info("getById() on", count, "entities:", singleTypeTime, "ms with 1 type,", multiTypeTime, "ms with",
+			types.length, "types");
+	}
+
+	private long measureGetById(EntitiesCache cache, List<String> ids) {
+		RuntimeTracker rt = new RuntimeTracker();
+		for (int round = 0; round < 10; round++) {
+			for (String id : ids) {
+				assertNotNull(cache.getById(id));
+			}
+		}
+		return rt.getRuntime();
+	}
+
+	private static Car createCar(Class type) {
+		try {
+			return (Car) type.newInstance();
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
 	@Test
 	public void isInstanceOf() {
 		EntitiesCache cache = new EntitiesCache();
@@ -106,17 +233,66 @@ public class EntityCacheTest extends ATest {
 		assertFalse(AEntityQuery.isInstanceOf(Car.class, Mercedes.class));
 	}
 
+	private static class NameQuery extends AEntityQuery<Car> {
+
+		private Class<Car> type;
+		private String name;
+		private int testCount;
+
+		public NameQuery(Class type, String name) {
+			this.type = type;
+			this.name = name;
+		}
+
+		@Override
+		public boolean test(Car entity) {
+			testCount++;
+			return name.equals(entity.name);
+		}
+
+		@Override
+		public Class<Car> getType() {
+			return type;
+		}
+
+		@Override
+		public String getIndexedProperty() {
+			return "name";
+		}
+
+		@Override
+		public String getIndexedValue() {
+			return name;
+		}
+
+	}
+
 	public static class Mercedes extends Car {}
 
+	public static class Truck extends Car {}
+
+	public static class Bus extends Car {}
+
+	public static class Bike extends Car {}
+
+	public static class Tractor extends Car {}
+
 	public static class Car extends AEntity {
 
 		private String name;
 
 		public Car setName(String name) {
 			this.name = name;
+			updateLastModified();
 			return this;
 		}
 
+		@Override
+		protected void storeProperties(Map<String, String> properties) {
+			super.storeProperties(properties);
+			properties.put("name", name);
+		}
+
 		@Override
 		protected String asString() {
 			return name;
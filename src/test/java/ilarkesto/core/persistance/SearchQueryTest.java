@@ -0,0 +1,256 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.search.SearchText;
+import ilarkesto.persistence.ThreadlocalTransactionManager;
+import ilarkesto.testng.ATest;
+
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SearchQueryTest extends ATest {
+
+	private static final int ARTICLE_COUNT = 50000;
+
+	private InMemoryEntitiesBackend backend;
+	private Author kurt;
+	private Article kafka;
+	private Article karamazov;
+
+	@BeforeMethod
+	public void init() {
+		backend = new InMemoryEntitiesBackend();
+		backend.setSearchIndexEnabled(true);
+		Persistence.initialize(backend, new ThreadlocalTransactionManager());
+		Persistence.runInTransaction("init", new Runnable() {
+
+			@Override
+			public void run() {
+				kurt = new Author("Kurt");
+				kurt.persist();
+				kafka = new Article("Die Verwandlung", kurt);
+				kafka.persist();
+				karamazov = new Article("Die Brueder Karamasow", null);
+				karamazov.persist();
+			}
+		});
+	}
+
+	@Test
+	public void search() {
+		assertEquals(search("verwand"), kafka);
+		assertEquals(search("DIE brueder"), karamazov);
+		assertEquals(new SearchQuery("die").list().size(), 2);
+		assertTrue(new SearchQuery("verwandlung brueder").list().isEmpty());
+		assertEquals(search("kurt verwandlung"), kafka);
+	}
+
+	@Test
+	public void shortWordsScan() {
+		assertEquals(search("br"), karamazov);
+		assertEquals(search("ie verwandlung"), kafka);
+	}
+
+	@Test
+	public void modification() {
+		Persistence.runInTransaction("rename", new Runnable() {
+
+			@Override
+			public void run() {
+				kafka.title = "Der Process";
+				kafka.fireModified("title", kafka.title);
+			}
+		});
+		assertNull(search("verwandlung"));
+		assertEquals(search("process"), kafka);
+	}
+
+	@Test
+	public void referencedEntityModification() {
+		Persistence.runInTransaction("rename", new Runnable() {
+
+			@Override
+			public void run() {
+				kurt.name = "Franz";
+				kurt.fireModified("name", kurt.name);
+			}
+		});
+		assertNull(search("kurt"));
+		assertEquals(search("franz"), kafka);
+	}
+
+	@Test
+	public void derivedTextFromOtherEntity() {
+		final Quote quote = new Quote("To be or not to be", kurt.getId());
+		Persistence.runInTransaction("quote", new Runnable() {
+
+			@Override
+			public void run() {
+				quote.persist();
+			}
+		});
+		assertTrue(new SearchQuery("kurt").addTypes(Quote.class).list().contains(quote));
+		Persistence.runInTransaction("rename", new Runnable() {
+
+			@Override
+			public void run() {
+				kurt.name = "Franz";
+				kurt.fireModified("name", kurt.name);
+			}
+		});
+		assertTrue(new SearchQuery("franz").addTypes(Quote.class).list().contains(quote));
+		assertTrue(new SearchQuery("kurt").addTypes(Quote.class).list().isEmpty());
+	}
+
+	@Test
+	public void deletion() {
+		Persistence.runInTransaction("delete", new Runnable() {
+
+			@Override
+			public void run() {
+				kafka.delete();
+			}
+		});
+		assertNull(search("verwandlung"));
+		assertEquals(new SearchQuery("die").list().size(), 1);
+	}
+
+	@Test
+	public void entityMatchingWords() {
+		final Memo memo = new Memo("Shopping list");
+		Persistence.runInTransaction("memo", new Runnable() {
+
+			@Override
+			public void run() {
+				memo.persist();
+			}
+		});
+		assertTrue(new SearchQuery("memos").addTypes(Memo.class).list().contains(memo));
+		assertTrue(new SearchQuery("shopping").addTypes(Memo.class).list().contains(memo));
+		assertTrue(new SearchQuery("kafka").addTypes(Memo.class).list().isEmpty());
+	}
+
+	@Test
+	public void performance() {
+		Persistence.runInTransaction("import", new Runnable() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < ARTICLE_COUNT; i++) {
+					new Article("Article " + i + " about " + Integer.toHexString(i * 7919), null).persist();
+				}
+			}
+		});
+
+		final int queries = 100;
+		for (boolean indexed : new boolean[] { false, true }) {
+			backend.setSearchIndexEnabled(indexed);
+			new SearchQuery("warmup").list();
+			RuntimeTracker rt = new RuntimeTracker();
+			int found = 0;
+			for (int i = 0; i < queries; i++) {
+				found += new SearchQuery("about " + Integer.toHexString((i + 1) * 97 * 7919)).list().size();
+			}
+			log.info(queries, "searches in", ARTICLE_COUNT, "entities", indexed ? "with" : "without", "index:",
+				rt.getRuntimeFormated(), "(" + found + " results)");
+		}
+	}
+
+	private AEntity search(String text) {
+		Set<AEntity> result = new SearchQuery(new SearchText(text)).addTypes(Article.class).list();
+		if (result.size() > 1) fail("More than one result for " + text + ": " + result);
+		return result.isEmpty() ? null : result.iterator().next();
+	}
+
+	static class Author extends AEntity {
+
+		private String name;
+
+		public Author(String name) {
+			this.name = name;
+		}
+
+		@Override
+		protected String asString() {
+			return name;
+		}
+
+	}
+
+	static class Article extends AEntity {
+
+		private String title;
+		private Author author;
+
+		public Article(String title, Author author) {
+			this.title = title;
+			this.author = author;
+		}
+
+		@Override
+		public boolean matches(SearchText search) {
+			return search.matches(title, author);
+		}
+
+		@Override
+		protected String asString() {
+			return title;
+		}
+
+	}
+
+	/**
+	 * Matches text derived from the author, which is loaded by id.
+	 */
+	static class Quote extends AEntity {
+
+		private String text;
+		private String authorId;
+
+		public Quote(String text, String authorId) {
+			this.text = text;
+			this.authorId = authorId;
+		}
+
+		@Override
+		public boolean matches(SearchText search) {
+			return search.matches(text, "by " + getById(authorId));
+		}
+
+	}
+
+	/**
+	 * Matches the word "memos" by itself, which the index can not know.
+	 */
+	static class Memo extends AEntity {
+
+		private String text;
+
+		public Memo(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public boolean matches(SearchText search) {
+			return search.matches(text) || search.getWords().contains("memos");
+		}
+
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.persistence.ThreadlocalTransactionManager;
+import ilarkesto.testng.ATest;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TransactionIntegrityTest extends ATest {
+
+	private static final int ROOT_COUNT = 5000;
+	private static final int DEPTH = 5;
+
+	@BeforeMethod
+	public void init() {
+		Persistence.initialize(new InMemoryEntitiesBackend(), new ThreadlocalTransactionManager());
+	}
+
+	@Test
+	public void cascadingCreation() {
+		Persistence.runInTransaction("cascade", new Runnable() {
+
+			@Override
+			public void run() {
+				new Node(0).persist();
+			}
+		});
+		assertEquals(new AllByTypeQuery(Node.class).list().size(), DEPTH + 1);
+	}
+
+	@Test
+	public void deletionWhileEnsuringIntegrity() {
+		final Node[] nodes = new Node[2];
+		Persistence.runInTransaction("create", new Runnable() {
+
+			@Override
+			public void run() {
+				nodes[0] = new Node(DEPTH);
+				nodes[0].persist();
+				nodes[1] = new Node(DEPTH);
+				nodes[1].persist();
+			}
+		});
+
+		Persistence.runInTransaction("delete", new Runnable() {
+
+			@Override
+			public void run() {
+				nodes[1].obsolete = true;
+				nodes[1].fireModified("obsolete", "true");
+			}
+		});
+		assertTrue(Transaction.backend.containsWithId(nodes[0].getId()));
+		assertFalse(Transaction.backend.containsWithId(nodes[1].getId()));
+	}
+
+	@Test
+	public void modifiedEntityInvalidatedByRepair() {
+		final int[] checks = new int[1];
+		final Item[] items = new Item[2];
+		Persistence.runInTransaction("create", new Runnable() {
+
+			@Override
+			public void run() {
+				items[0] = new Item("a", checks);
+				items[1] = new Item("b", checks);
+				items[0].partner = items[1];
+				items[1].partner = items[0];
+				items[0].persist();
+				items[1].persist();
+			}
+		});
+
+		checks[0] = 0;
+		Persistence.runInTransaction("modify", new Runnable() {
+
+			@Override
+			public void run() {
+				for (Item item : items) {
+					item.label = item.label.toUpperCase();
+					item.fireModified("label", item.label);
+				}
+			}
+		});
+		assertEquals(items[0].label, "A");
+		assertEquals(items[1].label, "B");
+	}
+
+	@Test
+	public void bulkImport() {
+		RuntimeTracker rt = new RuntimeTracker();
+		Persistence.runInTransaction("import", new Runnable() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < ROOT_COUNT; i++) {
+					new Node(0).persist();
+				}
+			}
+		});
+		log.info("Bulk import of", ROOT_COUNT * (DEPTH + 1), "entities in", DEPTH + 1, "integrity passes:",
+			rt.getRuntimeFormated());
+	}
+
+	/**
+	 * Creates a child node when ensuring integrity, until <code>DEPTH</code> is reached.
+	 */
+	static class Node extends AEntity {
+
+		private int level;
+		private boolean childCreated;
+		private boolean obsolete;
+
+		public Node(int level) {
+			this.level = level;
+		}
+
+		@Override
+		protected void onEnsureIntegrity() {
+			if (obsolete) {
+				delete();
+				return;
+			}
+			if (level >= DEPTH || childCreated) return;
+			childCreated = true;
+			new Node(level + 1).persist();
+		}
+
+	}
+
+	/**
+	 * Trims its label when ensuring integrity. The second checked item pads the label of its partner, which was
+	 * already checked in the same pass.
+	 */
+	static class Item extends AEntity {
+
+		private String label;
+		private Item partner;
+		private int[] checks;
+
+		public Item(String label, int[] checks) {
+			this.label = label;
+			this.checks = checks;
+		}
+
+		@Override
+		protected void onEnsureIntegrity() {
+			if (!label.equals(label.trim())) {
+				label = label.trim();
+				fireModified("label", label);
+			}
+			checks[0]++;
+			if (checks[0] == 2) {
+				partner.label = " " + partner.label + " ";
+				partner.fireModified("label", partner.label);
+			}
+		}
+
+	}
+
+}
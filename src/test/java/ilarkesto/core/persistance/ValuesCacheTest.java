@@ -0,0 +1,308 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import ilarkesto.persistence.ThreadlocalTransactionManager;
+import ilarkesto.testng.ATest;
+
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ValuesCacheTest extends ATest {
+
+	private Person anna;
+	private Person bert;
+	private Person carl;
+
+	@BeforeMethod
+	public void init() {
+		Persistence.initialize(new InMemoryEntitiesBackend(), new ThreadlocalTransactionManager());
+		Persistence.valuesCaches = new ValuesCaches();
+		Persistence.runInTransaction("init", new Runnable() {
+
+			@Override
+			public void run() {
+				anna = new Person("Anna");
+				bert = new Person("Bert");
+				carl = new Person("Carl");
+				anna.friendId = bert.getId();
+				anna.persist();
+				bert.persist();
+				carl.persist();
+			}
+		});
+	}
+
+	@Test
+	public void evictOnlyDependentValues() {
+		assertEquals(anna.getFriendName(), "Bert");
+		assertEquals(anna.getFriendName(), "Bert");
+		assertEquals(Persistence.valuesCaches.getMissCount(), 1);
+		assertEquals(Persistence.valuesCaches.getHitCount(), 1);
+
+		rename(carl, "Carlos");
+		assertEquals(anna.getFriendName(), "Bert");
+		assertEquals(Persistence.valuesCaches.getEvictionCount(), 0);
+
+		rename(bert, "Bernd");
+		assertEquals(Persistence.valuesCaches.getEvictionCount(), 1);
+		assertEquals(anna.getFriendName(), "Bernd");
+		assertEquals(Persistence.valuesCaches.getMissCount(), 2);
+	}
+
+	@Test
+	public void evictOnQueriedType() {
+		assertEquals(anna.getPersonCount().intValue(), 3);
+		assertEquals(anna.getPersonCount().intValue(), 3);
+		Persistence.runInTransaction("create", new Runnable() {
+
+			@Override
+			public void run() {
+				new Person("Dora").persist();
+			}
+		});
+		assertEquals(anna.getPersonCount().intValue(), 4);
+	}
+
+	@Test
+	public void evictOnBackReferenceCacheHit() {
+		assertEquals(Person.getByFriend(bert).size(), 1);
+		assertEquals(bert.getAdmirerCount().intValue(), 1);
+		Persistence.runInTransaction("create", new Runnable() {
+
+			@Override
+			public void run() {
+				Person dora = new Person("Dora");
+				dora.friendId = bert.getId();
+				dora.persist();
+			}
+		});
+		assertEquals(bert.getAdmirerCount().intValue(), 2);
+	}
+
+	@Test
+	public void nestedValues() {
+		assertEquals(carl.getFriendOfFriendName(anna), "Bert");
+		rename(bert, "Bernd");
+		assertEquals(carl.getFriendOfFriendName(anna), "Bernd");
+	}
+
+	@Test
+	public void evictOnDelete() {
+		assertEquals(anna.getFriendName(), "Bert");
+		Persistence.runInTransaction("delete", new Runnable() {
+
+			@Override
+			public void run() {
+				bert.delete();
+			}
+		});
+		assertNull(anna.getFriendName());
+	}
+
+	@Test
+	public void hitRateUnderWriteLoad() {
+		for (int i = 0; i < 1000; i++) {
+			rename(carl, "Carl " + i);
+			anna.getFriendName();
+		}
+		log.info(Persistence.valuesCaches);
+		assertEquals(Persistence.valuesCaches.getMissCount(), 1);
+	}
+
+	@Test
+	public void keys() {
+		ValuesCache cache = Persistence.valuesCaches.getCache(anna.getId());
+		cache.put("a-bc", "a", "bc");
+		cache.put("ab-c", "ab", "c");
+		cache.put("bert", "person", bert);
+		assertEquals(cache.get("a", "bc"), "a-bc");
+		assertEquals(cache.get("ab", "c"), "ab-c");
+		assertEquals(cache.get("person", bert), "bert");
+		assertEquals(cache.get("person", bert.getId()), "bert");
+		assertNull(cache.get("person", carl));
+	}
+
+	@Test
+	public void maxSize() {
+		ValuesCaches caches = Persistence.valuesCaches;
+		caches.setMaxSize(100);
+		ValuesCache cache = caches.getCache(anna.getId());
+		cache.put("hot", "value", -1);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(cache.get("value", -1), "hot");
+			cache.put("cold", "value", i);
+		}
+		assertEquals(caches.size(), 100);
+		assertEquals(caches.getEvictionCount(), 901);
+		assertEquals(cache.get("value", -1), "hot");
+		assertNull(cache.get("value", 0));
+	}
+
+	@Test
+	public void concurrentThroughput() throws InterruptedException {
+		ATransactionManager transactionManager = Persistence.transactionManager;
+		Persistence.transactionManager = null;
+		try {
+			for (int threads : new int[] { 1, 4 }) {
+				long gets = measureThroughput(threads, false);
+				long puts = measureThroughput(threads, true);
+				log.info("ValuesCache throughput with", threads, "threads:", gets, "gets/s,", puts, "puts/s");
+			}
+		} finally {
+			Persistence.transactionManager = transactionManager;
+		}
+	}
+
+	private long measureThroughput(int threadCount, final boolean put) throws InterruptedException {
+		final ValuesCaches caches = new ValuesCaches();
+		caches.setMaxSize(10000);
+		final String[] ids = new String[1000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = "entity" + i;
+			caches.getCache(ids[i]).put(i, "value", i);
+		}
+
+		final int operations = 200000;
+		for (int warmup = 0; warmup < 2; warmup++) {
+			runThroughput(caches, ids, threadCount, operations, put);
+		}
+		long start = System.nanoTime();
+		runThroughput(caches, ids, threadCount, operations, put);
+		long nanos = System.nanoTime() - start;
+		return operations * (long) threadCount * 1000000000L / Math.max(1, nanos);
+	}
+
+	private void runThroughput(final ValuesCaches caches, final String[] ids, int threadCount,
+			final int operations, final boolean put) throws InterruptedException {
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < operations; i++) {
+						int n = (i + offset * 7) % ids.length;
+						ValuesCache cache = caches.getCache(ids[n]);
+						if (put) {
+							cache.put(i, "value", n);
+						} else {
+							cache.get("value", n);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private void rename(final Person person, final String name) {
+		Persistence.runInTransaction("rename", new Runnable() {
+
+			@Override
+			public void run() {
+				person.name = name;
+				person.fireModified("name", name);
+			}
+		});
+	}
+
+	static class Person extends AEntity {
+
+		private static AEntitySetBackReferenceHelper<Person> friendBackReferencesCache = new FriendBackReferences();
+
+		private static class FriendBackReferences extends AEntitySetBackReferenceHelper<Person> {
+
+			public FriendBackReferences() {
+				super(Person.class);
+			}
+
+
+			@Override
+			protected Set<Person> loadById(final String id) {
+				return new AEntityQuery<Person>() {
+
+					@Override
+					public boolean test(Person entity) {
+						return id.equals(entity.friendId);
+					}
+
+					@Override
+					public Class<Person> getType() {
+						return Person.class;
+					}
+				}.list();
+			}
+		}
+
+		private String name;
+		private String friendId;
+
+		public static Set<Person> getByFriend(Person friend) {
+			return friendBackReferencesCache.getById(friend.getId());
+		}
+
+		public Person(String name) {
+			this.name = name;
+		}
+
+		public String getFriendName() {
+			ValuesCache cache = getCache();
+			Object cachedValue = cache.get("friendName");
+			if (cachedValue != null) return (String) cachedValue;
+			return cache.put(computeFriendName(), "friendName");
+		}
+
+		private String computeFriendName() {
+			if (friendId == null || !exists(friendId)) return null;
+			return ((Person) getById(friendId)).name;
+		}
+
+		public String getFriendOfFriendName(Person person) {
+			ValuesCache cache = getCache();
+			Object cachedValue = cache.get("friendOfFriendName", person);
+			if (cachedValue != null) return (String) cachedValue;
+			return cache.put(person.getFriendName(), "friendOfFriendName", person);
+		}
+
+		public Integer getAdmirerCount() {
+			ValuesCache cache = getCache();
+			Object cachedValue = cache.get("admirerCount");
+			if (cachedValue != null) return (Integer) cachedValue;
+			return cache.put(getByFriend(this).size(), "admirerCount");
+		}
+
+		@Override
+		protected void onAfterPersist() {
+			super.onAfterPersist();
+			if (friendId != null) friendBackReferencesCache.clear(friendId);
+		}
+
+		public Integer getPersonCount() {
+			ValuesCache cache = getCache();
+			Object cachedValue = cache.get("personCount");
+			if (cachedValue != null) return (Integer) cachedValue;
+			return cache.put(new AllByTypeQuery(Person.class).list().size(), "personCount");
+		}
+
+	}
+
+}
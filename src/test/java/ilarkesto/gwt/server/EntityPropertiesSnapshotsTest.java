@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.gwt.server;
+
+import ilarkesto.core.persistance.AEntity;
+import ilarkesto.testng.ATest;
+
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class EntityPropertiesSnapshotsTest extends ATest {
+
+	@Test
+	public void shareAcrossConversations() throws InterruptedException {
+		EntityPropertiesSnapshots snapshots = new EntityPropertiesSnapshots();
+		Note note = new Note();
+		Map<String, String> first = snapshots.getPropertiesMap(note);
+		for (int i = 0; i < 299; i++) {
+			assertSame(snapshots.getPropertiesMap(note), first);
+		}
+		assertEquals(snapshots.getCreateCount(), 1);
+		assertEquals(snapshots.getShareCount(), 299);
+
+		Thread.sleep(2);
+		note.updateLastModified();
+		assertNotSame(snapshots.getPropertiesMap(note), first);
+		assertEquals(snapshots.getCreateCount(), 2);
+	}
+
+	@Test
+	public void copyOnWrite() {
+		EntityPropertiesSnapshots snapshots = new EntityPropertiesSnapshots();
+		Map<String, String> shared = snapshots.getPropertiesMap(new Note());
+
+		CopyOnWritePropertiesMap unfiltered = new CopyOnWritePropertiesMap(snapshots, shared);
+		unfiltered.remove("unknown");
+		unfiltered.put("id", shared.get("id"));
+		assertSame(unfiltered.getResult(), shared);
+
+		CopyOnWritePropertiesMap filtered = new CopyOnWritePropertiesMap(snapshots, shared);
+		filtered.remove("modificationTime");
+		assertNotSame(filtered.getResult(), shared);
+		assertFalse(filtered.containsKey("modificationTime"));
+		assertTrue(shared.containsKey("modificationTime"));
+		assertEquals(snapshots.getCopyCount(), 1);
+	}
+
+	static class Note extends AEntity {
+
+		public Note() {
+			updateLastModified();
+		}
+
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.gwt.server;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.testng.ATest;
+
+import org.testng.annotations.Test;
+
+public class RemoteEntitiesTest extends ATest {
+
+	private static final int ENTITY_COUNT = 100000;
+
+	@Test
+	public void tracking() {
+		RemoteEntities remoteEntities = new RemoteEntities();
+		remoteEntities.put("a", String.class, 1);
+		remoteEntities.put("b", String.class, 2);
+		remoteEntities.put("c", Integer.class, 3);
+		assertEquals(remoteEntities.getModificationTime("a"), 1);
+		assertEquals(remoteEntities.getModificationTime("x"), -1);
+
+		remoteEntities.put("a", String.class, 4);
+		assertEquals(remoteEntities.getModificationTime("a"), 4);
+		assertEquals(remoteEntities.size(), 3);
+
+		remoteEntities.remove("b");
+		assertFalse(remoteEntities.contains("b"));
+
+		remoteEntities.removeType(String.class);
+		assertFalse(remoteEntities.contains("a"));
+		assertTrue(remoteEntities.contains("c"));
+		assertEquals(remoteEntities.size(), 1);
+
+		remoteEntities.put("c", String.class, 5);
+		remoteEntities.removeType(Integer.class);
+		assertTrue(remoteEntities.contains("c"));
+		remoteEntities.removeType(String.class);
+		assertEquals(remoteEntities.size(), 0);
+	}
+
+	@Test
+	public void deletionPerformance() {
+		RemoteEntities remoteEntities = new RemoteEntities();
+		for (int i = 0; i < ENTITY_COUNT; i++) {
+			remoteEntities.put("entity" + i, i % 2 == 0 ? String.class : Integer.class, i);
+		}
+		RuntimeTracker rt = new RuntimeTracker();
+		for (int i = 0; i < ENTITY_COUNT; i += 2) {
+			remoteEntities.remove("entity" + i);
+		}
+		log.info(ENTITY_COUNT / 2, "deletions from", ENTITY_COUNT, "tracked entities:", rt.getRuntimeFormated());
+		assertEquals(remoteEntities.size(), ENTITY_COUNT / 2);
+		remoteEntities.removeType(Integer.class);
+		assertEquals(remoteEntities.size(), 0);
+	}
+
+}
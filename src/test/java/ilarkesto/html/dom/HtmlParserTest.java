@@ -15,8 +15,15 @@
 package ilarkesto.html.dom;
 
 import ilarkesto.core.base.Parser.ParseException;
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.io.IO;
 import ilarkesto.testng.ATest;
 
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.testng.annotations.Test;
 
 public class HtmlParserTest extends ATest {
@@ -68,6 +75,69 @@ public class HtmlParserTest extends ATest {
 		parser.parse("<!doctype html><html ></html>");
 	}
 
+	@Test
+	public void parseAttributeWithoutValue() throws ParseException {
+		HtmlPage page = new HtmlParser().parse("<html><input disabled type=checkbox checked/></html>");
+		HtmlTag input = page.getTagByName("input");
+		assertTrue(input.getAttributes().containsKey("disabled"));
+		assertEquals(input.getAttribute("type"), "checkbox");
+		assertTrue(input.isClosed());
+	}
+
+	@Test
+	public void parseScriptWithTags() throws ParseException {
+		assertParseToString("<html><script>if (a </b) document.write('<p>');</script><p>x</p></html>");
+	}
+
+	@Test
+	public void parseFromReader() throws ParseException {
+		StringBuilder sb = new StringBuilder("<!doctype html><html><body>");
+		for (int i = 0; i < 2000; i++) {
+			sb.append("<div class=\"row\" id=\"r").append(i).append("\"><!-- row --><p>text ").append(i)
+					.append("</p></div>");
+		}
+		sb.append("</body></html>");
+		String html = sb.toString();
+		assertEquals(new HtmlParser().parse(new StringReader(html)).toHtml(), html);
+	}
+
+	@Test
+	public void throughput() throws ParseException {
+		List<String> pages = new ArrayList<String>();
+		for (File file : IO.listFiles(new File("test-input"))) {
+			if (file.getName().endsWith(".html")) pages.add(IO.readFile(file, IO.UTF_8));
+		}
+		if (pages.isEmpty()) pages.add(createLargePage());
+
+		long chars = 0;
+		for (String page : pages) {
+			chars += page.length();
+			new HtmlParser().parse(page);
+		}
+		int rounds = 20;
+		RuntimeTracker rt = new RuntimeTracker();
+		for (int i = 0; i < rounds; i++) {
+			for (String page : pages) {
+				new HtmlParser().parse(new StringReader(page));
+			}
+		}
+		long millis = Math.max(1, rt.getRuntime());
+		log.info("Parsed", pages.size(), "pages,", chars, "chars,", rounds, "times in", rt.getRuntimeFormated() + ":",
+			chars * rounds / millis / 1000, "MB/s");
+	}
+
+	private static String createLargePage() {
+		StringBuilder sb = new StringBuilder("<!doctype html><html><head><title>benchmark</title>");
+		sb.append("<script>var rows = '<tr>' + '</td>';</script></head><body><table>");
+		for (int i = 0; i < 20000; i++) {
+			sb.append("<tr class=\"row\" data-id='").append(i).append("'><td width=20>").append(i)
+					.append("</td><td><a href=\"/item/").append(i).append("\">Item ").append(i)
+					.append(" with some longer description text</a><br></td></tr>\n");
+		}
+		sb.append("</table></body></html>");
+		return sb.toString();
+	}
+
 	private static void assertParseToString(String html) throws ParseException {
 		assertEquals(new HtmlParser().parse(html).toHtml(), html);
 	}
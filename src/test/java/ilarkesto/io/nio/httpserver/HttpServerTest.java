@@ -0,0 +1,334 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.httpserver;
+
+import ilarkesto.testng.ATest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class HttpServerTest extends ATest {
+
+	private HttpServer server;
+
+	@BeforeMethod
+	public void init() {
+		server = createServer(1, 1);
+	}
+
+	@AfterMethod
+	public void shutdown() {
+		server.stop();
+	}
+
+	@Test
+	public void keepAlive() throws IOException {
+		Client client = new Client(server.getPort());
+		for (int i = 0; i < 3; i++) {
+			client.send("GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n");
+			Response response = client.readResponse();
+			assertEquals(response.status, 200);
+			assertEquals(response.getBodyAsString(), "Hello");
+			assertNull(response.headers.get("connection"));
+		}
+		client.send("GET /missing HTTP/1.1\r\nConnection: close\r\n\r\n");
+		Response response = client.readResponse();
+		assertEquals(response.status, 404);
+		assertEquals(response.headers.get("connection"), "close");
+		assertEquals(client.in.read(), -1);
+		client.close();
+	}
+
+	@Test
+	public void keepAliveTimeout() throws IOException {
+		server.stop();
+		server = new HttpServer(0, "Test");
+		server.addRequestHandler(new TestRequestHandler());
+		server.setKeepAliveTimeout(200);
+		server.start();
+
+		Client client = new Client(server.getPort());
+		client.send("GET /hello HTTP/1.1\r\n\r\n");
+		assertEquals(client.readResponse().getBodyAsString(), "Hello");
+		long start = System.currentTimeMillis();
+		assertEquals(client.in.read(), -1);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		client.close();
+	}
+
+	@Test
+	public void bodyGrowsWithReceivedData() throws IOException {
+		Client client = new Client(server.getPort());
+		client.send("POST /echo HTTP/1.1\r\nContent-Length: 10000000\r\n\r\nabc");
+		client.close();
+
+		client = new Client(server.getPort());
+		client.send("POST /echo HTTP/1.1\r\nContent-Length: 3000\r\n\r\n");
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			body.append((char) ('a' + i % 26));
+		}
+		client.send(body.toString());
+		assertEquals(client.readResponse().getBodyAsString(), body.toString());
+		client.close();
+	}
+
+	@Test
+	public void pipelining() throws IOException {
+		Client client = new Client(server.getPort());
+		client.send("GET /hello HTTP/1.1\r\n\r\nPOST /echo HTTP/1.1\r\nContent-Length: 3\r\n\r\nabcGET /hello HTTP/1.1\r\n\r\n");
+		assertEquals(client.readResponse().getBodyAsString(), "Hello");
+		assertEquals(client.readResponse().getBodyAsString(), "abc");
+		assertEquals(client.readResponse().getBodyAsString(), "Hello");
+		client.close();
+	}
+
+	@Test
+	public void splitOverChunks() throws IOException {
+		Client client = new Client(server.getPort());
+		String request = "POST /echo HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world";
+		for (int i = 0; i < request.length(); i++) {
+			client.send(request.substring(i, i + 1));
+		}
+		assertEquals(client.readResponse().getBodyAsString(), "hello world");
+		client.close();
+	}
+
+	@Test
+	public void chunkedRequestBody() throws IOException {
+		Client client = new Client(server.getPort());
+		client.send("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\n\r\n");
+		assertEquals(client.readResponse().getBodyAsString(), "hello world");
+		client.close();
+	}
+
+	@Test
+	public void chunkedResponse() throws IOException {
+		Client client = new Client(server.getPort());
+		client.send("GET /stream HTTP/1.1\r\n\r\n");
+		Response response = client.readResponse();
+		assertEquals(response.headers.get("transfer-encoding"), "chunked");
+		assertEquals(response.getBodyAsString(), "streamed response");
+
+		client.send("GET /stream HTTP/1.0\r\n\r\n");
+		response = client.readResponse();
+		assertNull(response.headers.get("transfer-encoding"));
+		assertEquals(response.getBodyAsString(), "streamed response");
+		client.close();
+	}
+
+	@Test
+	public void badRequest() throws IOException {
+		Client client = new Client(server.getPort());
+		client.send("FOO / HTTP/1.1\r\n\r\n");
+		Response response = client.readResponse();
+		assertEquals(response.status, 501);
+		assertEquals(client.in.read(), -1);
+		client.close();
+	}
+
+	@Test
+	public void benchmark() throws Exception {
+		server.stop();
+		server = createServer(2, 2);
+		int clientCount = 8;
+		int requestCount = 2000;
+		long[] sequential = measure(clientCount, requestCount, 1);
+		long[] pipelined = measure(clientCount, requestCount, 10);
+		log.info("HTTP keep-alive with", clientCount, "clients:", sequential[0], "requests/s,", sequential[1],
+			"us average latency");
+		log.info("HTTP pipelined by 10 with", clientCount, "clients:", pipelined[0], "requests/s,", pipelined[1],
+			"us average latency per batch");
+	}
+
+	private long[] measure(int clientCount, final int requestCount, final int pipelineDepth) throws Exception {
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final long[] latencyNanos = new long[clientCount];
+		Thread[] clients = new Thread[clientCount];
+		for (int i = 0; i < clientCount; i++) {
+			final int index = i;
+			clients[i] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						Client client = new Client(server.getPort());
+						StringBuilder batch = new StringBuilder();
+						for (int j = 0; j < pipelineDepth; j++) {
+							batch.append("GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n");
+						}
+						String requests = batch.toString();
+						for (int j = 0; j < requestCount / pipelineDepth; j++) {
+							long start = System.nanoTime();
+							client.send(requests);
+							for (int k = 0; k < pipelineDepth; k++) {
+								if (client.readResponse().status != 200) throw new IllegalStateException("Unexpected status");
+							}
+							latencyNanos[index] += System.nanoTime() - start;
+						}
+						client.close();
+					} catch (Throwable ex) {
+						errors.add(ex);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread client : clients) {
+			client.start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+		long nanos = System.nanoTime() - start;
+		if (!errors.isEmpty()) throw new RuntimeException("Client failed", errors.get(0));
+		long totalLatency = 0;
+		for (long latency : latencyNanos) {
+			totalLatency += latency;
+		}
+		long batches = clientCount * (long) (requestCount / pipelineDepth);
+		return new long[] { clientCount * (long) requestCount * 1000000000L / Math.max(1, nanos),
+				totalLatency / batches / 1000 };
+	}
+
+	private static HttpServer createServer(int selectorCount, int workerCount) {
+		HttpServer server = new HttpServer(0, "Test", selectorCount, workerCount);
+		server.addRequestHandler(new TestRequestHandler());
+		server.start();
+		return server;
+	}
+
+	private static class TestRequestHandler implements HttpRequestHandler {
+
+		@Override
+		public boolean onHttpRequest(HttpRequest request) {
+			if (request.getUri().equals("/hello")) {
+				request.sendResponse(HttpStatusCode.OK, "text/plain", "Hello");
+				return true;
+			}
+			if (request.getUri().equals("/echo")) {
+				request.sendResponse(HttpStatusCode.OK, "application/octet-stream", request.getBody());
+				return true;
+			}
+			if (request.getUri().equals("/stream")) {
+				request.setResponseStatus(HttpStatusCode.OK, null);
+				request.sendChunk("streamed");
+				request.sendChunk(" response");
+				request.finishResponse();
+				return true;
+			}
+			return false;
+		}
+
+	}
+
+	private static class Response {
+
+		private int status;
+		private Map<String, String> headers = new HashMap<String, String>();
+		private byte[] body;
+
+		public String getBodyAsString() {
+			return new String(body);
+		}
+
+	}
+
+	private static class Client {
+
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+
+		public Client(int port) throws IOException {
+			socket = new Socket("localhost", port);
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+		}
+
+		public void send(String s) throws IOException {
+			out.write(s.getBytes("ISO-8859-1"));
+			out.flush();
+		}
+
+		public Response readResponse() throws IOException {
+			Response response = new Response();
+			String statusLine = readLine();
+			response.status = Integer.parseInt(statusLine.split(" ")[1]);
+			String line;
+			while ((line = readLine()).length() > 0) {
+				int idx = line.indexOf(':');
+				response.headers.put(line.substring(0, idx).toLowerCase(), line.substring(idx + 1).trim());
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			String contentLength = response.headers.get("content-length");
+			if (contentLength != null) {
+				read(body, Integer.parseInt(contentLength));
+			} else if ("chunked".equals(response.headers.get("transfer-encoding"))) {
+				int size;
+				while ((size = Integer.parseInt(readLine(), 16)) > 0) {
+					read(body, size);
+					readLine();
+				}
+				readLine();
+			} else {
+				int b;
+				while ((b = in.read()) >= 0) {
+					body.write(b);
+				}
+			}
+			response.body = body.toByteArray();
+			return response;
+		}
+
+		private void read(ByteArrayOutputStream body, int count) throws IOException {
+			for (int i = 0; i < count; i++) {
+				int b = in.read();
+				if (b < 0) throw new IOException("Unexpected end of stream");
+				body.write(b);
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int b;
+			while ((b = in.read()) != '\n') {
+				if (b < 0) throw new IOException("Unexpected end of stream");
+				if (b != '\r') sb.append((char) b);
+			}
+			return sb.toString();
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io.nio.tcpserver;
+
+import ilarkesto.testng.ATest;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class TcpServerTest extends ATest {
+
+	@Test
+	public void echoPreservesOrder() throws Exception {
+		TcpServer server = new TcpServer(0, new EchoDataHandler(), 2, 4);
+		server.start();
+		try {
+			List<Socket> sockets = new ArrayList<Socket>();
+			for (int i = 0; i < 4; i++) {
+				sockets.add(new Socket("localhost", server.getPort()));
+			}
+			for (int i = 0; i < sockets.size(); i++) {
+				byte[] data = createData(100000, i);
+				Socket socket = sockets.get(i);
+				socket.getOutputStream().write(data);
+				byte[] echo = new byte[data.length];
+				new DataInputStream(socket.getInputStream()).readFully(echo);
+				assertTrue(Arrays.equals(echo, data));
+				socket.close();
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void bufferPoolBound() {
+		BufferPool pool = new BufferPool(16, 2);
+		ByteBuffer a = pool.acquire();
+		ByteBuffer b = pool.acquire();
+		ByteBuffer c = pool.acquire();
+		assertTrue(a.isDirect());
+		assertTrue(b.isDirect());
+		assertFalse(c.isDirect());
+		assertEquals(pool.getAllocatedCount(), 2);
+
+		pool.release(c);
+		pool.release(a);
+		assertSame(pool.acquire(), a);
+		assertFalse(pool.acquire().isDirect());
+	}
+
+	@Test
+	public void sendToClosedConnection() throws Exception {
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final CountDownLatch closed = new CountDownLatch(1);
+		TcpServer server = new TcpServer(0, new DataHandler() {
+
+			@Override
+			public void onDataReceived(ServerDataEvent event) {}
+
+			@Override
+			public void onConnectionClosed(TcpConnection connection) {
+				try {
+					connection.sendData(ByteBuffer.wrap(createData(100, 0)));
+					connection.sendString("discarded");
+					assertTrue(connection.pendingData.isEmpty());
+				} catch (Throwable ex) {
+					errors.add(ex);
+				}
+				closed.countDown();
+			}
+		});
+		server.start();
+		try {
+			new Socket("localhost", server.getPort()).close();
+			assertTrue(closed.await(5, TimeUnit.SECONDS));
+			assertEmpty(errors);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void loadGenerator() throws Exception {
+		int clientCount = 16;
+		int messageCount = 2000;
+		long single = measureThroughput(1, 1, clientCount, messageCount);
+		long multi = measureThroughput(4, 4, clientCount, messageCount);
+		log.info("Echo round trips with", clientCount, "clients:", single, "/s with 1 selector and 1 worker,", multi,
+			"/s with 4 selectors and 4 workers");
+	}
+
+	private long measureThroughput(int selectorCount, int workerCount, int clientCount, final int messageCount)
+			throws Exception {
+		final TcpServer server = new TcpServer(0, new EchoDataHandler(), selectorCount, workerCount);
+		server.start();
+		try {
+			final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+			Thread[] clients = new Thread[clientCount];
+			for (int i = 0; i < clientCount; i++) {
+				final byte[] message = createData(1024, i);
+				clients[i] = new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							sendMessages(server.getPort(), message, messageCount);
+						} catch (Throwable ex) {
+							errors.add(ex);
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for (Thread client : clients) {
+				client.start();
+			}
+			for (Thread client : clients) {
+				client.join();
+			}
+			long nanos = System.nanoTime() - start;
+			if (!errors.isEmpty()) throw new RuntimeException("Client failed", errors.get(0));
+			return clientCount * (long) messageCount * 1000000000L / Math.max(1, nanos);
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void sendMessages(int port, byte[] message, int messageCount) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			socket.setTcpNoDelay(true);
+			OutputStream out = socket.getOutputStream();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] echo = new byte[message.length];
+			for (int i = 0; i < messageCount; i++) {
+				out.write(message);
+				in.readFully(echo);
+				if (!Arrays.equals(echo, message)) throw new IllegalStateException("Unexpected echo");
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static byte[] createData(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31 + seed);
+		}
+		return data;
+	}
+
+}
@@ -14,6 +14,7 @@
  */
 package ilarkesto.json;
 
+import ilarkesto.core.base.RuntimeTracker;
 import ilarkesto.core.time.Date;
 import ilarkesto.json.JsonMapper.TypeResolver;
 import ilarkesto.json.JsonSaxParser.ParseException;
@@ -21,6 +22,7 @@ import ilarkesto.testng.ATest;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -73,6 +75,26 @@ public class JsonMapperTest extends ATest {
 		assertEquals(dummy.dec, new BigDecimal("-1.2"));
 	}
 
+	@Test
+	public void serializePerformance() {
+		List<Dummy> dummies = new ArrayList<Dummy>();
+		for (int i = 0; i < 5000; i++) {
+			dummies.add(new Dummy(i, Arrays.asList(1l, 2l, 3l), new SubDummy(), new Date(2014, 1, 1), new BigDecimal(
+					"-1.2")));
+		}
+
+		String json = null;
+		RuntimeTracker rt = null;
+		for (int run = 0; run < 3; run++) {
+			rt = new RuntimeTracker();
+			for (int i = 0; i < 10; i++) {
+				json = JsonMapper.serialize(dummies);
+			}
+		}
+		log.info("10 serializations of 5000 objects:", rt.getRuntimeFormated());
+		assertContains(json, "\"a\": 4999");
+	}
+
 	public static class Dummy {
 
 		private int a;
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.json;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.json.JsonSaxParser.ContentHandler;
+import ilarkesto.testng.ATest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class JsonReaderTest extends ATest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void values() {
+		JsonObject json = read("{\"s\":\"text\",\"i\":-42,\"l\":12345678901,\"d\":23.42,\"e\":1E+1,\"t\":true,\"f\":false,\"n\":null}");
+		assertEquals(json.getString("s"), "text");
+		assertEquals(json.getNumber("i"), Long.valueOf(-42));
+		assertEquals(json.getLong("l"), Long.valueOf(12345678901L));
+		assertEquals(json.getNumber("d"), new BigDecimal("23.42"));
+		assertEquals(json.getNumber("e"), new BigDecimal("10"));
+		assertTrue(json.isTrue("t"));
+		assertFalse(json.isTrue("f"));
+		assertTrue(json.contains("n"));
+		assertNull(json.get("n"));
+	}
+
+	@Test
+	public void escapes() {
+		JsonObject json = read("{\"a\\\"b\":\"new\\nline \\\\ \\/ \\u20ac \\t\"}");
+		assertEquals(json.getString("a\"b"), "new\nline \\ / \u20ac \t");
+	}
+
+	@Test
+	public void nested() {
+		JsonObject json = read(" { \"sub\" : { \"list\" : [ 1 , [ ] , { \"a\" : \"b\" } , ] } , } ");
+		JsonObject sub = json.getObject("sub");
+		assertSame(sub.getParent(), json);
+		List list = sub.getArray("list");
+		assertEquals(list.size(), 3);
+		assertSame(((JsonObject) list.get(2)).getParent(), sub);
+		assertEquals(json.toString(), "{\"sub\":{\"list\":[1,[],{\"a\":\"b\"}]}}");
+	}
+
+	@Test
+	public void namesInterned() {
+		JsonObject json = read("{\"items\":[{\"name\":\"a\"},{\"name\":\"b\"},{\"na\\u006de\":\"c\"}]}");
+		List<JsonObject> items = json.getArrayOfObjects("items");
+		String name = items.get(0).getProperties().iterator().next();
+		assertSame(items.get(1).getProperties().iterator().next(), name);
+		assertSame(items.get(2).getProperties().iterator().next(), name);
+	}
+
+	@Test
+	public void byteBuffer() {
+		ByteBuffer bytes = ByteBuffer.wrap("{\"euro\":\"\u20ac\"}".getBytes(UTF8));
+		assertEquals(new JsonReader(bytes, UTF8).readObject().getString("euro"), "\u20ac");
+	}
+
+	@Test
+	public void errors() {
+		assertParseException("{\"a\":1");
+		assertParseException("{\"a\":\"unclosed}");
+		assertParseException("{\"a\" 1}");
+		assertParseException("{\"a\":tru}");
+		assertParseException("{\"a\":1x}");
+		assertParseException("[]");
+	}
+
+	@Test
+	public void readsStreamInChunks() {
+		String s = createDocument(100);
+		assertEquals(read(s), JsonObject.parse(s));
+	}
+
+	@Test
+	public void performance() throws Exception {
+		String s = createDocument(20000);
+		log.info("Document size:", s.length(), "chars");
+
+		long saxTime = 0;
+		long stringTime = 0;
+		long readerTime = 0;
+		for (int run = 0; run < 5; run++) {
+			RuntimeTracker rt = new RuntimeTracker();
+			new JsonSaxParser().parse(new StringReader(s), new NopContentHandler());
+			saxTime = rt.getRuntime();
+
+			rt = new RuntimeTracker();
+			JsonObject.parse(s);
+			stringTime = rt.getRuntime();
+
+			rt = new RuntimeTracker();
+			JsonObject.parse(new StringReader(s));
+			readerTime = rt.getRuntime();
+		}
+		log.info("JsonSaxParser without building objects:", saxTime, "ms");
+		log.info("JsonObject.parse(String):", stringTime, "ms");
+		log.info("JsonObject.parse(Reader):", readerTime, "ms");
+	}
+
+	private static String createDocument(int count) {
+		JsonObject json = new JsonObject();
+		for (int i = 0; i < count; i++) {
+			JsonObject item = new JsonObject();
+			item.put("id", "item-" + i);
+			item.put("label", "Item \"" + i + "\"\n");
+			item.put("index", i);
+			item.put("price", new BigDecimal(i + ".99"));
+			item.put("active", i % 2 == 0);
+			item.put("parent", null);
+			item.addToArray("tags", "tag" + (i % 10));
+			item.addToArray("tags", "tag" + (i % 7));
+			json.addToArray("items", item);
+		}
+		return json.toFormatedString();
+	}
+
+	private static JsonObject read(String s) {
+		return new JsonReader(new CharByCharReader(s)).readObject();
+	}
+
+	private static void assertParseException(String s) {
+		try {
+			read(s);
+		} catch (ParseException ex) {
+			return;
+		}
+		fail("ParseException expected: " + s);
+	}
+
+	/**
+	 * Returns one char per read, so every value crosses the buffer boundary.
+	 */
+	private static class CharByCharReader extends Reader {
+
+		private StringReader in;
+
+		public CharByCharReader(String s) {
+			this.in = new StringReader(s);
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			return in.read(cbuf, off, Math.min(len, 1));
+		}
+
+		@Override
+		public void close() {
+			in.close();
+		}
+
+	}
+
+	private static class NopContentHandler implements ContentHandler {
+
+		@Override
+		public void onBegin() {}
+
+		@Override
+		public void onEnd() {}
+
+		@Override
+		public boolean onBeginObject() {
+			return true;
+		}
+
+		@Override
+		public boolean onEndObject() {
+			return true;
+		}
+
+		@Override
+		public boolean onBeginAttribute(String key) {
+			return true;
+		}
+
+		@Override
+		public boolean onEndAttribute() {
+			return true;
+		}
+
+		@Override
+		public boolean onBeginArray() {
+			return true;
+		}
+
+		@Override
+		public boolean onEndArray() {
+			return true;
+		}
+
+		@Override
+		public boolean onPrimitiveValue(Object value) {
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.logging;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.core.logging.Log.Level;
+import ilarkesto.core.logging.LogRecord;
+import ilarkesto.core.logging.LogRecordHandler;
+import ilarkesto.core.logging.PrintStreamLogRecordHandler;
+import ilarkesto.io.IO;
+import ilarkesto.logging.DefaultLogRecordHandler.OverflowPolicy;
+import ilarkesto.testng.ATest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.Test;
+
+public class DefaultLogRecordHandlerTest extends ATest {
+
+	@Test
+	public void order() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DefaultLogRecordHandler handler = new DefaultLogRecordHandler(64, new PrintStream(out));
+		handler.setOverflowPolicy(OverflowPolicy.BLOCK);
+		for (int i = 0; i < 1000; i++) {
+			handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.INFO, "record", i));
+		}
+		handler.flush();
+		String[] lines = out.toString().split("\n");
+		assertEquals(lines.length, 1000);
+		for (int i = 0; i < lines.length; i++) {
+			assertContains(lines[i], "record " + i + " ");
+		}
+		assertEquals(handler.getDiscardedCount(), 0);
+		handler.shutdown();
+	}
+
+	@Test
+	public void failingParameter() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DefaultLogRecordHandler handler = new DefaultLogRecordHandler(64, new PrintStream(out));
+		Object failing = new Object() {
+
+			@Override
+			public String toString() {
+				throw new StackOverflowError();
+			}
+		};
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.INFO, "failing", failing));
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.INFO, "after"));
+		handler.flush();
+		assertContains(out.toString(), "Formatting log record failed");
+		assertContains(out.toString(), "after");
+		handler.shutdown();
+	}
+
+	@Test
+	public void latestRecordsAndErrors() {
+		DefaultLogRecordHandler handler = new DefaultLogRecordHandler(64, new PrintStream(new NullOutputStream()));
+		handler.useLogFile(getTestOutputFile("latest.log"));
+		for (int i = 0; i < 300; i++) {
+			handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.INFO, "record", i));
+		}
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.WARN, "warning"));
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.WARN, "warning"));
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.ERROR, "error"));
+
+		List<LogRecord> latest = handler.getLatestLogs();
+		assertEquals(latest.size(), 256);
+		assertEquals(latest.get(0).parameters[1], 47);
+		assertEquals(latest.get(255).level, Level.ERROR);
+
+		List<LogRecord> errors = handler.getErrorRecords();
+		assertEquals(errors.size(), 2);
+		assertEquals(errors.get(0).parameters[0], "warning");
+		assertEquals(errors.get(1).parameters[0], "error");
+		handler.shutdown();
+	}
+
+	@Test
+	public void repeatedWarningKeepsErrors() {
+		DefaultLogRecordHandler handler = new DefaultLogRecordHandler(64, new PrintStream(new NullOutputStream()));
+		handler.useLogFile(getTestOutputFile("repeated.log"));
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.ERROR, "first error"));
+		for (int i = 0; i < 1000; i++) {
+			handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.WARN, "repeated warning"));
+		}
+		List<LogRecord> errors = handler.getErrorRecords();
+		assertEquals(errors.size(), 2);
+		assertEquals(errors.get(0).parameters[0], "first error");
+
+		for (int i = 0; i < 1000; i++) {
+			handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.WARN, "warning " + i));
+		}
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.WARN, "repeated warning"));
+		errors = handler.getErrorRecords();
+		assertEquals(errors.get(errors.size() - 1).parameters[0], "repeated warning");
+		handler.shutdown();
+	}
+
+	@Test
+	public void errorLogFileRotation() {
+		File file = getTestOutputFile("rotation.log");
+		for (int i = 0; i <= 3; i++) {
+			IO.delete(new File(file.getPath() + (i == 0 ? "" : "." + i)));
+		}
+		DefaultLogRecordHandler handler = new DefaultLogRecordHandler(64, new PrintStream(new NullOutputStream()));
+		handler.useLogFile(file);
+		handler.setLogFileRotation(1000, 2);
+		for (int i = 0; i < 100; i++) {
+			handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.INFO, "info", i));
+			handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.WARN, "warning", i));
+			handler.flush();
+		}
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.WARN, "last warning"));
+		handler.shutdown();
+		assertTrue(new File(file.getPath() + ".1").exists());
+		assertTrue(new File(file.getPath() + ".2").exists());
+		assertFalse(new File(file.getPath() + ".3").exists());
+		String text = IO.readFile(file, IO.UTF_8);
+		assertContains(text, "last warning");
+		assertContainsNot(text, "info");
+		assertTrue(file.length() < 1000);
+	}
+
+	@Test
+	public void discardOnOverflow() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		BlockingOutputStream out = new BlockingOutputStream(release);
+		DefaultLogRecordHandler handler = new DefaultLogRecordHandler(16, new PrintStream(out));
+		handler.setOverflowPolicy(OverflowPolicy.DISCARD);
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.INFO, "first"));
+		out.blocked.await();
+		for (int i = 0; i < 100; i++) {
+			handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.INFO, "record", i));
+		}
+		assertEquals(handler.getDiscardedCount(), 100 - 16);
+		release.countDown();
+		handler.flush();
+		handler.log(new LogRecord(System.currentTimeMillis(), "Test", Level.INFO, "last"));
+		handler.flush();
+		assertContains(out.toString(), "84 log records discarded");
+		assertContains(out.toString(), "last");
+		handler.shutdown();
+	}
+
+	@Test
+	public void throughput() throws InterruptedException {
+		for (OverflowPolicy policy : OverflowPolicy.values()) {
+			DefaultLogRecordHandler handler = new DefaultLogRecordHandler(8192, new PrintStream(
+					new NullOutputStream()));
+			handler.setOverflowPolicy(policy);
+			long callsPerSecond = measureThroughput(handler, 32);
+			handler.flush();
+			long written = 32 * CALLS_PER_THREAD - handler.getDiscardedCount();
+			log.info("DefaultLogRecordHandler with", policy, "and 32 threads:", callsPerSecond, "log calls/s,",
+				written, "written");
+			if (policy == OverflowPolicy.BLOCK) assertEquals(handler.getDiscardedCount(), 0);
+			handler.shutdown();
+		}
+		long callsPerSecond = measureThroughput(new PrintStreamLogRecordHandler(new PrintStream(
+				new NullOutputStream())), 32);
+		log.info("PrintStreamLogRecordHandler with 32 threads:", callsPerSecond, "log calls/s");
+	}
+
+	private static final int CALLS_PER_THREAD = 20000;
+
+	private long measureThroughput(LogRecordHandler handler, int threadCount) throws InterruptedException {
+		LogRecordHandler originalHandler = Log.getLogRecordHandler();
+		Log.setLogRecordHandler(handler);
+		final Log logger = Log.get("Benchmark");
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					for (int i = 0; i < CALLS_PER_THREAD; i++) {
+						logger.info("Benchmark record", i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long nanos = System.nanoTime() - startTime;
+		Log.setLogRecordHandler(originalHandler);
+		return CALLS_PER_THREAD * (long) threadCount * 1000000000L / Math.max(1, nanos);
+	}
+
+	private static class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte[] b, int off, int len) {}
+
+	}
+
+	/**
+	 * Blocks the first write until released.
+	 */
+	private static class BlockingOutputStream extends ByteArrayOutputStream {
+
+		private final CountDownLatch blocked = new CountDownLatch(1);
+		private final CountDownLatch release;
+
+		public BlockingOutputStream(CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			super.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {}
+
+	}
+
+}
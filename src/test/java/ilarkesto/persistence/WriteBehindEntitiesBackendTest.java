@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.base.Utl;
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.persistance.AEntity;
+import ilarkesto.core.persistance.Entity;
+import ilarkesto.core.persistance.EntityCacheTest.Car;
+import ilarkesto.persistence.AWriteBehindEntitiesBackend.Durability;
+import ilarkesto.testng.ATest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class WriteBehindEntitiesBackendTest extends ATest {
+
+	private static final long WRITE_DURATION = 10;
+	private static final int THREADS = 8;
+	private static final int COMMITS_PER_THREAD = 25;
+
+	@Test
+	public void diskAck() {
+		TestBackend backend = new TestBackend(0);
+		backend.startWriteBehind(Durability.DISK);
+
+		final Car car = new Car().setName("c1");
+		final boolean[] callbackCalled = new boolean[1];
+		final TestBackend b = backend;
+		backend.update(Arrays.asList((AEntity) car), null, null, new Runnable() {
+
+			@Override
+			public void run() {
+				assertTrue(b.written.contains(car.getId()));
+				callbackCalled[0] = true;
+			}
+		}, "create");
+		assertTrue(callbackCalled[0]);
+		assertSame(backend.getById(car.getId()), car);
+
+		backend.update(null, Arrays.asList(car.getId()), null, null, "delete");
+		assertFalse(backend.containsWithId(car.getId()));
+		assertTrue(backend.deleted.contains(car.getId()));
+
+		backend.stopWriteBehind();
+	}
+
+	@Test
+	public void diskAckWriteFailure() {
+		TestBackend backend = new TestBackend(0);
+		backend.startWriteBehind(Durability.DISK);
+		Car car = new Car().setName("c1");
+		backend.update(Arrays.asList((AEntity) car), null, null, null, "create");
+
+		backend.failures = 1;
+		Car other = new Car().setName("c2");
+		try {
+			backend.update(Arrays.asList((AEntity) other), Arrays.asList(car.getId()), null, null, "replace");
+			fail("Failed write not reported");
+		} catch (RuntimeException ex) {}
+		assertTrue(backend.containsWithId(car.getId()));
+		assertFalse(backend.containsWithId(other.getId()));
+
+		backend.stopWriteBehind();
+	}
+
+	@Test
+	public void memoryAck() {
+		TestBackend backend = new TestBackend(WRITE_DURATION);
+		backend.startWriteBehind(Durability.MEMORY);
+
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			Car car = new Car().setName("c" + i);
+			backend.update(Arrays.asList((AEntity) car), null, null, null, "create " + i);
+			assertTrue(backend.containsWithId(car.getId()));
+			ids.add(car.getId());
+		}
+
+		backend.flush();
+		assertTrue(backend.written.containsAll(ids));
+		assertTrue(backend.batches < ids.size(), "Transactions not batched: " + backend.batches);
+
+		backend.stopWriteBehind();
+	}
+
+	@Test
+	public void memoryAckWriteFailure() {
+		TestBackend backend = new TestBackend(0);
+		backend.failures = 1;
+		backend.startWriteBehind(Durability.MEMORY);
+
+		Car car = new Car().setName("c1");
+		backend.update(Arrays.asList((AEntity) car), null, null, null, "create");
+		while (!backend.createWriteBehindInfo().contains("commits rejected")) {
+			Utl.sleep(10);
+		}
+		try {
+			backend.update(Arrays.asList((AEntity) new Car().setName("c2")), null, null, null, "create");
+			fail("Commit not rejected while the failed batch is retried");
+		} catch (RuntimeException ex) {}
+
+		backend.flush();
+		assertTrue(backend.written.contains(car.getId()));
+		backend.update(Arrays.asList((AEntity) new Car().setName("c3")), null, null, null, "create");
+
+		backend.stopWriteBehind();
+	}
+
+	@Test
+	public void stopWhileCommitting() throws InterruptedException {
+		final TestBackend backend = new TestBackend(1);
+		backend.startWriteBehind(Durability.MEMORY);
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < 200; i++) {
+					Car car = new Car().setName("c" + i);
+					backend.update(Arrays.asList((AEntity) car), null, null, null, "create");
+				}
+			}
+		};
+		thread.start();
+		Utl.sleep(20);
+		backend.stopWriteBehind();
+		thread.join();
+		assertEquals(backend.written.size(), 200);
+	}
+
+	@Test
+	public void throughput() throws InterruptedException {
+		long synchronous = measureThroughput(null);
+		long disk = measureThroughput(Durability.DISK);
+		long memory = measureThroughput(Durability.MEMORY);
+		log.info("Commits per second with", THREADS, "threads and", WRITE_DURATION, "ms per write:");
+		log.info("  synchronous:", synchronous);
+		log.info("  disk-ack:   ", disk);
+		log.info("  memory-ack: ", memory);
+	}
+
+	private long measureThroughput(Durability durability) throws InterruptedException {
+		final TestBackend backend = new TestBackend(WRITE_DURATION);
+		if (durability != null) backend.startWriteBehind(durability);
+
+		RuntimeTracker rt = new RuntimeTracker();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREADS; i++) {
+			Thread thread = new Thread() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < COMMITS_PER_THREAD; j++) {
+						Car car = new Car().setName("c" + j);
+						backend.update(Arrays.asList((AEntity) car), null, null, null, "create");
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long runtime = rt.getRuntime();
+		backend.flush();
+		assertEquals(backend.written.size(), THREADS * COMMITS_PER_THREAD);
+		backend.stopWriteBehind();
+
+		return THREADS * COMMITS_PER_THREAD * 1000 / Math.max(1, runtime);
+	}
+
+	private static class TestBackend extends AWriteBehindEntitiesBackend {
+
+		private long writeDuration;
+		private Set<String> written = new HashSet<String>();
+		private Set<String> deleted = new HashSet<String>();
+		private int batches;
+		private volatile int failures;
+
+		public TestBackend(long writeDuration) {
+			this.writeDuration = writeDuration;
+		}
+
+		@Override
+		protected synchronized void onUpdate(Collection<AEntity> entities, Collection<String> entityIds,
+				Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback,
+				String transactionText) {
+			if (writeDuration > 0) Utl.sleep(writeDuration);
+			if (failures > 0) {
+				failures--;
+				throw new RuntimeException("Disk full");
+			}
+			if (entities != null) {
+				for (AEntity entity : entities) {
+					written.add(entity.getId());
+				}
+			}
+			if (entityIds != null) {
+				for (String id : entityIds) {
+					getEntityForWrite(id);
+					deleted.add(id);
+				}
+			}
+			batches++;
+			if (callback != null) callback.run();
+		}
+
+		@Override
+		public String loadOutsourcedString(Entity entity, String propertyName) {
+			throw new RuntimeException(getClass().getName() + ".loadOutsourcedString() is not implemented");
+		}
+
+		@Override
+		public void saveOutsourcedString(Entity entity, String propertyName, String value) {
+			throw new RuntimeException(getClass().getName() + ".saveOutsourcedString() is not implemented");
+		}
+
+	}
+
+}
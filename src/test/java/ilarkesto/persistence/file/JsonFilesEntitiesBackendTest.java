@@ -0,0 +1,400 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.file;
+
+import ilarkesto.base.Utl;
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.persistance.AEntity;
+import ilarkesto.core.persistance.EntityFieldWriter;
+import ilarkesto.core.persistance.Persistence;
+import ilarkesto.core.time.Date;
+import ilarkesto.io.AFileStorage;
+import ilarkesto.io.IO;
+import ilarkesto.json.JsonMapper;
+import ilarkesto.json.JsonMapper.TypeResolver;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class JsonFilesEntitiesBackendTest extends ATest {
+
+	private static final int BOOK_COUNT = 20000;
+
+	private AFileStorage storage;
+
+	@BeforeClass
+	public void generateDataDir() throws IOException {
+		storage = getTestFileStorage("data");
+		IO.delete(storage.getFile(null));
+		for (int i = 0; i < BOOK_COUNT; i++) {
+			Book book = new Book("Book " + i, i);
+			File file = storage.getFile("Book/" + book.getId() + ".json");
+			IO.createDirectory(file.getParentFile());
+			JsonMapper.serialize(book, file);
+		}
+	}
+
+	@Test
+	public void load() {
+		long sequentialTime = measureLoad(1);
+		long parallelTime = measureLoad(4);
+		log.info("Loading", BOOK_COUNT, "entities:", sequentialTime, "ms sequential,", parallelTime,
+			"ms with 4 threads");
+	}
+
+	private long measureLoad(int threadCount) {
+		RuntimeTracker rt = new RuntimeTracker();
+		TestBackend backend = new TestBackend(storage, threadCount);
+		long time = rt.getRuntime();
+		assertEquals(backend.getAllAsList().size(), BOOK_COUNT);
+		Book book = (Book) backend.getAllAsList().get(0);
+		assertTrue(book.title.startsWith("Book "));
+		return time;
+	}
+
+	@Test
+	public void entityJsonCodec() throws Exception {
+		assertTrue(EntityJsonCodec.isSupported(Article.class));
+		assertFalse(EntityJsonCodec.isSupported(Book.class));
+
+		AFileStorage codecStorage = getTestFileStorage("codec");
+		IO.delete(codecStorage.getFile(null));
+		TestBackend backend = new TestBackend(codecStorage, 1);
+		Article article = new Article("Codec", 3, new Date(2014, 1, 1), "a", "b");
+		article.updateLastModified();
+		backend.update(Arrays.asList((AEntity) article), null, null, null, "create");
+
+		File file = codecStorage.getFile("Article/" + article.getId() + ".json");
+		Article mapped = JsonMapper.deserialize(file, Article.class);
+		assertEquals(mapped.title, "Codec");
+		assertEquals(mapped.tagIds, article.tagIds);
+
+		Article loaded = (Article) new TestBackend(codecStorage, 1).getById(article.getId());
+		assertEquals(loaded.title, "Codec");
+		assertEquals(loaded.pages, 3);
+		assertEquals(loaded.published, new Date(2014, 1, 1));
+		assertEquals(loaded.tagIds, article.tagIds);
+		assertEquals(loaded.getModificationTime(), article.getModificationTime());
+	}
+
+	@Test
+	public void entityJsonCodecPerformance() throws IOException {
+		AFileStorage codecStorage = getTestFileStorage("codec-performance");
+		IO.delete(codecStorage.getFile(null));
+		for (int i = 0; i < BOOK_COUNT; i++) {
+			Article article = new Article("Article " + i, i, new Date(2014, 1, 1), "tag" + (i % 10), "tag" + (i % 7));
+			article.updateLastModified();
+			File file = codecStorage.getFile("Article/" + article.getId() + ".json");
+			IO.createDirectory(file.getParentFile());
+			JsonMapper.serialize(article, file);
+		}
+
+		long reflectionTime = 0;
+		long codecTime = 0;
+		for (int run = 0; run < 2; run++) {
+			RuntimeTracker rt = new RuntimeTracker();
+			TestBackend backend = new TestBackend(codecStorage, 1) {
+
+				@Override
+				protected boolean isEntityJsonCodecEnabled() {
+					return false;
+				}
+			};
+			reflectionTime = rt.getRuntime();
+			assertEquals(backend.getAllAsList().size(), BOOK_COUNT);
+
+			rt = new RuntimeTracker();
+			backend = new TestBackend(codecStorage, 1);
+			codecTime = rt.getRuntime();
+			assertEquals(backend.getAllAsList().size(), BOOK_COUNT);
+		}
+		log.info("Loading", BOOK_COUNT, "entities:", reflectionTime, "ms by reflection,", codecTime,
+			"ms by generated codec");
+	}
+
+	@Test
+	public void deltaWrites() {
+		AFileStorage deltaStorage = getTestFileStorage("delta");
+		IO.delete(deltaStorage.getFile(null));
+		TestBackend backend = new TestBackend(deltaStorage, 1);
+		backend.setDeltaWrites(true);
+		backend.setMaxDeltasPerEntity(3);
+
+		Book book = new Book("Original", 100);
+		backend.update(Arrays.asList((AEntity) book), null, null, null, "create");
+		File file = deltaStorage.getFile("Book/" + book.getId() + ".json");
+		File deltaFile = deltaStorage.getFile("Book/" + book.getId() + ".delta");
+		assertTrue(file.exists());
+		assertFalse(deltaFile.exists());
+
+		modifyTitle(backend, book, "Changed 1");
+		modifyTitle(backend, book, "Changed 2");
+		assertTrue(deltaFile.exists());
+		assertTrue(IO.readFile(file, IO.UTF_8).contains("Original"));
+
+		Book loaded = (Book) new TestBackend(deltaStorage, 1).getById(book.getId());
+		assertEquals(loaded.title, "Changed 2");
+		assertEquals(loaded.pages, 100);
+		assertEquals(loaded.getModificationTime(), Long.valueOf(1000));
+		assertFalse(deltaFile.exists());
+
+		backend = new TestBackend(deltaStorage, 1);
+		backend.setDeltaWrites(true);
+		backend.setMaxDeltasPerEntity(3);
+		book = (Book) backend.getById(book.getId());
+		for (int i = 0; i < 4; i++) {
+			modifyTitle(backend, book, "Changed " + (i + 3));
+		}
+		assertFalse(deltaFile.exists());
+		assertTrue(IO.readFile(file, IO.UTF_8).contains("Changed 6"));
+	}
+
+	@Test
+	public void deltaWritesWithUnrestorableProperty() {
+		AFileStorage deltaStorage = getTestFileStorage("delta-unrestorable");
+		IO.delete(deltaStorage.getFile(null));
+		TestBackend backend = new TestBackend(deltaStorage, 1);
+		backend.setDeltaWrites(true);
+
+		Book book = new Book("Original", 100);
+		backend.update(Arrays.asList((AEntity) book), null, null, null, "create");
+		File file = deltaStorage.getFile("Book/" + book.getId() + ".json");
+		File deltaFile = deltaStorage.getFile("Book/" + book.getId() + ".delta");
+
+		book.email = "book@example.com";
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("id", book.getId());
+		properties.put("email", book.email);
+		Map<String, Map<String, String>> modifiedProperties = new HashMap<String, Map<String, String>>();
+		modifiedProperties.put(book.getId(), properties);
+		backend.update(Arrays.asList((AEntity) book), null, modifiedProperties, null, "modify");
+		assertFalse(deltaFile.exists());
+		assertTrue(IO.readFile(file, IO.UTF_8).contains("book@example.com"));
+
+		Book loaded = (Book) new TestBackend(deltaStorage, 1).getById(book.getId());
+		assertEquals(loaded.email, "book@example.com");
+	}
+
+	@Test
+	public void deltaWritesPerformance() {
+		long fullTime = measureModifications(false);
+		long deltaTime = measureModifications(true);
+		log.info("Saving 500 modifications of a big entity:", fullTime, "ms complete,", deltaTime, "ms delta");
+	}
+
+	private long measureModifications(boolean deltaWrites) {
+		AFileStorage deltaStorage = getTestFileStorage("delta-performance");
+		IO.delete(deltaStorage.getFile(null));
+		TestBackend backend = new TestBackend(deltaStorage, 1);
+		backend.setDeltaWrites(deltaWrites);
+		backend.setMaxDeltasPerEntity(1000);
+
+		Book book = new Book("Big", 1);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append("Line ").append(i).append(" of a very long text.\n");
+		}
+		book.text = text.toString();
+		backend.update(Arrays.asList((AEntity) book), null, null, null, "create");
+
+		RuntimeTracker rt = new RuntimeTracker();
+		for (int i = 0; i < 500; i++) {
+			modifyTitle(backend, book, "Title " + i);
+		}
+		long time = rt.getRuntime();
+		assertEquals(((Book) new TestBackend(deltaStorage, 1).getById(book.getId())).title, "Title 499");
+		return time;
+	}
+
+	private void modifyTitle(TestBackend backend, Book book, String title) {
+		book.title = title;
+		// a time in the past, which replaying the delta needs to restore
+		book.updateField("modificationTime", 1000L);
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("id", book.getId());
+		properties.put("title", title);
+		properties.put("modificationTime", String.valueOf(book.getModificationTime()));
+		Map<String, Map<String, String>> modifiedProperties = new HashMap<String, Map<String, String>>();
+		modifiedProperties.put(book.getId(), properties);
+		backend.update(Arrays.asList((AEntity) book), null, modifiedProperties, null, "modify");
+	}
+
+	private static class TestBackend extends AJsonFilesEntitiesBackend {
+
+		public TestBackend(AFileStorage storage, int loaderThreadCount) {
+			super(storage, null, loaderThreadCount);
+		}
+
+		@Override
+		protected AEntityJsonFileUpgrades createUpgrader() {
+			return new AEntityJsonFileUpgrades() {
+
+				@Override
+				protected void initialize() {}
+			};
+		}
+
+		@Override
+		protected List<Class<? extends AEntity>> getEntityTypes() {
+			List<Class<? extends AEntity>> types = new ArrayList<Class<? extends AEntity>>();
+			types.add(Book.class);
+			types.add(Article.class);
+			return types;
+		}
+
+		@Override
+		protected TypeResolver createTypeResolver() {
+			return TypeResolver.NONE;
+		}
+
+	}
+
+	/**
+	 * With setters and <code>updateProperties()</code> like the ones generated by <code>EntityGenerator</code>.
+	 */
+	public static class Book extends AEntity {
+
+		private String title;
+		private int pages;
+		private String text;
+		private String email;
+
+		public Book() {}
+
+		public Book(String title, int pages) {
+			this.title = title;
+			this.pages = pages;
+			updateLastModified();
+		}
+
+		public void updateTitle(String title) {
+			if (Utl.equals(this.title, title)) return;
+			this.title = title;
+			updateLastModified();
+			fireModified("title", Persistence.propertyAsString(this.title));
+		}
+
+		public void updatePages(int pages) {
+			if (this.pages == pages) return;
+			this.pages = pages;
+			updateLastModified();
+			fireModified("pages", Persistence.propertyAsString(this.pages));
+		}
+
+		public void updateText(String text) {
+			if (Utl.equals(this.text, text)) return;
+			this.text = text;
+			updateLastModified();
+			fireModified("text", Persistence.propertyAsString(this.text));
+		}
+
+		@Override
+		protected void storeProperties(Map<String, String> properties) {
+			super.storeProperties(properties);
+			properties.put("title", Persistence.propertyAsString(title));
+			properties.put("pages", Persistence.propertyAsString(pages));
+			properties.put("text", Persistence.propertyAsString(text));
+			// like EmailAddress properties, which updateProperties() does not restore
+			properties.put("email", email);
+		}
+
+		@Override
+		public void updateProperties(Map<String, String> properties) {
+			super.updateProperties(properties);
+			for (Map.Entry<String, String> entry : properties.entrySet()) {
+				String property = entry.getKey();
+				if (property.equals("id")) continue;
+				String value = entry.getValue();
+				if (property.equals("title")) updateTitle(Persistence.parsePropertyString(value));
+				if (property.equals("pages")) updatePages(Persistence.parsePropertyint(value));
+				if (property.equals("text")) updateText(Persistence.parsePropertyString(value));
+			}
+		}
+
+		@Override
+		public boolean isPropertyUpdatable(String property) {
+			if (property.equals("title")) return true;
+			if (property.equals("pages")) return true;
+			if (property.equals("text")) return true;
+			return super.isPropertyUpdatable(property);
+		}
+
+	}
+
+	/**
+	 * With <code>storeFields()</code> and <code>updateField()</code> like the ones generated by
+	 * <code>EntityGenerator</code>.
+	 */
+	public static class Article extends AEntity {
+
+		private String title;
+		private int pages;
+		private Date published;
+		private Set<String> tagIds = new HashSet<String>();
+
+		public Article() {}
+
+		public Article(String title, int pages, Date published, String... tagIds) {
+			this.title = title;
+			this.pages = pages;
+			this.published = published;
+			this.tagIds.addAll(Arrays.asList(tagIds));
+		}
+
+		@Override
+		public void storeFields(EntityFieldWriter out) {
+			super.storeFields(out);
+			out.field("title", this.title);
+			out.field("pages", this.pages);
+			out.field("published", this.published);
+			out.field("tagIds", this.tagIds);
+		}
+
+		@Override
+		public boolean updateField(String name, Object value) {
+			if (super.updateField(name, value)) return true;
+			if (name.equals("title")) {
+				this.title = Persistence.parseFieldString(value);
+				return true;
+			}
+			if (name.equals("pages")) {
+				this.pages = Persistence.parseFieldint(value);
+				return true;
+			}
+			if (name.equals("published")) {
+				this.published = Persistence.parseFieldDate(value);
+				return true;
+			}
+			if (name.equals("tagIds")) {
+				this.tagIds = Persistence.parseFieldStringSet(value);
+				return true;
+			}
+			return false;
+		}
+
+	}
+
+}
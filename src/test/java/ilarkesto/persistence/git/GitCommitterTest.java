@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.git;
+
+import ilarkesto.integration.git.Git;
+import ilarkesto.integration.git.GitProject;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class GitCommitterTest extends ATest {
+
+	@Test
+	public void coalesce() throws InterruptedException {
+		RecordingGitProject git = new RecordingGitProject(0);
+		GitCommitter committer = new GitCommitter(git);
+		committer.setWindow(60000, 5);
+		for (int i = 0; i < 4; i++) {
+			committer.requestCommit("transaction " + i);
+		}
+		Thread.sleep(200);
+		assertEquals(git.getCommitCount(), 0);
+
+		committer.requestCommit("transaction 4");
+		Thread.sleep(200);
+		assertEquals(git.getCommitCount(), 1);
+		assertTrue(git.getCommitMessage(0).startsWith("5 transactions"));
+
+		for (int i = 5; i < 1000; i++) {
+			committer.requestCommit("transaction " + i);
+		}
+		committer.flush();
+		assertTrue(git.getCommitCount() < 1000 / 5);
+		log.info(committer.createInfo());
+		committer.stop();
+	}
+
+	@Test
+	public void window() throws InterruptedException {
+		RecordingGitProject git = new RecordingGitProject(0);
+		GitCommitter committer = new GitCommitter(git);
+		committer.setWindow(50, 100);
+		committer.requestCommit("first");
+		committer.requestCommit("second");
+		Thread.sleep(500);
+		assertEquals(git.getCommitCount(), 1);
+		assertTrue(git.getCommitMessage(0).startsWith("2 transactions"));
+		committer.stop();
+	}
+
+	@Test
+	public void retryOnIndexLock() {
+		RecordingGitProject git = new RecordingGitProject(2);
+		GitCommitter committer = new GitCommitter(git);
+		committer.setWindow(0, 1);
+		committer.requestCommit("locked");
+		committer.flush();
+		assertEquals(git.getCommitCount(), 1);
+		assertEquals(git.indexLockDeletions, 2);
+		committer.stop();
+	}
+
+	@Test
+	public void gitOnCommitterThread() {
+		RecordingGitProject git = new RecordingGitProject(0);
+		GitCommitter committer = new GitCommitter(git);
+		committer.setWindow(0, 1);
+		for (int i = 0; i < 10; i++) {
+			committer.requestCommit("transaction " + i);
+			committer.status();
+		}
+		committer.flush();
+		assertTrue(git.addCount > 0);
+		assertFalse(git.gitThreads.contains(Thread.currentThread()));
+		committer.stop();
+	}
+
+	@Test
+	public void failedCommit() {
+		RecordingGitProject git = new RecordingGitProject(0);
+		git.failingCommits = 1;
+		GitCommitter committer = new GitCommitter(git);
+		committer.setWindow(0, 1);
+		committer.requestCommit("failing");
+		try {
+			committer.flush();
+			fail("Failed commit not reported by flush()");
+		} catch (RuntimeException ex) {}
+		assertTrue(committer.createInfo().contains("transactions in failed commits: 1"));
+
+		committer.requestCommit("succeeding");
+		committer.flush();
+		assertEquals(git.getCommitCount(), 1);
+		committer.stop();
+	}
+
+	static class RecordingGitProject extends GitProject {
+
+		private List<String> commitMessages = new ArrayList<String>();
+		private int lockedCount;
+		private int failingCommits;
+		private int indexLockDeletions;
+		private int addCount;
+		private Set<Thread> gitThreads = new HashSet<Thread>();
+
+		public RecordingGitProject(int lockedCount) {
+			super(new Git(), new File("."));
+			this.lockedCount = lockedCount;
+		}
+
+		@Override
+		public synchronized void addAll() {
+			failIfLocked();
+			addCount++;
+			gitThreads.add(Thread.currentThread());
+		}
+
+		@Override
+		public String status() {
+			return "clean";
+		}
+
+		@Override
+		public synchronized void commit(String comment) {
+			failIfLocked();
+			if (failingCommits > 0) {
+				failingCommits--;
+				throw new RuntimeException("fatal: could not write commit");
+			}
+			commitMessages.add(comment);
+			gitThreads.add(Thread.currentThread());
+		}
+
+		private void failIfLocked() {
+			if (lockedCount == 0) return;
+			lockedCount--;
+			throw new RuntimeException("fatal: Unable to create '/tmp/.git/index.lock': File exists.");
+		}
+
+		@Override
+		public synchronized void deleteIndexLock() {
+			indexLockDeletions++;
+		}
+
+		public synchronized int getCommitCount() {
+			return commitMessages.size();
+		}
+
+		public synchronized String getCommitMessage(int index) {
+			return commitMessages.get(index);
+		}
+
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.journal;
+
+import ilarkesto.base.Utl;
+import ilarkesto.core.persistance.AEntity;
+import ilarkesto.core.persistance.Persistence;
+import ilarkesto.io.AFileStorage;
+import ilarkesto.io.IO;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class JournalEntitiesBackendTest extends ATest {
+
+	@Test
+	public void recovery() {
+		AFileStorage storage = createStorage("recovery");
+		TestBackend backend = new TestBackend(storage);
+		Book book = new Book("Ilarkesto");
+		Book other = new Book("Other");
+		backend.update(Arrays.asList((AEntity) book, other), null, null, null, "create");
+		backend.update(Arrays.asList((AEntity) book), null, modification(book, "title", "Ilarkesto 2"), null,
+			"modify");
+		backend.update(null, Arrays.asList(other.getId()), null, null, "delete");
+		backend.close();
+
+		backend = new TestBackend(storage);
+		assertEquals(((Book) backend.getById(book.getId())).title, "Ilarkesto 2");
+		assertFalse(backend.containsWithId(other.getId()));
+		backend.close();
+	}
+
+	@Test
+	public void modificationTimeAndUnrestorableProperties() {
+		AFileStorage storage = createStorage("modification-time");
+		TestBackend backend = new TestBackend(storage);
+		Book book = new Book("Ilarkesto");
+		book.email = "book@example.com";
+		book.updateField("modificationTime", 1000L);
+		backend.update(Arrays.asList((AEntity) book), null, null, null, "create");
+		backend.update(Arrays.asList((AEntity) book), null, modification(book, "title", "Ilarkesto 2"), null,
+			"modify");
+		backend.close();
+
+		backend = new TestBackend(storage);
+		Book loaded = (Book) backend.getById(book.getId());
+		assertEquals(loaded.title, "Ilarkesto 2");
+		assertEquals(loaded.email, "book@example.com");
+		backend.close();
+	}
+
+	@Test
+	public void unrestorablePropertiesInSnapshot() {
+		AFileStorage storage = createStorage("unrestorable-snapshot");
+		TestBackend backend = new TestBackend(storage);
+		backend.setCompactionThreshold(1);
+		Book book = new Book("Ilarkesto");
+		book.email = "book@example.com";
+		backend.update(Arrays.asList((AEntity) book), null, null, null, "create");
+		backend.update(Arrays.asList((AEntity) new Book("Other")), null, null, null, "compact");
+		backend.close();
+		assertTrue(storage.getFile("snapshot.dat").exists());
+
+		backend = new TestBackend(storage);
+		assertEquals(((Book) backend.getById(book.getId())).email, "book@example.com");
+		backend.close();
+	}
+
+	@Test
+	public void syncThread() {
+		AFileStorage storage = createStorage("sync-thread");
+		TestBackend backend = new TestBackend(storage, 10);
+		Book book = new Book("Ilarkesto");
+		backend.update(Arrays.asList((AEntity) book), null, null, null, "create");
+		backend.close();
+
+		backend = new TestBackend(storage, 10);
+		assertTrue(backend.containsWithId(book.getId()));
+		backend.close();
+	}
+
+	@Test
+	public void compaction() {
+		AFileStorage storage = createStorage("compaction");
+		TestBackend backend = new TestBackend(storage);
+		backend.setCompactionThreshold(1000);
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			Book book = new Book("Book " + i);
+			backend.update(Arrays.asList((AEntity) book), null, null, null, "create " + i);
+			ids.add(book.getId());
+		}
+		backend.close();
+		assertTrue(storage.getFile("snapshot.dat").exists());
+		assertFalse(storage.getFile("journal-0.dat").exists());
+
+		backend = new TestBackend(storage);
+		assertEquals(backend.getByIdsAsList(ids).size(), ids.size());
+		backend.close();
+	}
+
+	@Test
+	public void concurrentCommits() throws InterruptedException {
+		AFileStorage storage = createStorage("concurrent");
+		final TestBackend backend = new TestBackend(storage);
+		backend.setCompactionThreshold(2000);
+		final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final int thread = i;
+			threads.add(new Thread() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 50; j++) {
+						Book book = new Book("Book " + thread + "-" + j);
+						backend.update(Arrays.asList((AEntity) book), null, null, null, "create");
+						ids.add(book.getId());
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		backend.close();
+
+		TestBackend loaded = new TestBackend(storage);
+		assertEquals(loaded.getByIdsAsList(ids).size(), 400);
+		loaded.close();
+	}
+
+	@Test
+	public void incompleteRecord() throws IOException {
+		AFileStorage storage = createStorage("incomplete");
+		TestBackend backend = new TestBackend(storage);
+		Book book = new Book("Ilarkesto");
+		backend.update(Arrays.asList((AEntity) book), null, null, null, "create");
+		backend.close();
+
+		File journalFile = storage.getFile("journal-0.dat");
+		long size = journalFile.length();
+		FileOutputStream out = new FileOutputStream(journalFile, true);
+		out.write(new byte[] { 0, 0, 1, 0, 42 });
+		out.close();
+
+		backend = new TestBackend(storage);
+		assertTrue(backend.containsWithId(book.getId()));
+		assertEquals(journalFile.length(), size);
+		backend.close();
+	}
+
+	private AFileStorage createStorage(String name) {
+		AFileStorage storage = getTestFileStorage(name);
+		IO.delete(storage.getFile(null));
+		return storage;
+	}
+
+	private static Map<String, Map<String, String>> modification(AEntity entity, String property, String value) {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("id", entity.getId());
+		properties.put(property, value);
+		Map<String, Map<String, String>> ret = new HashMap<String, Map<String, String>>();
+		ret.put(entity.getId(), properties);
+		return ret;
+	}
+
+	private static class TestBackend extends AJournalEntitiesBackend {
+
+		public TestBackend(AFileStorage storage) {
+			this(storage, 0);
+		}
+
+		public TestBackend(AFileStorage storage, long syncInterval) {
+			super(storage, syncInterval);
+		}
+
+		@Override
+		protected List<Class<? extends AEntity>> getEntityTypes() {
+			List<Class<? extends AEntity>> types = new ArrayList<Class<? extends AEntity>>();
+			types.add(Book.class);
+			return types;
+		}
+
+	}
+
+	/**
+	 * With <code>updateProperties()</code> and setters like the ones generated by <code>EntityGenerator</code>.
+	 */
+	public static class Book extends AEntity {
+
+		private String title;
+		private String email;
+
+		public Book() {}
+
+		public Book(String title) {
+			this.title = title;
+			updateLastModified();
+		}
+
+		public void updateTitle(String title) {
+			if (Utl.equals(this.title, title)) return;
+			this.title = title;
+			updateLastModified();
+			fireModified("title", Persistence.propertyAsString(this.title));
+		}
+
+		@Override
+		protected void storeProperties(Map<String, String> properties) {
+			super.storeProperties(properties);
+			properties.put("title", Persistence.propertyAsString(title));
+			// like EmailAddress properties, which updateProperties() does not restore
+			properties.put("email", email);
+		}
+
+		@Override
+		public void updateProperties(Map<String, String> properties) {
+			super.updateProperties(properties);
+			for (Map.Entry<String, String> entry : properties.entrySet()) {
+				String property = entry.getKey();
+				if (property.equals("id")) continue;
+				String value = entry.getValue();
+				if (property.equals("title")) updateTitle(Persistence.parsePropertyString(value));
+			}
+		}
+
+		@Override
+		public boolean isPropertyUpdatable(String property) {
+			if (property.equals("title")) return true;
+			return super.isPropertyUpdatable(property);
+		}
+
+	}
+
+}
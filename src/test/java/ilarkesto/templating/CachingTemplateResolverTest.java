@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.templating;
+
+import ilarkesto.io.IO;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+
+import org.testng.annotations.Test;
+
+public class CachingTemplateResolverTest extends ATest {
+
+	@Test
+	public void reparseWhenModified() {
+		File dir = getTestOutputFile("templates");
+		File file = new File(dir, "page.html");
+		IO.writeFile(file, "Hello {{name}}", IO.UTF_8);
+		CachingTemplateResolver resolver = new CachingTemplateResolver(dir);
+
+		Template template = resolver.getTemplate("page.html");
+		assertNotNull(template);
+		assertSame(resolver.getTemplate("page.html"), template);
+		assertSame(resolver.getTemplate(file), template);
+		assertEquals(resolver.getParseCount(), 1);
+		assertEquals(render(template), "Hello Duke");
+
+		IO.writeFile(file, "Goodbye {{name}}", IO.UTF_8);
+		Template modified = resolver.getTemplate("page.html");
+		assertNotSame(modified, template);
+		assertEquals(resolver.getParseCount(), 2);
+		assertEquals(render(modified), "Goodbye Duke");
+
+		assertNull(resolver.getTemplate("doesNotExist.html"));
+	}
+
+	private String render(Template template) {
+		Context context = new Context();
+		context.put("name", "Duke");
+		return template.process(context).popOutput();
+	}
+
+}
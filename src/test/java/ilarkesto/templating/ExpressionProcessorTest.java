@@ -14,9 +14,13 @@
  */
 package ilarkesto.templating;
 
+import ilarkesto.core.base.RuntimeTracker;
 import ilarkesto.testng.ATest;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.testng.annotations.Test;
@@ -42,4 +46,64 @@ public class ExpressionProcessorTest extends ATest {
 		assertSame(exp.eval("map/flower/name", context), "rose");
 	}
 
+	@Test
+	public void evalCompiled() {
+		Context context = new Context();
+		Flower flower = new Flower("rose", "red");
+		context.put("flower", flower);
+		context.setScope(flower);
+
+		ExpressionProcessor exp = new ExpressionProcessor();
+		assertSame(exp.eval(ExpressionProcessor.compile("name"), context), "rose");
+		assertEquals(exp.eval(ExpressionProcessor.compile("red"), context), Boolean.TRUE);
+		assertSame(exp.eval(ExpressionProcessor.compile("/flower/color"), context), "red");
+		assertNull(exp.eval(ExpressionProcessor.compile("flower"), context));
+		assertNull(exp.eval(ExpressionProcessor.compile("doesNotExist"), context));
+		assertNull(exp.eval(ExpressionProcessor.compile("doesNotExist"), context));
+		assertNull(exp.eval(ExpressionProcessor.compile("name/doesNotExist"), context));
+		assertNull(exp.eval(ExpressionProcessor.compile(""), context));
+	}
+
+	@Test
+	public void compile() {
+		CompiledExpression expression = CompiledExpression.compile("/a/b/c");
+		assertTrue(expression.isRootScope());
+		assertEquals(expression.getPath(), new String[] { "a", "b", "c" });
+
+		expression = CompiledExpression.compile("$loop/index");
+		assertTrue(expression.isRootScope());
+		assertEquals(expression.getPath(), new String[] { "$loop", "index" });
+
+		expression = CompiledExpression.compile("a");
+		assertFalse(expression.isRootScope());
+		assertEquals(expression.getPath(), new String[] { "a" });
+
+		assertSame(ExpressionProcessor.compile("a/b"), ExpressionProcessor.compile("a/b"));
+	}
+
+	@Test
+	public void renderPerformance() {
+		List<Flower> flowers = new ArrayList<Flower>();
+		for (int i = 0; i < 1000; i++) {
+			flowers.add(new Flower("flower" + i, i % 2 == 0 ? "red" : "white"));
+		}
+		Template template = new Template().add(new LoopElement("flowers").add(new VariableElement("$loop/index"))
+				.add(new TextElement(": ")).add(new VariableElement("name")).add(new TextElement(" is "))
+				.add(new VariableElement("color")).add(new TextElement("\n")));
+
+		StringWriter out = null;
+		RuntimeTracker rt = null;
+		for (int run = 0; run < 2; run++) {
+			rt = new RuntimeTracker();
+			for (int i = 0; i < 200; i++) {
+				out = new StringWriter();
+				Context context = new Context(out);
+				context.put("flowers", flowers);
+				template.process(context);
+			}
+		}
+		log.info("200 renderings of 1000 loop items:", rt.getRuntimeFormated());
+		assertContains(out.toString(), "999: flower999 is white\n");
+	}
+
 }
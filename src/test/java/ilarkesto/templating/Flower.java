@@ -33,4 +33,8 @@ class Flower {
 		return color;
 	}
 
+	public boolean isRed() {
+		return "red".equals(color);
+	}
+
 }
\ No newline at end of file
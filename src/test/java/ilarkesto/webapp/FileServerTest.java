@@ -0,0 +1,371 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.webapp;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.io.IO;
+import ilarkesto.testng.ATest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FileServerTest extends ATest {
+
+	private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+	private File file;
+	private FileServer server;
+
+	@BeforeMethod
+	public void init() {
+		file = getTestOutputFile("file.txt");
+		IO.writeFile(file, CONTENT, IO.UTF_8);
+		file.setLastModified(1400000000000L);
+		server = new FileServer();
+	}
+
+	@Test
+	public void full() throws IOException {
+		Exchange exchange = serve(new Exchange());
+		assertEquals(exchange.status, 200);
+		assertEquals(exchange.getBody(), CONTENT);
+		assertEquals(exchange.responseHeaders.get("Content-Length"), String.valueOf(CONTENT.length()));
+		assertEquals(exchange.responseHeaders.get("Accept-Ranges"), "bytes");
+		assertEquals(exchange.responseHeaders.get("ETag"), Servlet.createEtag(file));
+	}
+
+	@Test
+	public void head() throws IOException {
+		Exchange exchange = serve(new Exchange().method("HEAD"));
+		assertEquals(exchange.status, 200);
+		assertEquals(exchange.getBody(), "");
+		assertEquals(exchange.responseHeaders.get("Content-Length"), String.valueOf(CONTENT.length()));
+	}
+
+	@Test
+	public void notFound() throws IOException {
+		Exchange exchange = new Exchange();
+		server.serveFile(getTestOutputFile("missing.txt"), exchange.request, exchange.response, false, true);
+		assertEquals(exchange.status, 404);
+	}
+
+	@Test
+	public void singleRange() throws IOException {
+		Exchange exchange = serve(new Exchange().header("Range", "bytes=10-15"));
+		assertEquals(exchange.status, 206);
+		assertEquals(exchange.getBody(), "abcdef");
+		assertEquals(exchange.responseHeaders.get("Content-Range"), "bytes 10-15/36");
+		assertEquals(exchange.responseHeaders.get("Content-Length"), "6");
+	}
+
+	@Test
+	public void openAndSuffixRanges() throws IOException {
+		assertEquals(serve(new Exchange().header("Range", "bytes=30-")).getBody(), "uvwxyz");
+		assertEquals(serve(new Exchange().header("Range", "bytes=-3")).getBody(), "xyz");
+		assertEquals(serve(new Exchange().header("Range", "bytes=-100")).getBody(), CONTENT);
+		assertEquals(serve(new Exchange().header("Range", "bytes=30-100")).getBody(), "uvwxyz");
+	}
+
+	@Test
+	public void multipleRanges() throws IOException {
+		Exchange exchange = serve(new Exchange().header("Range", "bytes=0-1, 10-11"));
+		assertEquals(exchange.status, 206);
+		assertStartsWith(exchange.contentType, "multipart/byteranges; boundary=");
+		String body = exchange.getBody();
+		assertContains(body, "Content-Range: bytes 0-1/36\r\n\r\n01\r\n");
+		assertContains(body, "Content-Range: bytes 10-11/36\r\n\r\nab\r\n");
+		assertEquals(exchange.responseHeaders.get("Content-Length"), String.valueOf(exchange.out.size()));
+	}
+
+	@Test
+	public void unsatisfiableRange() throws IOException {
+		Exchange exchange = serve(new Exchange().header("Range", "bytes=100-200"));
+		assertEquals(exchange.status, 416);
+		assertEquals(exchange.responseHeaders.get("Content-Range"), "bytes */36");
+	}
+
+	@Test
+	public void invalidRangeIsIgnored() throws IOException {
+		Exchange exchange = serve(new Exchange().header("Range", "bytes=5-2"));
+		assertEquals(exchange.status, 200);
+		assertEquals(exchange.getBody(), CONTENT);
+		assertNull(FileServer.parseRanges("items=0-1", 10));
+		assertNull(FileServer.parseRanges("bytes=x-1", 10));
+	}
+
+	@Test
+	public void ifRange() throws IOException {
+		String eTag = Servlet.createEtag(file);
+		Exchange exchange = serve(new Exchange().header("Range", "bytes=0-1").header("If-Range", "\"" + eTag + "\""));
+		assertEquals(exchange.status, 206);
+
+		exchange = serve(new Exchange().header("Range", "bytes=0-1").header("If-Range", "\"other\""));
+		assertEquals(exchange.status, 200);
+		assertEquals(exchange.getBody(), CONTENT);
+
+		exchange = serve(new Exchange().header("Range", "bytes=0-1").header("If-Range",
+			formatDate(file.lastModified())));
+		assertEquals(exchange.status, 206);
+	}
+
+	@Test
+	public void notModified() throws IOException {
+		Exchange exchange = serve(new Exchange().header("If-None-Match", Servlet.createEtag(file)));
+		assertEquals(exchange.status, 304);
+		assertEquals(exchange.getBody(), "");
+
+		exchange = serve(new Exchange().header("If-Modified-Since", formatDate(file.lastModified())));
+		assertEquals(exchange.status, 304);
+
+		exchange = serve(new Exchange().header("If-Modified-Since", formatDate(file.lastModified() - 60000)));
+		assertEquals(exchange.status, 200);
+
+		exchange = serve(new Exchange().header("If-None-Match", "\"other\"").header("If-Modified-Since",
+			formatDate(file.lastModified())));
+		assertEquals(exchange.status, 200);
+	}
+
+	@Test
+	public void gzipVariant() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append(CONTENT);
+		}
+		IO.writeFile(file, sb.toString(), IO.UTF_8);
+		File cacheDir = getTestOutputFile("gzip-cache");
+		IO.delete(cacheDir);
+		server.setGzipCacheDir(cacheDir);
+
+		Exchange exchange = serve(new Exchange().header("Accept-Encoding", "deflate, gzip"));
+		assertEquals(exchange.responseHeaders.get("Content-Encoding"), "gzip");
+		assertEquals(exchange.responseHeaders.get("Vary"), "Accept-Encoding");
+		assertEquals(IO.readToString(new GZIPInputStream(new ByteArrayInputStream(
+				exchange.out.toByteArray())), IO.UTF_8), sb.toString());
+		assertEquals(cacheDir.listFiles().length, 1);
+
+		exchange = serve(new Exchange());
+		assertNull(exchange.responseHeaders.get("Content-Encoding"));
+		assertEquals(exchange.getBody(), sb.toString());
+
+		exchange = serve(new Exchange().header("Accept-Encoding", "gzip").header("Range", "bytes=0-1"));
+		assertNull(exchange.responseHeaders.get("Content-Encoding"));
+		assertEquals(exchange.getBody(), "01");
+	}
+
+	@Test
+	public void sendfile() throws IOException {
+		Exchange exchange = new Exchange().header("Range", "bytes=10-15");
+		exchange.attributes.put("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+		serve(exchange);
+		assertEquals(exchange.status, 206);
+		assertEquals(exchange.out.size(), 0);
+		assertEquals(exchange.attributes.get("org.apache.tomcat.sendfile.filename"), file.getCanonicalPath());
+		assertEquals(exchange.attributes.get("org.apache.tomcat.sendfile.start"), Long.valueOf(10));
+		assertEquals(exchange.attributes.get("org.apache.tomcat.sendfile.end"), Long.valueOf(16));
+	}
+
+	@Test
+	public void parseRanges() {
+		List<long[]> ranges = FileServer.parseRanges("bytes=0-0,-1,5-", 10);
+		assertEquals(ranges.size(), 3);
+		assertEquals(ranges.get(0), new long[] { 0, 0 });
+		assertEquals(ranges.get(1), new long[] { 9, 9 });
+		assertEquals(ranges.get(2), new long[] { 5, 9 });
+		assertEmpty(FileServer.parseRanges("bytes=10-20", 10));
+	}
+
+	@Test
+	public void throughput() throws IOException {
+		File bigFile = getTestOutputFile("big.bin");
+		byte[] block = new byte[1024 * 1024];
+		for (int i = 0; i < block.length; i++) {
+			block[i] = (byte) i;
+		}
+		FileOutputStream fileOut = new FileOutputStream(bigFile);
+		try {
+			for (int i = 0; i < 64; i++) {
+				fileOut.write(block);
+			}
+		} finally {
+			fileOut.close();
+		}
+		long length = bigFile.length();
+
+		for (int i = 0; i < 3; i++) {
+			NullOutputStream out = new NullOutputStream();
+			RuntimeTracker rt = new RuntimeTracker();
+			IO.copyFile(bigFile, out);
+			long copyFileMillis = Math.max(1, rt.getRuntime());
+			assertEquals(out.count, length);
+
+			Exchange exchange = new Exchange();
+			exchange.out = new NullOutputStream();
+			rt = new RuntimeTracker();
+			server.serveFile(bigFile, exchange.request, exchange.response, false, false);
+			long serveFileMillis = Math.max(1, rt.getRuntime());
+			assertEquals(((NullOutputStream) exchange.out).count, length);
+
+			log.info("Serving", length / 1024 / 1024, "MB: IO.copyFile", copyFileMillis, "ms,",
+				length / 1024 / copyFileMillis, "MB/s; FileServer", serveFileMillis, "ms,", length / 1024
+						/ serveFileMillis, "MB/s");
+		}
+		bigFile.delete();
+	}
+
+	private Exchange serve(Exchange exchange) throws IOException {
+		server.serveFile(file, exchange.request, exchange.response, false, true);
+		return exchange;
+	}
+
+	private static String formatDate(long time) {
+		return createDateFormat().format(new Date(time));
+	}
+
+	private static SimpleDateFormat createDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+
+	private static class NullOutputStream extends ByteArrayOutputStream {
+
+		private long count;
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+	}
+
+	/**
+	 * Request and response backed by maps.
+	 */
+	private static class Exchange {
+
+		private Map<String, String> requestHeaders = new HashMap<String, String>();
+		private Map<String, Object> attributes = new HashMap<String, Object>();
+		private Map<String, String> responseHeaders = new HashMap<String, String>();
+		private String method = "GET";
+		private int status = 200;
+		private String contentType;
+		private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		private HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class[] { HttpServletRequest.class }, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				String name = m.getName();
+				if (name.equals("getHeader")) return requestHeaders.get(args[0]);
+				if (name.equals("getMethod")) return method;
+				if (name.equals("getAttribute")) return attributes.get(args[0]);
+				if (name.equals("setAttribute")) return attributes.put((String) args[0], args[1]);
+				if (name.equals("getDateHeader")) {
+					String value = requestHeaders.get(args[0]);
+					if (value == null) return -1L;
+					try {
+						return createDateFormat().parse(value).getTime();
+					} catch (ParseException ex) {
+						throw new IllegalArgumentException(value);
+					}
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+
+		private HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class[] { HttpServletResponse.class }, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				String name = m.getName();
+				if (name.equals("setHeader")) return responseHeaders.put((String) args[0], (String) args[1]);
+				if (name.equals("setDateHeader"))
+					return responseHeaders.put((String) args[0], formatDate((Long) args[1]));
+				if (name.equals("setContentType")) return contentType = (String) args[0];
+				if (name.equals("setStatus") || name.equals("sendError")) return status = (Integer) args[0];
+				if (name.equals("getOutputStream")) return new ServletOutputStream() {
+
+					@Override
+					public void write(int b) throws IOException {
+						out.write(b);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
+					}
+
+					// servlet 3.1
+					public boolean isReady() {
+						return true;
+					}
+
+					public void setWriteListener(WriteListener writeListener) {}
+				};
+				throw new UnsupportedOperationException(name);
+			}
+		});
+
+		Exchange header(String name, String value) {
+			requestHeaders.put(name, value);
+			return this;
+		}
+
+		Exchange method(String method) {
+			this.method = method;
+			return this;
+		}
+
+		String getBody() {
+			try {
+				return out.toString(IO.UTF_8);
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+
+	}
+
+}